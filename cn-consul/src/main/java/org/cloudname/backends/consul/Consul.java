@@ -1,5 +1,6 @@
 package org.cloudname.backends.consul;
 
+import org.cloudname.core.LeaseData;
 import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.internal.util.Base64;
 
@@ -7,12 +8,20 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -30,6 +39,8 @@ import javax.ws.rs.core.Response;
  *
  * <p>Permanent leases are just plain entries into the KV store.
  *
+ * <p>Values are stored as raw bytes. The methods taking strings store the UTF-8 encoding.
+ *
  * <p>TODO: Use single session when creating leases.
  *
  * @author stalehd@gmail.com
@@ -120,18 +131,59 @@ public class Consul {
     }
 
     /**
-     * Write ephemeral data to the KV store, linked to the session. This will also work if the
-     * value doesn't exist up front.
+     * Run a request asynchronously. The response is converted by the handler when it arrives.
+     * The future completes with the failure value if the request fails.
      */
-    public boolean writeSessionData(final String name, final String data, final String sessionId) {
-        final Response response = httpClient
+    private static <T> CompletableFuture<T> async(
+            final Function<InvocationCallback<Response>, Future<Response>> invocation,
+            final Function<Response, T> handler,
+            final T failureValue) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final InvocationCallback<Response> callback = new InvocationCallback<Response>() {
+            @Override
+            public void completed(final Response response) {
+                try {
+                    future.complete(handler.apply(response));
+                } catch (final RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Got exception handling response from Consul Agent", ex);
+                    future.complete(failureValue);
+                }
+            }
+
+            @Override
+            public void failed(final Throwable throwable) {
+                LOG.log(Level.WARNING, "Request to Consul Agent failed", throwable);
+                future.complete(failureValue);
+            }
+        };
+        try {
+            invocation.apply(callback);
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Could not send request to Consul Agent", ex);
+            future.complete(failureValue);
+        }
+        return future;
+    }
+
+    /**
+     * The request entity for a value.
+     */
+    private static Entity<byte[]> valueEntity(final byte[] data) {
+        return Entity.entity(data, MediaType.APPLICATION_OCTET_STREAM_TYPE);
+    }
+
+    private Invocation.Builder sessionDataRequest(final String name, final String sessionId) {
+        return httpClient
                 .target(endpoint)
                 .path("/v1/kv/").path(name)
                 .queryParam("acquire", sessionId)
-                .request()
-                .put(Entity.text(data));
+                .request();
+    }
+
+    private static boolean handleSessionDataResponse(
+            final String name, final String sessionId, final Response response) {
         if (response.getStatus() != Response.Status.OK.getStatusCode()) {
-            LOG.log(Level.WARNING, "Could not write value " + name + "=" + data
+            LOG.log(Level.WARNING, "Could not write value " + name
                     + " for session " + sessionId + " got response " + response.getStatus()
                     + " but expected 200. Consul Agent says " + response.readEntity(String.class));
             return false;
@@ -143,17 +195,53 @@ public class Consul {
     }
 
     /**
-     * Create a new (permanent) entry in the KV store. Fails if the entry already exists.
+     * Write ephemeral data to the KV store, linked to the session. This will also work if the
+     * value doesn't exist up front.
      */
-    public boolean createPermanentData(final String name, final String data) {
-        final Response response = httpClient
+    public boolean writeSessionData(final String name, final String data, final String sessionId) {
+        return writeSessionData(name, LeaseData.encode(data), sessionId);
+    }
+
+    /**
+     * Write ephemeral binary data to the KV store, linked to the session.
+     */
+    public boolean writeSessionData(final String name, final byte[] data, final String sessionId) {
+        return handleSessionDataResponse(name, sessionId,
+                sessionDataRequest(name, sessionId).put(valueEntity(data)));
+    }
+
+    /**
+     * Non-blocking version of {@link #writeSessionData(String, String, String)}.
+     */
+    public CompletableFuture<Boolean> writeSessionDataAsync(
+            final String name, final String data, final String sessionId) {
+        return writeSessionDataAsync(name, LeaseData.encode(data), sessionId);
+    }
+
+    /**
+     * Non-blocking version of {@link #writeSessionData(String, byte[], String)}.
+     */
+    public CompletableFuture<Boolean> writeSessionDataAsync(
+            final String name, final byte[] data, final String sessionId) {
+        return async(
+                (callback) -> sessionDataRequest(name, sessionId)
+                        .async().put(valueEntity(data), callback),
+                (response) -> handleSessionDataResponse(name, sessionId, response),
+                false);
+    }
+
+    private Invocation.Builder createPermanentDataRequest(final String name) {
+        return httpClient
                 .target(endpoint)
                 .path("/v1/kv/").path(name)
                 .queryParam("cas", "0")
-                .request()
-                .put(Entity.text(data));
+                .request();
+    }
+
+    private static boolean handleCreatePermanentDataResponse(
+            final String name, final Response response) {
         if (response.getStatus() != Response.Status.OK.getStatusCode()) {
-            LOG.log(Level.WARNING, "Could not create permanent value " + name + "/" + data
+            LOG.log(Level.WARNING, "Could not create permanent value " + name
                     + " got response " + response.getStatus() + " but expected 200");
             return false;
         }
@@ -167,6 +255,42 @@ public class Consul {
         return false;
     }
 
+    /**
+     * Create a new (permanent) entry in the KV store. Fails if the entry already exists.
+     */
+    public boolean createPermanentData(final String name, final String data) {
+        return createPermanentData(name, LeaseData.encode(data));
+    }
+
+    /**
+     * Create a new (permanent) entry with binary data in the KV store. Fails if the entry
+     * already exists.
+     */
+    public boolean createPermanentData(final String name, final byte[] data) {
+        return handleCreatePermanentDataResponse(name,
+                createPermanentDataRequest(name).put(valueEntity(data)));
+    }
+
+    /**
+     * Non-blocking version of {@link #createPermanentData(String, String)}.
+     */
+    public CompletableFuture<Boolean> createPermanentDataAsync(
+            final String name, final String data) {
+        return createPermanentDataAsync(name, LeaseData.encode(data));
+    }
+
+    /**
+     * Non-blocking version of {@link #createPermanentData(String, byte[])}.
+     */
+    public CompletableFuture<Boolean> createPermanentDataAsync(
+            final String name, final byte[] data) {
+        return async(
+                (callback) -> createPermanentDataRequest(name)
+                        .async().put(valueEntity(data), callback),
+                (response) -> handleCreatePermanentDataResponse(name, response),
+                false);
+    }
+
     /**
      * Write to KV store in Consul.
      */
@@ -186,15 +310,55 @@ public class Consul {
         return true;
     }
 
+    private Invocation.Builder checkAndSetRequest(final String name, final long modifyIndex) {
+        return httpClient
+                .target(endpoint)
+                .path("/v1/kv/").path(name)
+                .queryParam("cas", Long.toString(modifyIndex))
+                .request();
+    }
+
+    private static boolean handleCheckAndSetResponse(
+            final String name, final String data, final Response response) {
+        if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            LOG.log(Level.WARNING, "Could not write value " + name + "/" + data
+                    + " got response " + response.getStatus() + " but expected 200");
+            return false;
+        }
+        // Same as for create; false means the index didn't match
+        return response.readEntity(String.class).equals("true");
+    }
+
     /**
-     * Remove permanent value.
+     * Write to the KV store if the value's ModifyIndex is unchanged. A value locked by a session
+     * keeps its session.
      */
-    public boolean removePermanentData(final String name) {
-        final Response response = httpClient
+    public boolean checkAndSetData(final String name, final String data, final long modifyIndex) {
+        return handleCheckAndSetResponse(name, data,
+                checkAndSetRequest(name, modifyIndex).put(Entity.text(data)));
+    }
+
+    /**
+     * Non-blocking version of {@link #checkAndSetData(String, String, long)}.
+     */
+    public CompletableFuture<Boolean> checkAndSetDataAsync(
+            final String name, final String data, final long modifyIndex) {
+        return async(
+                (callback) -> checkAndSetRequest(name, modifyIndex)
+                        .async().put(Entity.text(data), callback),
+                (response) -> handleCheckAndSetResponse(name, data, response),
+                false);
+    }
+
+    private Invocation.Builder kvRequest(final String name) {
+        return httpClient
                 .target(endpoint)
                 .path("/v1/kv/").path(name)
-                .request()
-                .delete();
+                .request(MediaType.APPLICATION_JSON);
+    }
+
+    private static boolean handleRemovePermanentDataResponse(
+            final String name, final Response response) {
         if (response.getStatus() != Response.Status.OK.getStatusCode()) {
             LOG.log(Level.WARNING, "Could not remove permanent value " + name
                     + ". Got response " + response.getStatus() + " but expected 200");
@@ -203,16 +367,85 @@ public class Consul {
         return true;
     }
 
+    /**
+     * Remove permanent value.
+     */
+    public boolean removePermanentData(final String name) {
+        return handleRemovePermanentDataResponse(name, kvRequest(name).delete());
+    }
+
+    /**
+     * Non-blocking version of {@link #removePermanentData(String)}.
+     */
+    public CompletableFuture<Boolean> removePermanentDataAsync(final String name) {
+        return async(
+                (callback) -> kvRequest(name).async().delete(callback),
+                (response) -> handleRemovePermanentDataResponse(name, response),
+                false);
+    }
+
+    private static byte[] handleReadDataResponse(final String name, final Response response) {
+        if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            LOG.log(Level.WARNING, "Got " + response.getStatus()
+                    + " from Consul Agent when querying for key named " + name);
+            return null;
+        }
+        final String dataJson = response.readEntity(String.class);
+        try {
+            final JSONArray array = new JSONArray(dataJson);
+            final JSONObject json = array.getJSONObject(0);
+            return ConsulValue.fromJson(json).getBinaryValue();
+        } catch (final JSONException je) {
+            LOG.log(Level.WARNING, "Couldn't grok JSON from Consul Agent for value "
+                    + name + ": " + dataJson);
+            return null;
+        }
+    }
+
     /**
      * Read value from KV store. Value must exist.
      *
      * @return null if not found
      */
     public String readData(final String name) {
-        final Response response = httpClient
-                .target(endpoint)
-                .path("/v1/kv/").path(name)
-                .request(MediaType.APPLICATION_JSON).get();
+        return LeaseData.decode(readBinaryData(name));
+    }
+
+    /**
+     * Read binary value from KV store. Value must exist.
+     *
+     * @return null if not found
+     */
+    public byte[] readBinaryData(final String name) {
+        return handleReadDataResponse(name, kvRequest(name).get());
+    }
+
+    /**
+     * Non-blocking version of {@link #readData(String)}.
+     *
+     * @return a future completing with the value or null if not found
+     */
+    public CompletableFuture<String> readDataAsync(final String name) {
+        return readBinaryDataAsync(name).thenApply(LeaseData::decode);
+    }
+
+    /**
+     * Non-blocking version of {@link #readBinaryData(String)}.
+     *
+     * @return a future completing with the value or null if not found
+     */
+    public CompletableFuture<byte[]> readBinaryDataAsync(final String name) {
+        return async(
+                (callback) -> kvRequest(name).async().get(callback),
+                (response) -> handleReadDataResponse(name, response),
+                null);
+    }
+
+    private static ConsulValue handleReadValueResponse(
+            final String name, final Response response) {
+        if (response.getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
+            return null;
+        }
         if (response.getStatus() != Response.Status.OK.getStatusCode()) {
             LOG.log(Level.WARNING, "Got " + response.getStatus()
                     + " from Consul Agent when querying for key named " + name);
@@ -220,9 +453,7 @@ public class Consul {
         }
         final String dataJson = response.readEntity(String.class);
         try {
-            final JSONArray array = new JSONArray(dataJson);
-            final JSONObject json = array.getJSONObject(0);
-            return Base64.decodeAsString(json.getString("Value"));
+            return ConsulValue.fromJson(new JSONArray(dataJson).getJSONObject(0));
         } catch (final JSONException je) {
             LOG.log(Level.WARNING, "Couldn't grok JSON from Consul Agent for value "
                     + name + ": " + dataJson);
@@ -230,6 +461,154 @@ public class Consul {
         }
     }
 
+    /**
+     * Read value from KV store along with its ModifyIndex.
+     *
+     * @return null if not found
+     */
+    public ConsulValue readValue(final String name) {
+        return handleReadValueResponse(name, kvRequest(name).get());
+    }
+
+    /**
+     * Non-blocking version of {@link #readValue(String)}.
+     *
+     * @return a future completing with the value or null if not found
+     */
+    public CompletableFuture<ConsulValue> readValueAsync(final String name) {
+        return async(
+                (callback) -> kvRequest(name).async().get(callback),
+                (response) -> handleReadValueResponse(name, response),
+                null);
+    }
+
+    /**
+     * Count the keys below (and including) a key without reading the values. Only the key names
+     * are returned by the agent.
+     *
+     * @return the number of keys, 0 if there are none or the agent can't be reached
+     */
+    public int countKeys(final String prefix) {
+        final Response response = httpClient
+                .target(endpoint)
+                .path("/v1/kv/").path(prefix)
+                .queryParam("keys", true)
+                .request(MediaType.APPLICATION_JSON)
+                .get();
+        if (response.getStatus() == Response.Status.NOT_FOUND.getStatusCode()) {
+            return 0;
+        }
+        if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            LOG.log(Level.WARNING, "Got " + response.getStatus()
+                    + " from Consul Agent when listing keys below " + prefix);
+            return 0;
+        }
+        final String keysJson = response.readEntity(String.class);
+        try {
+            final JSONArray keys = new JSONArray(keysJson);
+            int count = 0;
+            for (int i = 0; i < keys.length(); i++) {
+                final String key = keys.getString(i);
+                // The agent matches on the string prefix; skip keys like "foo/barbaz" for "foo/bar"
+                if (key.equals(prefix) || key.startsWith(prefix + "/")) {
+                    count++;
+                }
+            }
+            return count;
+        } catch (final JSONException je) {
+            LOG.log(Level.WARNING, "Couldn't grok JSON from Consul Agent for keys below "
+                    + prefix + ": " + keysJson);
+            return 0;
+        }
+    }
+
+    /**
+     * Build a transaction operation that creates a value. The operation fails if the value
+     * exists.
+     */
+    public static JSONObject createOperation(final String name, final String data) {
+        return kvOperation("cas", name)
+                .put("Value", Base64.encodeAsString(data))
+                .put("Index", 0);
+    }
+
+    /**
+     * Build a transaction operation that writes a value owned by a session.
+     */
+    public static JSONObject sessionWriteOperation(
+            final String name, final String data, final String sessionId) {
+        return kvOperation("lock", name)
+                .put("Value", Base64.encodeAsString(data))
+                .put("Session", sessionId);
+    }
+
+    /**
+     * Build a transaction operation that writes a value not owned by any session.
+     */
+    public static JSONObject writeOperation(final String name, final String data) {
+        return kvOperation("set", name)
+                .put("Value", Base64.encodeAsString(data));
+    }
+
+    /**
+     * Build a transaction operation that fails if a value doesn't exist.
+     */
+    public static JSONObject checkExistsOperation(final String name) {
+        return kvOperation("get", name);
+    }
+
+    /**
+     * Build a transaction operation that removes a value.
+     */
+    public static JSONObject removeOperation(final String name) {
+        return kvOperation("delete", name);
+    }
+
+    private static JSONObject kvOperation(final String verb, final String name) {
+        return new JSONObject().put("Verb", verb).put("Key", name);
+    }
+
+    /**
+     * Run a set of operations in a single transaction, PUT to /v1/txn. Either all of the
+     * operations succeed or none of them are applied. Consul limits the number of operations
+     * in a single transaction to 64.
+     *
+     * @return the indexes of the operations that caused the transaction to fail (an empty set
+     *     if the transaction succeeded) or null if the request itself failed
+     */
+    public Set<Integer> transaction(final List<JSONObject> operations) {
+        final JSONArray txn = new JSONArray();
+        operations.forEach((operation) -> txn.put(new JSONObject().put("KV", operation)));
+        final Response response = httpClient
+                .target(endpoint)
+                .path("/v1/txn")
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .put(Entity.entity(txn.toString(), MediaType.APPLICATION_JSON));
+        final Set<Integer> failed = new HashSet<>();
+        if (response.getStatus() == Response.Status.OK.getStatusCode()) {
+            response.close();
+            return failed;
+        }
+        final String result = response.readEntity(String.class);
+        if (response.getStatus() != Response.Status.CONFLICT.getStatusCode()) {
+            LOG.log(Level.WARNING, "Expected 200 or 409 when running transaction but got "
+                    + response.getStatus() + ". Consul Agent responded with " + result);
+            return null;
+        }
+        try {
+            final JSONArray errors = new JSONObject(result).getJSONArray("Errors");
+            for (int i = 0; i < errors.length(); i++) {
+                failed.add(errors.getJSONObject(i).getInt("OpIndex"));
+            }
+            return failed;
+        } catch (final JSONException je) {
+            LOG.log(Level.WARNING, "Couldn't grok JSON from Consul Agent for transaction: "
+                    + result);
+            return null;
+        }
+    }
+
     /**
      * Create a new watch object on the specified path. Note that the watch isn't started
      * automatically. Start it manually to ensure you receive all callbacks.
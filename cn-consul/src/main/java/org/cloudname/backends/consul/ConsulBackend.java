@@ -2,15 +2,27 @@ package org.cloudname.backends.consul;
 
 import org.cloudname.core.CloudnameBackend;
 import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseCountListener;
+import org.cloudname.core.LeaseCountTracker;
+import org.cloudname.core.LeaseData;
 import org.cloudname.core.LeaseHandle;
 import org.cloudname.core.LeaseListener;
 import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
+import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
@@ -33,8 +45,12 @@ public class ConsulBackend implements CloudnameBackend {
 
     private final Map<CloudnamePath, ConsulSession> sessions = new ConcurrentHashMap<>();
     private final Map<LeaseListener, ConsulWatch> watches = new ConcurrentHashMap<>();
+    // Count listeners are backed by collection listeners and their watches
+    private final LeaseCountTracker countTracker = new LeaseCountTracker(this);
     private static final char SEPARATOR = '/';
     private static final String CN_PREFIX = "cn";
+    private static final int KV_PREFIX_LENGTH = CN_PREFIX.length() + 2;
+    private static final int MAX_TXN_OPERATIONS = 64;
 
     /**
      * Convert a cloudname path to a session name.
@@ -54,9 +70,49 @@ public class ConsulBackend implements CloudnameBackend {
      * Convert ephemeral or permanent key name into a Cloudname path.
      */
     private CloudnamePath kvNameToCloudnamePath(final String name) {
-        final String[] elements = name.split("" + SEPARATOR);
-        // The first two elements are prefixes; skip those
-        return new CloudnamePath(Arrays.copyOfRange(elements, 2, elements.length));
+        // The key starts with the prefix and two separators; skip those
+        return CloudnamePath.parse(name, KV_PREFIX_LENGTH, SEPARATOR);
+    }
+
+    /**
+     * Handle for permanent leases. There's nothing to clean up when the handle is closed.
+     */
+    private class PermanentLeaseHandle implements LeaseHandle {
+        private final CloudnamePath path;
+
+        PermanentLeaseHandle(final CloudnamePath path) {
+            this.path = path;
+        }
+
+        @Override
+        public boolean writeData(final String data) {
+            return writeLeaseData(path, data);
+        }
+
+        @Override
+        public boolean writeBinaryData(final byte[] data) {
+            return writeBinaryLeaseData(path, data);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeDataAsync(final String data) {
+            return writeLeaseDataAsync(path, data);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeBinaryDataAsync(final byte[] data) {
+            return writeBinaryLeaseDataAsync(path, data);
+        }
+
+        @Override
+        public CloudnamePath getLeasePath() {
+            return path;
+        }
+
+        @Override
+        public void close() throws Exception {
+            // nothing to do
+        }
     }
 
     /**
@@ -97,7 +153,7 @@ public class ConsulBackend implements CloudnameBackend {
         }
     }
 
-    private LeaseHandle createTemporary(final CloudnamePath path, final String data) {
+    private LeaseHandle createTemporary(final CloudnamePath path, final byte[] data) {
         // Create session with TTL set to <something> and Behavior=delete. The session isn't
         // used to uniquely identify the client but to create ephemeral values in the KV store.
         final ConsulSession session
@@ -119,6 +175,11 @@ public class ConsulBackend implements CloudnameBackend {
         return new LeaseHandle() {
             @Override
             public boolean writeData(final String data) {
+                return writeBinaryData(LeaseData.encode(data));
+            }
+
+            @Override
+            public boolean writeBinaryData(final byte[] data) {
                 if (session.isClosed()) {
                     return false;
                 }
@@ -126,6 +187,20 @@ public class ConsulBackend implements CloudnameBackend {
                         pathToKv(instancePath.get()), data, session.getId());
             }
 
+            @Override
+            public CompletableFuture<Boolean> writeDataAsync(final String data) {
+                return writeBinaryDataAsync(LeaseData.encode(data));
+            }
+
+            @Override
+            public CompletableFuture<Boolean> writeBinaryDataAsync(final byte[] data) {
+                if (session.isClosed()) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return consul.writeSessionDataAsync(
+                        pathToKv(instancePath.get()), data, session.getId());
+            }
+
             @Override
             public CloudnamePath getLeasePath() {
                 if (session.isClosed()) {
@@ -145,6 +220,57 @@ public class ConsulBackend implements CloudnameBackend {
 
     @Override
     public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        return writeBinaryLeaseData(path, LeaseData.encode(data));
+    }
+
+    /**
+     * Write lease data if the value's ModifyIndex is unchanged. The index is checked by the agent
+     * with the {@code cas} parameter.
+     */
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        if (path == null || data == null) {
+            return false;
+        }
+        return consul.checkAndSetData(pathToKv(path), data, expectedVersion);
+    }
+
+    /**
+     * Batch write in Consul transactions. Temporary leases are written with the client's session
+     * like single writes. Permanent leases are written without a session and only if they exist;
+     * unlike single writes these succeed, but the write can't tell a permanent lease from a
+     * temporary lease held by another client.
+     */
+    @Override
+    public Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (leaseData == null) {
+            return ret;
+        }
+        final Map<CloudnamePath, List<JSONObject>> operations = new LinkedHashMap<>();
+        leaseData.forEach((path, data) -> {
+            ret.put(path, false);
+            if (path == null || data == null) {
+                return;
+            }
+            final ConsulSession session = sessions.get(path);
+            if (session != null) {
+                operations.put(path, Collections.singletonList(
+                        Consul.sessionWriteOperation(pathToKv(path), data, session.getId())));
+            } else {
+                // Permanent leases aren't owned by a session; the lease must exist
+                operations.put(path, Arrays.asList(
+                        Consul.checkExistsOperation(pathToKv(path)),
+                        Consul.writeOperation(pathToKv(path), data)));
+            }
+        });
+        ret.putAll(transaction(operations));
+        return ret;
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
         final ConsulSession session = sessions.get(path);
         if (session == null) {
             return false;
@@ -154,34 +280,93 @@ public class ConsulBackend implements CloudnameBackend {
 
     @Override
     public String readLeaseData(final CloudnamePath path) {
+        return LeaseData.decode(readBinaryLeaseData(path));
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path, final ReadConsistency consistency) {
+        return LeaseData.decode(readBinaryLeaseData(path, consistency));
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
         if (path == null) {
             return null;
         }
-        return consul.readData(pathToKv(path));
+        return consul.readBinaryData(pathToKv(path));
+    }
+
+    /**
+     * Read lease data. Cached reads of leases observed by a listener are served from the
+     * watch's copy of the values without a request to the agent.
+     */
+    @Override
+    public byte[] readBinaryLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path != null && consistency == ReadConsistency.CACHED) {
+            final String kvName = pathToKv(path);
+            final ConsulWatch watch = findWatch(kvName);
+            if (watch != null) {
+                return watch.getCachedBinaryValue(kvName);
+            }
+        }
+        return readBinaryLeaseData(path);
+    }
+
+    /**
+     * Read lease data with its ModifyIndex. Cached reads of leases observed by a listener are
+     * served from the watch's copy of the values.
+     */
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path == null) {
+            return null;
+        }
+        final String kvName = pathToKv(path);
+        if (consistency == ReadConsistency.CACHED) {
+            final ConsulWatch watch = findWatch(kvName);
+            if (watch != null) {
+                return toVersionedData(watch.getCachedConsulValue(kvName));
+            }
+        }
+        return toVersionedData(consul.readValue(kvName));
+    }
+
+    private static VersionedData toVersionedData(final ConsulValue value) {
+        if (value == null) {
+            return null;
+        }
+        return new VersionedData(value.getValue(), value.getModifyIndex());
+    }
+
+    /**
+     * Find a running watch covering a KV entry.
+     *
+     * @return the watch or null if the entry isn't observed
+     */
+    private ConsulWatch findWatch(final String kvName) {
+        for (final ConsulWatch watch : watches.values()) {
+            if (watch.isSynced() && watch.covers(kvName)) {
+                return watch;
+            }
+        }
+        return null;
     }
 
     @Override
     public LeaseHandle createLease(
             final LeaseType type, final CloudnamePath path, final String data) {
+        return createBinaryLease(type, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
         switch (type) {
             case PERMANENT:
                 if (consul.createPermanentData(pathToKv(path), data)) {
-                    return new LeaseHandle() {
-                        @Override
-                        public boolean writeData(final String data) {
-                            return writeLeaseData(path, data);
-                        }
-
-                        @Override
-                        public CloudnamePath getLeasePath() {
-                            return path;
-                        }
-
-                        @Override
-                        public void close() throws Exception {
-                            // nothing to do
-                        }
-                    };
+                    return new PermanentLeaseHandle(path);
                 }
                 return null;
 
@@ -191,7 +376,7 @@ public class ConsulBackend implements CloudnameBackend {
             default:
                 LOG.severe("Uknown lease type: " + type
                         + " - don't know how to create that kind of lease"
-                        + " (path = " + path + ", data = " + data + ")");
+                        + " (path = " + path + ")");
                 return null;
         }
     }
@@ -205,35 +390,236 @@ public class ConsulBackend implements CloudnameBackend {
         return consul.removePermanentData(consulPath);
     }
 
-    @Override
-    public void addLeaseListener(final CloudnamePath leaseToObserve, final LeaseListener listener) {
-        final ConsulWatch watch = consul.createWatch(pathToKv(leaseToObserve));
-        watches.put(listener, watch);
-        watch.startWatching(new ConsulWatch.ConsulWatchListener() {
-            @Override
-            public void created(final String valueName, final String value) {
-                final CloudnamePath path = kvNameToCloudnamePath(valueName);
-                if (path.equals(leaseToObserve)) {
-                    listener.leaseCreated(path, value);
-                }
+    /**
+     * Run operations in Consul transactions. Each lease has one or more operations. A transaction
+     * is atomic so when an operation fails the leases with failed operations are marked as
+     * failed and the remaining leases are retried. Large batches are split into several
+     * transactions.
+     *
+     * @return a map with the same keys as the operations map; true if the operations succeeded
+     */
+    private Map<CloudnamePath, Boolean> transaction(
+            final Map<CloudnamePath, List<JSONObject>> operations) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        final List<CloudnamePath> chunk = new ArrayList<>();
+        int chunkSize = 0;
+        for (final Map.Entry<CloudnamePath, List<JSONObject>> entry : operations.entrySet()) {
+            ret.put(entry.getKey(), false);
+            if (chunkSize + entry.getValue().size() > MAX_TXN_OPERATIONS) {
+                runTransaction(chunk, operations, ret);
+                chunk.clear();
+                chunkSize = 0;
             }
+            chunk.add(entry.getKey());
+            chunkSize += entry.getValue().size();
+        }
+        runTransaction(chunk, operations, ret);
+        return ret;
+    }
 
-            @Override
-            public void changed(final String valueName, final String value) {
-                final CloudnamePath path = kvNameToCloudnamePath(valueName);
-                if (path.equals(leaseToObserve)) {
-                    listener.dataChanged(path, value);
+    private void runTransaction(
+            final List<CloudnamePath> paths,
+            final Map<CloudnamePath, List<JSONObject>> operations,
+            final Map<CloudnamePath, Boolean> results) {
+        List<CloudnamePath> pending = new ArrayList<>(paths);
+        while (!pending.isEmpty()) {
+            // Keep track of which lease each operation belongs to
+            final List<JSONObject> txn = new ArrayList<>();
+            final List<Integer> owners = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                for (final JSONObject operation : operations.get(pending.get(i))) {
+                    txn.add(operation);
+                    owners.add(i);
                 }
             }
-
-            @Override
-            public void removed(final String valueName) {
-                final CloudnamePath path = kvNameToCloudnamePath(valueName);
-                if (path.equals(leaseToObserve)) {
-                    listener.leaseRemoved(path);
+            final Set<Integer> failed = consul.transaction(txn);
+            if (failed == null) {
+                return;
+            }
+            if (failed.isEmpty()) {
+                pending.forEach((path) -> results.put(path, true));
+                return;
+            }
+            final Set<Integer> failedLeases = new HashSet<>();
+            for (final int index : failed) {
+                if (index >= 0 && index < owners.size()) {
+                    failedLeases.add(owners.get(index));
+                }
+            }
+            if (failedLeases.isEmpty()) {
+                LOG.warning("Transaction failed but Consul didn't say which operation failed");
+                return;
+            }
+            final List<CloudnamePath> retry = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                if (!failedLeases.contains(i)) {
+                    retry.add(pending.get(i));
                 }
             }
+            pending = retry;
+        }
+    }
+
+    /**
+     * Create leases using a transaction. Temporary leases are tied to a session per lease
+     * so these are created one by one.
+     */
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        if (type != LeaseType.PERMANENT || leases == null) {
+            return CloudnameBackend.super.createLeases(type, leases);
+        }
+        final Map<CloudnamePath, LeaseHandle> ret = new LinkedHashMap<>();
+        final Map<CloudnamePath, List<JSONObject>> operations = new LinkedHashMap<>();
+        leases.forEach((path, data) -> {
+            ret.put(path, null);
+            if (path != null && data != null) {
+                operations.put(path,
+                        Collections.singletonList(Consul.createOperation(pathToKv(path), data)));
+            }
+        });
+        transaction(operations).forEach((path, created) -> {
+            if (created) {
+                ret.put(path, new PermanentLeaseHandle(path));
+            }
         });
+        return ret;
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (paths == null) {
+            return ret;
+        }
+        final Map<CloudnamePath, List<JSONObject>> operations = new LinkedHashMap<>();
+        for (final CloudnamePath path : paths) {
+            ret.put(path, false);
+            if (path != null) {
+                // Delete succeeds even if the value doesn't exist so check that it does first
+                final String name = pathToKv(path);
+                operations.put(path, Arrays.asList(
+                        Consul.checkExistsOperation(name), Consul.removeOperation(name)));
+            }
+        }
+        ret.putAll(transaction(operations));
+        return ret;
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return createBinaryLeaseAsync(type, path, LeaseData.encode(data));
+    }
+
+    /**
+     * Create leases without blocking. Temporary leases need a session and are created in the
+     * common fork-join pool, like the default implementation does.
+     */
+    @Override
+    public CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        if (type != LeaseType.PERMANENT) {
+            return CompletableFuture.supplyAsync(() -> createBinaryLease(type, path, data));
+        }
+        if (path == null || data == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return consul.createPermanentDataAsync(pathToKv(path), data)
+                .thenApply((created) -> created ? new PermanentLeaseHandle(path) : null);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        if (path == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        final String consulPath = pathToKv(path);
+        return consul.readBinaryDataAsync(consulPath).thenCompose((data) -> data == null
+                ? CompletableFuture.completedFuture(false)
+                : consul.removePermanentDataAsync(consulPath));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data) {
+        return writeBinaryLeaseDataAsync(path, LeaseData.encode(data));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        if (path == null || data == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return consul.checkAndSetDataAsync(pathToKv(path), data, expectedVersion);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeBinaryLeaseDataAsync(
+            final CloudnamePath path, final byte[] data) {
+        final ConsulSession session = (path == null ? null : sessions.get(path));
+        if (session == null || data == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return consul.writeSessionDataAsync(pathToKv(path), data, session.getId());
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(final CloudnamePath path) {
+        return readBinaryLeaseDataAsync(path).thenApply(LeaseData::decode);
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return readBinaryLeaseDataAsync(path, consistency).thenApply(LeaseData::decode);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(final CloudnamePath path) {
+        if (path == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return consul.readBinaryDataAsync(pathToKv(path));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path != null && consistency == ReadConsistency.CACHED) {
+            final String kvName = pathToKv(path);
+            final ConsulWatch watch = findWatch(kvName);
+            if (watch != null) {
+                return CompletableFuture.completedFuture(watch.getCachedBinaryValue(kvName));
+            }
+        }
+        return readBinaryLeaseDataAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<VersionedData> readVersionedLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final String kvName = pathToKv(path);
+        if (consistency == ReadConsistency.CACHED) {
+            final ConsulWatch watch = findWatch(kvName);
+            if (watch != null) {
+                return CompletableFuture.completedFuture(
+                        toVersionedData(watch.getCachedConsulValue(kvName)));
+            }
+        }
+        return consul.readValueAsync(kvName).thenApply(ConsulBackend::toVersionedData);
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath leaseToObserve, final LeaseListener listener) {
+        final ConsulWatch watch = consul.createWatch(pathToKv(leaseToObserve));
+        watches.put(listener, watch);
+        watch.startWatching(new LeaseEventForwarder(listener, leaseToObserve));
     }
 
     @Override
@@ -241,34 +627,134 @@ public class ConsulBackend implements CloudnameBackend {
             final CloudnamePath pathToObserve, final LeaseListener listener) {
         final ConsulWatch watch = consul.createWatch(pathToKv(pathToObserve));
         watches.put(listener, watch);
-        watch.startWatching(new ConsulWatch.ConsulWatchListener() {
-            @Override
-            public void created(final String valueName, final String value) {
-                listener.leaseCreated(kvNameToCloudnamePath(valueName), value);
+        watch.startWatching(new LeaseEventForwarder(listener, null));
+    }
+
+    // The watches poll on threads of their own so registering a listener doesn't block
+
+    @Override
+    public CompletableFuture<Void> addLeaseListenerAsync(
+            final CloudnamePath leaseToObserve, final LeaseListener listener) {
+        addLeaseListener(leaseToObserve, listener);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        addLeaseCollectionListener(pathToObserve, listener);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Forwards the value events from a watch to a lease listener. The values are passed on
+     * as is.
+     */
+    private class LeaseEventForwarder implements ConsulWatch.ConsulWatchListener {
+        private final LeaseListener listener;
+        private final CloudnamePath leasePath;
+
+        /**
+         * Create a forwarder.
+         *
+         * @param listener the lease listener
+         * @param leasePath the only lease to forward events for or null to forward all events
+         */
+        LeaseEventForwarder(final LeaseListener listener, final CloudnamePath leasePath) {
+            this.listener = listener;
+            this.leasePath = leasePath;
+        }
+
+        private boolean isObserved(final CloudnamePath path) {
+            return leasePath == null || leasePath.equals(path);
+        }
+
+        @Override
+        public void binarySnapshot(final Map<String, byte[]> values) {
+            final Map<CloudnamePath, byte[]> leases = new LinkedHashMap<>();
+            values.forEach((valueName, value) -> {
+                final CloudnamePath path = kvNameToCloudnamePath(valueName);
+                if (isObserved(path)) {
+                    leases.put(path, value);
+                }
+            });
+            listener.leaseSnapshot(leases);
+        }
+
+        @Override
+        public void created(final String valueName, final String value) {
+            binaryCreated(valueName, LeaseData.encode(value));
+        }
+
+        @Override
+        public void binaryCreated(final String valueName, final byte[] value) {
+            final CloudnamePath path = kvNameToCloudnamePath(valueName);
+            if (isObserved(path)) {
+                listener.binaryLeaseCreated(path, value);
             }
+        }
 
-            @Override
-            public void changed(final String valueName, final String value) {
-                listener.dataChanged(kvNameToCloudnamePath(valueName), value);
+        @Override
+        public void changed(final String valueName, final String value) {
+            binaryChanged(valueName, LeaseData.encode(value));
+        }
+
+        @Override
+        public void binaryChanged(final String valueName, final byte[] value) {
+            final CloudnamePath path = kvNameToCloudnamePath(valueName);
+            if (isObserved(path)) {
+                listener.binaryDataChanged(path, value);
             }
+        }
 
-            @Override
-            public void removed(final String valueName) {
-                listener.leaseRemoved(kvNameToCloudnamePath(valueName));
+        @Override
+        public void removed(final String valueName) {
+            final CloudnamePath path = kvNameToCloudnamePath(valueName);
+            if (isObserved(path)) {
+                listener.leaseRemoved(path);
             }
-        });
+        }
     }
 
     @Override
     public void removeLeaseListener(final LeaseListener listener) {
-        final ConsulWatch watch = watches.get(listener);
+        final ConsulWatch watch = watches.remove(listener);
         if (watch != null) {
             watch.stop();
         }
     }
 
+    /**
+     * Count the leases below a path. The count is served from a running watch covering the path
+     * if there is one. Otherwise only the key names are read from the agent.
+     */
+    @Override
+    public int countLeases(final CloudnamePath prefix) {
+        if (prefix == null) {
+            return 0;
+        }
+        final String kvName = pathToKv(prefix);
+        final ConsulWatch watch = findWatch(kvName);
+        if (watch != null) {
+            return watch.countCachedValues(kvName);
+        }
+        return consul.countKeys(kvName);
+    }
+
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        countTracker.addListener(prefix, listener);
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        countTracker.removeListener(listener);
+    }
+
     @Override
     public void close() {
+        countTracker.removeAll();
         watches.forEach((listener, watch) -> watch.stop());
         sessions.forEach((listener, session) -> session.close());
     }
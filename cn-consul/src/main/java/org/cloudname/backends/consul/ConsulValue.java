@@ -1,8 +1,11 @@
 package org.cloudname.backends.consul;
 
+import org.cloudname.core.LeaseData;
 import org.glassfish.jersey.internal.util.Base64;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * A simple representation of the values in the KV store. Each value has a key, a value and a
  * modify index. The modify index is updated by Consul when the value is changed.
@@ -10,14 +13,14 @@ import org.json.JSONObject;
  * @author stalehd@gmail.com
  */
 public class ConsulValue {
-    private final int modifyIndex;
+    private final long modifyIndex;
     private final String key;
-    private final String value;
+    private final byte[] value;
 
     /**
      * Create new value based on the specified modify index, key and value.
      */
-    public ConsulValue(final int modifyIndex, final String key, final String value) {
+    public ConsulValue(final long modifyIndex, final String key, final byte[] value) {
         this.modifyIndex = modifyIndex;
         this.key = key;
         this.value = value;
@@ -31,16 +34,23 @@ public class ConsulValue {
     }
 
     /**
-     * The value.
+     * The value as a UTF-8 string.
      */
     public String getValue() {
+        return LeaseData.decode(value);
+    }
+
+    /**
+     * The value.
+     */
+    public byte[] getBinaryValue() {
         return value;
     }
 
     /**
      * The value's ModifyIndex property.
      */
-    public int getModifyIndex() {
+    public long getModifyIndex() {
         return modifyIndex;
     }
 
@@ -49,8 +59,8 @@ public class ConsulValue {
      */
     public static ConsulValue fromJson(final JSONObject json) {
         return new ConsulValue(
-                json.getInt("ModifyIndex"),
+                json.getLong("ModifyIndex"),
                 json.getString("Key"),
-                Base64.decodeAsString(json.getString("Value")));
+                Base64.decode(json.getString("Value").getBytes(StandardCharsets.US_ASCII)));
     }
 }
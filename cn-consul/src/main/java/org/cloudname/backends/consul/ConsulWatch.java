@@ -1,9 +1,11 @@
 package org.cloudname.backends.consul;
 
+import org.cloudname.core.LeaseData;
 import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -14,6 +16,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.core.Response;
@@ -23,6 +26,9 @@ import javax.ws.rs.core.Response;
  * changes that slips under the radar if someone creates, then updates a KV entry since non-existing
  * KV entries just return a 404 without waiting.
  *
+ * <p>The watch remembers the last index it has seen and resumes from it after failed requests,
+ * so a short outage doesn't turn into a full read of every watched path once it is over.
+ *
  * @author stalehd@gmail.com
  */
 public class ConsulWatch {
@@ -39,13 +45,46 @@ public class ConsulWatch {
         void created(final String key, final String value);
 
         /**
-         * A vaøie is changed.
+         * A value is added. The default implementation decodes the value as UTF-8 and invokes
+         * {@link #created(String, String)}.
+         *
+         * @param key The name of the value
+         * @param value The value
+         */
+        default void binaryCreated(final String key, final byte[] value) {
+            created(key, LeaseData.decode(value));
+        }
+
+        /**
+         * The values that exist when the watch starts. This is invoked once, after the first
+         * successful read, and before any other notification. The default implementation
+         * invokes {@link #binaryCreated(String, byte[])} for each value.
+         *
+         * @param values The names and values of the existing values
+         */
+        default void binarySnapshot(final Map<String, byte[]> values) {
+            values.forEach(this::binaryCreated);
+        }
+
+        /**
+         * A value is changed.
          *
          * @param key The key name
          * @param value The new value
          */
         void changed(final String key, final String value);
 
+        /**
+         * A value is changed. The default implementation decodes the value as UTF-8 and invokes
+         * {@link #changed(String, String)}.
+         *
+         * @param key The key name
+         * @param value The new value
+         */
+        default void binaryChanged(final String key, final byte[] value) {
+            changed(key, LeaseData.decode(value));
+        }
+
         /**
          * A value is removed.
          *
@@ -55,6 +94,8 @@ public class ConsulWatch {
     }
 
     private static final Logger LOG = Logger.getLogger(ConsulWatch.class.getName());
+    private static final long MIN_RETRY_DELAY_MS = 100L;
+    private static final long MAX_RETRY_DELAY_MS = 10000L;
 
     private final String endpoint;
     private final String pathToWatch;
@@ -76,6 +117,22 @@ public class ConsulWatch {
      */
     private final CountDownLatch stopLatch = new CountDownLatch(1);
 
+    /**
+     * Set when the values have been read at least once and the watch is running.
+     */
+    private volatile boolean synced = false;
+
+    /**
+     * Set when the snapshot of the initial values has been delivered. Only used by the polling
+     * thread.
+     */
+    private boolean snapshotDelivered = false;
+
+    /**
+     * The X-Consul-Index of the last response. Only written by the polling thread.
+     */
+    private volatile long lastIndex = 0L;
+
     /**
      * Create a new watch.
      * @param endpoint The Consul Agend endpoint
@@ -92,81 +149,239 @@ public class ConsulWatch {
      * Stop the watch. This will (eventually) stop all requests.
      */
     public void stop() {
+        synced = false;
         stopLatch.countDown();
     }
 
     /**
-     * Start watching for changes.
+     * Check if the watch has read the values and is running. The local copy of the values is
+     * only kept up to date while it is.
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Check if a key is below the watched path.
+     */
+    public boolean covers(final String key) {
+        return key.startsWith(pathToWatch)
+                && (key.length() == pathToWatch.length()
+                    || key.charAt(pathToWatch.length()) == '/');
+    }
+
+    /**
+     * Count the values below (and including) a key in the local copy. The count is updated
+     * before the listener is notified.
+     */
+    public int countCachedValues(final String key) {
+        int count = 0;
+        for (final String name : currentValues.keySet()) {
+            if (name.equals(key) || name.startsWith(key + "/")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the local copy of a value. The copy is updated before the listener is notified.
+     *
+     * @param key The key name
+     * @return the value or null if the key doesn't exist as far as the watch knows
+     */
+    public String getCachedValue(final String key) {
+        final ConsulValue value = currentValues.get(key);
+        if (value == null) {
+            return null;
+        }
+        return value.getValue();
+    }
+
+    /**
+     * Get the local copy of a value as bytes. The copy is updated before the listener is
+     * notified.
+     *
+     * @param key The key name
+     * @return the value or null if the key doesn't exist as far as the watch knows
+     */
+    public byte[] getCachedBinaryValue(final String key) {
+        final ConsulValue value = currentValues.get(key);
+        if (value == null) {
+            return null;
+        }
+        return value.getBinaryValue();
+    }
+
+    /**
+     * Get the local copy of a value with its modify index.
+     *
+     * @param key The key name
+     * @return the value or null if the key doesn't exist as far as the watch knows
+     */
+    public ConsulValue getCachedConsulValue(final String key) {
+        return currentValues.get(key);
+    }
+
+    /**
+     * The last X-Consul-Index the watch has seen. Requests block until the index moves past it,
+     * so it is kept across failed requests; when the agent is reachable again the watch picks
+     * up where it left off and only the changes since then are reported.
+     */
+    public long getLastIndex() {
+        return lastIndex;
+    }
+
+    /**
+     * Start watching for changes. The watch keeps running until it is stopped. Failed requests
+     * (f.e. when the agent restarts or the network is down) are retried with an increasing
+     * delay from the last index the watch has seen. The local copy of the values is kept while
+     * the requests fail so the listener only gets the differences when the watch recovers.
      */
     public void startWatching(final ConsulWatchListener listener) {
         watchExecutor.execute(() -> {
-            int currentIndex = 0;
+            long retryDelayMs = MIN_RETRY_DELAY_MS;
             try {
                 while (!stopLatch.await(1, TimeUnit.MILLISECONDS)) {
-                    final Response response = httpClient
-                            .target(endpoint)
-                            .path("/v1/kv")
-                            .path(pathToWatch)
-                            .queryParam("recurse", 1)
-                            .queryParam("wait", "10s")
-                            .queryParam("index", currentIndex)
-                            .request().get();
-
-                    currentIndex = Integer.parseInt(response.getHeaderString("X-Consul-Index"));
-
-                    switch (response.getStatus()) {
-                        case 200:
-                            try {
-                                // There's changes. Get the array of values and see if something
-                                // is new, changed or removed. New ones won't be in the
-                                // currentValues map, changed ones exist in the map but is
-                                // different, deleted ones are removed from the map.
-                                processOutput(response.readEntity(String.class), listener);
-                            } catch (final JSONException je) {
-                                LOG.log(Level.INFO, "Got exception parsing JSON for watch "
-                                        + pathToWatch, je);
-                            }
-                            break;
-
-                        case 404:
-                            // Fake empty response
-                            processOutput("[]", listener);
-                            break;
-
-                        default:
-                            // Something went wrong. Stop the watch
-                            LOG.log(Level.WARNING, "Got response " + response.getStatus()
-                                    + ":" + response.readEntity(String.class)
-                                    + " from Consul Agent when watching " + pathToWatch
-                                    + ". Stopping watch");
-                            return;
+                    if (poll(listener)) {
+                        retryDelayMs = MIN_RETRY_DELAY_MS;
+                        continue;
+                    }
+                    if (stopLatch.getCount() == 0) {
+                        return;
+                    }
+                    // Values might change while the watch can't reach the agent
+                    synced = false;
+                    if (stopLatch.await(retryDelayMs, TimeUnit.MILLISECONDS)) {
+                        return;
                     }
-                    response.close();
+                    retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
                 }
             } catch (final InterruptedException ie) {
                 LOG.log(Level.WARNING, "Got InterruptedException. Stopping watch", ie);
+            } finally {
+                synced = false;
             }
         });
     }
 
     /**
-     * Process the returned list from Consul.
+     * Run a single blocking query from the last seen index and process the result.
+     *
+     * @return true if the request succeeded, false if it should be retried. The stop latch is
+     *     counted down if the watch can't continue.
+     */
+    private boolean poll(final ConsulWatchListener listener) {
+        final Response response;
+        try {
+            response = httpClient
+                    .target(endpoint)
+                    .path("/v1/kv")
+                    .path(pathToWatch)
+                    .queryParam("recurse", 1)
+                    .queryParam("wait", "10s")
+                    .queryParam("index", lastIndex)
+                    .request().get();
+        } catch (final ProcessingException ex) {
+            LOG.log(Level.INFO, "Could not reach Consul Agent when watching " + pathToWatch
+                    + ". Retrying from index " + lastIndex, ex);
+            return false;
+        }
+        try {
+            switch (response.getStatus()) {
+                case 200:
+                    try {
+                        // There's changes. Get the array of values and see if something
+                        // is new, changed or removed. New ones won't be in the
+                        // currentValues map, changed ones exist in the map but is
+                        // different, deleted ones are removed from the map.
+                        processOutput(response.readEntity(String.class), listener);
+                    } catch (final JSONException je) {
+                        LOG.log(Level.INFO, "Got exception parsing JSON for watch "
+                                + pathToWatch, je);
+                        return false;
+                    }
+                    break;
+
+                case 404:
+                    // Fake empty response
+                    processOutput("[]", listener);
+                    break;
+
+                default:
+                    if (response.getStatus() >= 500) {
+                        LOG.log(Level.INFO, "Got response " + response.getStatus()
+                                + " from Consul Agent when watching " + pathToWatch
+                                + ". Retrying from index " + lastIndex);
+                        return false;
+                    }
+                    // Something is wrong with the request. Stop the watch
+                    LOG.log(Level.WARNING, "Got response " + response.getStatus()
+                            + ":" + response.readEntity(String.class)
+                            + " from Consul Agent when watching " + pathToWatch
+                            + ". Stopping watch");
+                    stopLatch.countDown();
+                    return false;
+            }
+            updateIndex(response.getHeaderString("X-Consul-Index"));
+            synced = stopLatch.getCount() > 0;
+            return true;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Remember the index returned by the agent. The index is reset if it goes backwards (f.e.
+     * when the cluster's state is restored from a snapshot) so the next request doesn't block
+     * on an index the cluster has not reached yet; the next response then has all of the values
+     * and the differences are reported as usual.
+     */
+    private void updateIndex(final String indexHeader) {
+        if (indexHeader == null) {
+            return;
+        }
+        try {
+            final long index = Long.parseLong(indexHeader);
+            lastIndex = (index < lastIndex || index <= 0) ? 0L : index;
+        } catch (final NumberFormatException ex) {
+            LOG.log(Level.WARNING, "Got invalid X-Consul-Index " + indexHeader
+                    + " when watching " + pathToWatch);
+        }
+    }
+
+    /**
+     * Process the returned list from Consul. The values in the first list are delivered as a
+     * snapshot.
      */
     private void processOutput(final String output, final ConsulWatchListener listener) {
         // Keep track of the values returned by the set.
         final Set<String> existingValues = new HashSet<>();
         existingValues.addAll(currentValues.keySet());
         final JSONArray array = new JSONArray(output);
+        if (!snapshotDelivered) {
+            final Map<String, byte[]> snapshot = new LinkedHashMap<>();
+            for (int i = 0; i < array.length(); i++) {
+                final ConsulValue value = ConsulValue.fromJson(array.getJSONObject(i));
+                currentValues.put(value.getKey(), value);
+                snapshot.put(value.getKey(), value.getBinaryValue());
+            }
+            snapshotDelivered = true;
+            invokeListener(() -> listener.binarySnapshot(snapshot));
+            return;
+        }
         for (int i = 0; i < array.length(); i++) {
             final ConsulValue value = ConsulValue.fromJson(array.getJSONObject(i));
             final ConsulValue oldValue = currentValues.get(value.getKey());
 
             if (oldValue == null) {
-                invokeListener(() -> listener.created(value.getKey(), value.getValue()));
                 currentValues.put(value.getKey(), value);
+                invokeListener(() ->
+                        listener.binaryCreated(value.getKey(), value.getBinaryValue()));
             } else if (oldValue.getModifyIndex() != value.getModifyIndex()) {
-                invokeListener(() -> listener.changed(value.getKey(), value.getValue()));
                 currentValues.put(value.getKey(), value);
+                invokeListener(() ->
+                        listener.binaryChanged(value.getKey(), value.getBinaryValue()));
             }
 
             existingValues.remove(value.getKey());
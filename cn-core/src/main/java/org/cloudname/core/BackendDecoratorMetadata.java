@@ -0,0 +1,25 @@
+package org.cloudname.core;
+
+import java.util.function.BiFunction;
+
+/**
+ * Metadata about backend decorators. Decorators wrap a backend and add functionality to it.
+ * Implement this class and reference it in
+ * <pre>src/main/resources/META-INF/services/org.cloudname.core.BackendDecoratorMetadata</pre>
+ *
+ * <p>Decorators are applied by prefixing the backend name in the URL with the decorator name
+ * and a plus sign, f.e.
+ * <pre>[decorator]+[backend]://[connection string]</pre>
+ */
+public interface BackendDecoratorMetadata {
+    /**
+     * The name of the decorator.
+     */
+    String getName();
+
+    /**
+     * A factory method for the decorator. The method takes two parameters; the backend to
+     * decorate and the URL of the decorated backend.
+     */
+    BiFunction<CloudnameBackend, String, CloudnameBackend> getFactoryMethod();
+}
@@ -1,23 +1,35 @@
 package org.cloudname.core;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Manager class to aid in creating backends. The backend implementations should make the
  * constructor private and register through the @link{register()} method.
+ *
+ * <p>Backends are shared; every caller asking for the same backend URL gets a handle to the same
+ * backend instance (ie the same connection and session). The backend is closed when the last
+ * handle is closed.
  */
 public class BackendManager {
-    private static final Pattern PATTERN = Pattern.compile("([a-z]*)://(.*)");
+    private static final Logger LOG = Logger.getLogger(BackendManager.class.getName());
+    private static final Pattern PATTERN = Pattern.compile("((?:[a-z]+\\+)*)([a-z]*)://(.*)");
 
     /**
      * Small helper class that splits URLs into names and connection strings.
      */
     private static class BackendUrl {
+        final List<String> decorators = new ArrayList<>();
         final String name;
         final String connectionString;
 
@@ -26,19 +38,54 @@ public class BackendManager {
             if (!matcher.matches()) {
                 throw new IllegalArgumentException("Not a proper backend URL: " + url);
             }
-            name = matcher.group(1);
-            connectionString = matcher.group(2);
+            for (final String decorator : matcher.group(1).split("\\+")) {
+                if (!decorator.isEmpty()) {
+                    decorators.add(decorator);
+                }
+            }
+            name = matcher.group(2);
+            connectionString = matcher.group(3);
+        }
+
+        /**
+         * The URL of the backend without any decorators.
+         */
+        String backendUrl() {
+            return name + "://" + connectionString;
         }
     }
 
     private static final Map<String, Function<String, CloudnameBackend>> drivers
             = new ConcurrentHashMap<>();
+    private static final Map<String, BiFunction<CloudnameBackend, String, CloudnameBackend>>
+            decorators = new ConcurrentHashMap<>();
+
+    /**
+     * A backend shared by several handles.
+     */
+    private static class SharedInstance {
+        final CloudnameBackend backend;
+        int references = 0;
+
+        SharedInstance(final CloudnameBackend backend) {
+            this.backend = backend;
+        }
+    }
+
+    private static final Object syncObject = new Object();
+    // The shared backends keyed on the backend URL without decorators. Modified while holding
+    // the sync object.
+    private static final Map<String, SharedInstance> sharedBackends = new HashMap<>();
 
     static {
         final ServiceLoader<BackendMetadata> serviceLoader
                 = ServiceLoader.load(BackendMetadata.class);
         serviceLoader.forEach(
                 (metadata) -> register(metadata.getName(), metadata.getFactoryMethod()));
+        final ServiceLoader<BackendDecoratorMetadata> decoratorLoader
+                = ServiceLoader.load(BackendDecoratorMetadata.class);
+        decoratorLoader.forEach((metadata) ->
+                registerDecorator(metadata.getName(), metadata.getFactoryMethod()));
     }
 
     private BackendManager() {
@@ -46,10 +93,21 @@ public class BackendManager {
     }
 
     /**
-     * Create a new driver based on the connection URL. The connection URL is on the format
+     * Get a backend based on the connection URL. The connection URL is on the format
      * <pre>
      *    [backend]://[backend-dependent connection string]
      * </pre>
+     *
+     * <p>The backend name can be prefixed with one or more decorators separated by plus signs,
+     * f.e. "metrics+memory://". The decorators are applied right to left so the leftmost
+     * decorator is the outermost.
+     *
+     * <p>The backend is shared with other callers using the same backend URL. Each caller gets
+     * its own handle (with its own decorators); closing the handle removes the listeners and
+     * temporary leases created through it. The shared backend is closed when the last handle
+     * is closed.
+     *
+     * @return the backend or null if the backend or one of the decorators isn't registered
      */
     public static CloudnameBackend getBackend(final String url) {
         if (url == null) {
@@ -57,10 +115,115 @@ public class BackendManager {
         }
 
         final BackendUrl backendUrl = new BackendUrl(url);
-        if (!drivers.containsKey(backendUrl.name)) {
+        if (!isRegistered(backendUrl)) {
+            return null;
+        }
+        final CloudnameBackend handle = acquire(backendUrl);
+        if (handle == null) {
+            return null;
+        }
+        final CloudnameBackend backend = decorate(backendUrl, handle);
+        if (backend == null) {
+            closeBackend(handle);
+        }
+        return backend;
+    }
+
+    /**
+     * Create a new backend that isn't shared with anyone else. The URL is on the same format as
+     * for {@link #getBackend(String)}. Use this when the backend must have a connection of its
+     * own.
+     *
+     * @return the backend or null if the backend or one of the decorators isn't registered
+     */
+    public static CloudnameBackend createBackend(final String url) {
+        if (url == null) {
             return null;
         }
-        return drivers.get(backendUrl.name).apply(backendUrl.connectionString);
+
+        final BackendUrl backendUrl = new BackendUrl(url);
+        if (!isRegistered(backendUrl)) {
+            return null;
+        }
+        final CloudnameBackend backend
+                = drivers.get(backendUrl.name).apply(backendUrl.connectionString);
+        if (backend == null) {
+            return null;
+        }
+        return decorate(backendUrl, backend);
+    }
+
+    private static boolean isRegistered(final BackendUrl backendUrl) {
+        if (!drivers.containsKey(backendUrl.name)) {
+            return false;
+        }
+        for (final String decorator : backendUrl.decorators) {
+            if (!decorators.containsKey(decorator)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply the decorators in the URL to a backend.
+     */
+    private static CloudnameBackend decorate(
+            final BackendUrl backendUrl, final CloudnameBackend undecorated) {
+        CloudnameBackend backend = undecorated;
+        String decoratedUrl = backendUrl.backendUrl();
+        for (int i = backendUrl.decorators.size() - 1; i >= 0 && backend != null; i--) {
+            final String decorator = backendUrl.decorators.get(i);
+            backend = decorators.get(decorator).apply(backend, decoratedUrl);
+            decoratedUrl = decorator + "+" + decoratedUrl;
+        }
+        return backend;
+    }
+
+    /**
+     * Get a handle to the shared backend for the URL, creating the backend if it doesn't exist.
+     * Backends are created while holding the lock so two callers asking for the same backend at
+     * the same time won't create two instances.
+     */
+    private static CloudnameBackend acquire(final BackendUrl backendUrl) {
+        final String key = backendUrl.backendUrl();
+        synchronized (syncObject) {
+            SharedInstance instance = sharedBackends.get(key);
+            if (instance == null) {
+                final CloudnameBackend backend
+                        = drivers.get(backendUrl.name).apply(backendUrl.connectionString);
+                if (backend == null) {
+                    return null;
+                }
+                instance = new SharedInstance(backend);
+                sharedBackends.put(key, instance);
+            }
+            instance.references++;
+            final SharedInstance acquired = instance;
+            return new SharedBackend(instance.backend, () -> release(key, acquired));
+        }
+    }
+
+    /**
+     * Release a reference to a shared backend, closing it if it was the last reference.
+     */
+    private static void release(final String key, final SharedInstance instance) {
+        synchronized (syncObject) {
+            instance.references--;
+            if (instance.references > 0) {
+                return;
+            }
+            sharedBackends.remove(key, instance);
+        }
+        closeBackend(instance.backend);
+    }
+
+    private static void closeBackend(final CloudnameBackend backend) {
+        try {
+            backend.close();
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception closing backend", ex);
+        }
     }
 
     /**
@@ -83,4 +246,27 @@ public class BackendManager {
     public static void deregister(final String backendIdentifer) {
         drivers.remove(backendIdentifer);
     }
+
+    /**
+     * Add a new decorator to the list of available decorators.
+     *
+     * @param decoratorIdentifier Name of decorator. A string identifier used in the driver URL
+     * @param createMethod Method to create the decorator. The parameters are the backend to
+     *     decorate and the URL of the decorated backend.
+     */
+    public static void registerDecorator(
+            final String decoratorIdentifier,
+            final BiFunction<CloudnameBackend, String, CloudnameBackend> createMethod) {
+        if (decoratorIdentifier == null || createMethod == null) {
+            return;
+        }
+        decorators.put(decoratorIdentifier, createMethod);
+    }
+
+    /**
+     * Removes a decorator from the list of available decorators.
+     */
+    public static void deregisterDecorator(final String decoratorIdentifier) {
+        decorators.remove(decoratorIdentifier);
+    }
 }
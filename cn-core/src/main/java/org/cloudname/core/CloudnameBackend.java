@@ -1,5 +1,10 @@
 package org.cloudname.core;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Cloudname supports different backends which implements this interface. This interface isn't used
  * by clients directly but the clients will interface with libraries built on top of this interface.
@@ -13,7 +18,19 @@ package org.cloudname.core;
  * <p>Clients listen on both kinds of leases and get notifications through listeners whenever
  * something is changed. Notifications to the clients are sent in the same order they are received.
  *
- * <p>Each lease has a data string attached to the lease and clients may update this freely.
+ * <p>Each lease has data attached to the lease and clients may update this freely. The data is
+ * available both as a string and as bytes; the string is the UTF-8 encoding of the bytes. Backends
+ * storing bytes natively should override the binary operations and implement the string
+ * operations on top of them so binary encodings of the data travel between clients without being
+ * converted. The default implementations of the binary operations convert to and from strings.
+ * The backends don't copy the byte arrays so clients must not modify arrays they have passed to
+ * or received from the backend.
+ *
+ * <p>The lease operations have non-blocking variants returning {@link CompletableFuture}s. The
+ * futures complete with the same values the blocking operations return. Backends with a native
+ * asynchronous API should override these; the default implementations run the blocking
+ * operation in the common fork-join pool. Dependent actions on the futures might run on the
+ * backend's own event threads so they should not block.
  *
  * @author stalehd@gmail.com
  */
@@ -38,6 +55,20 @@ public interface CloudnameBackend extends AutoCloseable {
      */
     LeaseHandle createLease(LeaseType type, CloudnamePath path, String data);
 
+    /**
+     * Create a lease with binary data. See {@link #createLease(LeaseType, CloudnamePath, String)}.
+     * The default implementation decodes the data as UTF-8 and creates a string lease.
+     *
+     * @param type Type of lease. This value cannot be null.
+     * @param path The full path to lease. This value cannot be null.
+     * @param data Lease data. This value cannot be null.
+     * @return A LeaseHandle instance or null if the lease couldn't be created
+     */
+    default LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return createLease(type, path, LeaseData.decode(data));
+    }
+
     /**
      * Remove a lease. The lease will be removed and clients listening on the lease
      * will be notified. Leases with the {@link LeaseType} set to PERMANENT can be removed by any
@@ -79,6 +110,59 @@ public interface CloudnameBackend extends AutoCloseable {
      */
     boolean writeLeaseData(final CloudnamePath path, final String data);
 
+    /**
+     * Update a lease if it hasn't changed since it was read. The data is only written if the
+     * lease's version is the expected version, i.e. nobody else has written to the lease since
+     * it was read with {@link #readVersionedLeaseData(CloudnamePath, ReadConsistency)}. This
+     * makes read-modify-write cycles safe across clients without any locking. Backends that
+     * support versioned reads must override this; the default implementation throws an
+     * {@link UnsupportedOperationException}.
+     *
+     * @param path path to the lease
+     * @param data the updated lease data
+     * @param expectedVersion the version the lease must have for the write to succeed
+     * @return true if the data is written, false if the lease doesn't exist, the version doesn't
+     *     match or the write fails
+     * @throws UnsupportedOperationException if the backend doesn't support versioned leases
+     */
+    default boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        throw new UnsupportedOperationException("Backend doesn't support versioned writes");
+    }
+
+    /**
+     * Update several leases in one operation. Backends that can write the data in a single
+     * round trip should override this. The default implementation calls
+     * {@link #writeLeaseData(CloudnamePath, String)} for each lease. Both temporary and
+     * permanent leases can be written. The Consul backend writes permanent leases in a batch
+     * without checking which client owns them; single writes there only update the client's
+     * own temporary leases.
+     *
+     * @param leaseData Map of lease paths and the updated lease data
+     * @return A map with the same keys (in the same order) as the parameter. The value is true if
+     *     the lease was updated. The map is empty if the parameter is null.
+     */
+    default Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (leaseData == null) {
+            return ret;
+        }
+        leaseData.forEach((path, data) -> ret.put(path, writeLeaseData(path, data)));
+        return ret;
+    }
+
+    /**
+     * Update a client's lease with binary data. The default implementation decodes the data as
+     * UTF-8 and calls {@link #writeLeaseData(CloudnamePath, String)}.
+     *
+     * @param path path to the lease
+     * @param data the updated lease data
+     * @return true if successful, false otherwise
+     */
+    default boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        return writeLeaseData(path, LeaseData.decode(data));
+    }
+
     /**
      * Read temporary lease data. Clients won't use this in regular use but rather monitor changes
      * through the listeners but libraries built on top of the backend might read the data.
@@ -88,6 +172,103 @@ public interface CloudnameBackend extends AutoCloseable {
      */
     String readLeaseData(final CloudnamePath path);
 
+    /**
+     * Read lease data with the specified consistency. Backends keeping a local copy of the
+     * observed leases serve {@link ReadConsistency#CACHED} reads from the local copy and avoid
+     * a round trip to the cluster. The default implementation always reads from the backend.
+     *
+     * @param path path to the lease
+     * @param consistency the consistency of the read
+     * @return the data stored in the lease or null if the lease doesn't exist
+     */
+    default String readLeaseData(final CloudnamePath path, final ReadConsistency consistency) {
+        return readLeaseData(path);
+    }
+
+    /**
+     * Read lease data as bytes. The default implementation returns the UTF-8 encoding of
+     * {@link #readLeaseData(CloudnamePath)}.
+     *
+     * @param path path to the lease
+     * @return the data stored in the lease or null if the lease doesn't exist
+     */
+    default byte[] readBinaryLeaseData(final CloudnamePath path) {
+        return LeaseData.encode(readLeaseData(path));
+    }
+
+    /**
+     * Read lease data as bytes with the specified consistency. Backends serving cached reads
+     * must override this; the default implementation always reads from the backend.
+     *
+     * @param path path to the lease
+     * @param consistency the consistency of the read
+     * @return the data stored in the lease or null if the lease doesn't exist
+     */
+    default byte[] readBinaryLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return readBinaryLeaseData(path);
+    }
+
+    /**
+     * Read lease data along with its version. The version can be used for a conditional write
+     * with {@link #writeLeaseData(CloudnamePath, String, long)}. A {@link ReadConsistency#CACHED}
+     * read might return an old version; the conditional write will fail in that case and the
+     * client can do a {@link ReadConsistency#LINEARIZABLE} read and try again. Backends that
+     * support versioned leases must override this; the default implementation throws an
+     * {@link UnsupportedOperationException}.
+     *
+     * @param path path to the lease
+     * @param consistency the consistency of the read
+     * @return the data and its version or null if the lease doesn't exist
+     * @throws UnsupportedOperationException if the backend doesn't support versioned leases
+     */
+    default VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        throw new UnsupportedOperationException("Backend doesn't support versioned reads");
+    }
+
+    /**
+     * Create several leases of the same type in one operation. Backends that can create the
+     * leases in a single round trip should override this. The default implementation calls
+     * {@link #createLease(LeaseType, CloudnamePath, String)} for each lease. Each lease is created
+     * or fails independently of the others.
+     *
+     * @param type Type of leases. This value cannot be null.
+     * @param leases Map of lease paths and lease data
+     * @return A map with the same keys (in the same order) as the leases parameter, with the
+     *     LeaseHandle for each lease as the value. The value is null if the lease couldn't be
+     *     created. The map is empty if either parameter is null.
+     */
+    default Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        final Map<CloudnamePath, LeaseHandle> ret = new LinkedHashMap<>();
+        if (type == null || leases == null) {
+            return ret;
+        }
+        leases.forEach((path, data) -> ret.put(path, createLease(type, path, data)));
+        return ret;
+    }
+
+    /**
+     * Remove several leases in one operation. Backends that can remove the leases in a single
+     * round trip should override this. The default implementation calls
+     * {@link #removeLease(CloudnamePath)} for each lease.
+     *
+     * @param paths paths to the leases
+     * @return A map with the paths (in the same order) as keys. The value is true if the lease
+     *     was removed. The map is empty if the parameter is null.
+     */
+    default Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (paths == null) {
+            return ret;
+        }
+        for (final CloudnamePath path : paths) {
+            ret.put(path, removeLease(path));
+        }
+        return ret;
+    }
+
     /**
      * Add a listener to a set of leases identified by a path. As soon as someone creates a lease
      * matching the given path a notification is be sent by the backend.
@@ -110,4 +291,169 @@ public interface CloudnameBackend extends AutoCloseable {
      * @param listener the listener to remove
      */
     void removeLeaseListener(final LeaseListener listener);
+
+    /**
+     * Count the leases below a path without reading their data. The count is the number of
+     * leases a collection listener on the path would see in its snapshot. Backends that support
+     * counts must override this; the default implementation throws an
+     * {@link UnsupportedOperationException}.
+     *
+     * @param prefix the path to count leases below
+     * @return the number of leases, 0 if the path is null
+     * @throws UnsupportedOperationException if the backend doesn't support counts
+     */
+    default int countLeases(final CloudnamePath prefix) {
+        throw new UnsupportedOperationException("Backend doesn't support lease counts");
+    }
+
+    /**
+     * Listen to the number of leases below a path. The listener is invoked with the current count
+     * when it is added and every time the count changes after that; data changes don't change
+     * the count and aren't reported. The same listener can observe several paths. Backends that
+     * support counts must override this; the default implementation throws an
+     * {@link UnsupportedOperationException}.
+     *
+     * @param prefix the path to count leases below
+     * @param listener callbacks on this listener are invoked by the backend
+     * @throws UnsupportedOperationException if the backend doesn't support counts
+     */
+    default void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        throw new UnsupportedOperationException("Backend doesn't support lease counts");
+    }
+
+    /**
+     * Remove a count listener from all the paths it observes. Unknown listeners are ignored.
+     *
+     * @param listener the listener to remove
+     */
+    default void removeLeaseCountListener(final LeaseCountListener listener) {
+    }
+
+    /**
+     * Non-blocking version of {@link #createLease(LeaseType, CloudnamePath, String)}.
+     *
+     * @return a future with the LeaseHandle or null if the lease couldn't be created
+     */
+    default CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return CompletableFuture.supplyAsync(() -> createLease(type, path, data));
+    }
+
+    /**
+     * Non-blocking version of {@link #createBinaryLease(LeaseType, CloudnamePath, byte[])}.
+     *
+     * @return a future with the LeaseHandle or null if the lease couldn't be created
+     */
+    default CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return CompletableFuture.supplyAsync(() -> createBinaryLease(type, path, data));
+    }
+
+    /**
+     * Non-blocking version of {@link #removeLease(CloudnamePath)}.
+     *
+     * @return a future completing with true if the lease is removed
+     */
+    default CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        return CompletableFuture.supplyAsync(() -> removeLease(path));
+    }
+
+    /**
+     * Non-blocking version of {@link #writeLeaseData(CloudnamePath, String)}.
+     *
+     * @return a future completing with true if the data is written
+     */
+    default CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data) {
+        return CompletableFuture.supplyAsync(() -> writeLeaseData(path, data));
+    }
+
+    /**
+     * Non-blocking version of {@link #writeLeaseData(CloudnamePath, String, long)}.
+     *
+     * @return a future completing with true if the data is written
+     */
+    default CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        return CompletableFuture.supplyAsync(() -> writeLeaseData(path, data, expectedVersion));
+    }
+
+    /**
+     * Non-blocking version of {@link #writeBinaryLeaseData(CloudnamePath, byte[])}.
+     *
+     * @return a future completing with true if the data is written
+     */
+    default CompletableFuture<Boolean> writeBinaryLeaseDataAsync(
+            final CloudnamePath path, final byte[] data) {
+        return CompletableFuture.supplyAsync(() -> writeBinaryLeaseData(path, data));
+    }
+
+    /**
+     * Non-blocking version of {@link #readLeaseData(CloudnamePath)}.
+     *
+     * @return a future with the lease data or null if the lease doesn't exist
+     */
+    default CompletableFuture<String> readLeaseDataAsync(final CloudnamePath path) {
+        return CompletableFuture.supplyAsync(() -> readLeaseData(path));
+    }
+
+    /**
+     * Non-blocking version of {@link #readLeaseData(CloudnamePath, ReadConsistency)}.
+     *
+     * @return a future with the lease data or null if the lease doesn't exist
+     */
+    default CompletableFuture<String> readLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return readLeaseDataAsync(path);
+    }
+
+    /**
+     * Non-blocking version of {@link #readBinaryLeaseData(CloudnamePath)}.
+     *
+     * @return a future with the lease data or null if the lease doesn't exist
+     */
+    default CompletableFuture<byte[]> readBinaryLeaseDataAsync(final CloudnamePath path) {
+        return CompletableFuture.supplyAsync(() -> readBinaryLeaseData(path));
+    }
+
+    /**
+     * Non-blocking version of {@link #readBinaryLeaseData(CloudnamePath, ReadConsistency)}.
+     *
+     * @return a future with the lease data or null if the lease doesn't exist
+     */
+    default CompletableFuture<byte[]> readBinaryLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return readBinaryLeaseDataAsync(path);
+    }
+
+    /**
+     * Non-blocking version of {@link #readVersionedLeaseData(CloudnamePath, ReadConsistency)}.
+     *
+     * @return a future with the data and version or null if the lease doesn't exist
+     */
+    default CompletableFuture<VersionedData> readVersionedLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return CompletableFuture.supplyAsync(() -> readVersionedLeaseData(path, consistency));
+    }
+
+    /**
+     * Non-blocking version of {@link #addLeaseCollectionListener(CloudnamePath, LeaseListener)}.
+     *
+     * @return a future completing when the listener is registered
+     */
+    default CompletableFuture<Void> addLeaseCollectionListenerAsync(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        return CompletableFuture.runAsync(() -> addLeaseCollectionListener(pathToWatch, listener));
+    }
+
+    /**
+     * Non-blocking version of {@link #addLeaseListener(CloudnamePath, LeaseListener)}.
+     *
+     * @return a future completing when the listener is registered
+     */
+    default CompletableFuture<Void> addLeaseListenerAsync(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        return CompletableFuture.runAsync(() -> addLeaseListener(pathToObserve, listener));
+    }
 }
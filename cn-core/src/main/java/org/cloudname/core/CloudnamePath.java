@@ -1,8 +1,9 @@
 package org.cloudname.core;
 
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * A generic representation of a path. A "path" might be a bit of a misnomer in the actual
@@ -13,11 +14,53 @@ import java.util.regex.Pattern;
  * RFC 1123, ie [a-z,0-9,-]. The names cannot start or end with an hyphen and can be between
  * 1 and 63 characters long.
  *
+ * <p>Instances are immutable. The hash code is computed when the path is created and the
+ * joined string representations are cached so paths are cheap to use as map keys and to convert
+ * into backend keys. Use {@link #of(String...)}, {@link #parse(String, int, char)} or
+ * {@link #intern()} to get the canonical instance for a path; backends should use these on
+ * their notification paths so the cached values are shared between events.
+ *
  * @author stalehd@gmail.com
  */
 public class CloudnamePath {
+    private static final int MAX_ELEMENT_LENGTH = 64;
+    private static final int MAX_CACHED_JOINS = 4;
+    // Must be a power of two
+    private static final int INTERN_STRIPES = 64;
+    private static final InternStripe[] INTERNED = new InternStripe[INTERN_STRIPES];
+
+    static {
+        for (int i = 0; i < INTERN_STRIPES; i++) {
+            INTERNED[i] = new InternStripe();
+        }
+    }
+
     private final String[] pathElements;
-    private static final Pattern NAME_PATTERN = Pattern.compile("[a-z0-9-]*");
+    private final int hash;
+    private volatile CloudnamePath parent;
+    private volatile Joined[] joined = new Joined[0];
+
+    /**
+     * A joined string representation of the path.
+     */
+    private static class Joined {
+        private final char separator;
+        private final String value;
+
+        Joined(final char separator, final String value) {
+            this.separator = separator;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A part of the canonical instances. The instances are spread over several stripes with a
+     * lock each so threads parsing different paths rarely wait for each other.
+     */
+    private static class InternStripe {
+        private final Map<CloudnamePath, WeakReference<CloudnamePath>> paths
+                = new WeakHashMap<>();
+    }
 
     /**
      * Check if path element is a valid name according to RFC 953/RCC 1123.
@@ -26,21 +69,58 @@ public class CloudnamePath {
      * @return true if element is a valid string
      */
     public static boolean isValidPathElementName(final String name) {
-        if (name == null || name.isEmpty()) {
+        if (name == null || name.isEmpty() || name.length() > MAX_ELEMENT_LENGTH) {
             return false;
         }
-
-        final Matcher matcher = NAME_PATTERN.matcher(name);
-        if (!matcher.matches()) {
-            return false;
+        for (int i = 0; i < name.length(); i++) {
+            final char ch = name.charAt(i);
+            if (!((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9') || ch == '-')) {
+                return false;
+            }
         }
-        if (name.length() > 64) {
-            return false;
+        return name.charAt(0) != '-' && name.charAt(name.length() - 1) != '-';
+    }
+
+    /**
+     * Convert ASCII upper case characters to lower case. The string is returned as is if it
+     * doesn't contain upper case characters. Names can only contain ASCII characters so there's
+     * no need for locale-specific rules.
+     */
+    private static String toLowerCase(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            final char ch = name.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                final char[] chars = name.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    if (chars[j] >= 'A' && chars[j] <= 'Z') {
+                        chars[j] = (char) (chars[j] + ('a' - 'A'));
+                    }
+                }
+                return new String(chars);
+            }
         }
-        if (name.charAt(0) == '-' || name.charAt(name.length() - 1) == '-') {
-            return false;
+        return name;
+    }
+
+    /**
+     * Validate and normalize a single element.
+     *
+     * @throws IllegalArgumentException if the element is invalid
+     */
+    private static String checkElement(final String element) {
+        final String name = toLowerCase(element);
+        if (!isValidPathElementName(name)) {
+            throw new IllegalArgumentException("Name element " + name + " isn't a valid name");
         }
-        return true;
+        return name;
+    }
+
+    /**
+     * Create a path from elements that are already validated. The array is not copied.
+     */
+    private CloudnamePath(final String[] pathElements, final int hash) {
+        this.pathElements = pathElements;
+        this.hash = hash;
     }
 
     /**
@@ -58,13 +138,9 @@ public class CloudnamePath {
             if (pathElements[i] == null) {
                 throw new IllegalArgumentException("Path element at index " + i + " is null");
             }
-            final String element = pathElements[i].toLowerCase();
-            if (!isValidPathElementName(element)) {
-                throw new IllegalArgumentException("Name element "
-                        + element + " isn't a valid name");
-            }
-            this.pathElements[i] = element;
+            this.pathElements[i] = checkElement(pathElements[i]);
         }
+        this.hash = Arrays.hashCode(this.pathElements);
     }
 
     /**
@@ -87,7 +163,76 @@ public class CloudnamePath {
         }
         this.pathElements = Arrays.copyOf(path.pathElements, path.pathElements.length + 1);
         this.pathElements[this.pathElements.length - 1] = additionalElement;
+        this.hash = 31 * path.hash + additionalElement.hashCode();
+        this.parent = path;
+    }
+
+    /**
+     * Get the canonical instance of a path built from the elements.
+     *
+     * @throws IllegalArgumentException if one of the elements is null or invalid
+     */
+    public static CloudnamePath of(final String... pathElements) {
+        return new CloudnamePath(pathElements).intern();
+    }
+
+    /**
+     * Parse a path from a string with separated elements, starting at an offset. This is the
+     * reverse of {@link #join(char)}, f.e. parsing "/cn/foo/bar" with offset 4 and '/' as the
+     * separator yields the path "foo", "bar". An empty string yields the empty path. The string
+     * isn't split into an intermediate array.
+     *
+     * @return the canonical instance of the path
+     * @throws IllegalArgumentException if the source is null, the offset is out of range or one
+     *     of the elements is invalid
+     */
+    public static CloudnamePath parse(final String source, final int offset, final char separator) {
+        if (source == null || offset < 0 || offset > source.length()) {
+            throw new IllegalArgumentException("Can't parse path from " + source
+                    + " at offset " + offset);
+        }
+        if (offset == source.length()) {
+            return new CloudnamePath(new String[0], 1).intern();
+        }
+        int count = 1;
+        for (int i = offset; i < source.length(); i++) {
+            if (source.charAt(i) == separator) {
+                count++;
+            }
+        }
+        final String[] elements = new String[count];
+        int hash = 1;
+        int start = offset;
+        for (int i = 0; i < count; i++) {
+            int end = source.indexOf(separator, start);
+            if (end < 0) {
+                end = source.length();
+            }
+            elements[i] = checkElement(source.substring(start, end));
+            hash = 31 * hash + elements[i].hashCode();
+            start = end + 1;
+        }
+        return new CloudnamePath(elements, hash).intern();
+    }
 
+    /**
+     * Get the canonical instance of this path. Paths that are equal share the same canonical
+     * instance as long as it is reachable. Canonical instances are garbage collected when they
+     * are no longer in use.
+     */
+    public CloudnamePath intern() {
+        final InternStripe stripe = INTERNED[(hash ^ (hash >>> 16)) & (INTERN_STRIPES - 1)];
+        synchronized (stripe) {
+            final WeakReference<CloudnamePath> existing = stripe.paths.get(this);
+            if (existing != null) {
+                final CloudnamePath canonical = existing.get();
+                if (canonical != null) {
+                    return canonical;
+                }
+            }
+            stripe.paths.put(this, new WeakReference<>(this));
+            return this;
+        }
     }
 
     /**
@@ -98,12 +243,19 @@ public class CloudnamePath {
     }
 
     /**
-     * Join the path elements into a string, f.e. join "foo", "bar" into "foo:bar".
+     * Join the path elements into a string, f.e. join "foo", "bar" into "foo:bar". The joined
+     * string is cached so subsequent calls with the same separator won't build a new string.
      *
      * @param separator  separator character between elements
      * @return  joined elements
      */
     public String join(final char separator) {
+        final Joined[] cached = joined;
+        for (final Joined entry : cached) {
+            if (entry.separator == separator) {
+                return entry.value;
+            }
+        }
         final StringBuilder sb = new StringBuilder();
         boolean first = true;
         for (final String element : pathElements) {
@@ -113,7 +265,13 @@ public class CloudnamePath {
             sb.append(element);
             first = false;
         }
-        return sb.toString();
+        final String value = sb.toString();
+        if (cached.length < MAX_CACHED_JOINS) {
+            final Joined[] updated = Arrays.copyOf(cached, cached.length + 1);
+            updated[cached.length] = new Joined(separator, value);
+            joined = updated;
+        }
+        return value;
     }
 
     /**
@@ -163,21 +321,30 @@ public class CloudnamePath {
         if (this.pathElements.length == 0) {
             return this;
         }
-        return new CloudnamePath(Arrays.copyOf(pathElements, this.pathElements.length - 1));
+        CloudnamePath current = parent;
+        if (current == null) {
+            final String[] elements = Arrays.copyOf(pathElements, this.pathElements.length - 1);
+            current = new CloudnamePath(elements, Arrays.hashCode(elements));
+            parent = current;
+        }
+        return current;
     }
 
     @Override
     public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
         if (other == null || !(other instanceof CloudnamePath)) {
             return false;
         }
         final CloudnamePath otherPath = (CloudnamePath) other;
-        return Arrays.deepEquals(otherPath.pathElements, pathElements);
+        return hash == otherPath.hash && Arrays.equals(otherPath.pathElements, pathElements);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(pathElements);
+        return hash;
     }
 
     @Override
@@ -0,0 +1,223 @@
+package org.cloudname.core;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A backend forwarding all operations to another backend. This is the base class for backend
+ * decorators; override the operations the decorator changes. All operations, including the
+ * ones with default implementations in {@link CloudnameBackend}, are forwarded so the decorated
+ * backend's native implementations are used.
+ */
+public class DelegatingBackend implements CloudnameBackend {
+    private final CloudnameBackend delegate;
+
+    /**
+     * Create a new delegating backend.
+     *
+     * @param delegate the backend to forward operations to
+     * @throws IllegalArgumentException if the delegate is null
+     */
+    public DelegatingBackend(final CloudnameBackend delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate backend can not be null");
+        }
+        this.delegate = delegate;
+    }
+
+    /**
+     * The backend operations are forwarded to.
+     */
+    public CloudnameBackend getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public LeaseHandle createLease(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return delegate.createLease(type, path, data);
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return delegate.createBinaryLease(type, path, data);
+    }
+
+    @Override
+    public boolean removeLease(final CloudnamePath path) {
+        return delegate.removeLease(path);
+    }
+
+    @Override
+    public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        return delegate.writeLeaseData(path, data);
+    }
+
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        return delegate.writeLeaseData(path, data, expectedVersion);
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        return delegate.writeLeaseData(leaseData);
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        return delegate.writeBinaryLeaseData(path, data);
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path) {
+        return delegate.readLeaseData(path);
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path, final ReadConsistency consistency) {
+        return delegate.readLeaseData(path, consistency);
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        return delegate.readBinaryLeaseData(path);
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return delegate.readBinaryLeaseData(path, consistency);
+    }
+
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return delegate.readVersionedLeaseData(path, consistency);
+    }
+
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        return delegate.createLeases(type, leases);
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        return delegate.removeLeases(paths);
+    }
+
+    @Override
+    public void addLeaseCollectionListener(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        delegate.addLeaseCollectionListener(pathToWatch, listener);
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
+        delegate.addLeaseListener(pathToObserve, listener);
+    }
+
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
+        delegate.removeLeaseListener(listener);
+    }
+
+    @Override
+    public int countLeases(final CloudnamePath prefix) {
+        return delegate.countLeases(prefix);
+    }
+
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        delegate.addLeaseCountListener(prefix, listener);
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        delegate.removeLeaseCountListener(listener);
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return delegate.createLeaseAsync(type, path, data);
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return delegate.createBinaryLeaseAsync(type, path, data);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        return delegate.removeLeaseAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data) {
+        return delegate.writeLeaseDataAsync(path, data);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        return delegate.writeLeaseDataAsync(path, data, expectedVersion);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeBinaryLeaseDataAsync(
+            final CloudnamePath path, final byte[] data) {
+        return delegate.writeBinaryLeaseDataAsync(path, data);
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(final CloudnamePath path) {
+        return delegate.readLeaseDataAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return delegate.readLeaseDataAsync(path, consistency);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(final CloudnamePath path) {
+        return delegate.readBinaryLeaseDataAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return delegate.readBinaryLeaseDataAsync(path, consistency);
+    }
+
+    @Override
+    public CompletableFuture<VersionedData> readVersionedLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return delegate.readVersionedLeaseDataAsync(path, consistency);
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        return delegate.addLeaseCollectionListenerAsync(pathToWatch, listener);
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseListenerAsync(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        return delegate.addLeaseListenerAsync(pathToObserve, listener);
+    }
+
+    @Override
+    public void close() throws Exception {
+        delegate.close();
+    }
+}
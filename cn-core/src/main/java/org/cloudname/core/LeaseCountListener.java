@@ -0,0 +1,16 @@
+package org.cloudname.core;
+
+/**
+ * Notifications of the number of leases below a path. See
+ * {@link CloudnameBackend#addLeaseCountListener(CloudnamePath, LeaseCountListener)}.
+ */
+public interface LeaseCountListener {
+    /**
+     * The number of leases below the observed path has changed. This is also invoked once with
+     * the current count when the listener is added.
+     *
+     * @param prefix the observed path
+     * @param count the number of leases below the path
+     */
+    void leaseCountChanged(final CloudnamePath prefix, final int count);
+}
@@ -0,0 +1,172 @@
+package org.cloudname.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lease counts derived from collection listeners, for backends that can't maintain counts
+ * themselves. Each count listener is backed by a collection listener on the observed path. The
+ * collection listener keeps the paths of the leases, not their data, and reports the count when
+ * a lease is created or removed. The counts for observed paths are available without asking
+ * the backend.
+ *
+ * <p>Backends use this to implement
+ * {@link CloudnameBackend#addLeaseCountListener(CloudnamePath, LeaseCountListener)} and
+ * {@link CloudnameBackend#removeLeaseCountListener(LeaseCountListener)}.
+ */
+public class LeaseCountTracker {
+    private final CloudnameBackend backend;
+    private final Object syncObject = new Object();
+    private final Map<LeaseCountListener, List<Counter>> counters = new HashMap<>();
+
+    /**
+     * Counts the leases below a single path for a count listener.
+     */
+    private static class Counter implements LeaseListener {
+        private final CloudnamePath prefix;
+        private final LeaseCountListener listener;
+        private final Set<CloudnamePath> leases = new HashSet<>();
+        private boolean counted = false;
+        // Backends might deliver events that were underway when the listener was removed
+        private boolean removed = false;
+
+        Counter(final CloudnamePath prefix, final LeaseCountListener listener) {
+            this.prefix = prefix;
+            this.listener = listener;
+        }
+
+        /**
+         * The current count or -1 if the snapshot hasn't arrived yet.
+         */
+        synchronized int getCount() {
+            return counted ? leases.size() : -1;
+        }
+
+        synchronized void remove() {
+            removed = true;
+        }
+
+        private void notifyListener() {
+            if (!removed) {
+                listener.leaseCountChanged(prefix, leases.size());
+            }
+        }
+
+        @Override
+        public synchronized void leaseSnapshot(final Map<CloudnamePath, byte[]> snapshot) {
+            leases.addAll(snapshot.keySet());
+            counted = true;
+            notifyListener();
+        }
+
+        @Override
+        public void leaseCreated(final CloudnamePath path, final String data) {
+            binaryLeaseCreated(path, null);
+        }
+
+        @Override
+        public synchronized void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+            if (leases.add(path)) {
+                notifyListener();
+            }
+        }
+
+        @Override
+        public synchronized void leaseRemoved(final CloudnamePath path) {
+            if (leases.remove(path)) {
+                notifyListener();
+            }
+        }
+
+        @Override
+        public void dataChanged(final CloudnamePath path, final String data) {
+        }
+
+        @Override
+        public void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+        }
+    }
+
+    /**
+     * Create a tracker.
+     *
+     * @param backend the backend to add the collection listeners to
+     * @throws IllegalArgumentException if the backend is null
+     */
+    public LeaseCountTracker(final CloudnameBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("Backend can not be null");
+        }
+        this.backend = backend;
+    }
+
+    /**
+     * Add a count listener. Null parameters are ignored.
+     */
+    public void addListener(final CloudnamePath prefix, final LeaseCountListener listener) {
+        if (prefix == null || listener == null) {
+            return;
+        }
+        final Counter counter = new Counter(prefix, listener);
+        synchronized (syncObject) {
+            counters.computeIfAbsent(listener, (key) -> new ArrayList<>()).add(counter);
+        }
+        backend.addLeaseCollectionListener(prefix, counter);
+    }
+
+    /**
+     * Remove a count listener from all the paths it observes.
+     */
+    public void removeListener(final LeaseCountListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final List<Counter> removed;
+        synchronized (syncObject) {
+            removed = counters.remove(listener);
+        }
+        if (removed != null) {
+            for (final Counter counter : removed) {
+                counter.remove();
+                backend.removeLeaseListener(counter);
+            }
+        }
+    }
+
+    /**
+     * Remove all count listeners.
+     */
+    public void removeAll() {
+        final List<LeaseCountListener> listeners;
+        synchronized (syncObject) {
+            listeners = new ArrayList<>(counters.keySet());
+        }
+        listeners.forEach(this::removeListener);
+    }
+
+    /**
+     * Get the count for a path from a count listener observing it.
+     *
+     * @return the count or -1 if no listener observes the path or it doesn't have a count yet
+     */
+    public int getCount(final CloudnamePath prefix) {
+        final List<Counter> candidates = new ArrayList<>();
+        synchronized (syncObject) {
+            counters.values().forEach(candidates::addAll);
+        }
+        // The counters are locked while they notify their listeners; don't hold the sync object
+        for (final Counter counter : candidates) {
+            if (counter.prefix.equals(prefix)) {
+                final int count = counter.getCount();
+                if (count >= 0) {
+                    return count;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,39 @@
+package org.cloudname.core;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Conversion between the binary lease data and the string lease data. Backends store lease data
+ * as bytes; the string API is the UTF-8 encoding of the bytes. Both conversions are null-safe so
+ * they can be used directly on the values passed to and returned from the backend.
+ */
+public final class LeaseData {
+    private LeaseData() {
+    }
+
+    /**
+     * The UTF-8 encoding of a string.
+     *
+     * @param data lease data as a string
+     * @return the encoded data or null if the data is null
+     */
+    public static byte[] encode(final String data) {
+        if (data == null) {
+            return null;
+        }
+        return data.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The string encoded in UTF-8 bytes.
+     *
+     * @param data lease data as bytes
+     * @return the decoded data or null if the data is null
+     */
+    public static String decode(final byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
@@ -1,5 +1,7 @@
 package org.cloudname.core;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Handle returned by the backend when a temporary lease is created.
  *
@@ -14,6 +16,40 @@ public interface LeaseHandle extends AutoCloseable {
      */
     boolean writeData(final String data);
 
+    /**
+     * Write binary data to the lease. Handles for backends storing bytes natively should
+     * override this; the default implementation decodes the data as UTF-8 and calls
+     * {@link #writeData(String)}.
+     *
+     * @param data  data to write. Cannot be null.
+     * @return true if data is written
+     */
+    default boolean writeBinaryData(final byte[] data) {
+        return writeData(LeaseData.decode(data));
+    }
+
+    /**
+     * Non-blocking version of {@link #writeData(String)}. The default implementation runs
+     * writeData() in the common fork-join pool.
+     *
+     * @param data  data to write. Cannot be null.
+     * @return a future completing with true if data is written
+     */
+    default CompletableFuture<Boolean> writeDataAsync(final String data) {
+        return CompletableFuture.supplyAsync(() -> writeData(data));
+    }
+
+    /**
+     * Non-blocking version of {@link #writeBinaryData(byte[])}. The default implementation runs
+     * writeBinaryData() in the common fork-join pool.
+     *
+     * @param data  data to write. Cannot be null.
+     * @return a future completing with true if data is written
+     */
+    default CompletableFuture<Boolean> writeBinaryDataAsync(final byte[] data) {
+        return CompletableFuture.supplyAsync(() -> writeBinaryData(data));
+    }
+
     /**
      * The full path of the lease.
      */
@@ -1,8 +1,19 @@
 package org.cloudname.core;
 
+import java.util.Map;
+
 /**
  * Lease notifications to clients.
  *
+ * <p>Backends deliver the events through the binary callbacks. The default implementations of
+ * those decode the data as UTF-8 and invoke the string callbacks so listeners only interested in
+ * strings don't have to care. Listeners using a binary encoding for the lease data should
+ * override the binary callbacks to avoid the conversion.
+ *
+ * <p>The leases that exist when the listener is attached are delivered in a single
+ * {@link #leaseSnapshot(Map)} call before the incremental events. Listeners building a view of
+ * the leases can build it once instead of once per lease.
+ *
  * @author stalehd@gmail.com
  */
 public interface LeaseListener {
@@ -14,6 +25,30 @@ public interface LeaseListener {
      */
     void leaseCreated(final CloudnamePath path, final String data);
 
+    /**
+     * A new lease is created. The default implementation invokes
+     * {@link #leaseCreated(CloudnamePath, String)}.
+     *
+     * @param path The full path of the lease
+     * @param data The data stored on the lease
+     */
+    default void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+        leaseCreated(path, LeaseData.decode(data));
+    }
+
+    /**
+     * The leases that exist when the listener is attached. Backends call this once for each
+     * registration, also when there are no leases, and before any of the other events for the
+     * registration. Backends composed of several backends might call it once for every part;
+     * the leases are the union of the snapshots. The default implementation invokes
+     * {@link #binaryLeaseCreated(CloudnamePath, byte[])} for every lease in iteration order.
+     *
+     * @param leases The full path and data of the existing leases
+     */
+    default void leaseSnapshot(final Map<CloudnamePath, byte[]> leases) {
+        leases.forEach(this::binaryLeaseCreated);
+    }
+
     /**
      * A lease is removed. The lease might not exist anymore at this point in time.
      *
@@ -28,4 +63,15 @@ public interface LeaseListener {
      * @param data The new data element stored in the lease
      */
     void dataChanged(final CloudnamePath path, final String data);
+
+    /**
+     * Lease data have changed in one of the leases the client is listening on. The default
+     * implementation invokes {@link #dataChanged(CloudnamePath, String)}.
+     *
+     * @param path Full path to the lease that have changed
+     * @param data The new data element stored in the lease
+     */
+    default void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+        dataChanged(path, LeaseData.decode(data));
+    }
 }
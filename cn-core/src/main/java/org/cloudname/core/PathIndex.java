@@ -0,0 +1,269 @@
+package org.cloudname.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A map keyed on {@link CloudnamePath} instances that is stored as a tree, one level per path
+ * element. Lookups, inserts and removals cost O(path length) regardless of the number of entries
+ * and the index can enumerate the entries on the ancestor chain of a path (ie all entries whose
+ * key is a subpath of the path) or the entries below a prefix without visiting unrelated entries.
+ * Each node keeps the number of entries below it so counting the entries under a prefix costs
+ * O(prefix length) as well.
+ *
+ * <p>The class is not thread safe. Backends use it to index leases and listeners.
+ *
+ * @param <V> the value type
+ */
+public class PathIndex<V> {
+    /**
+     * A single node in the tree. The path is set for nodes holding a value. The count is the
+     * number of entries in the subtree, including the node itself.
+     */
+    private static class Node<V> {
+        private final Node<V> parent;
+        private final String element;
+        private Map<String, Node<V>> children;
+        private CloudnamePath path;
+        private V value;
+        private int count;
+
+        Node(final Node<V> parent, final String element) {
+            this.parent = parent;
+            this.element = element;
+        }
+
+        Node<V> getChild(final String name) {
+            if (children == null) {
+                return null;
+            }
+            return children.get(name);
+        }
+
+        Node<V> getOrCreateChild(final String name) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            Node<V> child = children.get(name);
+            if (child == null) {
+                child = new Node<>(this, name);
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        boolean isEmpty() {
+            return path == null && (children == null || children.isEmpty());
+        }
+    }
+
+    private final Node<V> root = new Node<>(null, null);
+    private int size = 0;
+
+    /**
+     * Locate the node for a path.
+     *
+     * @return the node or null if it doesn't exist
+     */
+    private Node<V> findNode(final CloudnamePath path) {
+        Node<V> node = root;
+        for (int i = 0; i < path.length() && node != null; i++) {
+            node = node.getChild(path.get(i));
+        }
+        return node;
+    }
+
+    /**
+     * Adjust the entry count of a node and all of its ancestors.
+     */
+    private void adjustCounts(final Node<V> node, final int delta) {
+        for (Node<V> current = node; current != null; current = current.parent) {
+            current.count += delta;
+        }
+    }
+
+    /**
+     * The number of entries in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if the index has an entry for the path.
+     */
+    public boolean containsKey(final CloudnamePath path) {
+        if (path == null) {
+            return false;
+        }
+        final Node<V> node = findNode(path);
+        return node != null && node.path != null;
+    }
+
+    /**
+     * Get the value stored for the path.
+     *
+     * @return the value or null if there's no entry for the path
+     */
+    public V get(final CloudnamePath path) {
+        if (path == null) {
+            return null;
+        }
+        final Node<V> node = findNode(path);
+        if (node == null) {
+            return null;
+        }
+        return node.value;
+    }
+
+    /**
+     * Store a value for a path, replacing any existing value.
+     *
+     * @return the previous value or null if there was no entry for the path
+     * @throws IllegalArgumentException if one of the parameters is null
+     */
+    public V put(final CloudnamePath path, final V value) {
+        if (path == null || value == null) {
+            throw new IllegalArgumentException("Path and value can not be null");
+        }
+        Node<V> node = root;
+        for (int i = 0; i < path.length(); i++) {
+            node = node.getOrCreateChild(path.get(i));
+        }
+        final V previous = node.value;
+        if (node.path == null) {
+            size++;
+            adjustCounts(node, 1);
+        }
+        node.path = path;
+        node.value = value;
+        return previous;
+    }
+
+    /**
+     * Get the value for a path, creating it with the supplied function if it doesn't exist.
+     *
+     * @throws IllegalArgumentException if one of the parameters is null
+     */
+    public V computeIfAbsent(
+            final CloudnamePath path, final Function<CloudnamePath, V> createFunction) {
+        if (path == null || createFunction == null) {
+            throw new IllegalArgumentException("Path and function can not be null");
+        }
+        final V existing = get(path);
+        if (existing != null) {
+            return existing;
+        }
+        final V value = createFunction.apply(path);
+        put(path, value);
+        return value;
+    }
+
+    /**
+     * Remove the entry for a path. Nodes that no longer hold any entries are pruned from the tree.
+     *
+     * @return the removed value or null if there was no entry for the path
+     */
+    public V remove(final CloudnamePath path) {
+        if (path == null) {
+            return null;
+        }
+        final Node<V> node = findNode(path);
+        if (node == null || node.path == null) {
+            return null;
+        }
+        final V previous = node.value;
+        node.path = null;
+        node.value = null;
+        size--;
+        adjustCounts(node, -1);
+
+        Node<V> current = node;
+        while (current.parent != null && current.isEmpty()) {
+            current.parent.children.remove(current.element);
+            current = current.parent;
+        }
+        return previous;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        root.children = null;
+        root.path = null;
+        root.value = null;
+        root.count = 0;
+        size = 0;
+    }
+
+    /**
+     * The number of entries below (and including) a prefix, ie the number of entries
+     * {@link #forEachDescendant(CloudnamePath, BiConsumer)} would visit. The entries aren't
+     * visited.
+     */
+    public int countDescendants(final CloudnamePath prefix) {
+        if (prefix == null) {
+            return 0;
+        }
+        final Node<V> node = findNode(prefix);
+        return node == null ? 0 : node.count;
+    }
+
+    /**
+     * Visit the entries on the ancestor chain of a path, starting with the root. This includes
+     * the entry for the path itself. These are the entries where the key is a subpath of the
+     * path, see {@link CloudnamePath#isSubpathOf(CloudnamePath)}.
+     */
+    public void forEachAncestor(
+            final CloudnamePath path, final BiConsumer<CloudnamePath, V> consumer) {
+        if (path == null) {
+            return;
+        }
+        Node<V> node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.path != null) {
+                consumer.accept(node.path, node.value);
+            }
+            if (i == path.length()) {
+                break;
+            }
+            node = node.getChild(path.get(i));
+        }
+    }
+
+    /**
+     * Visit the entries below (and including) a prefix. These are the entries where the prefix is
+     * a subpath of the key.
+     */
+    public void forEachDescendant(
+            final CloudnamePath prefix, final BiConsumer<CloudnamePath, V> consumer) {
+        if (prefix == null) {
+            return;
+        }
+        final Node<V> node = findNode(prefix);
+        if (node != null) {
+            visit(node, consumer);
+        }
+    }
+
+    /**
+     * Visit every entry in the index.
+     */
+    public void forEach(final BiConsumer<CloudnamePath, V> consumer) {
+        visit(root, consumer);
+    }
+
+    private void visit(final Node<V> node, final BiConsumer<CloudnamePath, V> consumer) {
+        if (node.path != null) {
+            consumer.accept(node.path, node.value);
+        }
+        if (node.children != null) {
+            for (final Node<V> child : node.children.values()) {
+                visit(child, consumer);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.cloudname.core;
+
+/**
+ * Consistency for lease data reads. There are two kinds of reads:
+ * <ul>
+ *     <li>LINEARIZABLE reads which go to the backend's cluster and return the latest value.</li>
+ *     <li>CACHED reads which are served from the data kept up to date by the listeners on the
+ *     client when the lease is observed. The value might lag behind the cluster and a lease that
+ *     was just created might not be visible yet. Leases that aren't observed are read as
+ *     LINEARIZABLE reads.</li>
+ * </ul>
+ */
+public enum ReadConsistency {
+    LINEARIZABLE,
+    CACHED
+}
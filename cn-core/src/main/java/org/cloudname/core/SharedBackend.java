@@ -0,0 +1,248 @@
+package org.cloudname.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A handle to a backend shared by several callers in the same process. Each handle keeps track
+ * of the listeners and temporary leases created through it. Closing the handle removes those
+ * and releases the handle's reference to the shared backend; the shared backend is closed when
+ * the last reference is released.
+ *
+ * <p>Temporary leases are normally tied to the backend's connection. Since the connection is
+ * shared the handle closes its temporary leases itself so they go away when the caller closes
+ * the handle, just like they would with a backend of its own.
+ */
+class SharedBackend extends DelegatingBackend {
+    private static final Logger LOG = Logger.getLogger(SharedBackend.class.getName());
+
+    private final Runnable release;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private final Set<LeaseListener> listeners = ConcurrentHashMap.newKeySet();
+    private final Set<LeaseCountListener> countListeners = ConcurrentHashMap.newKeySet();
+    private final Map<CloudnamePath, TrackedLeaseHandle> temporaryLeases
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new handle.
+     *
+     * @param backend the shared backend
+     * @param release invoked once when the handle is closed
+     */
+    SharedBackend(final CloudnameBackend backend, final Runnable release) {
+        super(backend);
+        this.release = release;
+    }
+
+    /**
+     * Start tracking a lease if it is temporary.
+     *
+     * @return the handle to give the client
+     */
+    private LeaseHandle track(final LeaseType type, final LeaseHandle handle) {
+        if (handle == null || type != LeaseType.TEMPORARY) {
+            return handle;
+        }
+        final TrackedLeaseHandle tracked = new TrackedLeaseHandle(handle);
+        temporaryLeases.put(handle.getLeasePath(), tracked);
+        return tracked;
+    }
+
+    @Override
+    public LeaseHandle createLease(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return track(type, super.createLease(type, path, data));
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return track(type, super.createBinaryLease(type, path, data));
+    }
+
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        final Map<CloudnamePath, LeaseHandle> ret = super.createLeases(type, leases);
+        ret.replaceAll((path, handle) -> track(type, handle));
+        return ret;
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return super.createLeaseAsync(type, path, data)
+                .thenApply((handle) -> track(type, handle));
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return super.createBinaryLeaseAsync(type, path, data)
+                .thenApply((handle) -> track(type, handle));
+    }
+
+    @Override
+    public boolean removeLease(final CloudnamePath path) {
+        if (path != null) {
+            temporaryLeases.remove(path);
+        }
+        return super.removeLease(path);
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        if (paths != null) {
+            paths.forEach((path) -> {
+                if (path != null) {
+                    temporaryLeases.remove(path);
+                }
+            });
+        }
+        return super.removeLeases(paths);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        if (path != null) {
+            temporaryLeases.remove(path);
+        }
+        return super.removeLeaseAsync(path);
+    }
+
+    @Override
+    public void addLeaseCollectionListener(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        super.addLeaseCollectionListener(pathToWatch, listener);
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        super.addLeaseListener(pathToObserve, listener);
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        return super.addLeaseCollectionListenerAsync(pathToWatch, listener);
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseListenerAsync(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        return super.addLeaseListenerAsync(pathToObserve, listener);
+    }
+
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
+        if (listener != null) {
+            listeners.remove(listener);
+        }
+        super.removeLeaseListener(listener);
+    }
+
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        super.addLeaseCountListener(prefix, listener);
+        if (listener != null) {
+            countListeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        if (listener != null) {
+            countListeners.remove(listener);
+        }
+        super.removeLeaseCountListener(listener);
+    }
+
+    /**
+     * Remove the listeners and temporary leases created through this handle and release the
+     * reference to the shared backend. The handle can still be used after it is closed but the
+     * shared backend might be closed by then.
+     */
+    @Override
+    public void close() {
+        for (final LeaseListener listener : new ArrayList<>(listeners)) {
+            removeLeaseListener(listener);
+        }
+        for (final LeaseCountListener listener : new ArrayList<>(countListeners)) {
+            removeLeaseCountListener(listener);
+        }
+        for (final TrackedLeaseHandle handle : new ArrayList<>(temporaryLeases.values())) {
+            try {
+                handle.close();
+            } catch (final Exception ex) {
+                LOG.log(Level.FINE, "Could not close temporary lease", ex);
+            }
+        }
+        if (released.compareAndSet(false, true)) {
+            release.run();
+        }
+    }
+
+    /**
+     * A temporary lease created through the handle. The lease is forgotten when it is closed.
+     */
+    private class TrackedLeaseHandle implements LeaseHandle {
+        private final LeaseHandle handle;
+        private final CloudnamePath leasePath;
+
+        TrackedLeaseHandle(final LeaseHandle handle) {
+            this.handle = handle;
+            this.leasePath = handle.getLeasePath();
+        }
+
+        @Override
+        public boolean writeData(final String data) {
+            return handle.writeData(data);
+        }
+
+        @Override
+        public boolean writeBinaryData(final byte[] data) {
+            return handle.writeBinaryData(data);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeDataAsync(final String data) {
+            return handle.writeDataAsync(data);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeBinaryDataAsync(final byte[] data) {
+            return handle.writeBinaryDataAsync(data);
+        }
+
+        @Override
+        public CloudnamePath getLeasePath() {
+            return handle.getLeasePath();
+        }
+
+        @Override
+        public void close() throws Exception {
+            temporaryLeases.remove(leasePath, this);
+            handle.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.cloudname.core;
+
+/**
+ * Lease data with the version the backend assigned to it. The version changes every time the
+ * lease data is written and is used for conditional writes, see
+ * {@link CloudnameBackend#writeLeaseData(CloudnamePath, String, long)}. Versions are opaque; they
+ * can only be compared for equality and only for the same lease in the same backend.
+ */
+public final class VersionedData {
+    private final String data;
+    private final long version;
+
+    /**
+     * Create a new instance.
+     *
+     * @param data the lease data
+     * @param version the backend's version of the data
+     * @throws IllegalArgumentException if the data is null
+     */
+    public VersionedData(final String data, final long version) {
+        if (data == null) {
+            throw new IllegalArgumentException("Data can not be null");
+        }
+        this.data = data;
+        this.version = version;
+    }
+
+    /**
+     * The lease data.
+     */
+    public String getData() {
+        return data;
+    }
+
+    /**
+     * The version of the lease data.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        final VersionedData that = (VersionedData) other;
+        return version == that.version && data.equals(that.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * data.hashCode() + Long.hashCode(version);
+    }
+
+    @Override
+    public String toString() {
+        return "{ version: " + version + ", data: " + data + " }";
+    }
+}
@@ -0,0 +1,653 @@
+package org.cloudname.core.coalescing;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.DelegatingBackend;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A backend decorator coalescing rapid writes to the same lease. Every write is a round trip to
+ * the backend and a notification to every listener watching the lease so a client updating its
+ * lease data many times per second generates a lot of coordination traffic. This decorator
+ * writes the first change to a lease right away. Changes arriving less than the minimum interval
+ * after the last write are held and only the latest of them is written once the lease has been
+ * quiet for the minimum interval, but never later than the max staleness after the first held
+ * change. The decorator writes each lease at most once per minimum interval regardless of how
+ * often the client writes. Held data is never written while a direct write to the lease is in
+ * flight; it's written when the direct write completes so it can't be overwritten by older data.
+ *
+ * <p>Held data is returned by reads through the decorator. Writes that are held return true
+ * right away; if the held write fails later it is logged. Versioned reads and writes write the
+ * held data first so the version numbers are accurate. Removing a lease or closing its handle
+ * discards held data and closing the backend writes all held data.
+ */
+public class WriteCoalescingBackend extends DelegatingBackend {
+    private static final Logger LOG = Logger.getLogger(WriteCoalescingBackend.class.getName());
+
+    /**
+     * The default minimum interval between writes to a lease in milliseconds.
+     */
+    public static final int DEFAULT_MIN_INTERVAL_MS = 100;
+
+    /**
+     * The default max time a change is held before it is written in milliseconds.
+     */
+    public static final int DEFAULT_MAX_STALENESS_MS = 1000;
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(0);
+
+    /**
+     * Write state for a lease. A state exists while the lease has been written recently or has
+     * held data. The state is removed by its scheduled check once the lease has been quiet for
+     * the minimum interval.
+     */
+    private static class LeaseState {
+        private long lastWrite;
+        private byte[] heldData;
+        private Predicate<byte[]> writer;
+        private long firstHeld;
+        private long lastHeld;
+        // The latest direct write that hasn't completed yet
+        private CompletableFuture<Void> inFlight;
+    }
+
+    private final long minIntervalNanos;
+    private final long maxStalenessNanos;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong coalescedWrites = new AtomicLong(0L);
+
+    private final Object syncObject = new Object();
+    private final Map<CloudnamePath, LeaseState> leases = new HashMap<>();
+    private boolean closed = false;
+
+    /**
+     * Create a decorator with the default minimum interval and max staleness.
+     *
+     * @param backend the backend to decorate
+     * @throws IllegalArgumentException if the backend is null
+     */
+    public WriteCoalescingBackend(final CloudnameBackend backend) {
+        this(backend, DEFAULT_MIN_INTERVAL_MS, DEFAULT_MAX_STALENESS_MS);
+    }
+
+    /**
+     * Create a decorator.
+     *
+     * @param backend the backend to decorate
+     * @param minIntervalMs minimum time between writes to a lease in milliseconds
+     * @param maxStalenessMs max time a change is held before it is written in milliseconds
+     * @throws IllegalArgumentException if the backend is null, the minimum interval is less than
+     *     1 or the max staleness is less than the minimum interval
+     */
+    public WriteCoalescingBackend(
+            final CloudnameBackend backend, final int minIntervalMs, final int maxStalenessMs) {
+        super(backend);
+        if (minIntervalMs < 1) {
+            throw new IllegalArgumentException("Minimum interval must be at least 1 ms");
+        }
+        if (maxStalenessMs < minIntervalMs) {
+            throw new IllegalArgumentException(
+                    "Max staleness can not be less than the minimum interval");
+        }
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMs);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            final Thread thread = new Thread(
+                    runnable, "cn-write-coalescer-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Lease handle coalescing the writes through the handle.
+     */
+    private class CoalescingLeaseHandle implements LeaseHandle {
+        private final LeaseHandle handle;
+        private final CloudnamePath path;
+
+        CoalescingLeaseHandle(final LeaseHandle handle) {
+            this.handle = handle;
+            this.path = handle.getLeasePath();
+        }
+
+        @Override
+        public boolean writeData(final String data) {
+            final CompletableFuture<Void> write
+                    = holdWrite(path, LeaseData.encode(data), handle::writeBinaryData);
+            if (write == null) {
+                return true;
+            }
+            return writeNow(path, write, () -> handle.writeData(data));
+        }
+
+        @Override
+        public boolean writeBinaryData(final byte[] data) {
+            final CompletableFuture<Void> write = holdWrite(path, data, handle::writeBinaryData);
+            if (write == null) {
+                return true;
+            }
+            return writeNow(path, write, () -> handle.writeBinaryData(data));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeDataAsync(final String data) {
+            final CompletableFuture<Void> write
+                    = holdWrite(path, LeaseData.encode(data), handle::writeBinaryData);
+            if (write == null) {
+                return CompletableFuture.completedFuture(true);
+            }
+            return writeNowAsync(path, write, () -> handle.writeDataAsync(data));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeBinaryDataAsync(final byte[] data) {
+            final CompletableFuture<Void> write = holdWrite(path, data, handle::writeBinaryData);
+            if (write == null) {
+                return CompletableFuture.completedFuture(true);
+            }
+            return writeNowAsync(path, write, () -> handle.writeBinaryDataAsync(data));
+        }
+
+        @Override
+        public CloudnamePath getLeasePath() {
+            return handle.getLeasePath();
+        }
+
+        @Override
+        public void close() throws Exception {
+            discard(path);
+            handle.close();
+        }
+    }
+
+    private LeaseHandle wrapHandle(final LeaseHandle handle) {
+        if (handle == null || handle.getLeasePath() == null) {
+            return handle;
+        }
+        return new CoalescingLeaseHandle(handle);
+    }
+
+    private Predicate<byte[]> backendWriter(final CloudnamePath path) {
+        return (bytes) -> getDelegate().writeBinaryLeaseData(path, bytes);
+    }
+
+    /**
+     * Hold the data if the lease has been written recently. If the data isn't held the caller
+     * must write it through {@link #writeNow(CloudnamePath, CompletableFuture, BooleanSupplier)}
+     * or {@link #writeNowAsync(CloudnamePath, CompletableFuture, Supplier)} with the returned
+     * future, which completes when the direct write does.
+     *
+     * @return null if the data is held, otherwise the future for the direct write
+     */
+    private CompletableFuture<Void> holdWrite(
+            final CloudnamePath path, final byte[] data, final Predicate<byte[]> writer) {
+        if (path == null || data == null) {
+            return new CompletableFuture<>();
+        }
+        final long now = System.nanoTime();
+        synchronized (syncObject) {
+            if (closed) {
+                return new CompletableFuture<>();
+            }
+            final LeaseState state = leases.get(path);
+            if (state == null) {
+                final LeaseState newState = new LeaseState();
+                newState.lastWrite = now;
+                newState.inFlight = new CompletableFuture<>();
+                leases.put(path, newState);
+                schedule(path, newState, minIntervalNanos);
+                return newState.inFlight;
+            }
+            if (state.heldData == null && now - state.lastWrite >= minIntervalNanos) {
+                state.lastWrite = now;
+                state.inFlight = new CompletableFuture<>();
+                return state.inFlight;
+            }
+            if (state.heldData == null) {
+                state.firstHeld = now;
+            } else {
+                coalescedWrites.incrementAndGet();
+            }
+            state.heldData = data;
+            state.writer = writer;
+            state.lastHeld = now;
+            return null;
+        }
+    }
+
+    /**
+     * Write data directly to the backend.
+     *
+     * @param write the future returned by {@link #holdWrite(CloudnamePath, byte[], Predicate)}
+     */
+    private boolean writeNow(final CloudnamePath path, final CompletableFuture<Void> write,
+                             final BooleanSupplier writer) {
+        boolean success = false;
+        try {
+            success = writer.getAsBoolean();
+            return success;
+        } finally {
+            written(path, write, success);
+        }
+    }
+
+    /**
+     * Write data directly to the backend without blocking.
+     *
+     * @param write the future returned by {@link #holdWrite(CloudnamePath, byte[], Predicate)}
+     */
+    private CompletableFuture<Boolean> writeNowAsync(
+            final CloudnamePath path, final CompletableFuture<Void> write,
+            final Supplier<CompletableFuture<Boolean>> writer) {
+        final CompletableFuture<Boolean> result;
+        try {
+            result = writer.get();
+        } catch (final RuntimeException ex) {
+            written(path, write, false);
+            throw ex;
+        }
+        return result.whenComplete((success, error) ->
+                written(path, write, error == null && Boolean.TRUE.equals(success)));
+    }
+
+    /**
+     * Complete a direct write. Forget the lease if the write failed so the next write goes
+     * directly to the backend and reports the error.
+     */
+    private void written(
+            final CloudnamePath path, final CompletableFuture<Void> write, final boolean success) {
+        synchronized (syncObject) {
+            final LeaseState state = leases.get(path);
+            if (state != null && state.inFlight == write) {
+                state.inFlight = null;
+                if (!success && state.heldData == null) {
+                    leases.remove(path);
+                }
+            }
+        }
+        write.complete(null);
+    }
+
+    private void schedule(final CloudnamePath path, final LeaseState state, final long delay) {
+        try {
+            scheduler.schedule(() -> check(path, state), delay, TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException ex) {
+            // The backend is closing and the held data is written by close()
+            LOG.log(Level.FINE, "Scheduler rejected check for " + path, ex);
+        }
+    }
+
+    /**
+     * Scheduled check of a lease. Writes the held data once the lease is quiet or the data is
+     * too old, and removes the state when nothing is written for the minimum interval. Held data
+     * that is due while a direct write is in flight is checked again when the write completes.
+     * There is a single scheduled check for each state.
+     */
+    private void check(final CloudnamePath path, final LeaseState state) {
+        final long now = System.nanoTime();
+        final byte[] data;
+        final Predicate<byte[]> writer;
+        synchronized (syncObject) {
+            if (leases.get(path) != state) {
+                return;
+            }
+            if (state.heldData == null) {
+                final long idle = now - state.lastWrite;
+                if (idle < minIntervalNanos) {
+                    schedule(path, state, minIntervalNanos - idle);
+                } else if (state.inFlight != null) {
+                    schedule(path, state, minIntervalNanos);
+                } else {
+                    leases.remove(path);
+                }
+                return;
+            }
+            final long deadline = Math.min(
+                    state.lastHeld + minIntervalNanos, state.firstHeld + maxStalenessNanos);
+            if (now - deadline < 0) {
+                schedule(path, state, deadline - now);
+                return;
+            }
+            if (state.inFlight != null) {
+                // Checked on the scheduler thread since the held data is written with a
+                // blocking call
+                state.inFlight.whenComplete((ignored, error) -> schedule(path, state, 0L));
+                return;
+            }
+            data = state.heldData;
+            writer = state.writer;
+            state.heldData = null;
+            state.writer = null;
+            state.lastWrite = now;
+            schedule(path, state, minIntervalNanos);
+        }
+        send(path, data, writer, null);
+    }
+
+    private void send(final CloudnamePath path, final byte[] data, final Predicate<byte[]> writer,
+                      final CompletableFuture<Void> inFlight) {
+        if (inFlight != null) {
+            inFlight.join();
+        }
+        try {
+            if (!writer.test(data)) {
+                LOG.warning("Could not write held data for " + path);
+            }
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Got exception writing held data for " + path, ex);
+        }
+    }
+
+    /**
+     * Write the held data for a lease right away. Waits for a direct write in flight first.
+     */
+    private void flush(final CloudnamePath path) {
+        final byte[] data;
+        final Predicate<byte[]> writer;
+        final CompletableFuture<Void> inFlight;
+        synchronized (syncObject) {
+            final LeaseState state = leases.get(path);
+            if (state == null || state.heldData == null) {
+                return;
+            }
+            data = state.heldData;
+            writer = state.writer;
+            inFlight = state.inFlight;
+            state.heldData = null;
+            state.writer = null;
+            state.lastWrite = System.nanoTime();
+        }
+        send(path, data, writer, inFlight);
+    }
+
+    /**
+     * Drop the held data for a lease. The next write goes directly to the backend.
+     */
+    private void discard(final CloudnamePath path) {
+        if (path == null) {
+            return;
+        }
+        synchronized (syncObject) {
+            leases.remove(path);
+        }
+    }
+
+    private byte[] heldData(final CloudnamePath path) {
+        synchronized (syncObject) {
+            final LeaseState state = leases.get(path);
+            return (state == null ? null : state.heldData);
+        }
+    }
+
+    @Override
+    public LeaseHandle createLease(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return wrapHandle(super.createLease(type, path, data));
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return wrapHandle(super.createBinaryLease(type, path, data));
+    }
+
+    @Override
+    public boolean removeLease(final CloudnamePath path) {
+        discard(path);
+        return super.removeLease(path);
+    }
+
+    @Override
+    public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        final CompletableFuture<Void> write
+                = holdWrite(path, LeaseData.encode(data), backendWriter(path));
+        if (write == null) {
+            return true;
+        }
+        return writeNow(path, write, () -> super.writeLeaseData(path, data));
+    }
+
+    /**
+     * Compare-and-set write. Held data is written first so the version is compared with the
+     * latest write.
+     */
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        flush(path);
+        discard(path);
+        return super.writeLeaseData(path, data, expectedVersion);
+    }
+
+    /**
+     * Batch write. The batch replaces held data for the leases and is written right away.
+     */
+    @Override
+    public Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        if (leaseData != null) {
+            leaseData.keySet().forEach(this::discard);
+        }
+        return super.writeLeaseData(leaseData);
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        final CompletableFuture<Void> write = holdWrite(path, data, backendWriter(path));
+        if (write == null) {
+            return true;
+        }
+        return writeNow(path, write, () -> super.writeBinaryLeaseData(path, data));
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path) {
+        final byte[] held = heldData(path);
+        return (held == null ? super.readLeaseData(path) : LeaseData.decode(held));
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path, final ReadConsistency consistency) {
+        final byte[] held = heldData(path);
+        return (held == null ? super.readLeaseData(path, consistency) : LeaseData.decode(held));
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        final byte[] held = heldData(path);
+        return (held == null ? super.readBinaryLeaseData(path) : held);
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        final byte[] held = heldData(path);
+        return (held == null ? super.readBinaryLeaseData(path, consistency) : held);
+    }
+
+    /**
+     * Versioned read. Held data is written first so the version matches the data.
+     */
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        flush(path);
+        return super.readVersionedLeaseData(path, consistency);
+    }
+
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        final Map<CloudnamePath, LeaseHandle> handles = super.createLeases(type, leases);
+        handles.replaceAll((path, handle) -> wrapHandle(handle));
+        return handles;
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        if (paths != null) {
+            paths.forEach(this::discard);
+        }
+        return super.removeLeases(paths);
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return super.createLeaseAsync(type, path, data).thenApply(this::wrapHandle);
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return super.createBinaryLeaseAsync(type, path, data).thenApply(this::wrapHandle);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        discard(path);
+        return super.removeLeaseAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data) {
+        final CompletableFuture<Void> write
+                = holdWrite(path, LeaseData.encode(data), backendWriter(path));
+        if (write == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return writeNowAsync(path, write, () -> super.writeLeaseDataAsync(path, data));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        flush(path);
+        discard(path);
+        return super.writeLeaseDataAsync(path, data, expectedVersion);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeBinaryLeaseDataAsync(
+            final CloudnamePath path, final byte[] data) {
+        final CompletableFuture<Void> write = holdWrite(path, data, backendWriter(path));
+        if (write == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return writeNowAsync(path, write, () -> super.writeBinaryLeaseDataAsync(path, data));
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(final CloudnamePath path) {
+        final byte[] held = heldData(path);
+        if (held != null) {
+            return CompletableFuture.completedFuture(LeaseData.decode(held));
+        }
+        return super.readLeaseDataAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        final byte[] held = heldData(path);
+        if (held != null) {
+            return CompletableFuture.completedFuture(LeaseData.decode(held));
+        }
+        return super.readLeaseDataAsync(path, consistency);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(final CloudnamePath path) {
+        final byte[] held = heldData(path);
+        if (held != null) {
+            return CompletableFuture.completedFuture(held);
+        }
+        return super.readBinaryLeaseDataAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        final byte[] held = heldData(path);
+        if (held != null) {
+            return CompletableFuture.completedFuture(held);
+        }
+        return super.readBinaryLeaseDataAsync(path, consistency);
+    }
+
+    @Override
+    public CompletableFuture<VersionedData> readVersionedLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        flush(path);
+        return super.readVersionedLeaseDataAsync(path, consistency);
+    }
+
+    /**
+     * Close the backend. Held data is written before the decorated backend is closed, after any
+     * direct writes in flight.
+     */
+    @Override
+    public void close() throws Exception {
+        final List<Runnable> writes = new ArrayList<>();
+        synchronized (syncObject) {
+            closed = true;
+            leases.forEach((path, state) -> {
+                if (state.heldData != null) {
+                    final byte[] data = state.heldData;
+                    final Predicate<byte[]> writer = state.writer;
+                    final CompletableFuture<Void> inFlight = state.inFlight;
+                    writes.add(() -> send(path, data, writer, inFlight));
+                }
+            });
+            leases.clear();
+        }
+        scheduler.shutdownNow();
+        writes.forEach(Runnable::run);
+        super.close();
+    }
+
+    /**
+     * The number of leases with data waiting to be written.
+     */
+    public int getHeldWrites() {
+        synchronized (syncObject) {
+            int held = 0;
+            for (final LeaseState state : leases.values()) {
+                if (state.heldData != null) {
+                    held++;
+                }
+            }
+            return held;
+        }
+    }
+
+    /**
+     * The number of writes replaced by a later write before they were written.
+     */
+    public long getCoalescedWrites() {
+        return coalescedWrites.get();
+    }
+}
@@ -0,0 +1,24 @@
+package org.cloudname.core.coalescing;
+
+import org.cloudname.core.BackendDecoratorMetadata;
+import org.cloudname.core.CloudnameBackend;
+
+import java.util.function.BiFunction;
+
+/**
+ * Metadata for the write coalescing decorator. Use "coalesce+[backend]://..." as the backend
+ * URL to coalesce rapid writes to the same lease. The decorator uses the default minimum
+ * interval and max staleness; create a {@link WriteCoalescingBackend} directly for other
+ * settings.
+ */
+public class WriteCoalescingBackendMetadata implements BackendDecoratorMetadata {
+    @Override
+    public String getName() {
+        return "coalesce";
+    }
+
+    @Override
+    public BiFunction<CloudnameBackend, String, CloudnameBackend> getFactoryMethod() {
+        return (backend, url) -> new WriteCoalescingBackend(backend);
+    }
+}
@@ -0,0 +1,179 @@
+package org.cloudname.core.delivery;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.DelegatingBackend;
+import org.cloudname.core.LeaseListener;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A backend decorator delivering lease notifications asynchronously. The backends invoke the
+ * listeners on their own threads (and sometimes while holding locks) so a slow listener delays
+ * the notifications for every other listener and might delay the backend's own housekeeping.
+ * This decorator gives each listener a bounded queue of its own; the backend only has to queue
+ * the event and the listener is invoked on an executor shared by all listeners.
+ *
+ * <p>Events are delivered to each listener in the order the backend sent them. A listener
+ * registered on several paths shares a single queue for all of them. When a queue is full the
+ * {@link OverflowPolicy} decides what happens with new events.
+ */
+public class AsyncDeliveryBackend extends DelegatingBackend {
+    /**
+     * The default max number of queued events for a listener.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(0);
+    private static final ExecutorService SHARED_EXECUTOR
+            = Executors.newCachedThreadPool((runnable) -> {
+                final Thread thread = new Thread(
+                        runnable, "cn-listener-delivery-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Executor executor;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Map<LeaseListener, ListenerQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong droppedEvents = new AtomicLong(0L);
+    private final AtomicLong coalescedEvents = new AtomicLong(0L);
+
+    /**
+     * Create a decorator with the default queue capacity and coalescing queues. The listeners
+     * are invoked on a thread pool shared by all decorators created this way.
+     *
+     * @param backend the backend to decorate
+     * @throws IllegalArgumentException if the backend is null
+     */
+    public AsyncDeliveryBackend(final CloudnameBackend backend) {
+        this(backend, SHARED_EXECUTOR, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.COALESCE);
+    }
+
+    /**
+     * Create a decorator.
+     *
+     * @param backend the backend to decorate
+     * @param executor executor invoking the listeners. A listener is only invoked by one thread
+     *     at a time.
+     * @param queueCapacity max number of queued events for each listener
+     * @param overflowPolicy what to do with new events when a queue is full
+     * @throws IllegalArgumentException if one of the parameters is null or the capacity is less
+     *     than 1
+     */
+    public AsyncDeliveryBackend(
+            final CloudnameBackend backend,
+            final Executor executor,
+            final int queueCapacity,
+            final OverflowPolicy overflowPolicy) {
+        super(backend);
+        if (executor == null || overflowPolicy == null) {
+            throw new IllegalArgumentException("Executor and overflow policy can not be null");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1");
+        }
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    private LeaseListener queueFor(final LeaseListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return queues.computeIfAbsent(listener, (key) -> new ListenerQueue(
+                key, executor, queueCapacity, overflowPolicy, droppedEvents, coalescedEvents));
+    }
+
+    @Override
+    public void addLeaseCollectionListener(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        super.addLeaseCollectionListener(pathToWatch, queueFor(listener));
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
+        super.addLeaseListener(pathToObserve, queueFor(listener));
+    }
+
+    /**
+     * Remove a listener. Queued events for the listener are discarded.
+     */
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
+        final ListenerQueue queue = (listener == null ? null : queues.remove(listener));
+        if (queue == null) {
+            super.removeLeaseListener(listener);
+            return;
+        }
+        super.removeLeaseListener(queue);
+        queue.close();
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        return super.addLeaseCollectionListenerAsync(pathToWatch, queueFor(listener));
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseListenerAsync(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        return super.addLeaseListenerAsync(pathToObserve, queueFor(listener));
+    }
+
+    /**
+     * Close the backend. Queued events are discarded.
+     */
+    @Override
+    public void close() throws Exception {
+        queues.values().forEach(ListenerQueue::close);
+        queues.clear();
+        super.close();
+    }
+
+    /**
+     * The number of events waiting to be delivered to the listeners.
+     */
+    public int getQueuedEvents() {
+        int total = 0;
+        for (final ListenerQueue queue : queues.values()) {
+            total += queue.size();
+        }
+        return total;
+    }
+
+    /**
+     * The number of events waiting to be delivered to the listener with the longest queue.
+     */
+    public int getLongestQueue() {
+        int longest = 0;
+        for (final ListenerQueue queue : queues.values()) {
+            longest = Math.max(longest, queue.size());
+        }
+        return longest;
+    }
+
+    /**
+     * The number of events dropped because a queue was full.
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * The number of events merged with a queued event because a queue was full.
+     */
+    public long getCoalescedEvents() {
+        return coalescedEvents.get();
+    }
+}
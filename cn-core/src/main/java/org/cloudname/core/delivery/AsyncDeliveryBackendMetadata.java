@@ -0,0 +1,24 @@
+package org.cloudname.core.delivery;
+
+import org.cloudname.core.BackendDecoratorMetadata;
+import org.cloudname.core.CloudnameBackend;
+
+import java.util.function.BiFunction;
+
+/**
+ * Metadata for the asynchronous delivery decorator. Use "async+[backend]://..." as the backend
+ * URL to deliver lease notifications through per-listener queues. The decorator uses the default
+ * queue capacity and coalesces events when a queue is full; create an
+ * {@link AsyncDeliveryBackend} directly for other settings.
+ */
+public class AsyncDeliveryBackendMetadata implements BackendDecoratorMetadata {
+    @Override
+    public String getName() {
+        return "async";
+    }
+
+    @Override
+    public BiFunction<CloudnameBackend, String, CloudnameBackend> getFactoryMethod() {
+        return (backend, url) -> new AsyncDeliveryBackend(backend);
+    }
+}
@@ -0,0 +1,310 @@
+package org.cloudname.core.delivery;
+
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseListener;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded event queue for a single listener. The backend's notifications are queued and
+ * delivered to the listener by a task on the executor. There's at most one task per queue so the
+ * listener gets the events in the order the backend sent them, but different listeners are
+ * invoked in parallel.
+ */
+class ListenerQueue implements LeaseListener {
+    private static final Logger LOG = Logger.getLogger(ListenerQueue.class.getName());
+
+    // Max events delivered by a single task. The task is resubmitted after this so a busy
+    // listener doesn't hold on to an executor thread forever.
+    private static final int BATCH_SIZE = 64;
+
+    private enum EventType {
+        SNAPSHOT,
+        CREATED,
+        REMOVED,
+        CHANGED
+    }
+
+    /**
+     * A queued event. Type and data are modified when events are coalesced. Snapshots have no
+     * path and are never coalesced.
+     */
+    private static class Event {
+        private final CloudnamePath path;
+        private final Map<CloudnamePath, byte[]> leases;
+        private EventType type;
+        private byte[] data;
+
+        Event(final EventType type, final CloudnamePath path, final byte[] data) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+            this.leases = null;
+        }
+
+        Event(final Map<CloudnamePath, byte[]> leases) {
+            this.type = EventType.SNAPSHOT;
+            this.path = null;
+            this.data = null;
+            this.leases = leases;
+        }
+    }
+
+    private final LeaseListener listener;
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final AtomicLong droppedEvents;
+    private final AtomicLong coalescedEvents;
+
+    private final Object syncObject = new Object();
+    private final ArrayDeque<Event> events = new ArrayDeque<>();
+    // The last queued event for each lease; used when coalescing
+    private final Map<CloudnamePath, Event> lastEvents = new HashMap<>();
+    private boolean scheduled = false;
+    private boolean closed = false;
+
+    /**
+     * Create a queue.
+     *
+     * @param listener the listener to deliver events to
+     * @param executor executor running the delivery
+     * @param capacity max number of queued events before the overflow policy kicks in
+     * @param policy what to do with events when the queue is full
+     * @param droppedEvents counter for dropped events
+     * @param coalescedEvents counter for coalesced events
+     */
+    ListenerQueue(
+            final LeaseListener listener,
+            final Executor executor,
+            final int capacity,
+            final OverflowPolicy policy,
+            final AtomicLong droppedEvents,
+            final AtomicLong coalescedEvents) {
+        this.listener = listener;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.droppedEvents = droppedEvents;
+        this.coalescedEvents = coalescedEvents;
+    }
+
+    /**
+     * The number of events waiting to be delivered.
+     */
+    int size() {
+        synchronized (syncObject) {
+            return events.size();
+        }
+    }
+
+    /**
+     * Discard the queued events and stop delivering new ones. A callback in progress will
+     * complete.
+     */
+    void close() {
+        synchronized (syncObject) {
+            closed = true;
+            events.clear();
+            lastEvents.clear();
+        }
+    }
+
+    private void enqueue(final EventType type, final CloudnamePath path, final byte[] data) {
+        synchronized (syncObject) {
+            if (closed) {
+                return;
+            }
+            if (events.size() >= capacity) {
+                if (policy == OverflowPolicy.DROP) {
+                    droppedEvents.incrementAndGet();
+                    LOG.fine("Listener queue is full; dropping event for " + path);
+                    return;
+                }
+                final Event last = lastEvents.get(path);
+                if (last != null) {
+                    coalesce(last, type, data);
+                    coalescedEvents.incrementAndGet();
+                    return;
+                }
+            }
+            final Event event = new Event(type, path, data);
+            lastEvents.put(path, event);
+            if (!add(event)) {
+                return;
+            }
+        }
+        submit();
+    }
+
+    private void enqueueSnapshot(final Map<CloudnamePath, byte[]> leases) {
+        synchronized (syncObject) {
+            if (closed) {
+                return;
+            }
+            if (events.size() >= capacity && policy == OverflowPolicy.DROP) {
+                droppedEvents.incrementAndGet();
+                LOG.fine("Listener queue is full; dropping snapshot");
+                return;
+            }
+            if (!add(new Event(leases))) {
+                return;
+            }
+        }
+        submit();
+    }
+
+    /**
+     * Add an event to the queue. Must be called while holding the sync object.
+     *
+     * @return true if a delivery task must be submitted
+     */
+    private boolean add(final Event event) {
+        events.add(event);
+        if (scheduled) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+    /**
+     * Merge a new event into the last queued event for the same lease. The merged event takes
+     * the listener from the state before the queued event to the state after the new event.
+     */
+    private void coalesce(final Event last, final EventType type, final byte[] data) {
+        switch (last.type) {
+            case CREATED:
+                if (type == EventType.REMOVED) {
+                    // The listener never saw the lease
+                    events.removeLastOccurrence(last);
+                    lastEvents.remove(last.path);
+                    restoreLastEvent(last.path);
+                } else {
+                    last.data = data;
+                }
+                break;
+            case CHANGED:
+                last.type = (type == EventType.REMOVED ? EventType.REMOVED : EventType.CHANGED);
+                last.data = data;
+                break;
+            case REMOVED:
+                if (type != EventType.REMOVED) {
+                    // The listener saw the old lease so the new one is a change
+                    last.type = EventType.CHANGED;
+                    last.data = data;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown event type " + last.type);
+        }
+    }
+
+    /**
+     * Find the last queued event for a lease after its last event is removed.
+     */
+    private void restoreLastEvent(final CloudnamePath path) {
+        final Iterator<Event> iterator = events.descendingIterator();
+        while (iterator.hasNext()) {
+            final Event event = iterator.next();
+            if (path.equals(event.path)) {
+                lastEvents.put(path, event);
+                return;
+            }
+        }
+    }
+
+    private void submit() {
+        try {
+            executor.execute(this::deliverEvents);
+        } catch (final RejectedExecutionException ex) {
+            LOG.log(Level.WARNING, "Event delivery rejected by executor; discarding events", ex);
+            synchronized (syncObject) {
+                droppedEvents.addAndGet(events.size());
+                events.clear();
+                lastEvents.clear();
+                scheduled = false;
+            }
+        }
+    }
+
+    private void deliverEvents() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            final Event event;
+            synchronized (syncObject) {
+                event = (closed ? null : events.poll());
+                if (event == null) {
+                    scheduled = false;
+                    return;
+                }
+                if (lastEvents.get(event.path) == event) {
+                    lastEvents.remove(event.path);
+                }
+            }
+            deliver(event);
+        }
+        submit();
+    }
+
+    private void deliver(final Event event) {
+        try {
+            switch (event.type) {
+                case SNAPSHOT:
+                    listener.leaseSnapshot(event.leases);
+                    break;
+                case CREATED:
+                    listener.binaryLeaseCreated(event.path, event.data);
+                    break;
+                case REMOVED:
+                    listener.leaseRemoved(event.path);
+                    break;
+                case CHANGED:
+                    listener.binaryDataChanged(event.path, event.data);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown event type " + event.type);
+            }
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Got exception from listener", ex);
+        }
+    }
+
+    @Override
+    public void leaseSnapshot(final Map<CloudnamePath, byte[]> leases) {
+        enqueueSnapshot(leases);
+    }
+
+    @Override
+    public void leaseCreated(final CloudnamePath path, final String data) {
+        enqueue(EventType.CREATED, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+        enqueue(EventType.CREATED, path, data);
+    }
+
+    @Override
+    public void leaseRemoved(final CloudnamePath path) {
+        enqueue(EventType.REMOVED, path, null);
+    }
+
+    @Override
+    public void dataChanged(final CloudnamePath path, final String data) {
+        enqueue(EventType.CHANGED, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+        enqueue(EventType.CHANGED, path, data);
+    }
+}
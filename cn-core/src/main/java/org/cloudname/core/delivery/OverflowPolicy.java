@@ -0,0 +1,22 @@
+package org.cloudname.core.delivery;
+
+/**
+ * What a listener queue does with new events when it is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Merge the event with the queued event for the same lease. A created event followed by a
+     * removal cancels out, a removal followed by a new lease becomes a data change and data
+     * changes keep the latest data. The listener sees the final state of every lease but might
+     * miss intermediate states and events for different leases might be reordered. Events for
+     * leases without a queued event are added so the queue can grow beyond its capacity by at
+     * most one event per lease.
+     */
+    COALESCE,
+
+    /**
+     * Discard the event. The listener's view of the leases will be inconsistent after this so
+     * only use this when the listener can resynchronize on its own.
+     */
+    DROP
+}
@@ -0,0 +1,628 @@
+package org.cloudname.core.federation;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.DelegatingBackend;
+import org.cloudname.core.LeaseCountListener;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.core.PathIndex;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A backend splitting the lease namespace across several backends (shards). Each lease is
+ * stored in the backend with the longest prefix of the lease path in the routing table; paths
+ * without a matching prefix go to the default backend. Routing on the first path element splits
+ * the leases by region since that's the first element of the service coordinates.
+ *
+ * <p>Listeners on a prefix that spans several shards are registered with each of them and get
+ * the merged events. Each shard only forwards events for the leases routed to it. The order of
+ * events from a single shard is preserved but events from different shards aren't ordered
+ * relative to each other and might be delivered concurrently.
+ *
+ * <p>Lease counts for a prefix are the sum of the counts in the shards the prefix spans. Count
+ * listeners are registered with each of those shards and get the sum when one of the counts
+ * changes. The counts assume each shard only stores the leases routed to it. Shards that are
+ * handles onto the same store, f.e. handles for the same URL from
+ * {@link org.cloudname.core.BackendManager}, are only counted once.
+ *
+ * <p>The federated backend owns the shards; closing it closes the shards.
+ */
+public class FederatedBackend implements CloudnameBackend {
+    private static final Logger LOG = Logger.getLogger(FederatedBackend.class.getName());
+
+    // Read-only after construction so it's safe to use from several threads
+    private final PathIndex<CloudnameBackend> routes = new PathIndex<>();
+    private final CloudnameBackend defaultBackend;
+    private final Set<CloudnameBackend> shards
+            = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final Object syncObject = new Object();
+    private final Map<LeaseListener, List<ShardListener>> listeners = new HashMap<>();
+    private final Map<LeaseCountListener, List<ShardCountListener>> countListeners
+            = new HashMap<>();
+
+    /**
+     * Create a new federated backend.
+     *
+     * @param routes the routing table; maps path prefixes to the backend storing the leases
+     *     below the prefix. The same backend can be used for several prefixes.
+     * @param defaultBackend backend for paths that don't match any prefix. Can be null;
+     *     operations on those paths will fail.
+     * @throws IllegalArgumentException if the routing table is null or has null keys or values
+     */
+    public FederatedBackend(final Map<CloudnamePath, CloudnameBackend> routes,
+            final CloudnameBackend defaultBackend) {
+        if (routes == null) {
+            throw new IllegalArgumentException("Routes can not be null");
+        }
+        routes.forEach((prefix, backend) -> {
+            if (prefix == null || backend == null) {
+                throw new IllegalArgumentException("Route prefix and backend can not be null");
+            }
+            this.routes.put(prefix, backend);
+            shards.add(backend);
+        });
+        this.defaultBackend = defaultBackend;
+        if (defaultBackend != null) {
+            shards.add(defaultBackend);
+        }
+    }
+
+    /**
+     * Find the backend storing a lease.
+     *
+     * @return the backend or null if the path is null or there's no route for it
+     */
+    CloudnameBackend route(final CloudnamePath path) {
+        if (path == null) {
+            return null;
+        }
+        final CloudnameBackend[] match = {defaultBackend};
+        // The ancestors are visited shortest first so the last match is the longest prefix
+        routes.forEachAncestor(path, (prefix, backend) -> match[0] = backend);
+        return match[0];
+    }
+
+    /**
+     * Find every backend that might store leases below a prefix.
+     */
+    private Set<CloudnameBackend> shardsFor(final CloudnamePath prefix) {
+        final Set<CloudnameBackend> ret = Collections.newSetFromMap(new IdentityHashMap<>());
+        final CloudnameBackend owner = route(prefix);
+        if (owner != null) {
+            ret.add(owner);
+        }
+        routes.forEachDescendant(prefix, (path, backend) -> ret.add(backend));
+        return ret;
+    }
+
+    /**
+     * Find the backends to count the leases below a prefix in. Only one shard is used for each
+     * store since shards sharing a store would count the same leases.
+     */
+    private Collection<CloudnameBackend> countShardsFor(final CloudnamePath prefix) {
+        final Map<CloudnameBackend, CloudnameBackend> byStore = new IdentityHashMap<>();
+        for (final CloudnameBackend backend : shardsFor(prefix)) {
+            byStore.putIfAbsent(storeOf(backend), backend);
+        }
+        return byStore.values();
+    }
+
+    /**
+     * The backend a shard ultimately forwards to, ie the one storing the leases.
+     */
+    private static CloudnameBackend storeOf(final CloudnameBackend backend) {
+        CloudnameBackend store = backend;
+        while (store instanceof DelegatingBackend) {
+            store = ((DelegatingBackend) store).getDelegate();
+        }
+        return store;
+    }
+
+    /**
+     * Split a batch into one batch per backend and merge the results, keeping the order of
+     * the keys.
+     *
+     * @param keys the keys in the batch
+     * @param operation the batch operation on a single backend, called with the keys routed to
+     *     it
+     * @param failureValue the result for keys without a route
+     */
+    private <R> Map<CloudnamePath, R> splitBatch(
+            final Collection<CloudnamePath> keys,
+            final BiFunction<CloudnameBackend, List<CloudnamePath>, Map<CloudnamePath, R>>
+                    operation,
+            final R failureValue) {
+        final Map<CloudnameBackend, List<CloudnamePath>> batches = new IdentityHashMap<>();
+        for (final CloudnamePath path : keys) {
+            final CloudnameBackend backend = route(path);
+            if (backend != null) {
+                batches.computeIfAbsent(backend, (shard) -> new ArrayList<>()).add(path);
+            }
+        }
+        final Map<CloudnamePath, R> results = new HashMap<>();
+        batches.forEach((backend, paths) -> results.putAll(operation.apply(backend, paths)));
+
+        final Map<CloudnamePath, R> ret = new LinkedHashMap<>();
+        for (final CloudnamePath path : keys) {
+            ret.put(path, results.containsKey(path) ? results.get(path) : failureValue);
+        }
+        return ret;
+    }
+
+    @Override
+    public LeaseHandle createLease(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return null;
+        }
+        return backend.createLease(type, path, data);
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return null;
+        }
+        return backend.createBinaryLease(type, path, data);
+    }
+
+    @Override
+    public boolean removeLease(final CloudnamePath path) {
+        final CloudnameBackend backend = route(path);
+        return backend != null && backend.removeLease(path);
+    }
+
+    @Override
+    public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        final CloudnameBackend backend = route(path);
+        return backend != null && backend.writeLeaseData(path, data);
+    }
+
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        final CloudnameBackend backend = route(path);
+        return backend != null && backend.writeLeaseData(path, data, expectedVersion);
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        if (leaseData == null) {
+            return new LinkedHashMap<>();
+        }
+        return splitBatch(leaseData.keySet(), (backend, paths) -> {
+            final Map<CloudnamePath, String> batch = new LinkedHashMap<>();
+            paths.forEach((path) -> batch.put(path, leaseData.get(path)));
+            return backend.writeLeaseData(batch);
+        }, false);
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        final CloudnameBackend backend = route(path);
+        return backend != null && backend.writeBinaryLeaseData(path, data);
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return null;
+        }
+        return backend.readLeaseData(path);
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path, final ReadConsistency consistency) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return null;
+        }
+        return backend.readLeaseData(path, consistency);
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return null;
+        }
+        return backend.readBinaryLeaseData(path);
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return null;
+        }
+        return backend.readBinaryLeaseData(path, consistency);
+    }
+
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return null;
+        }
+        return backend.readVersionedLeaseData(path, consistency);
+    }
+
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        if (type == null || leases == null) {
+            return new LinkedHashMap<>();
+        }
+        return splitBatch(leases.keySet(), (backend, paths) -> {
+            final Map<CloudnamePath, String> batch = new LinkedHashMap<>();
+            paths.forEach((path) -> batch.put(path, leases.get(path)));
+            return backend.createLeases(type, batch);
+        }, null);
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        if (paths == null) {
+            return new LinkedHashMap<>();
+        }
+        return splitBatch(paths, CloudnameBackend::removeLeases, false);
+    }
+
+    @Override
+    public void addLeaseCollectionListener(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        if (pathToWatch == null || listener == null) {
+            return;
+        }
+        for (final CloudnameBackend backend : shardsFor(pathToWatch)) {
+            backend.addLeaseCollectionListener(pathToWatch, register(backend, listener));
+        }
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
+        final CloudnameBackend backend = route(pathToObserve);
+        if (backend == null || listener == null) {
+            return;
+        }
+        backend.addLeaseListener(pathToObserve, register(backend, listener));
+    }
+
+    /**
+     * Create and remember the listener registered with a shard.
+     */
+    private ShardListener register(final CloudnameBackend backend, final LeaseListener listener) {
+        final ShardListener shardListener = new ShardListener(backend, listener);
+        synchronized (syncObject) {
+            listeners.computeIfAbsent(listener, (key) -> new ArrayList<>()).add(shardListener);
+        }
+        return shardListener;
+    }
+
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final List<ShardListener> registered;
+        synchronized (syncObject) {
+            registered = listeners.remove(listener);
+        }
+        if (registered != null) {
+            registered.forEach((shardListener) ->
+                    shardListener.backend.removeLeaseListener(shardListener));
+        }
+    }
+
+    @Override
+    public int countLeases(final CloudnamePath prefix) {
+        if (prefix == null) {
+            return 0;
+        }
+        int count = 0;
+        for (final CloudnameBackend backend : countShardsFor(prefix)) {
+            count += backend.countLeases(prefix);
+        }
+        return count;
+    }
+
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        if (prefix == null || listener == null) {
+            return;
+        }
+        final Collection<CloudnameBackend> prefixShards = countShardsFor(prefix);
+        final CountSum sum = new CountSum(prefix, listener, prefixShards.size());
+        for (final CloudnameBackend backend : prefixShards) {
+            final ShardCountListener shardListener = new ShardCountListener(backend, sum);
+            synchronized (syncObject) {
+                countListeners.computeIfAbsent(listener, (key) -> new ArrayList<>())
+                        .add(shardListener);
+            }
+            backend.addLeaseCountListener(prefix, shardListener);
+        }
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final List<ShardCountListener> registered;
+        synchronized (syncObject) {
+            registered = countListeners.remove(listener);
+        }
+        if (registered != null) {
+            registered.forEach((shardListener) ->
+                    shardListener.backend.removeLeaseCountListener(shardListener));
+        }
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return backend.createLeaseAsync(type, path, data);
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return backend.createBinaryLeaseAsync(type, path, data);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return backend.removeLeaseAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return backend.writeLeaseDataAsync(path, data);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return backend.writeLeaseDataAsync(path, data, expectedVersion);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeBinaryLeaseDataAsync(
+            final CloudnamePath path, final byte[] data) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return backend.writeBinaryLeaseDataAsync(path, data);
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(final CloudnamePath path) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return backend.readLeaseDataAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return backend.readLeaseDataAsync(path, consistency);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(final CloudnamePath path) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return backend.readBinaryLeaseDataAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return backend.readBinaryLeaseDataAsync(path, consistency);
+    }
+
+    @Override
+    public CompletableFuture<VersionedData> readVersionedLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        final CloudnameBackend backend = route(path);
+        if (backend == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return backend.readVersionedLeaseDataAsync(path, consistency);
+    }
+
+    /**
+     * Remove the listeners and close the shards.
+     */
+    @Override
+    public void close() {
+        final List<LeaseListener> registered;
+        synchronized (syncObject) {
+            registered = new ArrayList<>(listeners.keySet());
+        }
+        registered.forEach(this::removeLeaseListener);
+        final List<LeaseCountListener> registeredCounts;
+        synchronized (syncObject) {
+            registeredCounts = new ArrayList<>(countListeners.keySet());
+        }
+        registeredCounts.forEach(this::removeLeaseCountListener);
+        for (final CloudnameBackend backend : shards) {
+            try {
+                backend.close();
+            } catch (final Exception ex) {
+                LOG.log(Level.WARNING, "Got exception closing shard", ex);
+            }
+        }
+    }
+
+    /**
+     * The listener registered with a single shard. Events for leases that aren't routed to the
+     * shard are dropped; they belong to another shard and the client gets them from there.
+     */
+    private class ShardListener implements LeaseListener {
+        private final CloudnameBackend backend;
+        private final LeaseListener listener;
+
+        ShardListener(final CloudnameBackend backend, final LeaseListener listener) {
+            this.backend = backend;
+            this.listener = listener;
+        }
+
+        private boolean isRoutedHere(final CloudnamePath path) {
+            return route(path) == backend;
+        }
+
+        @Override
+        public void leaseCreated(final CloudnamePath path, final String data) {
+            if (isRoutedHere(path)) {
+                listener.leaseCreated(path, data);
+            }
+        }
+
+        @Override
+        public void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+            if (isRoutedHere(path)) {
+                listener.binaryLeaseCreated(path, data);
+            }
+        }
+
+        @Override
+        public void leaseSnapshot(final Map<CloudnamePath, byte[]> leases) {
+            final Map<CloudnamePath, byte[]> routedHere = new LinkedHashMap<>();
+            leases.forEach((path, data) -> {
+                if (isRoutedHere(path)) {
+                    routedHere.put(path, data);
+                }
+            });
+            listener.leaseSnapshot(routedHere);
+        }
+
+        @Override
+        public void leaseRemoved(final CloudnamePath path) {
+            if (isRoutedHere(path)) {
+                listener.leaseRemoved(path);
+            }
+        }
+
+        @Override
+        public void dataChanged(final CloudnamePath path, final String data) {
+            if (isRoutedHere(path)) {
+                listener.dataChanged(path, data);
+            }
+        }
+
+        @Override
+        public void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+            if (isRoutedHere(path)) {
+                listener.binaryDataChanged(path, data);
+            }
+        }
+    }
+
+    /**
+     * The sum of the counts for a prefix in each of the shards it spans. The sum is reported
+     * once every shard has reported its count.
+     */
+    private static class CountSum {
+        private final CloudnamePath prefix;
+        private final LeaseCountListener listener;
+        private final int numShards;
+        private final Map<CloudnameBackend, Integer> counts = new IdentityHashMap<>();
+
+        CountSum(final CloudnamePath prefix, final LeaseCountListener listener,
+                final int numShards) {
+            this.prefix = prefix;
+            this.listener = listener;
+            this.numShards = numShards;
+        }
+
+        synchronized void update(final CloudnameBackend backend, final int count) {
+            counts.put(backend, count);
+            if (counts.size() < numShards) {
+                return;
+            }
+            int sum = 0;
+            for (final int shardCount : counts.values()) {
+                sum += shardCount;
+            }
+            listener.leaseCountChanged(prefix, sum);
+        }
+    }
+
+    /**
+     * The count listener registered with a single shard.
+     */
+    private static class ShardCountListener implements LeaseCountListener {
+        private final CloudnameBackend backend;
+        private final CountSum sum;
+
+        ShardCountListener(final CloudnameBackend backend, final CountSum sum) {
+            this.backend = backend;
+            this.sum = sum;
+        }
+
+        @Override
+        public void leaseCountChanged(final CloudnamePath prefix, final int count) {
+            sum.update(backend, count);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.cloudname.core.federation;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.BackendMetadata;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Metadata for the federated backend. The connection string is the routing table; a list of
+ * routes separated by semicolons where each route is a path prefix (elements separated by
+ * dots) and the URL of the backend for the prefix. Use "*" as the prefix for the default
+ * backend, f.e.
+ *
+ * <pre>
+ *     federated://eu-west=zookeeper://zk-eu:2181;us-east=zookeeper://zk-us:2181;*=memory://
+ * </pre>
+ *
+ * <p>The backends are created through {@link BackendManager#getBackend(String)}. Each URL is
+ * only fetched once so prefixes with the same URL share a single handle, ie a single shard.
+ */
+public class FederatedBackendMetadata implements BackendMetadata {
+    private static final String DEFAULT_ROUTE = "*";
+
+    @Override
+    public String getName() {
+        return "federated";
+    }
+
+    @Override
+    public Function<String, CloudnameBackend> getFactoryMethod() {
+        return FederatedBackendMetadata::createBackend;
+    }
+
+    /**
+     * Create a backend from a routing table.
+     *
+     * @throws IllegalArgumentException if the routing table is invalid or one of the backends
+     *     couldn't be created
+     */
+    private static CloudnameBackend createBackend(final String connectionString) {
+        if (connectionString == null || connectionString.isEmpty()) {
+            throw new IllegalArgumentException("The federated backend needs a routing table");
+        }
+        final Map<CloudnamePath, CloudnameBackend> routes = new LinkedHashMap<>();
+        // One handle per URL; the federated backend tells the shards apart by identity
+        final Map<String, CloudnameBackend> created = new LinkedHashMap<>();
+        CloudnameBackend defaultBackend = null;
+        try {
+            for (final String route : connectionString.split(";")) {
+                final int separator = route.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Invalid route: " + route);
+                }
+                final String prefix = route.substring(0, separator);
+                final String url = route.substring(separator + 1);
+                CloudnameBackend backend = created.get(url);
+                if (backend == null) {
+                    backend = BackendManager.getBackend(url);
+                    if (backend == null) {
+                        throw new IllegalArgumentException("Unknown backend in route: " + route);
+                    }
+                    created.put(url, backend);
+                }
+                if (DEFAULT_ROUTE.equals(prefix)) {
+                    defaultBackend = backend;
+                } else {
+                    routes.put(CloudnamePath.parse(prefix, 0, '.'), backend);
+                }
+            }
+        } catch (final IllegalArgumentException ex) {
+            for (final CloudnameBackend backend : created.values()) {
+                try {
+                    backend.close();
+                } catch (final Exception closeException) {
+                    ex.addSuppressed(closeException);
+                }
+            }
+            throw ex;
+        }
+        return new FederatedBackend(routes, defaultBackend);
+    }
+}
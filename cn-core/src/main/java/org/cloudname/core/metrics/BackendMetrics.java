@@ -0,0 +1,46 @@
+package org.cloudname.core.metrics;
+
+/**
+ * Metrics for a backend. The values are live; each call returns the current value.
+ */
+public interface BackendMetrics {
+    /**
+     * The timed backend operations. The non-blocking operations are recorded with their blocking
+     * counterparts; the latency is the time until the future completes.
+     */
+    enum Operation {
+        CREATE_LEASE,
+        REMOVE_LEASE,
+        WRITE_LEASE_DATA,
+        READ_LEASE_DATA,
+        CREATE_LEASES,
+        REMOVE_LEASES,
+        WRITE_LEASES
+    }
+
+    /**
+     * The name of the backend, ie the backend URL.
+     */
+    String getName();
+
+    /**
+     * Get the latencies for an operation.
+     */
+    LatencyHistogram.Snapshot getLatency(Operation operation);
+
+    /**
+     * Get the time spent in listener callbacks. The count is the number of callbacks.
+     */
+    LatencyHistogram.Snapshot getListenerLatency();
+
+    /**
+     * The number of leases created through the backend that haven't been removed.
+     */
+    int getLiveLeases();
+
+    /**
+     * The number of registered listeners. A listener registered on several paths is counted
+     * once for every path.
+     */
+    int getLiveWatches();
+}
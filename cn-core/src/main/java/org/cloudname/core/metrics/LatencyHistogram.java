@@ -0,0 +1,167 @@
+package org.cloudname.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram for latencies in nanoseconds. Values are counted in log-linear buckets;
+ * each power of two is split into eight buckets so the reported percentiles are within 12.5% of
+ * the actual value. Recording a value is a handful of atomic increments and never blocks so it
+ * can be used on hot paths.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * The bucket for a (non-negative) value.
+     */
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The lowest value counted in a bucket.
+     */
+    static long bucketLowerBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * The highest value counted in a bucket.
+     */
+    static long bucketUpperBound(final int index) {
+        if (index + 1 >= NUM_BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        return bucketLowerBound(index + 1) - 1;
+    }
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Record the time elapsed since a start time.
+     *
+     * @param startNanos start time, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Take a snapshot of the histogram. Values recorded while the snapshot is taken might or
+     * might not be included.
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, count.sum(), sum.sum(), max.get());
+    }
+
+    /**
+     * An immutable copy of the histogram's values.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(final long[] counts, final long count, final long sum, final long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * The number of recorded values.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The sum of the recorded values, in nanoseconds.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * The highest recorded value, in nanoseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * The mean of the recorded values, in nanoseconds. 0 if there are no values.
+         */
+        public double getMean() {
+            if (count == 0) {
+                return 0.0;
+            }
+            return (double) sum / count;
+        }
+
+        /**
+         * Get a percentile. The value is the upper bound of the bucket holding the percentile.
+         *
+         * @param quantile the quantile, between 0.0 and 1.0 (ie 0.99 for the 99th percentile)
+         * @return the percentile in nanoseconds or 0 if there are no values
+         * @throws IllegalArgumentException if the quantile is out of range
+         */
+        public long getPercentile(final double quantile) {
+            if (quantile < 0.0 || quantile > 1.0) {
+                throw new IllegalArgumentException("Quantile must be between 0 and 1");
+            }
+            long total = 0;
+            for (final long bucketCount : counts) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package org.cloudname.core.metrics;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.DelegatingBackend;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A backend decorator recording metrics for another backend. It records latencies for the lease
+ * operations, the number of listener callbacks and the time spent in them and keeps track of
+ * live leases and watches. Recording is lock-free.
+ */
+public class MetricsBackend extends DelegatingBackend implements BackendMetrics {
+    private final String name;
+    private final List<MetricsExporter> exporters;
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final LatencyHistogram listenerLatency = new LatencyHistogram();
+    private final Set<CloudnamePath> liveLeases = ConcurrentHashMap.newKeySet();
+    private final Map<LeaseListener, TimedListener> listeners = new ConcurrentHashMap<>();
+    private final AtomicInteger liveWatches = new AtomicInteger(0);
+
+    /**
+     * Create a new metrics decorator. The metrics are added to the exporters.
+     *
+     * @param name name of the backend; typically the URL
+     * @param backend the backend to record metrics for
+     * @param exporters exporters for the metrics
+     * @throws IllegalArgumentException if one of the parameters is null
+     */
+    public MetricsBackend(
+            final String name,
+            final CloudnameBackend backend,
+            final Collection<MetricsExporter> exporters) {
+        super(backend);
+        if (name == null || exporters == null) {
+            throw new IllegalArgumentException("Name and exporters can not be null");
+        }
+        this.name = name;
+        this.exporters = new ArrayList<>(exporters);
+        for (final Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+        for (final MetricsExporter exporter : this.exporters) {
+            exporter.addBackend(this);
+        }
+    }
+
+    /**
+     * Wraps listeners to time the callbacks.
+     */
+    private class TimedListener implements LeaseListener {
+        private final LeaseListener listener;
+        private final AtomicInteger registrations = new AtomicInteger(0);
+
+        TimedListener(final LeaseListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void leaseCreated(final CloudnamePath path, final String data) {
+            final long start = System.nanoTime();
+            try {
+                listener.leaseCreated(path, data);
+            } finally {
+                listenerLatency.recordSince(start);
+            }
+        }
+
+        @Override
+        public void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+            final long start = System.nanoTime();
+            try {
+                listener.binaryLeaseCreated(path, data);
+            } finally {
+                listenerLatency.recordSince(start);
+            }
+        }
+
+        @Override
+        public void leaseSnapshot(final Map<CloudnamePath, byte[]> leases) {
+            final long start = System.nanoTime();
+            try {
+                listener.leaseSnapshot(leases);
+            } finally {
+                listenerLatency.recordSince(start);
+            }
+        }
+
+        @Override
+        public void leaseRemoved(final CloudnamePath path) {
+            final long start = System.nanoTime();
+            try {
+                listener.leaseRemoved(path);
+            } finally {
+                listenerLatency.recordSince(start);
+            }
+        }
+
+        @Override
+        public void dataChanged(final CloudnamePath path, final String data) {
+            final long start = System.nanoTime();
+            try {
+                listener.dataChanged(path, data);
+            } finally {
+                listenerLatency.recordSince(start);
+            }
+        }
+
+        @Override
+        public void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+            final long start = System.nanoTime();
+            try {
+                listener.binaryDataChanged(path, data);
+            } finally {
+                listenerLatency.recordSince(start);
+            }
+        }
+    }
+
+    /**
+     * Wraps lease handles to time writes and keep track of closed leases.
+     */
+    private class TimedLeaseHandle implements LeaseHandle {
+        private final LeaseHandle handle;
+        private final CloudnamePath path;
+
+        TimedLeaseHandle(final LeaseHandle handle) {
+            this.handle = handle;
+            this.path = handle.getLeasePath();
+        }
+
+        @Override
+        public boolean writeData(final String data) {
+            return time(Operation.WRITE_LEASE_DATA, () -> handle.writeData(data));
+        }
+
+        @Override
+        public boolean writeBinaryData(final byte[] data) {
+            return time(Operation.WRITE_LEASE_DATA, () -> handle.writeBinaryData(data));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeDataAsync(final String data) {
+            return timeAsync(Operation.WRITE_LEASE_DATA, handle.writeDataAsync(data));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeBinaryDataAsync(final byte[] data) {
+            return timeAsync(Operation.WRITE_LEASE_DATA, handle.writeBinaryDataAsync(data));
+        }
+
+        @Override
+        public CloudnamePath getLeasePath() {
+            return handle.getLeasePath();
+        }
+
+        @Override
+        public void close() throws Exception {
+            try {
+                handle.close();
+            } finally {
+                liveLeases.remove(path);
+            }
+        }
+    }
+
+    private <T> T time(final Operation operation, final Supplier<T> supplier) {
+        final long start = System.nanoTime();
+        try {
+            return supplier.get();
+        } finally {
+            latencies.get(operation).recordSince(start);
+        }
+    }
+
+    private <T> CompletableFuture<T> timeAsync(
+            final Operation operation, final CompletableFuture<T> future) {
+        final long start = System.nanoTime();
+        future.whenComplete((value, throwable) -> latencies.get(operation).recordSince(start));
+        return future;
+    }
+
+    /**
+     * Keep track of a new lease and wrap the handle.
+     */
+    private LeaseHandle trackLease(final LeaseHandle handle) {
+        if (handle == null || handle.getLeasePath() == null) {
+            return handle;
+        }
+        liveLeases.add(handle.getLeasePath());
+        return new TimedLeaseHandle(handle);
+    }
+
+    private TimedListener trackListener(final LeaseListener listener) {
+        final TimedListener timedListener = listeners.computeIfAbsent(listener, TimedListener::new);
+        timedListener.registrations.incrementAndGet();
+        liveWatches.incrementAndGet();
+        return timedListener;
+    }
+
+    @Override
+    public LeaseHandle createLease(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return trackLease(time(Operation.CREATE_LEASE,
+                () -> super.createLease(type, path, data)));
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return trackLease(time(Operation.CREATE_LEASE,
+                () -> super.createBinaryLease(type, path, data)));
+    }
+
+    @Override
+    public boolean removeLease(final CloudnamePath path) {
+        final boolean removed = time(Operation.REMOVE_LEASE, () -> super.removeLease(path));
+        if (removed) {
+            liveLeases.remove(path);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        return time(Operation.WRITE_LEASE_DATA, () -> super.writeLeaseData(path, data));
+    }
+
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        return time(Operation.WRITE_LEASE_DATA,
+                () -> super.writeLeaseData(path, data, expectedVersion));
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        return time(Operation.WRITE_LEASES, () -> super.writeLeaseData(leaseData));
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        return time(Operation.WRITE_LEASE_DATA, () -> super.writeBinaryLeaseData(path, data));
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path) {
+        return time(Operation.READ_LEASE_DATA, () -> super.readLeaseData(path));
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path, final ReadConsistency consistency) {
+        return time(Operation.READ_LEASE_DATA, () -> super.readLeaseData(path, consistency));
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        return time(Operation.READ_LEASE_DATA, () -> super.readBinaryLeaseData(path));
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return time(Operation.READ_LEASE_DATA,
+                () -> super.readBinaryLeaseData(path, consistency));
+    }
+
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return time(Operation.READ_LEASE_DATA,
+                () -> super.readVersionedLeaseData(path, consistency));
+    }
+
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        final Map<CloudnamePath, LeaseHandle> handles
+                = time(Operation.CREATE_LEASES, () -> super.createLeases(type, leases));
+        handles.replaceAll((path, handle) -> trackLease(handle));
+        return handles;
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        final Map<CloudnamePath, Boolean> removed
+                = time(Operation.REMOVE_LEASES, () -> super.removeLeases(paths));
+        removed.forEach((path, success) -> {
+            if (success) {
+                liveLeases.remove(path);
+            }
+        });
+        return removed;
+    }
+
+    @Override
+    public void addLeaseCollectionListener(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        super.addLeaseCollectionListener(pathToWatch, trackListener(listener));
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
+        super.addLeaseListener(pathToObserve, trackListener(listener));
+    }
+
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
+        final TimedListener timedListener = (listener == null ? null : listeners.remove(listener));
+        if (timedListener == null) {
+            super.removeLeaseListener(listener);
+            return;
+        }
+        liveWatches.addAndGet(-timedListener.registrations.get());
+        super.removeLeaseListener(timedListener);
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return timeAsync(Operation.CREATE_LEASE, super.createLeaseAsync(type, path, data))
+                .thenApply(this::trackLease);
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return timeAsync(Operation.CREATE_LEASE, super.createBinaryLeaseAsync(type, path, data))
+                .thenApply(this::trackLease);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        return timeAsync(Operation.REMOVE_LEASE, super.removeLeaseAsync(path))
+                .thenApply((removed) -> {
+                    if (removed) {
+                        liveLeases.remove(path);
+                    }
+                    return removed;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data) {
+        return timeAsync(Operation.WRITE_LEASE_DATA, super.writeLeaseDataAsync(path, data));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        return timeAsync(Operation.WRITE_LEASE_DATA,
+                super.writeLeaseDataAsync(path, data, expectedVersion));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeBinaryLeaseDataAsync(
+            final CloudnamePath path, final byte[] data) {
+        return timeAsync(Operation.WRITE_LEASE_DATA, super.writeBinaryLeaseDataAsync(path, data));
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(final CloudnamePath path) {
+        return timeAsync(Operation.READ_LEASE_DATA, super.readLeaseDataAsync(path));
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return timeAsync(Operation.READ_LEASE_DATA, super.readLeaseDataAsync(path, consistency));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(final CloudnamePath path) {
+        return timeAsync(Operation.READ_LEASE_DATA, super.readBinaryLeaseDataAsync(path));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return timeAsync(Operation.READ_LEASE_DATA,
+                super.readBinaryLeaseDataAsync(path, consistency));
+    }
+
+    @Override
+    public CompletableFuture<VersionedData> readVersionedLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return timeAsync(Operation.READ_LEASE_DATA,
+                super.readVersionedLeaseDataAsync(path, consistency));
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        return super.addLeaseCollectionListenerAsync(pathToWatch, trackListener(listener));
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseListenerAsync(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        return super.addLeaseListenerAsync(pathToObserve, trackListener(listener));
+    }
+
+    /**
+     * Close the backend. The metrics are removed from the exporters.
+     */
+    @Override
+    public void close() throws Exception {
+        listeners.clear();
+        liveWatches.set(0);
+        for (final MetricsExporter exporter : exporters) {
+            exporter.removeBackend(this);
+        }
+        super.close();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getLatency(final Operation operation) {
+        return latencies.get(operation).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getListenerLatency() {
+        return listenerLatency.snapshot();
+    }
+
+    @Override
+    public int getLiveLeases() {
+        return liveLeases.size();
+    }
+
+    @Override
+    public int getLiveWatches() {
+        return liveWatches.get();
+    }
+}
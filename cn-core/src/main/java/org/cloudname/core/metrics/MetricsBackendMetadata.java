@@ -0,0 +1,35 @@
+package org.cloudname.core.metrics;
+
+import org.cloudname.core.BackendDecoratorMetadata;
+import org.cloudname.core.CloudnameBackend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.function.BiFunction;
+
+/**
+ * Metadata for the metrics decorator. Use "metrics+[backend]://..." as the backend URL to
+ * record metrics for a backend. The metrics are exported through the registered
+ * {@link MetricsExporter} implementations.
+ */
+public class MetricsBackendMetadata implements BackendDecoratorMetadata {
+    private static final List<MetricsExporter> EXPORTERS;
+
+    static {
+        final List<MetricsExporter> exporters = new ArrayList<>();
+        ServiceLoader.load(MetricsExporter.class).forEach(exporters::add);
+        EXPORTERS = Collections.unmodifiableList(exporters);
+    }
+
+    @Override
+    public String getName() {
+        return "metrics";
+    }
+
+    @Override
+    public BiFunction<CloudnameBackend, String, CloudnameBackend> getFactoryMethod() {
+        return (backend, url) -> new MetricsBackend(url, backend, EXPORTERS);
+    }
+}
@@ -0,0 +1,21 @@
+package org.cloudname.core.metrics;
+
+/**
+ * Exporters make the backend metrics available to monitoring systems. Implement this interface
+ * and reference it in
+ * <pre>src/main/resources/META-INF/services/org.cloudname.core.metrics.MetricsExporter</pre>
+ * to have it picked up by the "metrics" backend decorator.
+ *
+ * <p>The metrics are live so exporters can read them whenever they want to.
+ */
+public interface MetricsExporter {
+    /**
+     * A new backend with metrics is created.
+     */
+    void addBackend(BackendMetrics metrics);
+
+    /**
+     * A backend with metrics is closed.
+     */
+    void removeBackend(BackendMetrics metrics);
+}
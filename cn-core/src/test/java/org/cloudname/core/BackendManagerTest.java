@@ -1,11 +1,17 @@
 package org.cloudname.core;
 
+import org.cloudname.core.metrics.MetricsBackend;
 import org.junit.Test;
 
-import java.util.function.Function;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertThat;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 
 /**
@@ -78,8 +84,8 @@ public class BackendManagerTest {
         BackendManager.register("foo", (v) -> { assertThat(v, is("fooString")); return aBackend; } );
         BackendManager.register("bar", (v) -> { assertThat(v, is("barString")); return bBackend; } );
 
-        assertThat(BackendManager.getBackend("foo://fooString"), is(aBackend));
-        assertThat(BackendManager.getBackend("bar://barString"), is(bBackend));
+        assertThat(BackendManager.createBackend("foo://fooString"), is(aBackend));
+        assertThat(BackendManager.createBackend("bar://barString"), is(bBackend));
 
         BackendManager.deregister("foo");
         assertThat(BackendManager.getBackend("foo://string"), is(nullValue()));
@@ -87,4 +93,163 @@ public class BackendManagerTest {
         BackendManager.deregister("bar");
         assertThat(BackendManager.getBackend("bar://string"), is(nullValue()));
     }
+
+    @Test
+    public void decoratorsAreAppliedRightToLeft() {
+        final CloudnameBackend backend = createBackend();
+        BackendManager.register("baz", (v) -> backend);
+        BackendManager.registerDecorator("outer", (b, url) -> {
+            assertThat(url, is("inner+baz://bazString"));
+            assertThat(b, is(instanceOf(DelegatingBackend.class)));
+            return new DelegatingBackend(b);
+        });
+        BackendManager.registerDecorator("inner", (b, url) -> {
+            assertThat(url, is("baz://bazString"));
+            assertThat(b, is(backend));
+            return new DelegatingBackend(b);
+        });
+
+        final CloudnameBackend decorated
+                = BackendManager.createBackend("outer+inner+baz://bazString");
+        assertThat(decorated, is(instanceOf(DelegatingBackend.class)));
+        final CloudnameBackend inner = ((DelegatingBackend) decorated).getDelegate();
+        assertThat(((DelegatingBackend) inner).getDelegate(), is(backend));
+
+        assertThat(BackendManager.getBackend("unknown+baz://bazString"), is(nullValue()));
+
+        BackendManager.deregisterDecorator("outer");
+        BackendManager.deregisterDecorator("inner");
+        assertThat(BackendManager.getBackend("outer+baz://bazString"), is(nullValue()));
+        BackendManager.deregister("baz");
+    }
+
+    @Test
+    public void metricsDecoratorIsRegistered() {
+        final CloudnameBackend backend = createBackend();
+        BackendManager.register("qux", (v) -> backend);
+        final CloudnameBackend decorated = BackendManager.getBackend("metrics+qux://");
+        assertThat(decorated, is(instanceOf(MetricsBackend.class)));
+        assertThat(((MetricsBackend) decorated).getName(), is("qux://"));
+        BackendManager.deregister("qux");
+    }
+
+    @Test
+    public void backendsAreShared() throws Exception {
+        final AtomicInteger created = new AtomicInteger(0);
+        final AtomicInteger closed = new AtomicInteger(0);
+        BackendManager.register("shared", (v) -> {
+            created.incrementAndGet();
+            return new DelegatingBackend(createBackend()) {
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        });
+
+        final CloudnameBackend first = BackendManager.getBackend("shared://one");
+        final CloudnameBackend second = BackendManager.getBackend("metrics+shared://one");
+        final CloudnameBackend other = BackendManager.getBackend("shared://two");
+        assertThat(created.get(), is(2));
+        assertThat(first, is(not(second)));
+        final CloudnameBackend secondHandle = ((DelegatingBackend) second).getDelegate();
+        assertThat(((DelegatingBackend) first).getDelegate(),
+                is(((DelegatingBackend) secondHandle).getDelegate()));
+
+        first.close();
+        first.close();
+        assertThat("Backend is open while there are handles", closed.get(), is(0));
+        second.close();
+        assertThat("Backend is closed with the last handle", closed.get(), is(1));
+        other.close();
+        assertThat(closed.get(), is(2));
+
+        final CloudnameBackend again = BackendManager.getBackend("shared://one");
+        assertThat("A new backend is created after the last handle closes",
+                created.get(), is(3));
+        again.close();
+
+        final CloudnameBackend unshared = BackendManager.createBackend("shared://one");
+        assertThat(created.get(), is(4));
+        assertThat(unshared, is(not(instanceOf(SharedBackend.class))));
+        BackendManager.deregister("shared");
+    }
+
+    @Test
+    public void handlesCleanUpTheirOwnLeasesAndListeners() throws Exception {
+        final List<CloudnamePath> closedLeases = new ArrayList<>();
+        final List<LeaseListener> removedListeners = new ArrayList<>();
+        BackendManager.register("tracked", (v) -> new DelegatingBackend(createBackend()) {
+            @Override
+            public LeaseHandle createLease(
+                    final LeaseType type, final CloudnamePath path, final String data) {
+                return new LeaseHandle() {
+                    @Override
+                    public boolean writeData(final String data) {
+                        return true;
+                    }
+
+                    @Override
+                    public CloudnamePath getLeasePath() {
+                        return path;
+                    }
+
+                    @Override
+                    public void close() {
+                        closedLeases.add(path);
+                    }
+                };
+            }
+
+            @Override
+            public void removeLeaseListener(final LeaseListener listener) {
+                removedListeners.add(listener);
+            }
+        });
+
+        final CloudnamePath mine = new CloudnamePath(new String[] {"mine"});
+        final CloudnamePath closedByClient = new CloudnamePath(new String[] {"closed"});
+        final CloudnamePath permanent = new CloudnamePath(new String[] {"permanent"});
+        final CloudnamePath theirs = new CloudnamePath(new String[] {"theirs"});
+        final LeaseListener myListener = createListener();
+        final LeaseListener theirListener = createListener();
+
+        final CloudnameBackend first = BackendManager.getBackend("tracked://");
+        final CloudnameBackend second = BackendManager.getBackend("tracked://");
+        assertThat(first.createLease(LeaseType.TEMPORARY, mine, "data"), is(notNullValue()));
+        first.createLease(LeaseType.TEMPORARY, closedByClient, "data").close();
+        assertThat(first.createLease(LeaseType.PERMANENT, permanent, "data"), is(notNullValue()));
+        first.addLeaseCollectionListener(mine, myListener);
+        assertThat(second.createLease(LeaseType.TEMPORARY, theirs, "data"), is(notNullValue()));
+        second.addLeaseListener(theirs, theirListener);
+
+        closedLeases.clear();
+        first.close();
+        assertThat(closedLeases.size(), is(1));
+        assertThat(closedLeases.get(0), is(mine));
+        assertThat(removedListeners.size(), is(1));
+        assertThat(removedListeners.get(0), is(myListener));
+
+        second.close();
+        assertThat(closedLeases.size(), is(2));
+        assertThat(closedLeases.get(1), is(theirs));
+        assertThat(removedListeners.get(1), is(theirListener));
+        BackendManager.deregister("tracked");
+    }
+
+    private LeaseListener createListener() {
+        return new LeaseListener() {
+            @Override
+            public void leaseCreated(final CloudnamePath path, final String data) {
+            }
+
+            @Override
+            public void leaseRemoved(final CloudnamePath path) {
+            }
+
+            @Override
+            public void dataChanged(final CloudnamePath path, final String data) {
+            }
+        };
+    }
 }
@@ -2,6 +2,12 @@ package org.cloudname.core;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
@@ -198,4 +204,82 @@ public class CloudnamePathTest {
     public void additionalElementsMustBeValid() {
         new CloudnamePath(new CloudnamePath(new String[] { "foo" }), "__");
     }
+
+    @Test
+    public void parsePaths() {
+        final CloudnamePath path = CloudnamePath.parse("/cn/Foo/bar", 4, '/');
+        assertThat(path, is(equalTo(new CloudnamePath(twoElements))));
+        assertThat(CloudnamePath.parse("foo.bar", 0, '.'), is(equalTo(path)));
+        assertThat(CloudnamePath.parse("/cn/", 4, '/').length(), is(0));
+        assertThat(CloudnamePath.parse("cn//foo", 4, '/'),
+                is(equalTo(new CloudnamePath(oneElement))));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void parsedElementsMustBeValid() {
+        CloudnamePath.parse("foo//bar", 0, '/');
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void parseOffsetMustBeWithinBounds() {
+        CloudnamePath.parse("foo", 4, '/');
+    }
+
+    @Test
+    public void canonicalInstances() {
+        final CloudnamePath first = CloudnamePath.of(twoElements);
+        assertThat("Canonical instances are shared",
+                CloudnamePath.of("FOO", "bar") == first, is(true));
+        assertThat(new CloudnamePath(twoElements).intern() == first, is(true));
+        assertThat(CloudnamePath.parse("foo/bar", 0, '/') == first, is(true));
+        assertThat(CloudnamePath.of(oneElement) == first, is(false));
+    }
+
+    @Test
+    public void canonicalInstancesAcrossThreads() throws Exception {
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<CloudnamePath[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    final CloudnamePath[] paths = new CloudnamePath[1000];
+                    for (int j = 0; j < paths.length; j++) {
+                        paths[j] = CloudnamePath.parse("thread/" + j, 0, '/');
+                    }
+                    return paths;
+                }));
+            }
+            final CloudnamePath[] first = results.get(0).get();
+            for (final Future<CloudnamePath[]> result : results) {
+                final CloudnamePath[] paths = result.get();
+                for (int j = 0; j < paths.length; j++) {
+                    assertThat(paths[j] == first[j], is(true));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void hashCodesAreConsistent() {
+        final CloudnamePath two = new CloudnamePath(twoElements);
+        final CloudnamePath appended = new CloudnamePath(new CloudnamePath(oneElement), "bar");
+        assertThat(appended.hashCode(), is(two.hashCode()));
+        assertThat(two.getParent().hashCode(), is(new CloudnamePath(oneElement).hashCode()));
+        assertThat(CloudnamePath.parse("foo/bar", 0, '/').hashCode(), is(two.hashCode()));
+    }
+
+    @Test
+    public void joinWithDifferentSeparators() {
+        final CloudnamePath two = new CloudnamePath(twoElements);
+        assertThat(two.join('/'), is("foo/bar"));
+        assertThat(two.join('.'), is("foo.bar"));
+        assertThat(two.join('/'), is("foo/bar"));
+        assertThat(two.join(':'), is("foo:bar"));
+        assertThat(two.join('-'), is("foo-bar"));
+        assertThat(two.join('_'), is("foo_bar"));
+        assertThat(two.join('.'), is("foo.bar"));
+    }
 }
@@ -0,0 +1,172 @@
+package org.cloudname.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PathIndexTest {
+    private final CloudnamePath root = new CloudnamePath(new String[] {});
+    private final CloudnamePath a = new CloudnamePath(new String[] {"a"});
+    private final CloudnamePath ab = new CloudnamePath(new String[] {"a", "b"});
+    private final CloudnamePath abc = new CloudnamePath(new String[] {"a", "b", "c"});
+    private final CloudnamePath abd = new CloudnamePath(new String[] {"a", "b", "d"});
+    private final CloudnamePath x = new CloudnamePath(new String[] {"x"});
+
+    @Test
+    public void putGetRemove() {
+        final PathIndex<String> index = new PathIndex<>();
+        assertThat(index.size(), is(0));
+        assertThat(index.get(abc), is(nullValue()));
+
+        assertThat(index.put(abc, "1"), is(nullValue()));
+        assertThat(index.put(abc, "2"), is("1"));
+        assertThat(index.size(), is(1));
+        assertThat(index.get(abc), is("2"));
+        assertThat("Intermediate nodes aren't entries", index.containsKey(ab), is(false));
+        assertThat(index.get(ab), is(nullValue()));
+
+        assertThat(index.remove(ab), is(nullValue()));
+        assertThat(index.remove(abc), is("2"));
+        assertThat(index.remove(abc), is(nullValue()));
+        assertThat(index.size(), is(0));
+        assertThat(index.containsKey(null), is(false));
+    }
+
+    @Test
+    public void rootPathIsAnEntry() {
+        final PathIndex<String> index = new PathIndex<>();
+        index.put(root, "root");
+        assertThat(index.get(root), is("root"));
+        assertThat(index.size(), is(1));
+
+        final List<String> values = new ArrayList<>();
+        index.forEachAncestor(abc, (path, value) -> values.add(value));
+        assertThat(values.size(), is(1));
+
+        index.clear();
+        assertThat(index.get(root), is(nullValue()));
+        assertThat(index.size(), is(0));
+    }
+
+    @Test
+    public void ancestors() {
+        final PathIndex<String> index = new PathIndex<>();
+        index.put(a, "a");
+        index.put(abc, "abc");
+        index.put(abd, "abd");
+        index.put(x, "x");
+
+        final List<CloudnamePath> visited = new ArrayList<>();
+        index.forEachAncestor(abc, (path, value) -> visited.add(path));
+        assertThat(visited.size(), is(2));
+        assertThat("Ancestors are visited from the root", visited.get(0), is(a));
+        assertThat(visited.get(1), is(abc));
+
+        visited.clear();
+        index.forEachAncestor(new CloudnamePath(abd, "e"), (path, value) -> visited.add(path));
+        assertThat(visited.size(), is(2));
+        assertThat(visited, hasItems(a, abd));
+
+        visited.clear();
+        index.forEachAncestor(ab, (path, value) -> visited.add(path));
+        assertThat(visited.size(), is(1));
+
+        visited.clear();
+        index.forEachAncestor(new CloudnamePath(new String[] {"y"}),
+                (path, value) -> visited.add(path));
+        assertThat(visited.size(), is(0));
+    }
+
+    @Test
+    public void descendants() {
+        final PathIndex<String> index = new PathIndex<>();
+        index.put(a, "a");
+        index.put(abc, "abc");
+        index.put(abd, "abd");
+        index.put(x, "x");
+
+        final Set<CloudnamePath> visited = new HashSet<>();
+        index.forEachDescendant(ab, (path, value) -> visited.add(path));
+        assertThat(visited.size(), is(2));
+        assertThat(visited, hasItems(abc, abd));
+
+        visited.clear();
+        index.forEachDescendant(a, (path, value) -> visited.add(path));
+        assertThat(visited.size(), is(3));
+
+        visited.clear();
+        index.forEachDescendant(root, (path, value) -> visited.add(path));
+        assertThat(visited.size(), is(4));
+
+        visited.clear();
+        index.forEachDescendant(new CloudnamePath(x, "y"), (path, value) -> visited.add(path));
+        assertThat(visited.size(), is(0));
+    }
+
+    @Test
+    public void emptyNodesArePruned() {
+        final PathIndex<String> index = new PathIndex<>();
+        index.put(abc, "abc");
+        index.put(a, "a");
+        index.remove(abc);
+
+        final Set<CloudnamePath> visited = new HashSet<>();
+        index.forEach((path, value) -> visited.add(path));
+        assertThat(visited.size(), is(1));
+        assertThat(visited, hasItems(a));
+
+        // Re-adding after a prune works as expected
+        index.put(abd, "abd");
+        assertThat(index.get(abd), is("abd"));
+        assertThat(index.size(), is(2));
+    }
+
+    @Test
+    public void countDescendants() {
+        final PathIndex<String> index = new PathIndex<>();
+        index.put(abc, "abc");
+        index.put(abd, "abd");
+        index.put(ab, "ab");
+        index.put(x, "x");
+        index.put(abc, "replaced");
+        assertThat(index.countDescendants(root), is(4));
+        assertThat(index.countDescendants(a), is(3));
+        assertThat("The prefix itself is counted", index.countDescendants(ab), is(3));
+        assertThat(index.countDescendants(abc), is(1));
+        assertThat(index.countDescendants(new CloudnamePath(x, "y")), is(0));
+        assertThat(index.countDescendants(null), is(0));
+
+        index.remove(abc);
+        index.remove(abc);
+        assertThat(index.countDescendants(a), is(2));
+        index.remove(ab);
+        index.remove(abd);
+        assertThat(index.countDescendants(a), is(0));
+        assertThat(index.countDescendants(root), is(1));
+
+        index.clear();
+        assertThat(index.countDescendants(root), is(0));
+    }
+
+    @Test
+    public void computeIfAbsent() {
+        final PathIndex<List<String>> index = new PathIndex<>();
+        index.computeIfAbsent(ab, (path) -> new ArrayList<>()).add("one");
+        index.computeIfAbsent(ab, (path) -> new ArrayList<>()).add("two");
+        assertThat(index.get(ab).size(), is(2));
+        assertThat(index.size(), is(1));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void nullValuesAreNotAllowed() {
+        new PathIndex<String>().put(a, null);
+    }
+}
@@ -0,0 +1,224 @@
+package org.cloudname.core.coalescing;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the write coalescing decorator with a map-backed backend counting the writes.
+ */
+public class WriteCoalescingBackendTest {
+    private static final int MAX_WAIT_MS = 2000;
+
+    private final CloudnamePath leasePath = new CloudnamePath(new String[] {"a", "b"});
+
+    /**
+     * A backend keeping leases in a map and counting the writes.
+     */
+    private static class CountingBackend implements CloudnameBackend {
+        private final Map<CloudnamePath, String> leases = new ConcurrentHashMap<>();
+        private final AtomicInteger writes = new AtomicInteger(0);
+
+        @Override
+        public LeaseHandle createLease(
+                final LeaseType type, final CloudnamePath path, final String data) {
+            if (leases.putIfAbsent(path, data) != null) {
+                return null;
+            }
+            return new LeaseHandle() {
+                @Override
+                public boolean writeData(final String data) {
+                    return writeLeaseData(path, data);
+                }
+
+                @Override
+                public CloudnamePath getLeasePath() {
+                    return path;
+                }
+
+                @Override
+                public void close() throws Exception {
+                    removeLease(path);
+                }
+            };
+        }
+
+        @Override
+        public boolean writeLeaseData(final CloudnamePath path, final String data) {
+            writes.incrementAndGet();
+            return leases.replace(path, data) != null;
+        }
+
+        @Override
+        public String readLeaseData(final CloudnamePath path) {
+            return leases.get(path);
+        }
+
+        @Override
+        public boolean removeLease(final CloudnamePath path) {
+            return leases.remove(path) != null;
+        }
+
+        @Override
+        public void addLeaseCollectionListener(
+                final CloudnamePath pathToObserve, final LeaseListener listener) {
+        }
+
+        @Override
+        public void addLeaseListener(
+                final CloudnamePath pathToObserve, final LeaseListener listener) {
+        }
+
+        @Override
+        public void removeLeaseListener(final LeaseListener listener) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final CountingBackend mapBackend = new CountingBackend();
+
+    private void waitForData(final String expected) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (!expected.equals(mapBackend.readLeaseData(leasePath))
+                && System.currentTimeMillis() - start < MAX_WAIT_MS) {
+            Thread.sleep(5);
+        }
+        assertThat(mapBackend.readLeaseData(leasePath), is(expected));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullBackend() {
+        new WriteCoalescingBackend(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stalenessLessThanInterval() {
+        new WriteCoalescingBackend(mapBackend, 100, 10);
+    }
+
+    @Test
+    public void rapidWritesAreCoalesced() throws Exception {
+        try (final WriteCoalescingBackend backend
+                     = new WriteCoalescingBackend(mapBackend, 50, 1000)) {
+            final LeaseHandle handle = backend.createLease(LeaseType.TEMPORARY, leasePath, "0");
+            assertThat(handle, is(notNullValue()));
+            for (int i = 1; i <= 100; i++) {
+                assertThat(handle.writeData(Integer.toString(i)), is(true));
+            }
+            assertThat("First write goes directly to the backend", mapBackend.writes.get(), is(1));
+            assertThat(mapBackend.readLeaseData(leasePath), is("1"));
+            assertThat("Reads return the held data", backend.readLeaseData(leasePath), is("100"));
+            assertThat(backend.getHeldWrites(), is(1));
+
+            waitForData("100");
+            assertThat(mapBackend.writes.get(), is(2));
+            assertThat(backend.getCoalescedWrites(), is(98L));
+            assertThat(backend.getHeldWrites(), is(0));
+        }
+    }
+
+    @Test
+    public void heldWritesAreWrittenWithinMaxStaleness() throws Exception {
+        try (final WriteCoalescingBackend backend
+                     = new WriteCoalescingBackend(mapBackend, 50, 100)) {
+            backend.createLease(LeaseType.PERMANENT, leasePath, "0");
+            final long start = System.currentTimeMillis();
+            int counter = 0;
+            while (System.currentTimeMillis() - start < 500) {
+                assertThat(backend.writeLeaseData(leasePath, Integer.toString(counter++)),
+                        is(true));
+                Thread.sleep(5);
+            }
+            assertTrue("Expected several writes while the lease was busy but got "
+                    + mapBackend.writes.get(), mapBackend.writes.get() >= 3);
+            waitForData(Integer.toString(counter - 1));
+        }
+    }
+
+    @Test
+    public void closeWritesHeldData() throws Exception {
+        final WriteCoalescingBackend backend = new WriteCoalescingBackend(mapBackend, 10000, 10000);
+        backend.createLease(LeaseType.PERMANENT, leasePath, "0");
+        assertThat(backend.writeLeaseData(leasePath, "1"), is(true));
+        assertThat(backend.writeLeaseData(leasePath, "2"), is(true));
+        assertThat(mapBackend.readLeaseData(leasePath), is("1"));
+        backend.close();
+        assertThat(mapBackend.readLeaseData(leasePath), is("2"));
+    }
+
+    @Test
+    public void removedLeasesDiscardHeldData() throws Exception {
+        try (final WriteCoalescingBackend backend
+                     = new WriteCoalescingBackend(mapBackend, 10000, 10000)) {
+            final LeaseHandle handle = backend.createLease(LeaseType.TEMPORARY, leasePath, "0");
+            assertThat(handle.writeData("1"), is(true));
+            assertThat(handle.writeData("2"), is(true));
+            handle.close();
+            assertThat(backend.getHeldWrites(), is(0));
+            assertThat(backend.readLeaseData(leasePath), is(nullValue()));
+
+            assertThat("Writes to removed leases fail",
+                    backend.writeLeaseData(leasePath, "3"), is(false));
+        }
+    }
+
+    @Test
+    public void heldWritesWaitForWritesInFlight() throws Exception {
+        final CompletableFuture<Void> release = new CompletableFuture<>();
+        final CountingBackend slowBackend = new CountingBackend() {
+            @Override
+            public CompletableFuture<Boolean> writeLeaseDataAsync(
+                    final CloudnamePath path, final String data) {
+                return release.thenApplyAsync((ignored) -> writeLeaseData(path, data));
+            }
+        };
+        try (final WriteCoalescingBackend backend
+                     = new WriteCoalescingBackend(slowBackend, 10, 20)) {
+            backend.createLease(LeaseType.PERMANENT, leasePath, "0");
+            final CompletableFuture<Boolean> first = backend.writeLeaseDataAsync(leasePath, "1");
+            assertThat(backend.writeLeaseData(leasePath, "2"), is(true));
+
+            Thread.sleep(100);
+            assertThat("Held data waits for the write in flight",
+                    slowBackend.readLeaseData(leasePath), is("0"));
+            assertThat(backend.getHeldWrites(), is(1));
+
+            release.complete(null);
+            assertThat(first.get(), is(true));
+            final long start = System.currentTimeMillis();
+            while (!"2".equals(slowBackend.readLeaseData(leasePath))
+                    && System.currentTimeMillis() - start < MAX_WAIT_MS) {
+                Thread.sleep(5);
+            }
+            assertThat(slowBackend.readLeaseData(leasePath), is("2"));
+            assertThat(slowBackend.writes.get(), is(2));
+        }
+    }
+
+    @Test
+    public void failedWritesAreNotHeld() throws Exception {
+        try (final WriteCoalescingBackend backend
+                     = new WriteCoalescingBackend(mapBackend, 10000, 10000)) {
+            assertThat(backend.writeLeaseData(leasePath, "1"), is(false));
+            assertThat(backend.writeLeaseData(leasePath, "2"), is(false));
+            assertThat(backend.getHeldWrites(), is(0));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.cloudname.core.delivery;
+
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the listener queues with an executor that runs the delivery tasks on demand.
+ */
+public class ListenerQueueTest {
+    private final CloudnamePath pathA = new CloudnamePath(new String[] {"a"});
+    private final CloudnamePath pathB = new CloudnamePath(new String[] {"b"});
+    private final CloudnamePath pathC = new CloudnamePath(new String[] {"c"});
+
+    private final AtomicLong dropped = new AtomicLong(0L);
+    private final AtomicLong coalesced = new AtomicLong(0L);
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor executor = tasks::add;
+
+    /**
+     * Listener recording events as strings.
+     */
+    private static class RecordingListener implements LeaseListener {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void leaseCreated(final CloudnamePath path, final String data) {
+            events.add("created " + path.join('/') + " " + data);
+        }
+
+        @Override
+        public void leaseRemoved(final CloudnamePath path) {
+            events.add("removed " + path.join('/'));
+        }
+
+        @Override
+        public void dataChanged(final CloudnamePath path, final String data) {
+            events.add("changed " + path.join('/') + " " + data);
+        }
+    }
+
+    private final RecordingListener listener = new RecordingListener();
+
+    private ListenerQueue createQueue(final int capacity, final OverflowPolicy policy) {
+        return new ListenerQueue(listener, executor, capacity, policy, dropped, coalesced);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void eventsAreDeliveredInOrder() {
+        final ListenerQueue queue = createQueue(10, OverflowPolicy.DROP);
+        queue.leaseCreated(pathA, "1");
+        queue.leaseCreated(pathB, "2");
+        queue.dataChanged(pathA, "3");
+        queue.leaseRemoved(pathB);
+        assertThat("Expected a single delivery task", tasks.size(), is(1));
+        assertThat(queue.size(), is(4));
+        assertThat(listener.events.size(), is(0));
+
+        runTasks();
+        assertThat(listener.events, is(Arrays.asList(
+                "created a 1", "created b 2", "changed a 3", "removed b")));
+        assertThat(queue.size(), is(0));
+
+        queue.dataChanged(pathA, "4");
+        assertThat("Expected a new task once the queue is drained", tasks.size(), is(1));
+        runTasks();
+        assertThat(listener.events.get(4), is("changed a 4"));
+    }
+
+    @Test
+    public void fullQueueDropsEvents() {
+        final ListenerQueue queue = createQueue(2, OverflowPolicy.DROP);
+        queue.leaseCreated(pathA, "1");
+        queue.dataChanged(pathA, "2");
+        queue.dataChanged(pathA, "3");
+        queue.leaseCreated(pathB, "4");
+        assertThat(dropped.get(), is(2L));
+
+        runTasks();
+        assertThat(listener.events, is(Arrays.asList("created a 1", "changed a 2")));
+    }
+
+    @Test
+    public void fullQueueCoalescesEvents() {
+        final ListenerQueue queue = createQueue(2, OverflowPolicy.COALESCE);
+        queue.leaseCreated(pathA, "1");
+        queue.dataChanged(pathB, "2");
+        queue.dataChanged(pathA, "3");
+        queue.dataChanged(pathB, "4");
+        queue.leaseRemoved(pathB);
+        assertThat(queue.size(), is(2));
+        assertThat(coalesced.get(), is(3L));
+        assertThat(dropped.get(), is(0L));
+
+        runTasks();
+        assertThat(listener.events, is(Arrays.asList("created a 3", "removed b")));
+    }
+
+    @Test
+    public void coalescedCreateAndRemoveCancelOut() {
+        final ListenerQueue queue = createQueue(2, OverflowPolicy.COALESCE);
+        queue.leaseRemoved(pathA);
+        queue.leaseCreated(pathB, "1");
+        queue.leaseCreated(pathA, "2");
+        assertThat("Removal followed by creation is a change", queue.size(), is(2));
+        queue.leaseRemoved(pathB);
+        assertThat(queue.size(), is(1));
+
+        queue.leaseCreated(pathB, "3");
+        queue.dataChanged(pathA, "4");
+        queue.leaseRemoved(pathA);
+        assertThat(queue.size(), is(2));
+
+        // Leases without queued events are added even if the queue is full
+        queue.leaseCreated(pathC, "5");
+        assertThat(queue.size(), is(3));
+
+        runTasks();
+        assertThat(listener.events, is(Arrays.asList("removed a", "created b 3", "created c 5")));
+    }
+
+    @Test
+    public void snapshotsAreDeliveredInOrder() {
+        final ListenerQueue queue = createQueue(2, OverflowPolicy.COALESCE);
+        final Map<CloudnamePath, byte[]> snapshot = new LinkedHashMap<>();
+        snapshot.put(pathA, LeaseData.encode("1"));
+        snapshot.put(pathB, LeaseData.encode("2"));
+        queue.leaseSnapshot(snapshot);
+        queue.dataChanged(pathA, "3");
+        queue.dataChanged(pathA, "4");
+        assertThat("Snapshot is never coalesced", queue.size(), is(2));
+
+        runTasks();
+        assertThat(listener.events, is(Arrays.asList(
+                "created a 1", "created b 2", "changed a 4")));
+    }
+
+    @Test
+    public void closedQueueDiscardsEvents() {
+        final ListenerQueue queue = createQueue(10, OverflowPolicy.COALESCE);
+        queue.leaseCreated(pathA, "1");
+        queue.close();
+        queue.leaseCreated(pathB, "2");
+        runTasks();
+        assertThat(listener.events.size(), is(0));
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void listenerExceptionsDontStopDelivery() {
+        final List<String> events = new ArrayList<>();
+        final ListenerQueue queue = new ListenerQueue(new LeaseListener() {
+            @Override
+            public void leaseCreated(final CloudnamePath path, final String data) {
+                events.add(data);
+                throw new RuntimeException("Listener failed");
+            }
+
+            @Override
+            public void leaseRemoved(final CloudnamePath path) {
+            }
+
+            @Override
+            public void dataChanged(final CloudnamePath path, final String data) {
+            }
+        }, executor, 10, OverflowPolicy.COALESCE, dropped, coalesced);
+        queue.leaseCreated(pathA, "1");
+        queue.leaseCreated(pathB, "2");
+        runTasks();
+        assertThat(events, is(Arrays.asList("1", "2")));
+    }
+
+    @Test
+    public void longQueuesAreDeliveredInBatches() {
+        final ListenerQueue queue = createQueue(1000, OverflowPolicy.DROP);
+        for (int i = 0; i < 100; i++) {
+            queue.dataChanged(pathA, Integer.toString(i));
+        }
+        tasks.remove(0).run();
+        assertThat("Expected task to be resubmitted", tasks.size(), is(1));
+        assertThat(listener.events.size() < 100, is(true));
+        runTasks();
+        assertThat(listener.events.size(), is(100));
+        assertThat(listener.events.get(99), is("changed a 99"));
+    }
+}
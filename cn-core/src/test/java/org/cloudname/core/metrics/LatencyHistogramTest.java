@@ -0,0 +1,108 @@
+package org.cloudname.core.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the latency histogram.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverAllValues() {
+        long expectedLowerBound = 0;
+        int index = 0;
+        while (LatencyHistogram.bucketUpperBound(index) != Long.MAX_VALUE) {
+            assertThat(LatencyHistogram.bucketLowerBound(index), is(expectedLowerBound));
+            final long upperBound = LatencyHistogram.bucketUpperBound(index);
+            assertThat(upperBound, is(greaterThanOrEqualTo(expectedLowerBound)));
+            assertThat(LatencyHistogram.bucketIndex(expectedLowerBound), is(index));
+            assertThat(LatencyHistogram.bucketIndex(upperBound), is(index));
+            expectedLowerBound = upperBound + 1;
+            index++;
+        }
+        assertThat(LatencyHistogram.bucketIndex(Long.MAX_VALUE), is(index));
+    }
+
+    @Test
+    public void bucketsAreNarrow() {
+        for (long value = 8; value > 0 && value < Long.MAX_VALUE / 2; value = value * 3 + 1) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            final long width = LatencyHistogram.bucketUpperBound(index)
+                    - LatencyHistogram.bucketLowerBound(index) + 1;
+            assertThat(width * 8, is(lessThanOrEqualTo(value)));
+        }
+    }
+
+    @Test
+    public void emptyHistogram() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertThat(snapshot.getCount(), is(0L));
+        assertThat(snapshot.getSum(), is(0L));
+        assertThat(snapshot.getMax(), is(0L));
+        assertThat(snapshot.getMean(), is(0.0));
+        assertThat(snapshot.getPercentile(0.99), is(0L));
+    }
+
+    @Test
+    public void percentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-1L);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1001L));
+        assertThat(snapshot.getMax(), is(1000000L));
+        assertThat(snapshot.getSum(), is(500500000L));
+        assertThat(snapshot.getPercentile(0.0), is(0L));
+        assertThat(snapshot.getPercentile(1.0), is(1000000L));
+
+        final long median = snapshot.getPercentile(0.5);
+        assertThat(median, is(greaterThanOrEqualTo(500000L)));
+        assertThat(median, is(lessThanOrEqualTo(562500L)));
+
+        final long p99 = snapshot.getPercentile(0.99);
+        assertThat(p99, is(greaterThanOrEqualTo(990000L)));
+        assertThat(p99, is(lessThanOrEqualTo(1000000L)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentile() {
+        new LatencyHistogram().snapshot().getPercentile(1.5);
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        final int numThreads = 8;
+        final int numValues = 10000;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            executor.submit(() -> {
+                startLatch.await();
+                for (int j = 0; j < numValues; j++) {
+                    histogram.record(j);
+                }
+                return null;
+            });
+        }
+        startLatch.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is((long) numThreads * numValues));
+        assertThat(snapshot.getMax(), is(numValues - 1L));
+        assertThat(snapshot.getPercentile(1.0), is(numValues - 1L));
+    }
+}
@@ -0,0 +1,195 @@
+package org.cloudname.core.metrics;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the metrics decorator with a trivial map-backed backend.
+ */
+public class MetricsBackendTest {
+    private final CloudnamePath leasePath = new CloudnamePath(new String[] {"a", "b"});
+
+    /**
+     * A backend keeping leases in a map and invoking listeners for every lease that is created.
+     */
+    private static class MapBackend implements CloudnameBackend {
+        private final Map<CloudnamePath, String> leases = new ConcurrentHashMap<>();
+        private final List<LeaseListener> listeners = new ArrayList<>();
+
+        @Override
+        public LeaseHandle createLease(
+                final LeaseType type, final CloudnamePath path, final String data) {
+            if (leases.putIfAbsent(path, data) != null) {
+                return null;
+            }
+            for (final LeaseListener listener : listeners) {
+                listener.leaseCreated(path, data);
+            }
+            return new LeaseHandle() {
+                @Override
+                public boolean writeData(final String data) {
+                    return writeLeaseData(path, data);
+                }
+
+                @Override
+                public CloudnamePath getLeasePath() {
+                    return path;
+                }
+
+                @Override
+                public void close() throws Exception {
+                    removeLease(path);
+                }
+            };
+        }
+
+        @Override
+        public boolean writeLeaseData(final CloudnamePath path, final String data) {
+            return leases.replace(path, data) != null;
+        }
+
+        @Override
+        public String readLeaseData(final CloudnamePath path) {
+            return leases.get(path);
+        }
+
+        @Override
+        public boolean removeLease(final CloudnamePath path) {
+            return leases.remove(path) != null;
+        }
+
+        @Override
+        public void addLeaseCollectionListener(
+                final CloudnamePath pathToObserve, final LeaseListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void addLeaseListener(
+                final CloudnamePath pathToObserve, final LeaseListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeLeaseListener(final LeaseListener listener) {
+            listeners.removeIf(listener::equals);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Exporter keeping track of the backends.
+     */
+    private static class ListExporter implements MetricsExporter {
+        private final List<BackendMetrics> backends = new ArrayList<>();
+
+        @Override
+        public void addBackend(final BackendMetrics metrics) {
+            backends.add(metrics);
+        }
+
+        @Override
+        public void removeBackend(final BackendMetrics metrics) {
+            backends.remove(metrics);
+        }
+    }
+
+    private final LeaseListener emptyListener = new LeaseListener() {
+        @Override
+        public void leaseCreated(final CloudnamePath path, final String data) {
+        }
+
+        @Override
+        public void leaseRemoved(final CloudnamePath path) {
+        }
+
+        @Override
+        public void dataChanged(final CloudnamePath path, final String data) {
+        }
+    };
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullBackend() {
+        new MetricsBackend("test", null, Collections.emptyList());
+    }
+
+    @Test
+    public void exportersSeeBackend() throws Exception {
+        final ListExporter exporter = new ListExporter();
+        final MetricsBackend backend
+                = new MetricsBackend("map://", new MapBackend(), Collections.singleton(exporter));
+        assertThat(exporter.backends.size(), is(1));
+        assertThat(exporter.backends.get(0).getName(), is("map://"));
+
+        backend.close();
+        assertThat(exporter.backends.size(), is(0));
+    }
+
+    @Test
+    public void operationsAreRecorded() throws Exception {
+        final MetricsBackend backend
+                = new MetricsBackend("map://", new MapBackend(), Collections.emptyList());
+
+        final LeaseHandle handle = backend.createLease(LeaseType.TEMPORARY, leasePath, "data");
+        assertThat(handle, is(notNullValue()));
+        assertThat(backend.getLiveLeases(), is(1));
+
+        assertThat(backend.writeLeaseData(leasePath, "data2"), is(true));
+        assertThat(handle.writeData("data3"), is(true));
+        assertThat(backend.readLeaseData(leasePath), is("data3"));
+        assertThat(backend.readLeaseDataAsync(leasePath).get(), is("data3"));
+
+        assertThat(backend.getLatency(BackendMetrics.Operation.CREATE_LEASE).getCount(), is(1L));
+        assertThat(backend.getLatency(BackendMetrics.Operation.WRITE_LEASE_DATA).getCount(),
+                is(2L));
+        assertThat(backend.getLatency(BackendMetrics.Operation.READ_LEASE_DATA).getCount(),
+                is(2L));
+
+        handle.close();
+        assertThat(backend.getLiveLeases(), is(0));
+
+        assertThat(backend.createLease(LeaseType.TEMPORARY, leasePath, "data"),
+                is(notNullValue()));
+        assertThat(backend.getLiveLeases(), is(1));
+        assertThat(backend.removeLease(leasePath), is(true));
+        assertThat(backend.removeLease(leasePath), is(false));
+        assertThat(backend.getLiveLeases(), is(0));
+        assertThat(backend.getLatency(BackendMetrics.Operation.REMOVE_LEASE).getCount(), is(2L));
+    }
+
+    @Test
+    public void listenersAreTimed() throws Exception {
+        final MetricsBackend backend
+                = new MetricsBackend("map://", new MapBackend(), Collections.emptyList());
+
+        backend.addLeaseCollectionListener(leasePath.getParent(), emptyListener);
+        backend.addLeaseListener(leasePath, emptyListener);
+        assertThat(backend.getLiveWatches(), is(2));
+
+        backend.createLease(LeaseType.PERMANENT, leasePath, "data");
+        assertThat(backend.getListenerLatency().getCount(), is(2L));
+
+        backend.removeLeaseListener(emptyListener);
+        assertThat(backend.getLiveWatches(), is(0));
+
+        backend.createLease(LeaseType.PERMANENT, new CloudnamePath(leasePath, "c"), "data");
+        assertThat(backend.getListenerLatency().getCount(), is(2L));
+    }
+}
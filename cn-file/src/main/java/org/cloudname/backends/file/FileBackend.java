@@ -0,0 +1,758 @@
+package org.cloudname.backends.file;
+
+import org.cloudname.backends.memory.MemoryBackend;
+import org.cloudname.backends.memory.MemoryLeaseHandle;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseCountListener;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent backend for a single host. Permanent leases are written to a write-ahead log
+ * in a directory and survive restarts; temporary leases only live in memory and disappear with
+ * the process. Leases and listeners are handled by a {@link MemoryBackend} so the semantics
+ * are the same as for the memory backend.
+ *
+ * <p>Changes to permanent leases return once the change is on disk. Concurrent changes share
+ * a single fsync (see {@link WriteAheadLog}). The changes are made to the leases in memory, and
+ * the listeners are notified, only when they are on disk so a change that fails is never seen
+ * by anyone. Listeners are invoked after the backend's lock is released so a slow listener
+ * doesn't hold up other writers; each listener gets its events in the order they occurred.
+ * The log is compacted into a snapshot every
+ * {@code snapshotInterval} changes so the startup time is bounded by the number of leases
+ * rather than the number of changes.
+ *
+ * <p>Only one backend can use a directory at a time.
+ */
+public class FileBackend implements CloudnameBackend {
+    private static final Logger LOG = Logger.getLogger(FileBackend.class.getName());
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 10000;
+
+    private final MemoryBackend leases = new MemoryBackend();
+    // The permanent leases, including the changes that aren't on disk yet. Used to check
+    // changes and to write snapshots. Guarded by the sync object.
+    private final Map<CloudnamePath, byte[]> permanentLeases = new HashMap<>();
+    // Changes in the log that aren't on disk yet, in log order. Guarded by the sync object.
+    private final Deque<PendingChange> pendingChanges = new ArrayDeque<>();
+    private final WriteAheadLog log;
+    private final int snapshotInterval;
+    private final AtomicBoolean snapshotInProgress = new AtomicBoolean(false);
+    private final Object syncObject = new Object();
+
+    // The listeners registered with the memory backend, keyed on the client's listener
+    private final Map<LeaseListener, QueuedLeaseListener> leaseListeners
+            = new ConcurrentHashMap<>();
+    private final Map<LeaseCountListener, QueuedCountListener> countListeners
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Handle for permanent leases. There's nothing to clean up when the handle is closed.
+     */
+    private class PermanentLeaseHandle implements LeaseHandle {
+        private final CloudnamePath path;
+
+        PermanentLeaseHandle(final CloudnamePath path) {
+            this.path = path;
+        }
+
+        @Override
+        public boolean writeData(final String data) {
+            return writeLeaseData(path, data);
+        }
+
+        @Override
+        public boolean writeBinaryData(final byte[] data) {
+            return writeBinaryLeaseData(path, data);
+        }
+
+        @Override
+        public CloudnamePath getLeasePath() {
+            return path;
+        }
+
+        @Override
+        public void close() throws Exception {
+            // nothing to do
+        }
+    }
+
+    /**
+     * A change to a permanent lease waiting for its log record to be written to disk.
+     */
+    private static class PendingChange {
+        private final long sequence;
+        private final LogRecord record;
+
+        PendingChange(final long sequence, final LogRecord record) {
+            this.sequence = sequence;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Pending events for a single listener. The memory backend invokes its listeners while the
+     * sync object is held; the events are queued there and delivered (in order) by whichever
+     * thread manages to grab the queue first once the lock is released.
+     */
+    private static class EventQueue {
+        private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+
+        void add(final Runnable event) {
+            events.add(event);
+        }
+
+        /**
+         * Deliver pending events. If another thread is delivering events for the listener it
+         * will pick up the new events as well. This also applies to the current thread when a
+         * listener modifies the backend from within a callback.
+         */
+        void drain() {
+            while (!events.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    Runnable event = events.poll();
+                    while (event != null) {
+                        invoke(event);
+                        event = events.poll();
+                    }
+                } finally {
+                    draining.set(false);
+                }
+            }
+        }
+
+        private void invoke(final Runnable event) {
+            try {
+                event.run();
+            } catch (final RuntimeException ex) {
+                LOG.log(Level.WARNING, "Got exception when invoking listener", ex);
+            }
+        }
+    }
+
+    /**
+     * Lease listener registered with the memory backend. Queues the events for the client's
+     * listener.
+     */
+    private static class QueuedLeaseListener extends EventQueue implements LeaseListener {
+        private final LeaseListener listener;
+
+        QueuedLeaseListener(final LeaseListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void leaseCreated(final CloudnamePath path, final String data) {
+            add(() -> listener.leaseCreated(path, data));
+        }
+
+        @Override
+        public void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+            add(() -> listener.binaryLeaseCreated(path, data));
+        }
+
+        @Override
+        public void leaseSnapshot(final Map<CloudnamePath, byte[]> snapshot) {
+            add(() -> listener.leaseSnapshot(snapshot));
+        }
+
+        @Override
+        public void leaseRemoved(final CloudnamePath path) {
+            add(() -> listener.leaseRemoved(path));
+        }
+
+        @Override
+        public void dataChanged(final CloudnamePath path, final String data) {
+            add(() -> listener.dataChanged(path, data));
+        }
+
+        @Override
+        public void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+            add(() -> listener.binaryDataChanged(path, data));
+        }
+    }
+
+    /**
+     * Count listener registered with the memory backend. Queues the counts for the client's
+     * listener.
+     */
+    private static class QueuedCountListener extends EventQueue implements LeaseCountListener {
+        private final LeaseCountListener listener;
+
+        QueuedCountListener(final LeaseCountListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void leaseCountChanged(final CloudnamePath prefix, final int count) {
+            add(() -> listener.leaseCountChanged(prefix, count));
+        }
+    }
+
+    /**
+     * Opens the write-ahead log. Tests use this to make the log fail.
+     */
+    /* package-private */ interface LogOpener {
+        WriteAheadLog open(Path directory, Consumer<LogRecord> replay) throws IOException;
+    }
+
+    /**
+     * Create a backend storing its files in a directory. The directory is created if it
+     * doesn't exist.
+     *
+     * @param directory the directory for the log and snapshot files
+     * @throws IllegalArgumentException if the directory is null
+     * @throws IllegalStateException if the files can't be read
+     */
+    public FileBackend(final Path directory) {
+        this(directory, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * Create a backend storing its files in a directory. The directory is created if it
+     * doesn't exist.
+     *
+     * @param directory the directory for the log and snapshot files
+     * @param snapshotInterval the number of changes between snapshots
+     * @throws IllegalArgumentException if the directory is null or the interval isn't positive
+     * @throws IllegalStateException if the files can't be read
+     */
+    public FileBackend(final Path directory, final int snapshotInterval) {
+        this(directory, snapshotInterval, WriteAheadLog::new);
+    }
+
+    /**
+     * Create a backend with a custom log.
+     */
+    /* package-private */ FileBackend(
+            final Path directory, final int snapshotInterval, final LogOpener logOpener) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory can not be null");
+        }
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+        this.snapshotInterval = snapshotInterval;
+        try {
+            Files.createDirectories(directory);
+            log = logOpener.open(directory, this::replay);
+        } catch (final IOException ex) {
+            throw new IllegalStateException("Could not read leases from " + directory, ex);
+        }
+        permanentLeases.forEach(
+                (path, data) -> leases.createBinaryLease(LeaseType.PERMANENT, path, data));
+        LOG.info("Read " + permanentLeases.size() + " permanent leases from " + directory);
+    }
+
+    /**
+     * Apply a record from the log when starting up.
+     */
+    private void replay(final LogRecord record) {
+        switch (record.getType()) {
+            case CREATE:
+                permanentLeases.put(record.getPath(), record.getData());
+                break;
+            case WRITE:
+                permanentLeases.replace(record.getPath(), record.getData());
+                break;
+            case REMOVE:
+                permanentLeases.remove(record.getPath());
+                break;
+            default:
+                LOG.warning("Don't know how to replay record of type " + record.getType());
+                break;
+        }
+    }
+
+    /**
+     * Append a record to the log and queue the change until it is on disk. Must be called while
+     * holding the sync object so the records are in the same order as the changes. The caller
+     * updates {@link #permanentLeases}.
+     *
+     * @return the sequence number of the record or -1 if the log has failed
+     */
+    private long append(final LogRecord.Type type, final CloudnamePath path, final byte[] data) {
+        final LogRecord record = new LogRecord(type, path, data);
+        try {
+            final long sequence = log.append(record);
+            pendingChanges.add(new PendingChange(sequence, record));
+            return sequence;
+        } catch (final IOException ex) {
+            LOG.log(Level.SEVERE, "Could not write " + type + " for lease " + path, ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Wait for the records to be written to disk, make the changes in memory and write a
+     * snapshot if it is time for one. The changes are discarded if they can't be written.
+     *
+     * @return true if the records are on disk
+     */
+    private boolean commit(final long sequence) {
+        try {
+            log.sync(sequence);
+        } catch (final IOException ex) {
+            LOG.log(Level.SEVERE, "Could not write lease changes to disk. The changes are"
+                    + " discarded", ex);
+            discardPendingChanges();
+            deliverEvents();
+            return false;
+        }
+        applyPendingChanges(sequence);
+        deliverEvents();
+        if (log.recordsSinceSnapshot() >= snapshotInterval) {
+            snapshot();
+        }
+        return true;
+    }
+
+    /**
+     * Make the pending changes up to and including a sequence number in memory. The changes
+     * are made in log order even if the threads waiting for them wake up in another order.
+     */
+    private void applyPendingChanges(final long sequence) {
+        synchronized (syncObject) {
+            while (!pendingChanges.isEmpty() && pendingChanges.peek().sequence <= sequence) {
+                final LogRecord record = pendingChanges.poll().record;
+                switch (record.getType()) {
+                    case CREATE:
+                        leases.createBinaryLease(
+                                LeaseType.PERMANENT, record.getPath(), record.getData());
+                        break;
+                    case WRITE:
+                        leases.writeBinaryLeaseData(record.getPath(), record.getData());
+                        break;
+                    case REMOVE:
+                        leases.removeLease(record.getPath());
+                        break;
+                    default:
+                        LOG.warning("Don't know how to apply record of type " + record.getType());
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deliver the events queued for the listeners. Must be called without holding the sync
+     * object after every change to the leases in memory.
+     */
+    private void deliverEvents() {
+        leaseListeners.values().forEach(EventQueue::drain);
+        countListeners.values().forEach(EventQueue::drain);
+    }
+
+    /**
+     * Drop the changes that didn't make it to disk after the log has failed. The permanent
+     * leases are reset to the leases in memory.
+     */
+    private void discardPendingChanges() {
+        synchronized (syncObject) {
+            applyPendingChanges(log.durableSequence());
+            for (final PendingChange change : pendingChanges) {
+                final CloudnamePath path = change.record.getPath();
+                final byte[] data = leases.readBinaryLeaseData(path);
+                if (data == null) {
+                    permanentLeases.remove(path);
+                } else {
+                    permanentLeases.put(path, data);
+                }
+            }
+            pendingChanges.clear();
+        }
+    }
+
+    /**
+     * Check if there's a change to a lease that isn't on disk yet. Must be called while holding
+     * the sync object.
+     */
+    private boolean hasPendingChange(final CloudnamePath path) {
+        for (final PendingChange change : pendingChanges) {
+            if (change.record.getPath().equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write a snapshot of the permanent leases and remove the log records it replaces. This is
+     * done automatically but can be triggered manually, f.e. before a backup.
+     *
+     * @return true if the snapshot is written
+     */
+    public boolean snapshot() {
+        if (!snapshotInProgress.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            final List<LogRecord> records;
+            final long generation;
+            synchronized (syncObject) {
+                records = new ArrayList<>(permanentLeases.size());
+                permanentLeases.forEach((path, data) ->
+                        records.add(new LogRecord(LogRecord.Type.CREATE, path, data)));
+                generation = log.rollover();
+            }
+            log.writeSnapshot(generation, records);
+            return true;
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Could not write snapshot", ex);
+            return false;
+        } finally {
+            snapshotInProgress.set(false);
+        }
+    }
+
+    @Override
+    public LeaseHandle createLease(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return createBinaryLease(type, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        if (type == null || path == null || data == null) {
+            return null;
+        }
+        if (type == LeaseType.TEMPORARY) {
+            final boolean created;
+            synchronized (syncObject) {
+                created = !permanentLeases.containsKey(path)
+                        && leases.createBinaryLease(type, path, data) != null;
+            }
+            deliverEvents();
+            return (created ? new MemoryLeaseHandle(this, path) : null);
+        }
+        final long sequence;
+        synchronized (syncObject) {
+            if (permanentLeases.containsKey(path) || leases.readBinaryLeaseData(path) != null) {
+                return null;
+            }
+            sequence = append(LogRecord.Type.CREATE, path, data);
+            if (sequence < 0) {
+                return null;
+            }
+            permanentLeases.put(path, data);
+        }
+        if (!commit(sequence)) {
+            return null;
+        }
+        return new PermanentLeaseHandle(path);
+    }
+
+    @Override
+    public boolean removeLease(final CloudnamePath path) {
+        if (path == null) {
+            return false;
+        }
+        long sequence = 0;
+        boolean removed = false;
+        synchronized (syncObject) {
+            if (permanentLeases.containsKey(path)) {
+                sequence = append(LogRecord.Type.REMOVE, path, null);
+                if (sequence < 0) {
+                    return false;
+                }
+                permanentLeases.remove(path);
+            } else {
+                removed = leases.removeLease(path);
+            }
+        }
+        if (sequence == 0) {
+            deliverEvents();
+            return removed;
+        }
+        return commit(sequence);
+    }
+
+    @Override
+    public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        return writeLeaseData(path, LeaseData.encode(data), null);
+    }
+
+    /**
+     * Write the lease data if the version is unchanged. Versions aren't persisted; they are
+     * only valid until the backend is restarted. Writes to a lease with a change on its way to
+     * disk fail since the version of that change isn't known yet.
+     */
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        return writeLeaseData(path, LeaseData.encode(data), Long.valueOf(expectedVersion));
+    }
+
+    /**
+     * Write the lease data, optionally checking the version first.
+     *
+     * @param expectedVersion the version the lease must have or null to write unconditionally
+     */
+    private boolean writeLeaseData(
+            final CloudnamePath path, final byte[] data, final Long expectedVersion) {
+        if (path == null || data == null) {
+            return false;
+        }
+        long sequence = 0;
+        boolean written = false;
+        synchronized (syncObject) {
+            if (expectedVersion != null) {
+                if (hasPendingChange(path)) {
+                    return false;
+                }
+                final VersionedData current
+                        = leases.readVersionedLeaseData(path, ReadConsistency.LINEARIZABLE);
+                if (current == null || current.getVersion() != expectedVersion) {
+                    return false;
+                }
+            }
+            if (permanentLeases.containsKey(path)) {
+                sequence = append(LogRecord.Type.WRITE, path, data);
+                if (sequence < 0) {
+                    return false;
+                }
+                permanentLeases.put(path, data);
+            } else {
+                written = leases.writeBinaryLeaseData(path, data);
+            }
+        }
+        if (sequence == 0) {
+            deliverEvents();
+            return written;
+        }
+        return commit(sequence);
+    }
+
+    /**
+     * Write data to several leases. The changes to permanent leases share a single fsync.
+     */
+    @Override
+    public Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (leaseData == null) {
+            return ret;
+        }
+        long sequence = 0;
+        final List<CloudnamePath> writtenPermanent = new ArrayList<>();
+        synchronized (syncObject) {
+            for (final Map.Entry<CloudnamePath, String> entry : leaseData.entrySet()) {
+                final CloudnamePath path = entry.getKey();
+                final byte[] data = LeaseData.encode(entry.getValue());
+                if (path == null || data == null) {
+                    ret.put(path, false);
+                } else if (!permanentLeases.containsKey(path)) {
+                    ret.put(path, leases.writeBinaryLeaseData(path, data));
+                } else {
+                    final long recordSequence = append(LogRecord.Type.WRITE, path, data);
+                    if (recordSequence > 0) {
+                        sequence = recordSequence;
+                        permanentLeases.put(path, data);
+                        writtenPermanent.add(path);
+                    }
+                    ret.put(path, recordSequence > 0);
+                }
+            }
+        }
+        deliverEvents();
+        if (sequence > 0 && !commit(sequence)) {
+            writtenPermanent.forEach((path) -> ret.put(path, false));
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        return writeLeaseData(path, data, null);
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path) {
+        return leases.readLeaseData(path);
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        return leases.readBinaryLeaseData(path);
+    }
+
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return leases.readVersionedLeaseData(path, consistency);
+    }
+
+    /**
+     * Create several leases. The permanent leases share a single fsync.
+     */
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leaseData) {
+        if (type != LeaseType.PERMANENT || leaseData == null) {
+            return CloudnameBackend.super.createLeases(type, leaseData);
+        }
+        final Map<CloudnamePath, LeaseHandle> ret = new LinkedHashMap<>();
+        long sequence = 0;
+        synchronized (syncObject) {
+            for (final Map.Entry<CloudnamePath, String> entry : leaseData.entrySet()) {
+                final CloudnamePath path = entry.getKey();
+                final byte[] data = LeaseData.encode(entry.getValue());
+                ret.put(path, null);
+                if (path == null || data == null || permanentLeases.containsKey(path)
+                        || leases.readBinaryLeaseData(path) != null) {
+                    continue;
+                }
+                final long recordSequence = append(LogRecord.Type.CREATE, path, data);
+                if (recordSequence > 0) {
+                    sequence = recordSequence;
+                    permanentLeases.put(path, data);
+                    ret.put(path, new PermanentLeaseHandle(path));
+                }
+            }
+        }
+        if (sequence > 0 && !commit(sequence)) {
+            ret.replaceAll((path, handle) -> null);
+        }
+        return ret;
+    }
+
+    /**
+     * Remove several leases. The removals of permanent leases share a single fsync.
+     */
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (paths == null) {
+            return ret;
+        }
+        long sequence = 0;
+        final List<CloudnamePath> removedPermanent = new ArrayList<>();
+        synchronized (syncObject) {
+            for (final CloudnamePath path : paths) {
+                if (path == null) {
+                    ret.put(path, false);
+                } else if (!permanentLeases.containsKey(path)) {
+                    ret.put(path, leases.removeLease(path));
+                } else {
+                    final long recordSequence = append(LogRecord.Type.REMOVE, path, null);
+                    if (recordSequence > 0) {
+                        sequence = recordSequence;
+                        permanentLeases.remove(path);
+                        removedPermanent.add(path);
+                    }
+                    ret.put(path, recordSequence > 0);
+                }
+            }
+        }
+        deliverEvents();
+        if (sequence > 0 && !commit(sequence)) {
+            removedPermanent.forEach((path) -> ret.put(path, false));
+        }
+        return ret;
+    }
+
+    @Override
+    public void addLeaseCollectionListener(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        if (pathToObserve == null || listener == null) {
+            return;
+        }
+        synchronized (syncObject) {
+            leases.addLeaseCollectionListener(pathToObserve,
+                    leaseListeners.computeIfAbsent(listener, QueuedLeaseListener::new));
+        }
+        deliverEvents();
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
+        if (pathToObserve == null || listener == null) {
+            return;
+        }
+        synchronized (syncObject) {
+            leases.addLeaseListener(pathToObserve,
+                    leaseListeners.computeIfAbsent(listener, QueuedLeaseListener::new));
+        }
+        deliverEvents();
+    }
+
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final QueuedLeaseListener queued = leaseListeners.remove(listener);
+        if (queued != null) {
+            leases.removeLeaseListener(queued);
+        }
+    }
+
+    @Override
+    public int countLeases(final CloudnamePath prefix) {
+        return leases.countLeases(prefix);
+    }
+
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        if (prefix == null || listener == null) {
+            return;
+        }
+        synchronized (syncObject) {
+            leases.addLeaseCountListener(prefix,
+                    countListeners.computeIfAbsent(listener, QueuedCountListener::new));
+        }
+        deliverEvents();
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final QueuedCountListener queued = countListeners.remove(listener);
+        if (queued != null) {
+            leases.removeLeaseCountListener(queued);
+        }
+    }
+
+    /**
+     * Remove the listeners and close the log file. Pending changes are written first. The
+     * backend can still be used; the log file is reopened on the next change.
+     */
+    @Override
+    public void close() {
+        leases.close();
+        leaseListeners.clear();
+        countListeners.clear();
+        try {
+            log.close();
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Could not close lease log", ex);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.cloudname.backends.file;
+
+import org.cloudname.core.BackendMetadata;
+import org.cloudname.core.CloudnameBackend;
+
+import java.nio.file.Paths;
+import java.util.function.Function;
+
+/**
+ * Metadata for the file backend. The connection string is the directory holding the files,
+ * ie {@code file:///var/lib/cloudname} for an absolute path or {@code file://cloudname} for a
+ * path relative to the working directory.
+ */
+public class FileBackendMetadata implements BackendMetadata {
+    @Override
+    public String getName() {
+        return "file";
+    }
+
+    @Override
+    public Function<String, CloudnameBackend> getFactoryMethod() {
+        return (connectionString) -> {
+            if (connectionString == null || connectionString.isEmpty()) {
+                throw new IllegalArgumentException("The file backend needs a directory");
+            }
+            return new FileBackend(Paths.get(connectionString));
+        };
+    }
+}
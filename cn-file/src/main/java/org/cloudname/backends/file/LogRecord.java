@@ -0,0 +1,195 @@
+package org.cloudname.backends.file;
+
+import org.cloudname.core.CloudnamePath;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A single change to the permanent leases. Both the write-ahead log and the snapshots are
+ * sequences of records. Each record is stored as
+ *
+ * <pre>
+ *     [payload length: int][CRC32 of payload: int][payload]
+ * </pre>
+ *
+ * <p>where the payload is the record type (one byte), the lease path joined with slashes and the
+ * lease data. Both are stored as their length followed by the bytes (UTF-8 for the path); a
+ * length of -1 means there's no data. A record with a bad length or checksum marks the end of
+ * the valid records (typically a write that was torn by a crash).
+ */
+class LogRecord {
+    private static final int HEADER_SIZE = 8;
+    private static final char SEPARATOR = '/';
+
+    /**
+     * The kind of change.
+     */
+    enum Type {
+        CREATE((byte) 1),
+        WRITE((byte) 2),
+        REMOVE((byte) 3);
+
+        private final byte id;
+
+        Type(final byte id) {
+            this.id = id;
+        }
+
+        static Type fromId(final byte id) {
+            for (final Type type : values()) {
+                if (type.id == id) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Type type;
+    private final CloudnamePath path;
+    private final byte[] data;
+
+    /**
+     * Create a new record.
+     *
+     * @param type the kind of change
+     * @param path the lease path
+     * @param data the lease data; null for removals
+     */
+    LogRecord(final Type type, final CloudnamePath path, final byte[] data) {
+        this.type = type;
+        this.path = path;
+        this.data = data;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    CloudnamePath getPath() {
+        return path;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * The record with header, ready to be written to a file.
+     */
+    byte[] toBytes() {
+        final byte[] pathBytes = path.join(SEPARATOR).getBytes(StandardCharsets.UTF_8);
+        final int payloadLength = 1 + 4 + pathBytes.length
+                + 4 + (data == null ? 0 : data.length);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        buffer.putInt(payloadLength);
+        buffer.putInt(0);
+        buffer.put(type.id);
+        buffer.putInt(pathBytes.length);
+        buffer.put(pathBytes);
+        if (data == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, payloadLength);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * The result of reading records from a file.
+     */
+    static class ReadResult {
+        private final List<LogRecord> records;
+        private final int validLength;
+
+        ReadResult(final List<LogRecord> records, final int validLength) {
+            this.records = records;
+            this.validLength = validLength;
+        }
+
+        /**
+         * The records, in the order they were written.
+         */
+        List<LogRecord> getRecords() {
+            return records;
+        }
+
+        /**
+         * The number of bytes holding valid records. Anything after this is garbage.
+         */
+        int getValidLength() {
+            return validLength;
+        }
+    }
+
+    /**
+     * Read records until the end of the buffer or the first invalid record.
+     */
+    static ReadResult readAll(final byte[] bytes) {
+        final List<LogRecord> records = new ArrayList<>();
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int start = buffer.position();
+            final int payloadLength = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (payloadLength <= 0 || payloadLength > buffer.remaining()) {
+                return new ReadResult(records, start);
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, buffer.position(), payloadLength);
+            if ((int) crc.getValue() != checksum) {
+                return new ReadResult(records, start);
+            }
+            final LogRecord record = decode(
+                    ByteBuffer.wrap(bytes, buffer.position(), payloadLength).slice());
+            if (record == null) {
+                return new ReadResult(records, start);
+            }
+            records.add(record);
+            buffer.position(buffer.position() + payloadLength);
+        }
+        return new ReadResult(records, buffer.position());
+    }
+
+    /**
+     * Decode a payload.
+     *
+     * @return the record or null if the payload isn't a valid record
+     */
+    private static LogRecord decode(final ByteBuffer payload) {
+        try {
+            final Type type = Type.fromId(payload.get());
+            final byte[] pathBytes = readBytes(payload);
+            final byte[] data = readBytes(payload);
+            if (type == null || pathBytes == null || payload.hasRemaining()) {
+                return null;
+            }
+            final String pathString = new String(pathBytes, StandardCharsets.UTF_8);
+            return new LogRecord(type, CloudnamePath.parse(pathString, 0, SEPARATOR), data);
+        } catch (final RuntimeException ex) {
+            // Buffer underflows and invalid paths. The checksum matched so this is a bug rather
+            // than a torn write but there's no way to recover the record.
+            return null;
+        }
+    }
+
+    private static byte[] readBytes(final ByteBuffer payload) {
+        final int length = payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,360 @@
+package org.cloudname.backends.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only log of changes with snapshots. The files are numbered by generation;
+ * {@code snapshot-N.dat} holds every record up to the start of {@code wal-N.log}. On startup
+ * the newest snapshot is read followed by the logs from the same generation and up. A record
+ * torn by a crash at the end of the newest log is truncated.
+ *
+ * <p>Appending a record only buffers it. Callers wait for the record to be on disk with
+ * {@link #sync(long)}. The first thread to call sync writes and forces every buffered record
+ * while the others wait; records appended in the meantime are written by the next thread. This
+ * way a lot of concurrent writers share a single fsync (ie group commit).
+ *
+ * <p>Writing a snapshot starts a new generation through {@link #rollover()} and the snapshot
+ * is written with {@link #writeSnapshot(long, Collection)}. Older files are removed once the
+ * snapshot is on disk.
+ */
+class WriteAheadLog {
+    private static final Logger LOG = Logger.getLogger(WriteAheadLog.class.getName());
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final Object syncObject = new Object();
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long durable = 0;
+    private boolean flushing = false;
+    private IOException failure = null;
+
+    private long generation = 0;
+    private int generationRecords = 0;
+    private FileChannel channel = null;
+
+    /**
+     * Open the log, replaying the existing records.
+     *
+     * @param directory the directory holding the files
+     * @param replay receives the records from the snapshot and logs, in order
+     * @throws IOException if the files can't be read
+     */
+    WriteAheadLog(final Path directory, final Consumer<LogRecord> replay) throws IOException {
+        this.directory = directory;
+
+        final TreeSet<Long> snapshots = generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        final TreeSet<Long> logs = generations(LOG_PREFIX, LOG_SUFFIX);
+        final long snapshot = snapshots.isEmpty() ? 0 : snapshots.last();
+        if (!snapshots.isEmpty()) {
+            final Path snapshotFile = file(SNAPSHOT_PREFIX, snapshot, SNAPSHOT_SUFFIX);
+            final byte[] bytes = Files.readAllBytes(snapshotFile);
+            final LogRecord.ReadResult result = LogRecord.readAll(bytes);
+            if (result.getValidLength() != bytes.length) {
+                // Snapshots are renamed into place when complete so this isn't a torn write
+                throw new IOException("Snapshot " + snapshotFile + " is corrupt");
+            }
+            result.getRecords().forEach(replay);
+        }
+
+        generation = snapshot;
+        for (final long logGeneration : logs.tailSet(snapshot)) {
+            final Path logFile = file(LOG_PREFIX, logGeneration, LOG_SUFFIX);
+            final byte[] bytes = Files.readAllBytes(logFile);
+            final LogRecord.ReadResult result = LogRecord.readAll(bytes);
+            result.getRecords().forEach(replay);
+            generationRecords = result.getRecords().size();
+            generation = logGeneration;
+            if (result.getValidLength() != bytes.length) {
+                LOG.warning("Truncating " + (bytes.length - result.getValidLength())
+                        + " bytes of torn or corrupt records from " + logFile);
+                try (FileChannel truncate
+                        = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                    truncate.truncate(result.getValidLength());
+                    truncate.force(true);
+                }
+            }
+        }
+        removeGenerationsBefore(snapshot);
+        // Snapshots that were being written when the process stopped
+        try (DirectoryStream<Path> files
+                = Files.newDirectoryStream(directory, "*" + TEMP_SUFFIX)) {
+            for (final Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        channel = openLog();
+    }
+
+    /**
+     * Find the generations of the files with the specified prefix and suffix.
+     */
+    private TreeSet<Long> generations(final String prefix, final String suffix)
+            throws IOException {
+        final TreeSet<Long> ret = new TreeSet<>();
+        try (DirectoryStream<Path> files
+                = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    ret.add(Long.parseLong(
+                            name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (final NumberFormatException ex) {
+                    LOG.warning("Ignoring unknown file " + file);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private Path file(final String prefix, final long fileGeneration, final String suffix) {
+        return directory.resolve(prefix + fileGeneration + suffix);
+    }
+
+    private FileChannel openLog() throws IOException {
+        return FileChannel.open(file(LOG_PREFIX, generation, LOG_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Remove snapshots and logs that are older than the specified generation.
+     */
+    private void removeGenerationsBefore(final long oldestGeneration) throws IOException {
+        for (final long old : generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headSet(
+                oldestGeneration)) {
+            Files.deleteIfExists(file(SNAPSHOT_PREFIX, old, SNAPSHOT_SUFFIX));
+        }
+        for (final long old : generations(LOG_PREFIX, LOG_SUFFIX).headSet(oldestGeneration)) {
+            Files.deleteIfExists(file(LOG_PREFIX, old, LOG_SUFFIX));
+        }
+    }
+
+    /**
+     * Buffer a record. The record isn't durable until {@link #sync(long)} returns.
+     *
+     * @return the sequence number of the record
+     * @throws IOException if the log has failed earlier
+     */
+    long append(final LogRecord record) throws IOException {
+        final byte[] bytes = record.toBytes();
+        synchronized (syncObject) {
+            if (failure != null) {
+                throw new IOException("Write-ahead log has failed", failure);
+            }
+            pending.write(bytes, 0, bytes.length);
+            generationRecords++;
+            appended++;
+            return appended;
+        }
+    }
+
+    /**
+     * Wait until a record is on disk. Buffered records are written and forced by the first
+     * waiting thread; the others wait for it to complete.
+     *
+     * @param sequence the sequence number returned by {@link #append(LogRecord)}
+     * @throws IOException if the records couldn't be written
+     */
+    void sync(final long sequence) throws IOException {
+        while (true) {
+            final byte[] batch;
+            final long batchEnd;
+            final FileChannel target;
+            synchronized (syncObject) {
+                while (flushing && durable < sequence && failure == null) {
+                    waitForFlush();
+                }
+                if (failure != null) {
+                    throw new IOException("Write-ahead log has failed", failure);
+                }
+                if (durable >= sequence) {
+                    return;
+                }
+                if (channel == null) {
+                    channel = openLog();
+                }
+                flushing = true;
+                batch = pending.toByteArray();
+                pending.reset();
+                batchEnd = appended;
+                target = channel;
+            }
+
+            IOException error = null;
+            try {
+                write(target, batch);
+            } catch (final IOException ex) {
+                error = ex;
+            }
+
+            synchronized (syncObject) {
+                flushing = false;
+                if (error == null) {
+                    durable = batchEnd;
+                } else {
+                    failure = error;
+                }
+                syncObject.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait for the current flush to complete. Must be called while holding the sync object.
+     */
+    private void waitForFlush() throws IOException {
+        try {
+            syncObject.wait();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for write-ahead log");
+        }
+    }
+
+    private static void write(final FileChannel target, final byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        target.force(false);
+    }
+
+    /**
+     * Write the buffered records to the current log. Must be called while holding the sync
+     * object. Waits for any pending flush first.
+     */
+    private void flushPending() throws IOException {
+        while (flushing) {
+            waitForFlush();
+        }
+        if (failure != null) {
+            throw new IOException("Write-ahead log has failed", failure);
+        }
+        if (channel == null) {
+            channel = openLog();
+        }
+        try {
+            write(channel, pending.toByteArray());
+        } catch (final IOException ex) {
+            failure = ex;
+            throw ex;
+        }
+        pending.reset();
+        durable = appended;
+        syncObject.notifyAll();
+    }
+
+    /**
+     * The sequence number of the last record on disk.
+     */
+    long durableSequence() {
+        synchronized (syncObject) {
+            return durable;
+        }
+    }
+
+    /**
+     * The number of records since the last snapshot.
+     */
+    int recordsSinceSnapshot() {
+        synchronized (syncObject) {
+            return generationRecords;
+        }
+    }
+
+    /**
+     * Start a new generation. The caller must make sure no records are appended while it
+     * captures the state for the snapshot and calls this method, ie the snapshot must contain
+     * every record appended before the rollover.
+     *
+     * @return the new generation, to be used with {@link #writeSnapshot(long, Collection)}
+     */
+    long rollover() throws IOException {
+        synchronized (syncObject) {
+            flushPending();
+            channel.close();
+            generation++;
+            generationRecords = 0;
+            try {
+                channel = openLog();
+            } catch (final IOException ex) {
+                failure = ex;
+                throw ex;
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * Write a snapshot for a generation and remove the files it replaces.
+     *
+     * @param snapshotGeneration the generation returned by {@link #rollover()}
+     * @param records the state at the time of the rollover
+     */
+    void writeSnapshot(final long snapshotGeneration, final Collection<LogRecord> records)
+            throws IOException {
+        final Path snapshotFile = file(SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX);
+        final Path tempFile = directory.resolve(snapshotFile.getFileName() + TEMP_SUFFIX);
+        try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (final LogRecord record : records) {
+                final byte[] bytes = record.toBytes();
+                buffer.write(bytes, 0, bytes.length);
+            }
+            write(out, buffer.toByteArray());
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        removeGenerationsBefore(snapshotGeneration);
+    }
+
+    /**
+     * Make the rename durable. Not every platform supports opening directories; the rename is
+     * still atomic there but might not survive a power loss.
+     */
+    private void forceDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (final IOException ex) {
+            LOG.log(Level.FINE, "Could not sync directory " + directory, ex);
+        }
+    }
+
+    /**
+     * Write buffered records and close the current log file. The file is reopened if more
+     * records are written.
+     */
+    void close() throws IOException {
+        synchronized (syncObject) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                flushPending();
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package org.cloudname.backends.file;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.testtools.backend.CoreBackendTest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test the file backend. The core backend tests run on a backend in a temporary directory;
+ * the other tests check that the leases survive restarts.
+ */
+public class FileBackendTest extends CoreBackendTest {
+    private static final CloudnameBackend BACKEND;
+    private static final int MAX_WAIT_MS = 5000;
+
+    static {
+        try {
+            BACKEND = BackendManager.createBackend(
+                    "file://" + Files.createTempDirectory("cn-file").toAbsolutePath());
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CloudnamePath root = new CloudnamePath(new String[] {"file", "test"});
+
+    @Override
+    protected CloudnameBackend getBackend() {
+        assertThat("Expected backend to be registered", BACKEND, is(notNullValue()));
+        assertThat(BACKEND, is(instanceOf(FileBackend.class)));
+        return BACKEND;
+    }
+
+    private List<String> listFiles(final Path directory) throws IOException {
+        final List<String> ret = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            files.forEach((file) -> ret.add(file.getFileName().toString()));
+        }
+        return ret;
+    }
+
+    @Test
+    public void permanentLeasesSurviveRestart() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final CloudnamePath permanent = new CloudnamePath(root, "permanent");
+        final CloudnamePath updated = new CloudnamePath(root, "updated");
+        final CloudnamePath removed = new CloudnamePath(root, "removed");
+        final CloudnamePath temporary = new CloudnamePath(root, "temporary");
+
+        try (final FileBackend backend = new FileBackend(directory)) {
+            assertThat(backend.createLease(LeaseType.PERMANENT, permanent, "one"),
+                    is(notNullValue()));
+            final LeaseHandle handle = backend.createLease(LeaseType.PERMANENT, updated, "two");
+            assertThat(handle.writeData("three"), is(true));
+            assertThat(backend.createLease(LeaseType.PERMANENT, removed, "four"),
+                    is(notNullValue()));
+            assertThat(backend.removeLease(removed), is(true));
+            assertThat(backend.createLease(LeaseType.TEMPORARY, temporary, "five"),
+                    is(notNullValue()));
+        }
+
+        try (final FileBackend backend = new FileBackend(directory)) {
+            assertThat(backend.readLeaseData(permanent), is("one"));
+            assertThat(backend.readLeaseData(updated), is("three"));
+            assertThat(backend.readLeaseData(removed), is(nullValue()));
+            assertThat(backend.readLeaseData(temporary), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void batchOperationsSurviveRestart() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final Map<CloudnamePath, String> leases = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            leases.put(new CloudnamePath(root, "lease-" + i), "data-" + i);
+        }
+        try (final FileBackend backend = new FileBackend(directory)) {
+            backend.createLeases(LeaseType.PERMANENT, leases)
+                    .forEach((path, handle) -> assertThat(handle, is(notNullValue())));
+            final Map<CloudnamePath, String> newData = new LinkedHashMap<>();
+            leases.keySet().forEach((path) -> newData.put(path, "new"));
+            backend.writeLeaseData(newData)
+                    .forEach((path, written) -> assertThat(written, is(true)));
+            backend.removeLeases(new ArrayList<>(leases.keySet()).subList(0, 5))
+                    .forEach((path, removed) -> assertThat(removed, is(true)));
+        }
+
+        try (final FileBackend backend = new FileBackend(directory)) {
+            int i = 0;
+            for (final CloudnamePath path : leases.keySet()) {
+                assertThat(backend.readLeaseData(path), is(i < 5 ? null : "new"));
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Changes that can't be written to disk aren't made in memory and the listeners never see
+     * them, so the caller can retry a failed change.
+     */
+    @Test
+    public void failedSyncDiscardsChanges() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final AtomicBoolean failSync = new AtomicBoolean(false);
+        final FileBackend.LogOpener opener = (dir, replay) -> new WriteAheadLog(dir, replay) {
+            @Override
+            void sync(final long sequence) throws IOException {
+                if (failSync.get()) {
+                    throw new IOException("Injected sync failure");
+                }
+                super.sync(sequence);
+            }
+        };
+        final CloudnamePath existing = new CloudnamePath(root, "existing");
+        final CloudnamePath created = new CloudnamePath(root, "created");
+
+        try (final FileBackend backend = new FileBackend(directory, 1000, opener)) {
+            assertThat(backend.createLease(LeaseType.PERMANENT, existing, "one"),
+                    is(notNullValue()));
+
+            final List<String> events = new ArrayList<>();
+            backend.addLeaseCollectionListener(root, new LeaseListener() {
+                @Override
+                public void leaseCreated(final CloudnamePath path, final String data) {
+                    events.add("created " + path.get(2) + " " + data);
+                }
+
+                @Override
+                public void leaseRemoved(final CloudnamePath path) {
+                    events.add("removed " + path.get(2));
+                }
+
+                @Override
+                public void dataChanged(final CloudnamePath path, final String data) {
+                    events.add("changed " + path.get(2) + " " + data);
+                }
+            });
+
+            failSync.set(true);
+            assertThat(backend.createLease(LeaseType.PERMANENT, created, "two"), is(nullValue()));
+            assertThat(backend.writeLeaseData(existing, "three"), is(false));
+            assertThat(backend.removeLease(existing), is(false));
+            assertThat(backend.readLeaseData(created), is(nullValue()));
+            assertThat(backend.readLeaseData(existing), is("one"));
+            assertThat(events, is(Arrays.asList("created existing one")));
+
+            failSync.set(false);
+            assertThat(backend.createLease(LeaseType.PERMANENT, created, "two"),
+                    is(notNullValue()));
+            assertThat(backend.readLeaseData(created), is("two"));
+            assertThat(events, is(Arrays.asList("created existing one", "created created two")));
+        }
+    }
+
+    /**
+     * A crash in the middle of a write leaves a partial record at the end of the log. The
+     * partial record is discarded and new records can be written after it.
+     */
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final CloudnamePath first = new CloudnamePath(root, "first");
+        final CloudnamePath second = new CloudnamePath(root, "second");
+        try (final FileBackend backend = new FileBackend(directory)) {
+            backend.createLease(LeaseType.PERMANENT, first, "first");
+        }
+
+        final Path log = directory.resolve("wal-0.log");
+        final byte[] record = new LogRecord(
+                LogRecord.Type.CREATE, second, LeaseData.encode("second")).toBytes();
+        Files.write(log, Arrays.copyOf(record, record.length - 3),
+                StandardOpenOption.APPEND);
+
+        try (final FileBackend backend = new FileBackend(directory)) {
+            assertThat(backend.readLeaseData(first), is("first"));
+            assertThat(backend.readLeaseData(second), is(nullValue()));
+            assertThat(backend.createLease(LeaseType.PERMANENT, second, "again"),
+                    is(notNullValue()));
+        }
+
+        try (final FileBackend backend = new FileBackend(directory)) {
+            assertThat(backend.readLeaseData(first), is("first"));
+            assertThat(backend.readLeaseData(second), is("again"));
+        }
+    }
+
+    @Test
+    public void snapshotsReplaceLogs() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final CloudnamePath lease = new CloudnamePath(root, "lease");
+        try (final FileBackend backend = new FileBackend(directory, 10)) {
+            backend.createLease(LeaseType.PERMANENT, lease, "0");
+            for (int i = 1; i <= 25; i++) {
+                assertThat(backend.writeLeaseData(lease, Integer.toString(i)), is(true));
+            }
+        }
+        final List<String> files = listFiles(directory);
+        assertThat(files.contains("wal-0.log"), is(false));
+        assertThat(files.contains("snapshot-2.dat"), is(true));
+        assertThat(files.contains("wal-2.log"), is(true));
+        assertThat(files.size(), is(2));
+
+        try (final FileBackend backend = new FileBackend(directory, 10)) {
+            assertThat(backend.readLeaseData(lease), is("25"));
+            assertThat(backend.snapshot(), is(true));
+        }
+        try (final FileBackend backend = new FileBackend(directory, 10)) {
+            assertThat(backend.readLeaseData(lease), is("25"));
+        }
+    }
+
+    /**
+     * Lots of threads writing at the same time. Every write that succeeded must be on disk.
+     */
+    @Test
+    public void concurrentWritesAreDurable() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final int numThreads = 16;
+        final int numWrites = 50;
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try (final FileBackend backend = new FileBackend(directory, 100)) {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                final CloudnamePath path = new CloudnamePath(root, "thread-" + i);
+                results.add(executor.submit(() -> {
+                    boolean success = backend.createLease(LeaseType.PERMANENT, path, "0") != null;
+                    for (int j = 1; j <= numWrites; j++) {
+                        success &= backend.writeLeaseData(path, Integer.toString(j));
+                    }
+                    return success;
+                }));
+            }
+            for (final Future<Boolean> result : results) {
+                assertThat(result.get(), is(true));
+            }
+        }
+        executor.shutdown();
+
+        try (final FileBackend backend = new FileBackend(directory, 100)) {
+            for (int i = 0; i < numThreads; i++) {
+                assertThat(backend.readLeaseData(new CloudnamePath(root, "thread-" + i)),
+                        is(Integer.toString(numWrites)));
+            }
+        }
+    }
+
+    /**
+     * A listener blocking in a callback must not stop other clients from writing.
+     */
+    @Test
+    public void blockingListenerDoesNotBlockWriters() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final CloudnamePath blocking = new CloudnamePath(root, "blocking");
+        final CloudnamePath other = new CloudnamePath(root, "other");
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (final FileBackend backend = new FileBackend(directory)) {
+            backend.createLease(LeaseType.PERMANENT, blocking, "0");
+            backend.createLease(LeaseType.PERMANENT, other, "0");
+            backend.addLeaseListener(blocking, new LeaseListener() {
+                @Override
+                public void leaseCreated(final CloudnamePath path, final String data) {
+                }
+
+                @Override
+                public void leaseRemoved(final CloudnamePath path) {
+                }
+
+                @Override
+                public void dataChanged(final CloudnamePath path, final String data) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            try {
+                final Future<Boolean> blocked
+                        = executor.submit(() -> backend.writeLeaseData(blocking, "1"));
+                assertThat(entered.await(MAX_WAIT_MS, TimeUnit.MILLISECONDS), is(true));
+
+                final Future<Boolean> write
+                        = executor.submit(() -> backend.writeLeaseData(other, "1"));
+                assertThat("Writes go on while a listener blocks",
+                        write.get(MAX_WAIT_MS, TimeUnit.MILLISECONDS), is(true));
+                assertThat(backend.readLeaseData(other), is("1"));
+
+                release.countDown();
+                assertThat(blocked.get(MAX_WAIT_MS, TimeUnit.MILLISECONDS), is(true));
+            } finally {
+                // Let the listener return before the backend is closed
+                release.countDown();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullDirectory() {
+        new FileBackend(null);
+    }
+}
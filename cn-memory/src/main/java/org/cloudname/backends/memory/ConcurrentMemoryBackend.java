@@ -0,0 +1,590 @@
+package org.cloudname.backends.memory;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseCountListener;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A concurrent version of the memory backend. It has the same semantics as {@link MemoryBackend}
+ * but is built for large single-JVM clusters with lots of concurrent clients:
+ *
+ * <ul>
+ *     <li>Reads never block; lease data is kept in a concurrent map.</li>
+ *     <li>Writes are serialized per lock stripe. The stripe is picked by the lease's parent path
+ *     so writes to different lease collections proceed in parallel.</li>
+ *     <li>Listener callbacks are invoked outside of the locks. Each listener has its own queue of
+ *     pending events and the events are delivered in the order they occurred. The queue is
+ *     drained by the thread that made the change.</li>
+ * </ul>
+ *
+ * <p>Attaching a listener locks all of the stripes while the snapshot of the existing leases is
+ * taken, so the listener doesn't miss or duplicate any events. This is the only global operation.
+ *
+ * <p>The number of leases below each path is updated along with the child index. Count listeners
+ * are told the current count when it changes; concurrent changes might be reported as a single
+ * change but the last count reported is always the current one.
+ */
+public class ConcurrentMemoryBackend implements CloudnameBackend {
+    private static final Logger LOG = Logger.getLogger(ConcurrentMemoryBackend.class.getName());
+    private static final int NUM_STRIPES = 64;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+    // The data and version are kept together so versioned reads don't need any locks
+    private final Map<CloudnamePath, StoredLease> leases = new ConcurrentHashMap<>();
+    private final AtomicLong lastVersion = new AtomicLong(0L);
+
+    // Names of children for every path with leases below it. Used to replay the leases below a
+    // prefix without scanning all of the leases.
+    private final Map<CloudnamePath, Set<String>> children = new ConcurrentHashMap<>();
+
+    // The number of leases below (and including) every path with leases below it
+    private final Map<CloudnamePath, Integer> counts = new ConcurrentHashMap<>();
+
+    private final Map<CloudnamePath, List<ListenerQueue>> observedPaths = new ConcurrentHashMap<>();
+    private final Map<LeaseListener, ListenerQueue> listenerQueues = new ConcurrentHashMap<>();
+
+    private final Map<CloudnamePath, List<CountNotifier>> countedPaths = new ConcurrentHashMap<>();
+    private final Map<LeaseCountListener, List<CountNotifier>> countNotifiers
+            = new ConcurrentHashMap<>();
+
+    /**
+     * The data of a lease and its version.
+     */
+    private static class StoredLease {
+        private final byte[] data;
+        private final long version;
+
+        StoredLease(final byte[] data, final long version) {
+            this.data = data;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Pending events for a single listener. Events are added while holding a stripe lock and
+     * delivered (in order) by whichever thread manages to grab the queue first.
+     */
+    private static class ListenerQueue {
+        private final LeaseListener listener;
+        private final List<CloudnamePath> paths = new CopyOnWriteArrayList<>();
+        private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private volatile boolean removed = false;
+
+        ListenerQueue(final LeaseListener listener) {
+            this.listener = listener;
+        }
+
+        void add(final Runnable event) {
+            events.add(event);
+        }
+
+        /**
+         * Deliver pending events. If another thread is delivering events for the listener it
+         * will pick up the new events as well. This also applies to the current thread when a
+         * listener modifies the backend from within a callback.
+         */
+        void drain() {
+            while (!events.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    Runnable event = events.poll();
+                    while (event != null) {
+                        if (!removed) {
+                            invoke(event);
+                        }
+                        event = events.poll();
+                    }
+                } finally {
+                    draining.set(false);
+                }
+            }
+        }
+
+        private void invoke(final Runnable event) {
+            try {
+                event.run();
+            } catch (final RuntimeException ex) {
+                LOG.log(Level.WARNING, "Got exception when invoking lease listener", ex);
+            }
+        }
+    }
+
+    /**
+     * Reports the count for a single path to a count listener. Changes only mark the notifier;
+     * the count is read when it is delivered so the listener always ends up with the current
+     * count even if changes in different stripes race each other.
+     */
+    private class CountNotifier {
+        private final CloudnamePath prefix;
+        private final LeaseCountListener listener;
+        private final AtomicBoolean changed = new AtomicBoolean(true);
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private volatile boolean removed = false;
+        // Only used by the draining thread
+        private int lastCount = -1;
+
+        CountNotifier(final CloudnamePath prefix, final LeaseCountListener listener) {
+            this.prefix = prefix;
+            this.listener = listener;
+        }
+
+        void drain() {
+            while (changed.get() && draining.compareAndSet(false, true)) {
+                try {
+                    while (changed.getAndSet(false)) {
+                        final int count = countLeases(prefix);
+                        if (count != lastCount && !removed) {
+                            lastCount = count;
+                            invoke(count);
+                        }
+                    }
+                } finally {
+                    draining.set(false);
+                }
+            }
+        }
+
+        private void invoke(final int count) {
+            try {
+                listener.leaseCountChanged(prefix, count);
+            } catch (final RuntimeException ex) {
+                LOG.log(Level.WARNING, "Got exception when invoking lease count listener", ex);
+            }
+        }
+    }
+
+    /**
+     * Create a new, empty, backend.
+     */
+    public ConcurrentMemoryBackend() {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * The lock stripe for a path. Leases in the same collection share a stripe.
+     */
+    private ReentrantLock stripeFor(final CloudnamePath path) {
+        final int hash = path.getParent().hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (NUM_STRIPES - 1)];
+    }
+
+    private void lockAll() {
+        for (final ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = NUM_STRIPES - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Add the path and its ancestors to the child index. Must be called while holding the
+     * stripe lock for the path. Ancestors are updated bottom-up.
+     */
+    private void indexPath(final CloudnamePath path) {
+        CloudnamePath current = path;
+        while (current.length() > 0) {
+            final CloudnamePath parent = current.getParent();
+            final String name = current.get(current.length() - 1);
+            children.compute(parent, (key, names) -> {
+                final Set<String> childNames
+                        = (names == null ? ConcurrentHashMap.newKeySet() : names);
+                childNames.add(name);
+                return childNames;
+            });
+            current = parent;
+        }
+    }
+
+    /**
+     * Remove the path from the child index and prune ancestors without any leases below them.
+     * A child is only removed from its parent if it has no leases or children at the time
+     * the parent entry is updated, so concurrent creates in other stripes are never lost.
+     */
+    private void unindexPath(final CloudnamePath path) {
+        CloudnamePath current = path;
+        while (current.length() > 0) {
+            final CloudnamePath child = current;
+            final CloudnamePath parent = current.getParent();
+            final String name = current.get(current.length() - 1);
+            children.computeIfPresent(parent, (key, names) -> {
+                if (!leases.containsKey(child) && !children.containsKey(child)) {
+                    names.remove(name);
+                }
+                return names.isEmpty() ? null : names;
+            });
+            if (children.containsKey(parent)) {
+                return;
+            }
+            current = parent;
+        }
+    }
+
+    /**
+     * Adjust the lease count of the path and its ancestors. Must be called while holding the
+     * stripe lock for the path.
+     */
+    private void adjustCounts(final CloudnamePath path, final int delta) {
+        CloudnamePath current = path;
+        while (true) {
+            counts.compute(current, (key, count) -> {
+                final int newCount = (count == null ? 0 : count) + delta;
+                return newCount == 0 ? null : newCount;
+            });
+            if (current.length() == 0) {
+                break;
+            }
+            current = current.getParent();
+        }
+    }
+
+    /**
+     * Tell the count listeners on the path and its ancestors that the count has changed.
+     */
+    private void notifyCountListeners(final CloudnamePath path) {
+        CloudnamePath current = path;
+        while (true) {
+            final List<CountNotifier> notifiers = countedPaths.get(current);
+            if (notifiers != null) {
+                for (final CountNotifier notifier : notifiers) {
+                    notifier.changed.set(true);
+                    notifier.drain();
+                }
+            }
+            if (current.length() == 0) {
+                break;
+            }
+            current = current.getParent();
+        }
+    }
+
+    /**
+     * Queue an event for every listener observing the path or one of its ancestors.
+     *
+     * @return the queues that received the event
+     */
+    private List<ListenerQueue> queueEvent(final CloudnamePath path, final EventFactory factory) {
+        final List<ListenerQueue> queues = new ArrayList<>();
+        CloudnamePath current = path;
+        while (true) {
+            final List<ListenerQueue> observers = observedPaths.get(current);
+            if (observers != null) {
+                for (final ListenerQueue queue : observers) {
+                    queue.add(factory.create(queue.listener));
+                    queues.add(queue);
+                }
+            }
+            if (current.length() == 0) {
+                break;
+            }
+            current = current.getParent();
+        }
+        return queues;
+    }
+
+    /**
+     * Creates the event for a listener.
+     */
+    private interface EventFactory {
+        Runnable create(LeaseListener listener);
+    }
+
+    private static void deliver(final List<ListenerQueue> queues) {
+        for (final ListenerQueue queue : queues) {
+            queue.drain();
+        }
+    }
+
+    @Override
+    public LeaseHandle createLease(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return createBinaryLease(type, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        if (type == null || path == null || data == null) {
+            return null;
+        }
+        final List<ListenerQueue> queues;
+        final ReentrantLock lock = stripeFor(path);
+        lock.lock();
+        try {
+            if (leases.putIfAbsent(path, nextVersion(data)) != null) {
+                return null;
+            }
+            indexPath(path);
+            adjustCounts(path, 1);
+            queues = queueEvent(path, (listener) -> () -> listener.binaryLeaseCreated(path, data));
+        } finally {
+            lock.unlock();
+        }
+        deliver(queues);
+        notifyCountListeners(path);
+        return new MemoryLeaseHandle(this, path);
+    }
+
+    @Override
+    public boolean removeLease(final CloudnamePath path) {
+        if (path == null) {
+            return false;
+        }
+        final List<ListenerQueue> queues;
+        final ReentrantLock lock = stripeFor(path);
+        lock.lock();
+        try {
+            if (leases.remove(path) == null) {
+                return false;
+            }
+            unindexPath(path);
+            adjustCounts(path, -1);
+            queues = queueEvent(path, (listener) -> () -> listener.leaseRemoved(path));
+        } finally {
+            lock.unlock();
+        }
+        deliver(queues);
+        notifyCountListeners(path);
+        return true;
+    }
+
+    @Override
+    public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        return writeLeaseData(path, LeaseData.encode(data), null);
+    }
+
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        return writeLeaseData(path, LeaseData.encode(data), Long.valueOf(expectedVersion));
+    }
+
+    /**
+     * Write the lease data, optionally checking the version first.
+     *
+     * @param expectedVersion the version the lease must have or null to write unconditionally
+     */
+    private boolean writeLeaseData(
+            final CloudnamePath path, final byte[] data, final Long expectedVersion) {
+        if (path == null || data == null) {
+            return false;
+        }
+        final List<ListenerQueue> queues;
+        final ReentrantLock lock = stripeFor(path);
+        lock.lock();
+        try {
+            final StoredLease current = leases.get(path);
+            if (current == null) {
+                return false;
+            }
+            if (expectedVersion != null && current.version != expectedVersion) {
+                return false;
+            }
+            leases.put(path, nextVersion(data));
+            queues = queueEvent(path, (listener) -> () -> listener.binaryDataChanged(path, data));
+        } finally {
+            lock.unlock();
+        }
+        deliver(queues);
+        return true;
+    }
+
+    /**
+     * Assign a new version to lease data. Versions are taken from a single counter so a lease
+     * that is removed and created again never gets a version it has had before.
+     */
+    private StoredLease nextVersion(final byte[] data) {
+        return new StoredLease(data, lastVersion.incrementAndGet());
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        return writeLeaseData(path, data, null);
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path) {
+        return LeaseData.decode(readBinaryLeaseData(path));
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        if (path == null) {
+            return null;
+        }
+        final StoredLease current = leases.get(path);
+        return current == null ? null : current.data;
+    }
+
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path == null) {
+            return null;
+        }
+        final StoredLease current = leases.get(path);
+        if (current == null) {
+            return null;
+        }
+        return new VersionedData(LeaseData.decode(current.data), current.version);
+    }
+
+    /**
+     * Collect the leases below a path. Must be called with all stripes locked.
+     */
+    private void collectLeases(
+            final CloudnamePath path, final Map<CloudnamePath, byte[]> snapshot) {
+        final StoredLease current = leases.get(path);
+        if (current != null) {
+            snapshot.put(path, current.data);
+        }
+        final Set<String> names = children.get(path);
+        if (names == null) {
+            return;
+        }
+        for (final String name : names) {
+            collectLeases(new CloudnamePath(path, name), snapshot);
+        }
+    }
+
+    /**
+     * Register the listener on the observed path and queue a snapshot of the existing leases.
+     */
+    private void registerListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
+        if (pathToObserve == null || listener == null) {
+            return;
+        }
+        final ListenerQueue queue;
+        lockAll();
+        try {
+            queue = listenerQueues.computeIfAbsent(listener, ListenerQueue::new);
+            queue.paths.add(pathToObserve);
+            observedPaths.computeIfAbsent(pathToObserve, (path) -> new CopyOnWriteArrayList<>())
+                    .add(queue);
+            final Map<CloudnamePath, byte[]> snapshot = new LinkedHashMap<>();
+            collectLeases(pathToObserve, snapshot);
+            queue.add(() -> queue.listener.leaseSnapshot(snapshot));
+        } finally {
+            unlockAll();
+        }
+        queue.drain();
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath leaseToObserve, final LeaseListener listener) {
+        registerListener(leaseToObserve, listener);
+    }
+
+    @Override
+    public void addLeaseCollectionListener(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        registerListener(pathToObserve, listener);
+    }
+
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final ListenerQueue queue = listenerQueues.remove(listener);
+        if (queue == null) {
+            return;
+        }
+        queue.removed = true;
+        for (final CloudnamePath path : queue.paths) {
+            observedPaths.computeIfPresent(path, (key, queues) -> {
+                queues.remove(queue);
+                return queues.isEmpty() ? null : queues;
+            });
+        }
+    }
+
+    @Override
+    public int countLeases(final CloudnamePath prefix) {
+        if (prefix == null) {
+            return 0;
+        }
+        return counts.getOrDefault(prefix, 0);
+    }
+
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        if (prefix == null || listener == null) {
+            return;
+        }
+        final CountNotifier notifier = new CountNotifier(prefix, listener);
+        countNotifiers.computeIfAbsent(listener, (key) -> new CopyOnWriteArrayList<>())
+                .add(notifier);
+        // Added inside compute so a concurrent removal of the last notifier doesn't drop it
+        countedPaths.compute(prefix, (path, registered) -> {
+            final List<CountNotifier> notifiers
+                    = (registered == null ? new CopyOnWriteArrayList<>() : registered);
+            notifiers.add(notifier);
+            return notifiers;
+        });
+        notifier.drain();
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final List<CountNotifier> notifiers = countNotifiers.remove(listener);
+        if (notifiers == null) {
+            return;
+        }
+        for (final CountNotifier notifier : notifiers) {
+            notifier.removed = true;
+            countedPaths.computeIfPresent(notifier.prefix, (key, registered) -> {
+                registered.remove(notifier);
+                return registered.isEmpty() ? null : registered;
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        lockAll();
+        try {
+            for (final ListenerQueue queue : listenerQueues.values()) {
+                queue.removed = true;
+            }
+            listenerQueues.clear();
+            observedPaths.clear();
+            countNotifiers.values().forEach((notifiers) ->
+                    notifiers.forEach((notifier) -> notifier.removed = true));
+            countNotifiers.clear();
+            countedPaths.clear();
+        } finally {
+            unlockAll();
+        }
+    }
+}
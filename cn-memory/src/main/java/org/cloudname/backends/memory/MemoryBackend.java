@@ -2,12 +2,18 @@ package org.cloudname.backends.memory;
 
 import org.cloudname.core.CloudnameBackend;
 import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseCountListener;
+import org.cloudname.core.LeaseData;
 import org.cloudname.core.LeaseHandle;
 import org.cloudname.core.LeaseListener;
 import org.cloudname.core.LeaseType;
+import org.cloudname.core.PathIndex;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -17,6 +23,9 @@ import java.util.Set;
  * calling listeners, return values and uniqueness. The actual timing of the various backends
  * will of course vary.
  *
+ * <p>The lease index keeps the number of leases below each path up to date as leases are
+ * created and removed so lease counts are read without visiting the leases.
+ *
  * @author stalehd@gmail.com
  */
 public class MemoryBackend implements CloudnameBackend {
@@ -26,41 +35,66 @@ public class MemoryBackend implements CloudnameBackend {
         DATA
     }
 
-    private final Map<CloudnamePath, String> leases = new HashMap<>();
+    private final PathIndex<byte[]> leases = new PathIndex<>();
+
+    // Versions are taken from a single counter so a lease that is removed and created again
+    // never gets a version it has had before.
+    private final Map<CloudnamePath, Long> versions = new HashMap<>();
+    private long lastVersion = 0L;
 
-    private final Map<CloudnamePath, Set<LeaseListener>> observedPaths = new HashMap<>();
+    // Listeners are indexed on the observed path. Notifications only have to visit the observed
+    // paths on the ancestor chain of the lease.
+    private final PathIndex<Set<LeaseListener>> observedPaths = new PathIndex<>();
+    private final Map<LeaseListener, Set<CloudnamePath>> listenerPaths = new HashMap<>();
+    private final PathIndex<Set<LeaseCountListener>> countedPaths = new PathIndex<>();
+    private final Map<LeaseCountListener, Set<CloudnamePath>> countListenerPaths
+            = new HashMap<>();
     private final Object syncObject = new Object();
 
     /**
      * Notify observers of changes.
      */
     private void notifyObservers(
-            final CloudnamePath path, final LeaseEvent event, final String data) {
-        observedPaths.keySet().forEach((observedPath) -> {
-            if (observedPath.isSubpathOf(path)) {
-                // The path matches; notify listeners
-                observedPaths.get(observedPath).forEach((listener) -> {
-                    switch (event) {
-                        case CREATED:
-                            listener.leaseCreated(path, data);
-                            break;
-                        case REMOVED:
-                            listener.leaseRemoved(path);
-                            break;
-                        case DATA:
-                            listener.dataChanged(path, data);
-                            break;
-                        default:
-                            throw new RuntimeException("Don't know how to handle " + event);
-                    }
-                });
-            }
+            final CloudnamePath path, final LeaseEvent event, final byte[] data) {
+        observedPaths.forEachAncestor(path, (observedPath, listeners) -> {
+            listeners.forEach((listener) -> {
+                switch (event) {
+                    case CREATED:
+                        listener.binaryLeaseCreated(path, data);
+                        break;
+                    case REMOVED:
+                        listener.leaseRemoved(path);
+                        break;
+                    case DATA:
+                        listener.binaryDataChanged(path, data);
+                        break;
+                    default:
+                        throw new RuntimeException("Don't know how to handle " + event);
+                }
+            });
+        });
+    }
+
+    /**
+     * Notify count listeners on the path or one of its ancestors of the new counts. Must be
+     * called while holding the sync object.
+     */
+    private void notifyCountListeners(final CloudnamePath path) {
+        countedPaths.forEachAncestor(path, (prefix, listeners) -> {
+            final int count = leases.countDescendants(prefix);
+            listeners.forEach((listener) -> listener.leaseCountChanged(prefix, count));
         });
     }
 
     @Override
     public LeaseHandle createLease(
             final LeaseType type, final CloudnamePath path, final String data) {
+        return createBinaryLease(type, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
         if (type == null) {
             return null;
         }
@@ -76,7 +110,9 @@ public class MemoryBackend implements CloudnameBackend {
                 return null;
             }
             leases.put(path, data);
+            versions.put(path, ++lastVersion);
             notifyObservers(path, LeaseEvent.CREATED, data);
+            notifyCountListeners(path);
         }
         return new MemoryLeaseHandle(this, path);
     }
@@ -88,18 +124,41 @@ public class MemoryBackend implements CloudnameBackend {
                 return false;
             }
             leases.remove(path);
+            versions.remove(path);
             notifyObservers(path, LeaseEvent.REMOVED, null);
+            notifyCountListeners(path);
         }
         return true;
     }
 
     @Override
     public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        return writeBinaryLeaseData(path, LeaseData.encode(data));
+    }
+
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        synchronized (syncObject) {
+            final Long version = versions.get(path);
+            if (version == null || version != expectedVersion) {
+                return false;
+            }
+            return writeLeaseData(path, data);
+        }
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        if (data == null) {
+            return false;
+        }
         synchronized (syncObject) {
             if (!leases.containsKey(path)) {
                 return false;
             }
             leases.put(path, data);
+            versions.put(path, ++lastVersion);
             notifyObservers(path, LeaseEvent.DATA, data);
         }
         return true;
@@ -107,56 +166,115 @@ public class MemoryBackend implements CloudnameBackend {
 
     @Override
     public String readLeaseData(final CloudnamePath path) {
+        return LeaseData.decode(readBinaryLeaseData(path));
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        synchronized (syncObject) {
+            return leases.get(path);
+        }
+    }
+
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
         synchronized (syncObject) {
             if (!leases.containsKey(path)) {
                 return null;
             }
-            return leases.get(path);
+            return new VersionedData(LeaseData.decode(leases.get(path)), versions.get(path));
         }
     }
 
     /**
-     * Generate created events for temporary leases for newly attached listeners.
+     * Send a snapshot of the existing leases to newly attached listeners. Only the leases
+     * below the observed path are visited.
      */
     private void regenerateEventsForListeners(
             final CloudnamePath path, final LeaseListener listener) {
-       leases.keySet().forEach((temporaryPath) -> {
-           if (path.isSubpathOf(temporaryPath)) {
-               listener.leaseCreated(temporaryPath, leases.get(temporaryPath));
-           }
-       });
+        final Map<CloudnamePath, byte[]> snapshot = new LinkedHashMap<>();
+        leases.forEachDescendant(path, snapshot::put);
+        listener.leaseSnapshot(snapshot);
     }
 
-    @Override
-    public void addLeaseListener(final CloudnamePath leaseToObserve, final LeaseListener listener) {
+    /**
+     * Register the listener on the observed path and send a snapshot of the existing leases.
+     */
+    private void registerListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
         synchronized (syncObject) {
-            final Set<LeaseListener> listeners
-                    = observedPaths.getOrDefault(leaseToObserve, new HashSet<>());
-            listeners.add(listener);
-            observedPaths.put(leaseToObserve, listeners);
-            regenerateEventsForListeners(leaseToObserve, listener);
+            observedPaths.computeIfAbsent(pathToObserve, (path) -> new HashSet<>()).add(listener);
+            listenerPaths.computeIfAbsent(listener, (key) -> new HashSet<>()).add(pathToObserve);
+            regenerateEventsForListeners(pathToObserve, listener);
         }
     }
 
+    @Override
+    public void addLeaseListener(final CloudnamePath leaseToObserve, final LeaseListener listener) {
+        registerListener(leaseToObserve, listener);
+    }
+
     @Override
     public void addLeaseCollectionListener(
             final CloudnamePath pathToObserve, final LeaseListener listener) {
+        registerListener(pathToObserve, listener);
+    }
+
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
         synchronized (syncObject) {
-            final Set<LeaseListener> listeners
-                    = observedPaths.getOrDefault(pathToObserve, new HashSet<>());
-            listeners.add(listener);
-            observedPaths.put(pathToObserve, listeners);
-            regenerateEventsForListeners(pathToObserve, listener);
+            final Set<CloudnamePath> paths = listenerPaths.remove(listener);
+            if (paths == null) {
+                return;
+            }
+            for (final CloudnamePath path : paths) {
+                final Set<LeaseListener> listeners = observedPaths.get(path);
+                if (listeners == null) {
+                    continue;
+                }
+                listeners.remove(listener);
+                if (listeners.isEmpty()) {
+                    observedPaths.remove(path);
+                }
+            }
         }
     }
 
     @Override
-    public void removeLeaseListener(final LeaseListener listener) {
+    public int countLeases(final CloudnamePath prefix) {
+        synchronized (syncObject) {
+            return leases.countDescendants(prefix);
+        }
+    }
+
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        if (prefix == null || listener == null) {
+            return;
+        }
         synchronized (syncObject) {
-            for (final Set<LeaseListener> listeners : observedPaths.values()) {
-                if (listeners.contains(listener)) {
-                    listeners.remove(listener);
-                    return;
+            countedPaths.computeIfAbsent(prefix, (path) -> new HashSet<>()).add(listener);
+            countListenerPaths.computeIfAbsent(listener, (key) -> new HashSet<>()).add(prefix);
+            listener.leaseCountChanged(prefix, leases.countDescendants(prefix));
+        }
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        synchronized (syncObject) {
+            final Set<CloudnamePath> paths = countListenerPaths.remove(listener);
+            if (paths == null) {
+                return;
+            }
+            for (final CloudnamePath path : paths) {
+                final Set<LeaseCountListener> listeners = countedPaths.get(path);
+                if (listeners == null) {
+                    continue;
+                }
+                listeners.remove(listener);
+                if (listeners.isEmpty()) {
+                    countedPaths.remove(path);
                 }
             }
         }
@@ -166,7 +284,9 @@ public class MemoryBackend implements CloudnameBackend {
     public void close() {
         synchronized (syncObject) {
             observedPaths.clear();
-            observedPaths.clear();
+            listenerPaths.clear();
+            countedPaths.clear();
+            countListenerPaths.clear();
         }
     }
 }
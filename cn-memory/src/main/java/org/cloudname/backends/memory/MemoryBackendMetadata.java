@@ -6,11 +6,14 @@ import org.cloudname.core.CloudnameBackend;
 import java.util.function.Function;
 
 /**
- * Metadata for the memory backend
+ * Metadata for the memory backend. Use the connection string "concurrent" (ie
+ * {@code memory://concurrent}) to get the concurrent version of the backend.
  *
  * @author stalehd@gmail.com
  */
 public class MemoryBackendMetadata implements BackendMetadata {
+    private static final String CONCURRENT = "concurrent";
+
     @Override
     public String getName() {
         return "memory";
@@ -18,6 +21,11 @@ public class MemoryBackendMetadata implements BackendMetadata {
 
     @Override
     public Function<String, CloudnameBackend> getFactoryMethod() {
-        return (connectionString) -> new MemoryBackend();
+        return (connectionString) -> {
+            if (CONCURRENT.equals(connectionString)) {
+                return new ConcurrentMemoryBackend();
+            }
+            return new MemoryBackend();
+        };
     }
 }
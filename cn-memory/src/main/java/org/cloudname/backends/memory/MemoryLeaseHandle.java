@@ -1,5 +1,6 @@
 package org.cloudname.backends.memory;
 
+import org.cloudname.core.CloudnameBackend;
 import org.cloudname.core.CloudnamePath;
 import org.cloudname.core.LeaseHandle;
 
@@ -12,7 +13,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * @author stalehd@gmail.com
  */
 public class MemoryLeaseHandle implements LeaseHandle {
-    private final MemoryBackend backend;
+    private final CloudnameBackend backend;
     private final CloudnamePath clientLeasePath;
     private AtomicBoolean expired = new AtomicBoolean(false);
 
@@ -22,7 +23,7 @@ public class MemoryLeaseHandle implements LeaseHandle {
      * @param backend The backend issuing the lease
      * @param clientLeasePath The path to the lease
      */
-    public MemoryLeaseHandle(final MemoryBackend backend, final CloudnamePath clientLeasePath) {
+    public MemoryLeaseHandle(final CloudnameBackend backend, final CloudnamePath clientLeasePath) {
         this.backend = backend;
         this.clientLeasePath = clientLeasePath;
         expired.set(false);
@@ -33,6 +34,11 @@ public class MemoryLeaseHandle implements LeaseHandle {
         return backend.writeLeaseData(clientLeasePath, data);
     }
 
+    @Override
+    public boolean writeBinaryData(final byte[] data) {
+        return backend.writeBinaryLeaseData(clientLeasePath, data);
+    }
+
     @Override
     public CloudnamePath getLeasePath() {
         if (expired.get()) {
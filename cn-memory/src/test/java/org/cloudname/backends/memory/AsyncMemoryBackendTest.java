@@ -0,0 +1,27 @@
+package org.cloudname.backends.memory;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.delivery.AsyncDeliveryBackend;
+import org.cloudname.testtools.backend.CoreBackendTest;
+
+import static org.junit.Assert.assertThat;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+
+/**
+ * Run the core backend tests on the memory backend with asynchronous event delivery. The
+ * listeners are invoked on other threads but the events must arrive in the same order.
+ */
+public class AsyncMemoryBackendTest extends CoreBackendTest {
+    private static final CloudnameBackend BACKEND
+            = BackendManager.getBackend("async+memory://");
+
+    @Override
+    protected CloudnameBackend getBackend() {
+        assertThat("Expected backend to be registered", BACKEND, is(notNullValue()));
+        assertThat(BACKEND, is(instanceOf(AsyncDeliveryBackend.class)));
+        return BACKEND;
+    }
+}
@@ -0,0 +1,35 @@
+package org.cloudname.backends.memory;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.coalescing.WriteCoalescingBackend;
+import org.cloudname.testtools.backend.CoreBackendTest;
+
+import static org.junit.Assert.assertThat;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+
+/**
+ * Run the core backend tests on the memory backend with write coalescing. Rapid writes are held
+ * for up to the minimum interval so the propagation time includes it. Closing the decorator
+ * stops the coalescing so every test gets a new handle to the shared memory backend. An extra
+ * handle keeps the shared backend (and the permanent leases) alive between the tests.
+ */
+public class CoalescingMemoryBackendTest extends CoreBackendTest {
+    private static final CloudnameBackend SHARED_BACKEND = BackendManager.getBackend("memory://");
+
+    @Override
+    protected int getBackendPropagationTime() {
+        return WriteCoalescingBackend.DEFAULT_MIN_INTERVAL_MS + 100;
+    }
+
+    @Override
+    protected CloudnameBackend getBackend() {
+        assertThat(SHARED_BACKEND, is(notNullValue()));
+        final CloudnameBackend backend = BackendManager.getBackend("coalesce+memory://");
+        assertThat("Expected backend to be registered", backend, is(notNullValue()));
+        assertThat(backend, is(instanceOf(WriteCoalescingBackend.class)));
+        return backend;
+    }
+}
@@ -0,0 +1,137 @@
+package org.cloudname.backends.memory;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.testtools.backend.CoreBackendTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Run the core backend tests on the concurrent memory backend and check that events are
+ * delivered in order when lots of threads modify the backend.
+ */
+public class ConcurrentMemoryBackendTest extends CoreBackendTest {
+    private static final CloudnameBackend BACKEND
+            = BackendManager.createBackend("memory://concurrent");
+
+    @Override
+    protected CloudnameBackend getBackend() {
+        assertThat("Expected backend to be registered", BACKEND, is(notNullValue()));
+        assertThat(BACKEND, is(instanceOf(ConcurrentMemoryBackend.class)));
+        return BACKEND;
+    }
+
+    /**
+     * Each lease is created, updated a number of times and removed by a single thread. Listeners
+     * should see the events for each lease in the same order as they were made.
+     */
+    @Test
+    public void eventsAreOrderedPerLease() throws Exception {
+        final int numThreads = 8;
+        final int numUpdates = 50;
+        final CloudnameBackend backend = new ConcurrentMemoryBackend();
+        final CloudnamePath root = new CloudnamePath(new String[] {"ordered"});
+
+        final Map<CloudnamePath, List<String>> events = new ConcurrentHashMap<>();
+        final CountDownLatch removedLatch = new CountDownLatch(numThreads);
+        backend.addLeaseCollectionListener(root, new LeaseListener() {
+            private void addEvent(final CloudnamePath path, final String event) {
+                // Events for the same listener are never delivered concurrently
+                events.computeIfAbsent(path, (key) -> new ArrayList<>()).add(event);
+            }
+
+            @Override
+            public void leaseCreated(final CloudnamePath path, final String data) {
+                addEvent(path, data);
+            }
+
+            @Override
+            public void leaseRemoved(final CloudnamePath path) {
+                addEvent(path, "removed");
+                removedLatch.countDown();
+            }
+
+            @Override
+            public void dataChanged(final CloudnamePath path, final String data) {
+                addEvent(path, data);
+            }
+        });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            final CloudnamePath path = new CloudnamePath(root, "lease-" + (i % 2) + "-" + i);
+            executor.submit(() -> {
+                backend.createLease(LeaseType.TEMPORARY, path, "0");
+                for (int j = 1; j <= numUpdates; j++) {
+                    backend.writeLeaseData(path, Integer.toString(j));
+                }
+                backend.removeLease(path);
+            });
+        }
+        assertThat(removedLatch.await(10, TimeUnit.SECONDS), is(true));
+        executor.shutdown();
+
+        assertThat(events.size(), is(numThreads));
+        for (final List<String> leaseEvents : events.values()) {
+            assertThat(leaseEvents.size(), is(numUpdates + 2));
+            for (int j = 0; j <= numUpdates; j++) {
+                assertThat(leaseEvents.get(j), is(Integer.toString(j)));
+            }
+            assertThat(leaseEvents.get(numUpdates + 1), is("removed"));
+        }
+    }
+
+    /**
+     * Listeners modifying the backend from within a callback get the resulting events after
+     * the callback returns.
+     */
+    @Test
+    public void listenersCanModifyBackend() {
+        final CloudnameBackend backend = new ConcurrentMemoryBackend();
+        final CloudnamePath root = new CloudnamePath(new String[] {"reentrant"});
+        final CloudnamePath first = new CloudnamePath(root, "first");
+        final CloudnamePath second = new CloudnamePath(root, "second");
+
+        final List<String> events = new ArrayList<>();
+        backend.addLeaseCollectionListener(root, new LeaseListener() {
+            @Override
+            public void leaseCreated(final CloudnamePath path, final String data) {
+                events.add("created " + data);
+                if (path.equals(first)) {
+                    backend.createLease(LeaseType.PERMANENT, second, "second");
+                    events.add("created second lease");
+                }
+            }
+
+            @Override
+            public void leaseRemoved(final CloudnamePath path) {
+            }
+
+            @Override
+            public void dataChanged(final CloudnamePath path, final String data) {
+            }
+        });
+
+        backend.createLease(LeaseType.PERMANENT, first, "first");
+        assertThat(events.size(), is(3));
+        assertThat(events.get(0), is("created first"));
+        assertThat(events.get(1), is("created second lease"));
+        assertThat(events.get(2), is("created second"));
+    }
+}
@@ -0,0 +1,233 @@
+package org.cloudname.backends.memory;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.core.federation.FederatedBackend;
+import org.cloudname.testtools.backend.CoreBackendTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Run the core backend tests on a federated backend with memory backends as shards. The core
+ * tests use several different root paths so the leases are spread across the shards.
+ */
+public class FederatedMemoryBackendTest extends CoreBackendTest {
+    private static final CloudnameBackend LOCAL = new MemoryBackend();
+    private static final CloudnameBackend MULTI = new MemoryBackend();
+    private static final CloudnameBackend PAIR = new MemoryBackend();
+    private static final CloudnameBackend DEFAULT = new MemoryBackend();
+    private static final CloudnameBackend BACKEND;
+
+    static {
+        final Map<CloudnamePath, CloudnameBackend> routes = new HashMap<>();
+        routes.put(CloudnamePath.of("local"), LOCAL);
+        routes.put(CloudnamePath.of("multi", "multi"), MULTI);
+        routes.put(CloudnamePath.of("pair"), PAIR);
+        routes.put(CloudnamePath.of("root", "lease"), MULTI);
+        BACKEND = new FederatedBackend(routes, DEFAULT);
+    }
+
+    @Override
+    protected CloudnameBackend getBackend() {
+        return BACKEND;
+    }
+
+    @Test
+    public void leasesAreStoredInTheLongestPrefixShard() throws Exception {
+        final CloudnamePath local = CloudnamePath.of("local", "routing", "a");
+        final CloudnamePath multi = CloudnamePath.of("multi", "multi", "routing");
+        final CloudnamePath unrouted = CloudnamePath.of("multi", "other", "routing");
+
+        assertThat(BACKEND.createLease(LeaseType.PERMANENT, local, "local"), is(notNullValue()));
+        assertThat(BACKEND.createLease(LeaseType.PERMANENT, multi, "multi"), is(notNullValue()));
+        assertThat(BACKEND.createLease(LeaseType.PERMANENT, unrouted, "default"),
+                is(notNullValue()));
+
+        assertThat(LOCAL.readLeaseData(local), is("local"));
+        assertThat(MULTI.readLeaseData(multi), is("multi"));
+        assertThat(DEFAULT.readLeaseData(unrouted), is("default"));
+        assertThat(DEFAULT.readLeaseData(local), is(nullValue()));
+        assertThat(DEFAULT.readLeaseData(multi), is(nullValue()));
+
+        final Map<CloudnamePath, String> updates = new LinkedHashMap<>();
+        updates.put(unrouted, "default 2");
+        updates.put(local, "local 2");
+        updates.put(multi, "multi 2");
+        final Map<CloudnamePath, Boolean> written = BACKEND.writeLeaseData(updates);
+        assertThat(written.keySet().toArray(), is(updates.keySet().toArray()));
+        written.values().forEach((result) -> assertThat(result, is(true)));
+        assertThat(LOCAL.readLeaseData(local), is("local 2"));
+        assertThat(MULTI.readLeaseData(multi), is("multi 2"));
+        assertThat(DEFAULT.readLeaseData(unrouted), is("default 2"));
+
+        BACKEND.removeLeases(Arrays.asList(local, multi, unrouted))
+                .forEach((path, removed) -> assertThat(removed, is(true)));
+    }
+
+    /**
+     * A listener on a prefix spanning several shards get the events from all of them, but only
+     * once per lease.
+     */
+    @Test
+    public void listenersSpanningShardsGetMergedEvents() throws Exception {
+        final CloudnamePath inMulti = CloudnamePath.of("multi", "multi", "merged");
+        final CloudnamePath inDefault = CloudnamePath.of("multi", "other", "merged");
+        final Set<CloudnamePath> created = ConcurrentHashMap.newKeySet();
+        final Set<CloudnamePath> removed = ConcurrentHashMap.newKeySet();
+        final LeaseListener listener = new LeaseListener() {
+            @Override
+            public void leaseCreated(final CloudnamePath path, final String data) {
+                assertThat("Only one event per lease", created.add(path), is(true));
+            }
+
+            @Override
+            public void leaseRemoved(final CloudnamePath path) {
+                removed.add(path);
+            }
+
+            @Override
+            public void dataChanged(final CloudnamePath path, final String data) {
+            }
+        };
+        BACKEND.addLeaseCollectionListener(CloudnamePath.of("multi"), listener);
+        // A lease in the wrong shard isn't visible through the federated backend
+        MULTI.createLease(LeaseType.PERMANENT, CloudnamePath.of("multi", "stray"), "stray");
+
+        assertThat(BACKEND.createLease(LeaseType.PERMANENT, inMulti, "a"), is(notNullValue()));
+        assertThat(BACKEND.createLease(LeaseType.PERMANENT, inDefault, "b"), is(notNullValue()));
+        assertThat(created.size(), is(2));
+        assertThat(created.contains(inMulti), is(true));
+        assertThat(created.contains(inDefault), is(true));
+
+        assertThat(BACKEND.removeLease(inMulti), is(true));
+        assertThat(BACKEND.removeLease(inDefault), is(true));
+        assertThat(removed.size(), is(2));
+
+        BACKEND.removeLeaseListener(listener);
+        assertThat(BACKEND.createLease(LeaseType.PERMANENT, inMulti, "a"), is(notNullValue()));
+        assertThat(created.size(), is(2));
+        assertThat(BACKEND.removeLease(inMulti), is(true));
+        MULTI.removeLease(CloudnamePath.of("multi", "stray"));
+    }
+
+    @Test
+    public void routingTableFromUrl() throws Exception {
+        final CloudnameBackend backend = BackendManager.createBackend(
+                "federated://local.routing=memory://concurrent;*=memory://");
+        assertThat(backend, is(instanceOf(FederatedBackend.class)));
+        final CloudnamePath routed = CloudnamePath.of("local", "routing", "url");
+        try {
+            assertThat(backend.createLease(LeaseType.PERMANENT, routed, "routed"),
+                    is(notNullValue()));
+            assertThat(backend.readLeaseData(routed), is("routed"));
+            assertThat(backend.removeLease(routed), is(true));
+        } finally {
+            backend.close();
+        }
+    }
+
+    /**
+     * Routes with the same URL share a single shard so leases in the shared backend are only
+     * seen once by listeners and counts spanning the routes.
+     */
+    @Test
+    public void routesWithSameUrlShareShard() throws Exception {
+        final CloudnameBackend backend = BackendManager.createBackend(
+                "federated://first=memory://shared-url;second=memory://shared-url;"
+                        + "*=memory://shared-url-default");
+        final AtomicInteger created = new AtomicInteger(0);
+        final LeaseListener listener = new LeaseListener() {
+            @Override
+            public void leaseCreated(final CloudnamePath path, final String data) {
+                created.incrementAndGet();
+            }
+
+            @Override
+            public void leaseRemoved(final CloudnamePath path) {
+            }
+
+            @Override
+            public void dataChanged(final CloudnamePath path, final String data) {
+            }
+        };
+        final CloudnamePath root = new CloudnamePath(new String[0]);
+        final CloudnamePath first = CloudnamePath.of("first", "lease");
+        final CloudnamePath second = CloudnamePath.of("second", "lease");
+        try {
+            backend.addLeaseCollectionListener(root, listener);
+            assertThat(backend.createLease(LeaseType.PERMANENT, first, "a"), is(notNullValue()));
+            assertThat(backend.createLease(LeaseType.PERMANENT, second, "b"), is(notNullValue()));
+            assertThat(created.get(), is(2));
+            assertThat(backend.countLeases(root), is(2));
+            assertThat(backend.removeLease(first), is(true));
+            assertThat(backend.removeLease(second), is(true));
+        } finally {
+            backend.close();
+        }
+    }
+
+    /**
+     * Shards that are separate handles onto the same store count the leases in the store once.
+     */
+    @Test
+    public void shardsSharingStoreAreCountedOnce() throws Exception {
+        final CloudnameBackend first = BackendManager.getBackend("memory://shared-store");
+        final CloudnameBackend second = BackendManager.getBackend("memory://shared-store");
+        final Map<CloudnamePath, CloudnameBackend> routes = new HashMap<>();
+        routes.put(CloudnamePath.of("first"), first);
+        routes.put(CloudnamePath.of("second"), second);
+        final FederatedBackend backend = new FederatedBackend(routes, null);
+        final CloudnamePath root = new CloudnamePath(new String[0]);
+        final List<Integer> counts = new ArrayList<>();
+        try {
+            assertThat(backend.createLease(LeaseType.PERMANENT, CloudnamePath.of("first", "a"),
+                    "a"), is(notNullValue()));
+            assertThat(backend.createLease(LeaseType.PERMANENT, CloudnamePath.of("second", "b"),
+                    "b"), is(notNullValue()));
+            assertThat(backend.countLeases(root), is(2));
+
+            backend.addLeaseCountListener(root, (prefix, count) -> counts.add(count));
+            assertThat(counts.get(counts.size() - 1), is(2));
+            assertThat(backend.removeLease(CloudnamePath.of("first", "a")), is(true));
+            assertThat(counts.get(counts.size() - 1), is(1));
+            assertThat(backend.removeLease(CloudnamePath.of("second", "b")), is(true));
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownBackendInRoutingTable() {
+        BackendManager.createBackend("federated://local=unknown://;*=memory://");
+    }
+
+    @Test
+    public void unroutedPathsFail() throws Exception {
+        final FederatedBackend backend = new FederatedBackend(
+                Collections.singletonMap(CloudnamePath.of("local"), LOCAL), null);
+        final CloudnamePath unrouted = CloudnamePath.of("elsewhere", "lease");
+        assertThat(backend.createLease(LeaseType.PERMANENT, unrouted, "data"), is(nullValue()));
+        assertThat(backend.writeLeaseData(unrouted, "data"), is(false));
+        assertThat(backend.readLeaseData(unrouted), is(nullValue()));
+        assertThat(backend.removeLease(unrouted), is(false));
+    }
+}
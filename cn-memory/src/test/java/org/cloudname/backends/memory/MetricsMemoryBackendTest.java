@@ -0,0 +1,27 @@
+package org.cloudname.backends.memory;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.metrics.MetricsBackend;
+import org.cloudname.testtools.backend.CoreBackendTest;
+
+import static org.junit.Assert.assertThat;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+
+/**
+ * Run the core backend tests on the memory backend wrapped in the metrics decorator. The
+ * decorator shouldn't change the semantics of the backend.
+ */
+public class MetricsMemoryBackendTest extends CoreBackendTest {
+    private static final CloudnameBackend BACKEND
+            = BackendManager.getBackend("metrics+memory://");
+
+    @Override
+    protected CloudnameBackend getBackend() {
+        assertThat("Expected backend to be registered", BACKEND, is(notNullValue()));
+        assertThat(BACKEND, is(instanceOf(MetricsBackend.class)));
+        return BACKEND;
+    }
+}
@@ -0,0 +1,142 @@
+package org.cloudname.server;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A server exposing a {@link CloudnameBackend} to clients over TCP. Clients connect with the
+ * {@link RemoteBackend} (ie {@code cn://host:port}). See {@link Message} for the protocol.
+ *
+ * <p>Requests from a single connection are processed in order on a worker pool, away from the
+ * I/O threads, so a slow backend doesn't hold up the other connections. Temporary leases belong
+ * to the connection that created them; only that connection can update or remove them and they
+ * are removed when the connection closes.
+ *
+ * <p>The server doesn't own the backend; it isn't closed when the server shuts down.
+ */
+public class CloudnameServer {
+    /**
+     * The port the server listens on if nothing else is specified.
+     */
+    public static final int DEFAULT_PORT = 5454;
+
+    private static final Logger LOG = Logger.getLogger(CloudnameServer.class.getName());
+    private static final int WORKER_THREADS = 16;
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final CloudnameBackend backend;
+    private final int port;
+    private final ChannelGroup channels = new DefaultChannelGroup("cloudname-server");
+    private final Map<CloudnamePath, Channel> temporaryLeaseOwners = new ConcurrentHashMap<>();
+    private final Set<ServerHandler> handlers = ConcurrentHashMap.newKeySet();
+    private final Object syncObject = new Object();
+
+    private ServerBootstrap bootstrap = null;
+    private OrderedMemoryAwareThreadPoolExecutor executor = null;
+    private Channel serverChannel = null;
+
+    /**
+     * Create a server. The server doesn't accept connections until it is started.
+     *
+     * @param backend the backend to expose
+     * @param port the port to listen on; 0 picks a free port
+     * @throws IllegalArgumentException if the backend is null or the port is invalid
+     */
+    public CloudnameServer(final CloudnameBackend backend, final int port) {
+        if (backend == null) {
+            throw new IllegalArgumentException("Backend can not be null");
+        }
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port " + port);
+        }
+        this.backend = backend;
+        this.port = port;
+    }
+
+    /**
+     * Start accepting connections.
+     *
+     * @throws IllegalStateException if the server is already started
+     */
+    public void start() {
+        synchronized (syncObject) {
+            if (bootstrap != null) {
+                throw new IllegalStateException("Server is already started");
+            }
+            executor = new OrderedMemoryAwareThreadPoolExecutor(WORKER_THREADS, 0, 0);
+            final ExecutionHandler executionHandler = new ExecutionHandler(executor);
+            bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                    Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+            bootstrap.setPipelineFactory(() -> {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                MessageCodec.addTo(pipeline);
+                pipeline.addLast("executor", executionHandler);
+                pipeline.addLast("handler",
+                        new ServerHandler(backend, channels, temporaryLeaseOwners, handlers));
+                return pipeline;
+            });
+            bootstrap.setOption("reuseAddress", true);
+            bootstrap.setOption("child.tcpNoDelay", true);
+
+            serverChannel = bootstrap.bind(new InetSocketAddress(port));
+            channels.add(serverChannel);
+            LOG.info("Cloudname server listening on port " + getPort());
+        }
+    }
+
+    /**
+     * The port the server listens on. This is the actual port if the server was created with
+     * port 0.
+     */
+    public int getPort() {
+        synchronized (syncObject) {
+            if (serverChannel == null) {
+                return port;
+            }
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        }
+    }
+
+    /**
+     * Close all connections and stop accepting new ones. The temporary leases held by the
+     * clients are removed.
+     */
+    public void shutdown() {
+        synchronized (syncObject) {
+            if (bootstrap == null) {
+                return;
+            }
+            channels.close().awaitUninterruptibly();
+            // Let the requests that are already queued complete before the leases are released
+            executor.shutdown();
+            try {
+                executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            // The close events might not have been processed by the workers
+            handlers.forEach(ServerHandler::release);
+            bootstrap.releaseExternalResources();
+            bootstrap = null;
+            executor = null;
+            serverChannel = null;
+        }
+    }
+}
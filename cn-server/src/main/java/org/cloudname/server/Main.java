@@ -0,0 +1,44 @@
+package org.cloudname.server;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+
+/**
+ * Run a standalone Cloudname server. The arguments are the port to listen on and the URL of
+ * the backend to expose; they default to {@link CloudnameServer#DEFAULT_PORT} and
+ * {@code memory://concurrent}.
+ */
+public final class Main {
+    private static final String DEFAULT_BACKEND = "memory://concurrent";
+
+    private Main() {
+    }
+
+    /**
+     * Start the server.
+     */
+    public static void main(final String[] args) {
+        if (args.length > 2) {
+            System.err.println("Usage: Main [port] [backend url]");
+            System.exit(1);
+        }
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : CloudnameServer.DEFAULT_PORT;
+        final String backendUrl = args.length > 1 ? args[1] : DEFAULT_BACKEND;
+
+        final CloudnameBackend backend = BackendManager.getBackend(backendUrl);
+        if (backend == null) {
+            System.err.println("Could not create backend " + backendUrl);
+            System.exit(1);
+        }
+        final CloudnameServer server = new CloudnameServer(backend, port);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.shutdown();
+            try {
+                backend.close();
+            } catch (final Exception ex) {
+                // Shutting down anyway
+            }
+        }));
+    }
+}
@@ -0,0 +1,213 @@
+package org.cloudname.server;
+
+import org.cloudname.core.CloudnamePath;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message in the Cloudname server protocol. Messages are sent in frames prefixed with a four
+ * byte length and have the same layout regardless of type:
+ *
+ * <pre>
+ *     [type: byte][id: int][argument: int][version: long][path: string][data: bytes]
+ * </pre>
+ *
+ * <p>Bytes are a four byte length followed by the raw bytes and strings are sent as their UTF-8
+ * bytes. The length is -1 for null values. Paths are sent as their elements joined by slashes.
+ * The lease data is passed through as is so clients can store binary data.
+ *
+ * <p>Clients send requests with a unique id and can send as many requests as they want without
+ * waiting for the responses. The server processes the requests for a connection in order and
+ * sends one {@link Type#RESPONSE} per request with the same id. Events for listeners are pushed
+ * as {@link Type#EVENT} messages where the id is the listener id chosen by the client.
+ *
+ * <table summary="Message types">
+ *     <tr><th>Type</th><th>Argument</th><th>Version</th><th>Path</th><th>Data</th></tr>
+ *     <tr><td>CREATE_LEASE</td><td>lease type</td><td>-</td><td>lease</td><td>data</td></tr>
+ *     <tr><td>REMOVE_LEASE</td><td>-</td><td>-</td><td>lease</td><td>-</td></tr>
+ *     <tr><td>WRITE_DATA</td><td>-</td><td>-</td><td>lease</td><td>data</td></tr>
+ *     <tr><td>READ_DATA</td><td>-</td><td>-</td><td>lease</td><td>-</td></tr>
+ *     <tr><td>ADD_COLLECTION_LISTENER</td><td>listener id</td><td>-</td><td>observed path</td>
+ *     <td>-</td></tr>
+ *     <tr><td>ADD_LEASE_LISTENER</td><td>listener id</td><td>-</td><td>lease</td><td>-</td>
+ *     </tr>
+ *     <tr><td>REMOVE_LISTENER</td><td>listener id</td><td>-</td><td>-</td><td>-</td></tr>
+ *     <tr><td>RESPONSE</td><td>1 if successful</td><td>data version (for versioned reads)</td>
+ *     <td>-</td><td>data (for reads)</td></tr>
+ *     <tr><td>EVENT</td><td>event type</td><td>-</td><td>lease</td><td>data</td></tr>
+ *     <tr><td>WRITE_VERSIONED_DATA</td><td>-</td><td>expected version</td><td>lease</td>
+ *     <td>data</td></tr>
+ *     <tr><td>READ_VERSIONED_DATA</td><td>-</td><td>-</td><td>lease</td><td>-</td></tr>
+ *     <tr><td>COUNT_LEASES</td><td>-</td><td>-</td><td>prefix</td><td>-</td></tr>
+ * </table>
+ *
+ * <p>The response to COUNT_LEASES has the count in the version field. It is unsuccessful if the
+ * server's backend doesn't support counts.
+ *
+ * <p>The leases that exist when a listener is added are sent as a snapshot; one SNAPSHOT_LEASE
+ * event for each lease followed by a SNAPSHOT_END event without a path.
+ *
+ * <p>Temporary leases are tied to the connection that created them and are removed when the
+ * connection closes.
+ */
+class Message {
+    static final int PERMANENT = 0;
+    static final int TEMPORARY = 1;
+
+    static final int LEASE_CREATED = 0;
+    static final int LEASE_REMOVED = 1;
+    static final int DATA_CHANGED = 2;
+    static final int SNAPSHOT_LEASE = 3;
+    static final int SNAPSHOT_END = 4;
+
+    private static final char SEPARATOR = '/';
+
+    /**
+     * The message types.
+     */
+    enum Type {
+        CREATE_LEASE,
+        REMOVE_LEASE,
+        WRITE_DATA,
+        READ_DATA,
+        ADD_COLLECTION_LISTENER,
+        ADD_LEASE_LISTENER,
+        REMOVE_LISTENER,
+        RESPONSE,
+        EVENT,
+        WRITE_VERSIONED_DATA,
+        READ_VERSIONED_DATA,
+        COUNT_LEASES
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private final int id;
+    private final int argument;
+    private final long version;
+    private final CloudnamePath path;
+    private final byte[] data;
+
+    Message(final Type type, final int id, final int argument,
+            final CloudnamePath path, final byte[] data) {
+        this(type, id, argument, 0L, path, data);
+    }
+
+    Message(final Type type, final int id, final int argument, final long version,
+            final CloudnamePath path, final byte[] data) {
+        this.type = type;
+        this.id = id;
+        this.argument = argument;
+        this.version = version;
+        this.path = path;
+        this.data = data;
+    }
+
+    /**
+     * Create a response to a request.
+     */
+    static Message response(final int id, final boolean success, final byte[] data) {
+        return new Message(Type.RESPONSE, id, success ? 1 : 0, null, data);
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getArgument() {
+        return argument;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    CloudnamePath getPath() {
+        return path;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Check if a response signals success.
+     */
+    boolean isSuccess() {
+        return argument != 0;
+    }
+
+    /**
+     * Encode the message. The frame length is added by the pipeline.
+     */
+    ChannelBuffer encode() {
+        final byte[] pathBytes = (path == null
+                ? null : path.join(SEPARATOR).getBytes(StandardCharsets.UTF_8));
+        final ChannelBuffer buffer = ChannelBuffers.buffer(1 + 4 + 4 + 8
+                + 4 + (pathBytes == null ? 0 : pathBytes.length)
+                + 4 + (data == null ? 0 : data.length));
+        buffer.writeByte(type.ordinal());
+        buffer.writeInt(id);
+        buffer.writeInt(argument);
+        buffer.writeLong(version);
+        writeBytes(buffer, pathBytes);
+        writeBytes(buffer, data);
+        return buffer;
+    }
+
+    private static void writeBytes(final ChannelBuffer buffer, final byte[] bytes) {
+        if (bytes == null) {
+            buffer.writeInt(-1);
+            return;
+        }
+        buffer.writeInt(bytes.length);
+        buffer.writeBytes(bytes);
+    }
+
+    /**
+     * Decode a message.
+     *
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    static Message decode(final ChannelBuffer buffer) {
+        final int typeIndex = buffer.readUnsignedByte();
+        if (typeIndex >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown message type " + typeIndex);
+        }
+        final int id = buffer.readInt();
+        final int argument = buffer.readInt();
+        final long version = buffer.readLong();
+        final byte[] pathBytes = readBytes(buffer);
+        final byte[] data = readBytes(buffer);
+        final CloudnamePath path = (pathBytes == null ? null : CloudnamePath.parse(
+                new String(pathBytes, StandardCharsets.UTF_8), 0, SEPARATOR));
+        return new Message(TYPES[typeIndex], id, argument, version, path, data);
+    }
+
+    private static byte[] readBytes(final ChannelBuffer buffer) {
+        final int length = buffer.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.readableBytes()) {
+            throw new IllegalArgumentException("Field length " + length + " exceeds message");
+        }
+        final byte[] bytes = new byte[length];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Message{type=" + type + ", id=" + id + ", argument=" + argument
+                + ", version=" + version + ", path=" + path
+                + ", data=" + (data == null ? "null" : data.length + " bytes") + "}";
+    }
+}
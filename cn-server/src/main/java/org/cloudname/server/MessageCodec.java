@@ -0,0 +1,64 @@
+package org.cloudname.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+
+/**
+ * Encoding and decoding of {@link Message}s. The same handlers are used by the server and the
+ * client.
+ */
+final class MessageCodec {
+    /**
+     * The largest frame accepted. Lease data is usually a few hundred bytes so anything near
+     * this is most likely garbage.
+     */
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Add the framing and message handlers to a pipeline.
+     */
+    static void addTo(final ChannelPipeline pipeline) {
+        pipeline.addLast("frameDecoder",
+                new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+        pipeline.addLast("messageDecoder", new Decoder());
+        pipeline.addLast("frameEncoder", new LengthFieldPrepender(4));
+        pipeline.addLast("messageEncoder", new Encoder());
+    }
+
+    /**
+     * Turns frames into messages.
+     */
+    private static class Decoder extends OneToOneDecoder {
+        @Override
+        protected Object decode(
+                final ChannelHandlerContext ctx, final Channel channel, final Object msg) {
+            if (!(msg instanceof ChannelBuffer)) {
+                return msg;
+            }
+            return Message.decode((ChannelBuffer) msg);
+        }
+    }
+
+    /**
+     * Turns messages into frames.
+     */
+    private static class Encoder extends OneToOneEncoder {
+        @Override
+        protected Object encode(
+                final ChannelHandlerContext ctx, final Channel channel, final Object msg) {
+            if (!(msg instanceof Message)) {
+                return msg;
+            }
+            return ((Message) msg).encode();
+        }
+    }
+}
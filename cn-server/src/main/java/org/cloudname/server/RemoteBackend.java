@@ -0,0 +1,667 @@
+package org.cloudname.server;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseCountListener;
+import org.cloudname.core.LeaseCountTracker;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A backend talking to a {@link CloudnameServer}. Requests are pipelined; each request gets an
+ * id and the caller gets a future that completes when the response with the same id arrives.
+ * The blocking operations wait for the future. Requests that aren't answered within the request
+ * timeout fail the same way as requests sent when the connection is lost. Batch operations send
+ * every request before waiting for the first response so a batch costs a single round trip.
+ *
+ * <p>Temporary leases are tied to the connection and are removed by the server when the
+ * connection closes. Lease notifications are pushed by the server and the listeners are invoked
+ * on a single thread in the order the server sent them. Snapshots are collected and delivered
+ * once the server has sent all of the leases. Futures complete on the network thread
+ * so dependent actions must not block.
+ *
+ * <p>{@link #close()} removes the listeners; {@link #shutdown()} closes the connection.
+ */
+public class RemoteBackend implements CloudnameBackend {
+    private static final Logger LOG = Logger.getLogger(RemoteBackend.class.getName());
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int REQUEST_TIMEOUT_MS = 10000;
+
+    private final int requestTimeoutMs;
+    private final ClientBootstrap bootstrap;
+    private final Channel channel;
+    private final AtomicInteger nextId = new AtomicInteger(0);
+    private final Map<Integer, CompletableFuture<Message>> pendingRequests
+            = new ConcurrentHashMap<>();
+    private final Map<Integer, LeaseListener> listeners = new ConcurrentHashMap<>();
+    // Count listeners are backed by collection listeners on the server
+    private final LeaseCountTracker countTracker = new LeaseCountTracker(this);
+    // Snapshots being received, keyed on listener id. Only used by the listener thread.
+    private final Map<Integer, Map<CloudnamePath, byte[]>> snapshots = new HashMap<>();
+    private final ExecutorService listenerExecutor
+            = Executors.newSingleThreadExecutor((runnable) -> {
+                final Thread thread = new Thread(runnable, "cn-remote-listeners");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // Fails requests the server doesn't answer in time
+    private final ScheduledThreadPoolExecutor timeoutScheduler
+            = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+                final Thread thread = new Thread(runnable, "cn-remote-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Connect to a server.
+     *
+     * @param host the host name of the server
+     * @param port the port the server listens on
+     * @throws IllegalArgumentException if the host is null
+     * @throws IllegalStateException if the server isn't available
+     */
+    public RemoteBackend(final String host, final int port) {
+        this(host, port, REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Connect to a server with a custom request timeout.
+     *
+     * @param requestTimeoutMs the time to wait for a response in milliseconds
+     */
+    /* package-private */ RemoteBackend(
+            final String host, final int port, final int requestTimeoutMs) {
+        if (host == null) {
+            throw new IllegalArgumentException("Host can not be null");
+        }
+        this.requestTimeoutMs = requestTimeoutMs;
+        // Most requests are answered long before they time out
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+        bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        bootstrap.setPipelineFactory(() -> {
+            final ChannelPipeline pipeline = Channels.pipeline();
+            MessageCodec.addTo(pipeline);
+            pipeline.addLast("handler", new ClientHandler());
+            return pipeline;
+        });
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setOption("connectTimeoutMillis", CONNECT_TIMEOUT_MS);
+
+        final ChannelFuture connect = bootstrap.connect(new InetSocketAddress(host, port));
+        if (!connect.awaitUninterruptibly().isSuccess()) {
+            bootstrap.releaseExternalResources();
+            listenerExecutor.shutdown();
+            timeoutScheduler.shutdown();
+            throw new IllegalStateException(
+                    "Could not connect to Cloudname server at " + host + ":" + port,
+                    connect.getCause());
+        }
+        channel = connect.getChannel();
+        LOG.info("Connected to Cloudname server @ " + host + ":" + port);
+    }
+
+    /**
+     * Send a request.
+     *
+     * @return a future with the response or null if the connection is lost
+     */
+    private CompletableFuture<Message> send(final Message.Type type, final int argument,
+            final CloudnamePath path, final byte[] data) {
+        return send(type, argument, 0L, path, data);
+    }
+
+    /**
+     * Send a request with a data version.
+     *
+     * @return a future with the response or null if the connection is lost or the request times
+     *     out
+     */
+    private CompletableFuture<Message> send(final Message.Type type, final int argument,
+            final long version, final CloudnamePath path, final byte[] data) {
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        final int id = nextId.incrementAndGet();
+        pendingRequests.put(id, future);
+        if (!channel.isOpen()) {
+            // The close event might have completed the pending requests already
+            pendingRequests.remove(id);
+            future.complete(null);
+            return future;
+        }
+        try {
+            final ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> {
+                if (pendingRequests.remove(id, future)) {
+                    LOG.warning("Request " + id + " to Cloudname server timed out");
+                    future.complete(null);
+                }
+            }, requestTimeoutMs, TimeUnit.MILLISECONDS);
+            future.whenComplete((response, error) -> timeout.cancel(false));
+        } catch (final RejectedExecutionException ex) {
+            // Shutting down
+            pendingRequests.remove(id);
+            future.complete(null);
+            return future;
+        }
+        final Message request = new Message(type, id, argument, version, path, data);
+        channel.write(request).addListener((writeFuture) -> {
+            if (!writeFuture.isSuccess()) {
+                LOG.log(Level.WARNING, "Could not send request", writeFuture.getCause());
+                pendingRequests.remove(id);
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send a request and map successful responses to a value.
+     */
+    private CompletableFuture<Boolean> sendForSuccess(final Message.Type type, final int argument,
+            final CloudnamePath path, final byte[] data) {
+        return send(type, argument, path, data)
+                .thenApply((response) -> response != null && response.isSuccess());
+    }
+
+    /**
+     * Wait for the result of a request. Requests time out in {@link #send}; there's no timeout
+     * here since the future always completes.
+     *
+     * @return the result or the failure value if the request fails or the thread is interrupted
+     */
+    private static <T> T await(final CompletableFuture<T> future, final T failureValue) {
+        try {
+            return future.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return failureValue;
+        } catch (final ExecutionException ex) {
+            LOG.log(Level.WARNING, "Request to Cloudname server failed", ex);
+            return failureValue;
+        }
+    }
+
+    @Override
+    public LeaseHandle createLease(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return await(createLeaseAsync(type, path, data), null);
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        return await(createBinaryLeaseAsync(type, path, data), null);
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return createBinaryLeaseAsync(type, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        if (type == null || path == null || data == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final int argument = (type == LeaseType.TEMPORARY ? Message.TEMPORARY : Message.PERMANENT);
+        return send(Message.Type.CREATE_LEASE, argument, path, data).thenApply((response) -> {
+            if (response == null || !response.isSuccess()) {
+                return null;
+            }
+            return new RemoteLeaseHandle(response.getPath(), type);
+        });
+    }
+
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        final Map<CloudnamePath, LeaseHandle> ret = new LinkedHashMap<>();
+        if (type == null || leases == null) {
+            return ret;
+        }
+        final Map<CloudnamePath, CompletableFuture<LeaseHandle>> futures = new LinkedHashMap<>();
+        leases.forEach((path, data) -> futures.put(path, createLeaseAsync(type, path, data)));
+        futures.forEach((path, future) -> ret.put(path, await(future, null)));
+        return ret;
+    }
+
+    @Override
+    public boolean removeLease(final CloudnamePath path) {
+        return await(removeLeaseAsync(path), false);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        if (path == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return sendForSuccess(Message.Type.REMOVE_LEASE, 0, path, null);
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (paths == null) {
+            return ret;
+        }
+        final Map<CloudnamePath, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+        paths.forEach((path) -> futures.put(path, removeLeaseAsync(path)));
+        futures.forEach((path, future) -> ret.put(path, await(future, false)));
+        return ret;
+    }
+
+    @Override
+    public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        return await(writeLeaseDataAsync(path, data), false);
+    }
+
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        return await(writeLeaseDataAsync(path, data, expectedVersion), false);
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (leaseData == null) {
+            return ret;
+        }
+        final Map<CloudnamePath, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+        leaseData.forEach((path, data) -> futures.put(path, writeLeaseDataAsync(path, data)));
+        futures.forEach((path, future) -> ret.put(path, await(future, false)));
+        return ret;
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        return await(writeBinaryLeaseDataAsync(path, data), false);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data) {
+        return writeBinaryLeaseDataAsync(path, LeaseData.encode(data));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        if (path == null || data == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return send(Message.Type.WRITE_VERSIONED_DATA, 0, expectedVersion, path,
+                LeaseData.encode(data))
+                .thenApply((response) -> response != null && response.isSuccess());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeBinaryLeaseDataAsync(
+            final CloudnamePath path, final byte[] data) {
+        if (path == null || data == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return sendForSuccess(Message.Type.WRITE_DATA, 0, path, data);
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path) {
+        return await(readLeaseDataAsync(path), null);
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        return await(readBinaryLeaseDataAsync(path), null);
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(final CloudnamePath path) {
+        return readBinaryLeaseDataAsync(path).thenApply(LeaseData::decode);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(final CloudnamePath path) {
+        if (path == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return send(Message.Type.READ_DATA, 0, path, null).thenApply((response) ->
+                (response == null || !response.isSuccess()) ? null : response.getData());
+    }
+
+    /**
+     * Read lease data with its version. The server doesn't keep a local copy of the leases for
+     * the client so all reads are linearizable.
+     */
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return await(readVersionedLeaseDataAsync(path, consistency), null);
+    }
+
+    @Override
+    public CompletableFuture<VersionedData> readVersionedLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return send(Message.Type.READ_VERSIONED_DATA, 0, path, null).thenApply((response) ->
+                (response == null || !response.isSuccess())
+                        ? null : new VersionedData(
+                                LeaseData.decode(response.getData()), response.getVersion()));
+    }
+
+    @Override
+    public void addLeaseCollectionListener(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        await(addLeaseCollectionListenerAsync(pathToWatch, listener), null);
+    }
+
+    @Override
+    public void addLeaseListener(final CloudnamePath pathToObserve, final LeaseListener listener) {
+        await(addLeaseListenerAsync(pathToObserve, listener), null);
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+            final CloudnamePath pathToWatch, final LeaseListener listener) {
+        return addListener(Message.Type.ADD_COLLECTION_LISTENER, pathToWatch, listener);
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseListenerAsync(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        return addListener(Message.Type.ADD_LEASE_LISTENER, pathToObserve, listener);
+    }
+
+    /**
+     * Register a listener. The listener is registered locally first since the server might
+     * send events before the response.
+     */
+    private CompletableFuture<Void> addListener(final Message.Type type,
+            final CloudnamePath path, final LeaseListener listener) {
+        if (path == null || listener == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final int listenerId = nextId.incrementAndGet();
+        listeners.put(listenerId, listener);
+        return send(type, listenerId, path, null).thenAccept((response) -> {
+            if (response == null || !response.isSuccess()) {
+                LOG.warning("Could not add listener for " + path);
+                listeners.remove(listenerId);
+                dropSnapshot(listenerId);
+            }
+        });
+    }
+
+    @Override
+    public void removeLeaseListener(final LeaseListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        listeners.forEach((listenerId, registered) -> {
+            if (registered.equals(listener) && listeners.remove(listenerId, registered)) {
+                dropSnapshot(listenerId);
+                futures.add(sendForSuccess(Message.Type.REMOVE_LISTENER, listenerId, null, null));
+            }
+        });
+        futures.forEach((future) -> await(future, false));
+    }
+
+    /**
+     * Drop the partially received snapshot of a removed listener. This is done on the listener
+     * thread since it is the only thread using the snapshots; events for the listener that
+     * arrive later are dropped by {@link #dispatchEvent(Message)}.
+     */
+    private void dropSnapshot(final int listenerId) {
+        onListenerThread(() -> snapshots.remove(listenerId));
+    }
+
+    private void onListenerThread(final Runnable task) {
+        try {
+            listenerExecutor.execute(task);
+        } catch (final RejectedExecutionException ex) {
+            // Shut down; the snapshots are cleared when the listener thread stops
+            LOG.log(Level.FINE, "Listener thread rejected task", ex);
+        }
+    }
+
+    /**
+     * Count the leases below a path. The server counts the leases in its backend.
+     *
+     * @throws UnsupportedOperationException if the server's backend doesn't support counts
+     */
+    @Override
+    public int countLeases(final CloudnamePath prefix) {
+        if (prefix == null) {
+            return 0;
+        }
+        final Message response = await(send(Message.Type.COUNT_LEASES, 0, prefix, null), null);
+        if (response == null) {
+            return 0;
+        }
+        if (!response.isSuccess()) {
+            throw new UnsupportedOperationException("Server backend doesn't support lease counts");
+        }
+        return (int) response.getVersion();
+    }
+
+    /**
+     * Listen to the number of leases below a path. The counts are maintained locally from the
+     * events of a collection listener on the server; only the lease paths are kept.
+     */
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        countTracker.addListener(prefix, listener);
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        countTracker.removeListener(listener);
+    }
+
+    /**
+     * Remove all listeners. The connection stays open and the temporary leases are kept; use
+     * {@link #shutdown()} to disconnect.
+     */
+    @Override
+    public void close() {
+        countTracker.removeAll();
+        new ArrayList<>(listeners.values()).forEach(this::removeLeaseListener);
+    }
+
+    /**
+     * Close the connection to the server. The server removes the temporary leases created
+     * through this backend.
+     */
+    public void shutdown() {
+        channel.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+        // Pending events are still delivered; drop the snapshots that won't be completed
+        onListenerThread(snapshots::clear);
+        listenerExecutor.shutdown();
+        timeoutScheduler.shutdown();
+    }
+
+    /**
+     * The number of requests waiting for a response.
+     */
+    /* package-private */ int getPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    /**
+     * Receives responses and events from the server.
+     */
+    private class ClientHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent event) {
+            final Message message = (Message) event.getMessage();
+            if (message.getType() == Message.Type.RESPONSE) {
+                final CompletableFuture<Message> future = pendingRequests.remove(message.getId());
+                if (future == null) {
+                    LOG.warning("Got response to unknown request: " + message);
+                    return;
+                }
+                future.complete(message);
+                return;
+            }
+            if (message.getType() == Message.Type.EVENT) {
+                listenerExecutor.execute(() -> dispatchEvent(message));
+                return;
+            }
+            LOG.warning("Got unexpected message from server: " + message);
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent event) {
+            LOG.info("Connection to Cloudname server closed");
+            pendingRequests.keySet().forEach((id) -> {
+                final CompletableFuture<Message> future = pendingRequests.remove(id);
+                if (future != null) {
+                    future.complete(null);
+                }
+            });
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent event) {
+            LOG.log(Level.WARNING, "Got exception from Cloudname server connection; closing",
+                    event.getCause());
+            event.getChannel().close();
+        }
+    }
+
+    private void dispatchEvent(final Message event) {
+        final LeaseListener listener = listeners.get(event.getId());
+        if (listener == null) {
+            // Removed while the event was in flight
+            snapshots.remove(event.getId());
+            return;
+        }
+        try {
+            switch (event.getArgument()) {
+                case Message.SNAPSHOT_LEASE:
+                    snapshots.computeIfAbsent(event.getId(), (id) -> new LinkedHashMap<>())
+                            .put(event.getPath(), event.getData());
+                    break;
+                case Message.SNAPSHOT_END:
+                    final Map<CloudnamePath, byte[]> snapshot = snapshots.remove(event.getId());
+                    listener.leaseSnapshot(snapshot == null ? new LinkedHashMap<>() : snapshot);
+                    break;
+                case Message.LEASE_CREATED:
+                    listener.binaryLeaseCreated(event.getPath(), event.getData());
+                    break;
+                case Message.LEASE_REMOVED:
+                    listener.leaseRemoved(event.getPath());
+                    break;
+                case Message.DATA_CHANGED:
+                    listener.binaryDataChanged(event.getPath(), event.getData());
+                    break;
+                default:
+                    LOG.warning("Got unknown event from server: " + event);
+                    break;
+            }
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Got exception from listener", ex);
+        }
+    }
+
+    /**
+     * Handle for leases created through the server. Closing a temporary lease removes it;
+     * permanent leases must be removed explicitly.
+     */
+    private class RemoteLeaseHandle implements LeaseHandle {
+        private final CloudnamePath leasePath;
+        private final LeaseType type;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        RemoteLeaseHandle(final CloudnamePath leasePath, final LeaseType type) {
+            this.leasePath = leasePath;
+            this.type = type;
+        }
+
+        @Override
+        public boolean writeData(final String data) {
+            return await(writeDataAsync(data), false);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeDataAsync(final String data) {
+            if (closed.get()) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return writeLeaseDataAsync(leasePath, data);
+        }
+
+        @Override
+        public boolean writeBinaryData(final byte[] data) {
+            return await(writeBinaryDataAsync(data), false);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> writeBinaryDataAsync(final byte[] data) {
+            if (closed.get()) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return writeBinaryLeaseDataAsync(leasePath, data);
+        }
+
+        @Override
+        public CloudnamePath getLeasePath() {
+            if (closed.get()) {
+                return null;
+            }
+            return leasePath;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (type == LeaseType.PERMANENT || !closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (!removeLease(leasePath)) {
+                throw new IOException("Could not remove lease " + leasePath);
+            }
+        }
+    }
+}
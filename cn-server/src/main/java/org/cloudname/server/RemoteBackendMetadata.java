@@ -0,0 +1,37 @@
+package org.cloudname.server;
+
+import org.cloudname.core.BackendMetadata;
+import org.cloudname.core.CloudnameBackend;
+
+import java.util.function.Function;
+
+/**
+ * Metadata for the client talking to a {@link CloudnameServer}. The connection string is the
+ * host name and port of the server, ie {@code cn://localhost:5454}. The port defaults to
+ * {@link CloudnameServer#DEFAULT_PORT}.
+ */
+public class RemoteBackendMetadata implements BackendMetadata {
+    @Override
+    public String getName() {
+        return "cn";
+    }
+
+    @Override
+    public Function<String, CloudnameBackend> getFactoryMethod() {
+        return (connectionString) -> {
+            if (connectionString == null || connectionString.isEmpty()) {
+                throw new IllegalArgumentException("The cn backend needs a host name");
+            }
+            final int separator = connectionString.lastIndexOf(':');
+            if (separator < 0) {
+                return new RemoteBackend(connectionString, CloudnameServer.DEFAULT_PORT);
+            }
+            try {
+                return new RemoteBackend(connectionString.substring(0, separator),
+                        Integer.parseInt(connectionString.substring(separator + 1)));
+            } catch (final NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid port in " + connectionString, ex);
+            }
+        };
+    }
+}
@@ -0,0 +1,304 @@
+package org.cloudname.server;
+
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles the requests from a single connection. The handler keeps track of the listeners and
+ * temporary leases created through the connection and removes them when the connection closes.
+ */
+class ServerHandler extends SimpleChannelUpstreamHandler {
+    private static final Logger LOG = Logger.getLogger(ServerHandler.class.getName());
+
+    private final CloudnameBackend backend;
+    private final ChannelGroup channels;
+    private final Map<CloudnamePath, Channel> temporaryLeaseOwners;
+    private final Set<ServerHandler> handlers;
+
+    private final Map<Integer, LeaseListener> listeners = new ConcurrentHashMap<>();
+    private final Map<CloudnamePath, LeaseHandle> temporaryLeases = new ConcurrentHashMap<>();
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private volatile Channel channel = null;
+
+    /**
+     * Create a handler for a new connection.
+     *
+     * @param backend the backend serving the requests
+     * @param channels every open channel on the server
+     * @param temporaryLeaseOwners the owners of the temporary leases, shared by all connections
+     * @param handlers the active handlers on the server
+     */
+    ServerHandler(final CloudnameBackend backend, final ChannelGroup channels,
+            final Map<CloudnamePath, Channel> temporaryLeaseOwners,
+            final Set<ServerHandler> handlers) {
+        this.backend = backend;
+        this.channels = channels;
+        this.temporaryLeaseOwners = temporaryLeaseOwners;
+        this.handlers = handlers;
+    }
+
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent event) {
+        channel = event.getChannel();
+        channels.add(channel);
+        handlers.add(this);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent event) {
+        release();
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent event) {
+        LOG.log(Level.WARNING, "Closing connection from " + event.getChannel().getRemoteAddress()
+                + " after exception", event.getCause());
+        event.getChannel().close();
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent event) {
+        final Message request = (Message) event.getMessage();
+        event.getChannel().write(process(request));
+    }
+
+    /**
+     * Process a single request.
+     *
+     * @return the response to the request
+     */
+    private Message process(final Message request) {
+        final int id = request.getId();
+        final CloudnamePath path = request.getPath();
+        switch (request.getType()) {
+            case CREATE_LEASE:
+                return createLease(id, request.getArgument() == Message.TEMPORARY
+                        ? LeaseType.TEMPORARY : LeaseType.PERMANENT, path, request.getData());
+
+            case REMOVE_LEASE:
+                return Message.response(id, removeLease(path), null);
+
+            case WRITE_DATA:
+                if (isOwnedByOther(path)) {
+                    return Message.response(id, false, null);
+                }
+                return Message.response(
+                        id, backend.writeBinaryLeaseData(path, request.getData()), null);
+
+            case READ_DATA:
+                final byte[] data = backend.readBinaryLeaseData(path);
+                return Message.response(id, data != null, data);
+
+            case WRITE_VERSIONED_DATA:
+                if (isOwnedByOther(path)) {
+                    return Message.response(id, false, null);
+                }
+                return Message.response(id, writeVersionedData(request), null);
+
+            case READ_VERSIONED_DATA:
+                return readVersionedData(id, path);
+
+            case COUNT_LEASES:
+                return countLeases(id, path);
+
+            case ADD_COLLECTION_LISTENER:
+            case ADD_LEASE_LISTENER:
+                return Message.response(id, addListener(request), null);
+
+            case REMOVE_LISTENER:
+                final LeaseListener listener = listeners.remove(request.getArgument());
+                if (listener != null) {
+                    backend.removeLeaseListener(listener);
+                }
+                return Message.response(id, listener != null, null);
+
+            default:
+                LOG.warning("Got unexpected message from client: " + request);
+                return Message.response(id, false, null);
+        }
+    }
+
+    private Message createLease(
+            final int id, final LeaseType type, final CloudnamePath path, final byte[] data) {
+        final LeaseHandle handle = backend.createBinaryLease(type, path, data);
+        if (handle == null) {
+            return Message.response(id, false, null);
+        }
+        final CloudnamePath leasePath = handle.getLeasePath();
+        if (type == LeaseType.TEMPORARY) {
+            temporaryLeases.put(leasePath, handle);
+            temporaryLeaseOwners.put(leasePath, channel);
+        }
+        return new Message(Message.Type.RESPONSE, id, 1, leasePath, null);
+    }
+
+    private boolean removeLease(final CloudnamePath path) {
+        if (path == null || isOwnedByOther(path)) {
+            return false;
+        }
+        final LeaseHandle handle = temporaryLeases.remove(path);
+        if (handle == null) {
+            return backend.removeLease(path);
+        }
+        temporaryLeaseOwners.remove(path, channel);
+        return closeLease(handle);
+    }
+
+    /**
+     * Check if a lease is a temporary lease owned by another connection.
+     */
+    private boolean isOwnedByOther(final CloudnamePath path) {
+        if (path == null) {
+            return false;
+        }
+        final Channel owner = temporaryLeaseOwners.get(path);
+        return owner != null && owner != channel;
+    }
+
+    private boolean closeLease(final LeaseHandle handle) {
+        try {
+            handle.close();
+            return true;
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception closing lease " + handle.getLeasePath(), ex);
+            return false;
+        }
+    }
+
+    private boolean writeVersionedData(final Message request) {
+        try {
+            return backend.writeLeaseData(
+                    request.getPath(), LeaseData.decode(request.getData()), request.getVersion());
+        } catch (final UnsupportedOperationException ex) {
+            LOG.log(Level.FINE, "Backend doesn't support versioned writes", ex);
+            return false;
+        }
+    }
+
+    private Message readVersionedData(final int id, final CloudnamePath path) {
+        final VersionedData versionedData;
+        try {
+            versionedData = backend.readVersionedLeaseData(path, ReadConsistency.LINEARIZABLE);
+        } catch (final UnsupportedOperationException ex) {
+            LOG.log(Level.FINE, "Backend doesn't support versioned reads", ex);
+            return Message.response(id, false, null);
+        }
+        if (versionedData == null) {
+            return Message.response(id, false, null);
+        }
+        return new Message(Message.Type.RESPONSE, id, 1, versionedData.getVersion(),
+                null, LeaseData.encode(versionedData.getData()));
+    }
+
+    private Message countLeases(final int id, final CloudnamePath path) {
+        try {
+            return new Message(Message.Type.RESPONSE, id, 1, backend.countLeases(path),
+                    null, null);
+        } catch (final UnsupportedOperationException ex) {
+            LOG.log(Level.FINE, "Backend doesn't support lease counts", ex);
+            return Message.response(id, false, null);
+        }
+    }
+
+    private boolean addListener(final Message request) {
+        final CloudnamePath path = request.getPath();
+        final int listenerId = request.getArgument();
+        if (path == null || listeners.containsKey(listenerId)) {
+            return false;
+        }
+        final LeaseListener listener = new EventSender(listenerId);
+        listeners.put(listenerId, listener);
+        if (request.getType() == Message.Type.ADD_COLLECTION_LISTENER) {
+            backend.addLeaseCollectionListener(path, listener);
+        } else {
+            backend.addLeaseListener(path, listener);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the listeners and temporary leases created through this connection. This is
+     * called when the connection closes and might be called again when the server shuts down.
+     */
+    void release() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        handlers.remove(this);
+        listeners.values().forEach(backend::removeLeaseListener);
+        listeners.clear();
+        temporaryLeases.forEach((path, handle) -> {
+            temporaryLeaseOwners.remove(path, channel);
+            closeLease(handle);
+        });
+        temporaryLeases.clear();
+    }
+
+    /**
+     * Sends the notifications for a listener to the client.
+     */
+    private class EventSender implements LeaseListener {
+        private final int listenerId;
+
+        EventSender(final int listenerId) {
+            this.listenerId = listenerId;
+        }
+
+        private void send(final int eventType, final CloudnamePath path, final byte[] data) {
+            if (channel.isOpen()) {
+                channel.write(new Message(Message.Type.EVENT, listenerId, eventType, path, data));
+            }
+        }
+
+        @Override
+        public void leaseSnapshot(final Map<CloudnamePath, byte[]> leases) {
+            leases.forEach((path, data) -> send(Message.SNAPSHOT_LEASE, path, data));
+            send(Message.SNAPSHOT_END, null, null);
+        }
+
+        @Override
+        public void leaseCreated(final CloudnamePath path, final String data) {
+            send(Message.LEASE_CREATED, path, LeaseData.encode(data));
+        }
+
+        @Override
+        public void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+            send(Message.LEASE_CREATED, path, data);
+        }
+
+        @Override
+        public void leaseRemoved(final CloudnamePath path) {
+            send(Message.LEASE_REMOVED, path, null);
+        }
+
+        @Override
+        public void dataChanged(final CloudnamePath path, final String data) {
+            send(Message.DATA_CHANGED, path, LeaseData.encode(data));
+        }
+
+        @Override
+        public void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+            send(Message.DATA_CHANGED, path, data);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.cloudname.server;
+
+import org.cloudname.backends.memory.ConcurrentMemoryBackend;
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseHandle;
+import org.cloudname.core.LeaseListener;
+import org.cloudname.core.LeaseType;
+import org.cloudname.testtools.backend.CoreBackendTest;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Run the core backend tests through a server hosting a memory backend.
+ */
+public class RemoteBackendTest extends CoreBackendTest {
+    private static final CloudnameServer SERVER;
+    private static final CloudnameBackend BACKEND;
+
+    static {
+        SERVER = new CloudnameServer(new ConcurrentMemoryBackend(), 0);
+        SERVER.start();
+        BACKEND = BackendManager.createBackend("cn://localhost:" + SERVER.getPort());
+    }
+
+    private final CloudnamePath root = new CloudnamePath(new String[] {"remote", "test"});
+
+    @Override
+    protected CloudnameBackend getBackend() {
+        assertThat("Expected backend to be registered", BACKEND, is(notNullValue()));
+        assertThat(BACKEND, is(instanceOf(RemoteBackend.class)));
+        return BACKEND;
+    }
+
+    @Test
+    public void temporaryLeasesAreRemovedOnDisconnect() throws Exception {
+        final CloudnamePath temporary = new CloudnamePath(root, "temporary");
+        final CloudnamePath permanent = new CloudnamePath(root, "permanent");
+        final CountDownLatch removeLatch = new CountDownLatch(1);
+        final LeaseListener listener = new LeaseListener() {
+            @Override
+            public void leaseCreated(final CloudnamePath path, final String data) {
+            }
+
+            @Override
+            public void leaseRemoved(final CloudnamePath path) {
+                if (path.equals(temporary)) {
+                    removeLatch.countDown();
+                }
+            }
+
+            @Override
+            public void dataChanged(final CloudnamePath path, final String data) {
+            }
+        };
+        BACKEND.addLeaseCollectionListener(root, listener);
+
+        final RemoteBackend client = new RemoteBackend("localhost", SERVER.getPort());
+        assertThat(client.createLease(LeaseType.TEMPORARY, temporary, "temporary"),
+                is(notNullValue()));
+        assertThat(client.createLease(LeaseType.PERMANENT, permanent, "permanent"),
+                is(notNullValue()));
+        assertThat(BACKEND.readLeaseData(temporary), is("temporary"));
+
+        client.shutdown();
+        assertTrue(removeLatch.await(1000, TimeUnit.MILLISECONDS));
+        assertThat(BACKEND.readLeaseData(temporary), is(nullValue()));
+        assertThat(BACKEND.readLeaseData(permanent), is("permanent"));
+        assertThat(client.readLeaseData(permanent), is(nullValue()));
+
+        BACKEND.removeLeaseListener(listener);
+        assertThat(BACKEND.removeLease(permanent), is(true));
+    }
+
+    @Test
+    public void temporaryLeasesBelongToConnection() throws Exception {
+        final CloudnamePath temporary = new CloudnamePath(root, "owned");
+        final RemoteBackend other = new RemoteBackend("localhost", SERVER.getPort());
+        try {
+            final LeaseHandle handle = BACKEND.createLease(LeaseType.TEMPORARY, temporary, "mine");
+            assertThat(handle, is(notNullValue()));
+            assertThat(other.readLeaseData(temporary), is("mine"));
+            assertThat(other.writeLeaseData(temporary, "theirs"), is(false));
+            assertThat(other.removeLease(temporary), is(false));
+            assertThat(BACKEND.readLeaseData(temporary), is("mine"));
+            handle.close();
+            assertThat(other.readLeaseData(temporary), is(nullValue()));
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    /**
+     * Requests are sent without waiting for the responses; the responses are matched with the
+     * requests and the server processes them in order.
+     */
+    @Test
+    public void pipelinedRequests() throws Exception {
+        final CloudnamePath lease = new CloudnamePath(root, "pipelined");
+        final int numRequests = 500;
+        BACKEND.removeLease(lease);
+        assertThat(BACKEND.createLease(LeaseType.PERMANENT, lease, "0"), is(notNullValue()));
+
+        final List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+        final List<CompletableFuture<String>> reads = new ArrayList<>();
+        for (int i = 1; i <= numRequests; i++) {
+            writes.add(BACKEND.writeLeaseDataAsync(lease, Integer.toString(i)));
+            reads.add(BACKEND.readLeaseDataAsync(lease));
+        }
+        for (int i = 0; i < numRequests; i++) {
+            assertThat(writes.get(i).get(1000, TimeUnit.MILLISECONDS), is(true));
+            assertThat(reads.get(i).get(1000, TimeUnit.MILLISECONDS),
+                    is(Integer.toString(i + 1)));
+        }
+        assertThat(BACKEND.removeLease(lease), is(true));
+    }
+
+    @Test
+    public void unansweredRequestsTimeOut() throws Exception {
+        // A server accepting connections but never answering
+        try (final ServerSocket silentServer = new ServerSocket(0)) {
+            final RemoteBackend client
+                    = new RemoteBackend("localhost", silentServer.getLocalPort(), 200);
+            try {
+                final CompletableFuture<Boolean> write
+                        = client.writeLeaseDataAsync(root, "data");
+                assertThat(client.removeLease(root), is(false));
+                assertThat(write.get(1000, TimeUnit.MILLISECONDS), is(false));
+                assertThat("Timed out requests are forgotten",
+                        client.getPendingRequests(), is(0));
+            } finally {
+                client.shutdown();
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void serverNotAvailable() {
+        final CloudnameServer server = new CloudnameServer(new ConcurrentMemoryBackend(), 0);
+        server.start();
+        final int port = server.getPort();
+        server.shutdown();
+        new RemoteBackend("localhost", port);
+    }
+}
@@ -8,14 +8,13 @@ import org.cloudname.service.Endpoint;
 import org.cloudname.service.InstanceCoordinate;
 import org.cloudname.service.ServiceCoordinate;
 import org.cloudname.service.ServiceData;
+import org.cloudname.service.ServiceDirectory;
 import org.cloudname.service.ServiceHandle;
-import org.cloudname.service.ServiceListener;
+import org.cloudname.service.ServiceSnapshot;
 import org.cloudname.testtools.Net;
 import spark.Spark;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
@@ -41,12 +40,13 @@ public class GhostService {
 
     private final CountDownLatch terminateLatch = new CountDownLatch(1);
     private final AtomicReference<InstanceCoordinate> assignedCoordinate = new AtomicReference<>();
-    private final Map<String, InstanceCoordinate> peerMap = new ConcurrentHashMap<>();
     private final CloudnameService service;
+    private final ServiceDirectory directory;
     private final int sparkPort;
 
     private GhostService() {
         service = new CloudnameService(BackendManager.getBackend(cloudnameUrl));
+        directory = new ServiceDirectory(service);
         try {
             sparkPort = Net.getFreePort();
         } catch (final IOException ioe) {
@@ -55,33 +55,15 @@ public class GhostService {
     }
 
     private void connectToCloudname() {
-        final ServiceData serviceData = new ServiceData();
-        for (final String endpoint : Net.getHostInterfaces()) {
-            serviceData.addEndpoint(new Endpoint("http", endpoint, sparkPort));
-        }
+        final ServiceData.Builder builder = new ServiceData.Builder();
+        // Endpoint names are unique so only the first interface is registered
+        Net.getHostInterfaces().stream().findFirst().ifPresent(
+                (host) -> builder.addEndpoint(new Endpoint("http", host, sparkPort)));
+        final ServiceData serviceData = builder.build();
         try (final ServiceHandle handle
                      = service.registerService(getServiceCoordinate(), serviceData)) {
             assignedCoordinate.set(handle.getCoordinate());
-            service.addServiceListener(getServiceCoordinate(), new ServiceListener() {
-                @Override
-                public void onServiceCreated(
-                        final InstanceCoordinate coordinate, final ServiceData serviceData) {
-                    LOG.info("Adding " + coordinate + " to peer set");
-                    peerMap.put(coordinate.toCanonicalString(), coordinate);
-                }
-
-                @Override
-                public void onServiceDataChanged(
-                        final InstanceCoordinate coordinate, final ServiceData data) {
-
-                }
-
-                @Override
-                public void onServiceRemoved(final InstanceCoordinate coordinate) {
-                    LOG.info("Removing " + coordinate + " from peer set");
-                    peerMap.remove(coordinate.toCanonicalString());
-                }
-            });
+            directory.watch(getServiceCoordinate());
             try {
                 terminateLatch.await();
                 LOG.info("Stopping service");
@@ -105,8 +87,11 @@ public class GhostService {
 
     private String getPeerSetList() {
         final StringBuilder sb = new StringBuilder().append("<ul>");
-        for (final InstanceCoordinate coordinate : peerMap.values()) {
-            sb.append("<li>").append(coordinate.toCanonicalString()).append("</li>");
+        final ServiceSnapshot peers = directory.getSnapshot(getServiceCoordinate());
+        if (peers != null) {
+            for (final InstanceCoordinate coordinate : peers.getInstances()) {
+                sb.append("<li>").append(coordinate.toCanonicalString()).append("</li>");
+            }
         }
         sb.append("</ul>");
         return sb.toString();
@@ -62,8 +62,9 @@ public class PacServer {
     }
 
     private void connectToCloudname() {
-        final ServiceData myServiceData = new ServiceData();
-        myServiceData.addEndpoint(new Endpoint("http", "0.0.0.0", httpPort));
+        final ServiceData myServiceData = new ServiceData.Builder()
+                .addEndpoint(new Endpoint("http", "0.0.0.0", httpPort))
+                .build();
 
         try (final ServiceHandle handle = service.registerService(
                 ServiceCoordinate.parse(myCoordinate), myServiceData)) {
@@ -5,12 +5,17 @@ import org.cloudname.core.CloudnamePath;
 import org.cloudname.core.LeaseHandle;
 import org.cloudname.core.LeaseListener;
 import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,31 +23,59 @@ import java.util.logging.Logger;
  * Service discovery implementation. Use registerService() and addServiceListener() to register
  * and locate services.
  *
+ * <p>The methods ending in Async don't block the caller but return futures completing with the
+ * same values as their blocking counterparts. They make it possible to register and subscribe to
+ * lots of services in parallel without dedicated threads.
+ *
+ * <p>There is a single watch on the backend for each coordinate no matter how many listeners
+ * are added for it. The lease data is decoded once for every event and handed to all of the
+ * listeners; listeners added after the first one get the current state from the watch.
+ *
  * @author stalehd@gmail.com
  */
 public class CloudnameService implements AutoCloseable {
     private static final Logger LOG = Logger.getLogger(CloudnameService.class.getName());
 
     private final CloudnameBackend backend;
+    private final ServiceDataFormat format;
     private final List<ServiceHandle> handles = new ArrayList<>();
-    private final List<LeaseListener> temporaryListeners = new ArrayList<>();
-    private final List<LeaseListener> permanentListeners = new ArrayList<>();
-    private final Set<ServiceCoordinate> permanentUpdatesInProgress = new CopyOnWriteArraySet<>();
+    private final Map<ServiceCoordinate, ServiceWatch> serviceWatches = new HashMap<>();
+    private final Map<ServiceListener, List<ServiceWatch>> serviceListeners = new HashMap<>();
+    private final Map<ServiceCoordinate, PermanentServiceWatch> permanentWatches
+            = new HashMap<>();
     private final Object syncObject = new Object();
     private final Random random = new Random();
     private static final int MAX_COORDINATE_RETRIES = 10;
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
 
     /**
-     * Create the service interface.
+     * Create the service interface. Service data is written as JSON so that all clients can
+     * read it.
      *
      * @param backend  backend implementation to use
      * @throws IllegalArgumentException if parameter is invalid
      */
     public CloudnameService(final CloudnameBackend backend) {
+        this(backend, ServiceDataFormat.JSON);
+    }
+
+    /**
+     * Create the service interface writing service data in the given format. Service data in
+     * both formats is read regardless of the format.
+     *
+     * @param backend  backend implementation to use
+     * @param format  format of the service data written by this instance
+     * @throws IllegalArgumentException if parameters are invalid
+     */
+    public CloudnameService(final CloudnameBackend backend, final ServiceDataFormat format) {
         if (backend == null) {
             throw new IllegalArgumentException("Backend can not be null");
         }
+        if (format == null) {
+            throw new IllegalArgumentException("Format can not be null");
+        }
         this.backend = backend;
+        this.format = format;
     }
 
     /**
@@ -70,8 +103,8 @@ public class CloudnameService implements AutoCloseable {
         while (numRetries < MAX_COORDINATE_RETRIES && leaseHandle == null) {
             final CloudnamePath newCoordinate = new CloudnamePath(
                     serviceCoordinate.toCloudnamePath(), Long.toHexString(random.nextLong()));
-            leaseHandle = backend.createLease(LeaseType.TEMPORARY,
-                    newCoordinate, serviceData.toJsonString());
+            leaseHandle = backend.createBinaryLease(LeaseType.TEMPORARY,
+                    newCoordinate, serviceData.getEncoded(format));
             numRetries++;
         }
 
@@ -82,7 +115,8 @@ public class CloudnameService implements AutoCloseable {
         }
 
         final ServiceHandle serviceHandle = new ServiceHandle(
-                new InstanceCoordinate(leaseHandle.getLeasePath()), serviceData, leaseHandle);
+                new InstanceCoordinate(leaseHandle.getLeasePath()),
+                serviceData, leaseHandle, format);
 
         synchronized (syncObject) {
             handles.add(serviceHandle);
@@ -91,7 +125,58 @@ public class CloudnameService implements AutoCloseable {
     }
 
     /**
-     * Add listener for service events. This only applies to ordinary services.
+     * Create a temporary lease with a random instance id below the service coordinate. Retries
+     * with a new id if the lease can't be created.
+     */
+    private CompletableFuture<LeaseHandle> createInstanceLeaseAsync(
+            final ServiceCoordinate serviceCoordinate, final byte[] data, final int attempt) {
+        final CloudnamePath newCoordinate = new CloudnamePath(
+                serviceCoordinate.toCloudnamePath(), Long.toHexString(random.nextLong()));
+        return backend.createBinaryLeaseAsync(LeaseType.TEMPORARY, newCoordinate, data)
+                .thenCompose((leaseHandle) -> {
+                    if (leaseHandle != null || attempt + 1 >= MAX_COORDINATE_RETRIES) {
+                        return CompletableFuture.completedFuture(leaseHandle);
+                    }
+                    return createInstanceLeaseAsync(serviceCoordinate, data, attempt + 1);
+                });
+    }
+
+    /**
+     * Non-blocking version of {@link #registerService(ServiceCoordinate, ServiceData)}.
+     *
+     * @return a future with the ServiceHandle for the instance. The future completes with null
+     *     if the service couldn't be registered.
+     * @throws IllegalArgumentException if the parameters are invalid
+     */
+    public CompletableFuture<ServiceHandle> registerServiceAsync(
+            final ServiceCoordinate serviceCoordinate, final ServiceData serviceData) {
+        if (serviceCoordinate == null) {
+            throw new IllegalArgumentException("Coordinate cannot be null");
+        }
+        if (serviceData == null) {
+            throw new IllegalArgumentException("Service Data cannot be null");
+        }
+        return createInstanceLeaseAsync(
+                serviceCoordinate, serviceData.getEncoded(format), 0)
+                .thenApply((leaseHandle) -> {
+                    if (leaseHandle == null) {
+                        LOG.severe("Could not find available coordinate after "
+                                + MAX_COORDINATE_RETRIES + " for service " + serviceCoordinate);
+                        return null;
+                    }
+                    final ServiceHandle serviceHandle = new ServiceHandle(
+                            new InstanceCoordinate(leaseHandle.getLeasePath()),
+                            serviceData, leaseHandle, format);
+                    synchronized (syncObject) {
+                        handles.add(serviceHandle);
+                    }
+                    return serviceHandle;
+                });
+    }
+
+    /**
+     * Add listener for service events. This only applies to ordinary services. Listeners added
+     * for a coordinate that is already watched get a snapshot of the current instances.
      *
      * @param coordinate  The coordinate to monitor.
      * @param listener  Listener getting notifications on changes.
@@ -105,33 +190,158 @@ public class CloudnameService implements AutoCloseable {
         if (listener == null) {
             throw new IllegalArgumentException("Listener can not be null");
         }
-        // Just create the corresponding listener on the backend and translate the parameters
-        // from the listener.
-        final LeaseListener leaseListener = new LeaseListener() {
-            @Override
-            public void leaseCreated(final CloudnamePath path, final String data) {
-                final InstanceCoordinate instanceCoordinate = new InstanceCoordinate(path);
-                final ServiceData serviceData = ServiceData.fromJsonString(data);
-                listener.onServiceCreated(instanceCoordinate, serviceData);
+        final ServiceWatch watch = acquireServiceWatch(coordinate, listener);
+        if (watch.claimRegistration()) {
+            forgetOnFailure(watch);
+            try {
+                backend.addLeaseCollectionListener(coordinate.toCloudnamePath(), watch);
+                watch.getRegistered().complete(null);
+            } catch (final RuntimeException ex) {
+                watch.getRegistered().completeExceptionally(ex);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Non-blocking version of {@link #addServiceListener(ServiceCoordinate, ServiceListener)}.
+     *
+     * @return a future completing when the listener is registered
+     * @throws IllegalArgumentException if parameters are invalid
+     */
+    public CompletableFuture<Void> addServiceListenerAsync(
+            final ServiceCoordinate coordinate, final ServiceListener listener) {
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Coordinate can not be null");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener can not be null");
+        }
+        final ServiceWatch watch = acquireServiceWatch(coordinate, listener);
+        if (watch.claimRegistration()) {
+            forgetOnFailure(watch);
+            completeRegistration(watch.getRegistered(), backend.addLeaseCollectionListenerAsync(
+                    coordinate.toCloudnamePath(), watch));
+        }
+        // A copy so callers can't complete the future shared by the listeners of the watch
+        return watch.getRegistered().thenApply(Function.identity());
+    }
+
+    /**
+     * Get the watch for a coordinate, creating it if there is none or the registration of the
+     * existing one failed, and add the listener to it. The caller registers new watches on the
+     * backend; see {@link ServiceWatch#claimRegistration()}.
+     */
+    private ServiceWatch acquireServiceWatch(
+            final ServiceCoordinate coordinate, final ServiceListener listener) {
+        final ServiceWatch watch;
+        synchronized (syncObject) {
+            watch = serviceWatches.compute(coordinate, (key, existing) ->
+                    isUsable(existing) ? existing : new ServiceWatch(key));
+            watch.addUsers(1);
+            serviceListeners.computeIfAbsent(listener, (key) -> new ArrayList<>()).add(watch);
+        }
+        // Outside the lock since the listener might get its snapshot here
+        watch.addListener(listener);
+        return watch;
+    }
+
+    /**
+     * Check if an existing watch can get more listeners.
+     */
+    private static boolean isUsable(final ServiceWatch watch) {
+        return watch != null && !watch.getRegistered().isCompletedExceptionally();
+    }
+
+    /**
+     * Check if an existing watch can get more listeners.
+     */
+    private static boolean isUsable(final PermanentServiceWatch watch) {
+        return watch != null && !watch.getRegistered().isCompletedExceptionally();
+    }
+
+    /**
+     * Complete the registration of a watch when the backend registration completes.
+     */
+    private static void completeRegistration(
+            final CompletableFuture<Void> registered, final CompletableFuture<Void> backendFuture) {
+        backendFuture.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                registered.completeExceptionally(throwable);
+            } else {
+                registered.complete(null);
+            }
+        });
+    }
+
+    /**
+     * Drop a watch from the bookkeeping if its registration fails. The watch was never added
+     * to the backend so it mustn't be removed from it later.
+     */
+    private void forgetOnFailure(final ServiceWatch watch) {
+        watch.getRegistered().whenComplete((result, throwable) -> {
+            if (throwable == null) {
+                return;
+            }
+            synchronized (syncObject) {
+                serviceWatches.remove(watch.getCoordinate(), watch);
+                serviceListeners.values().forEach(
+                        (watches) -> watches.removeIf((existing) -> existing == watch));
+                serviceListeners.values().removeIf(List::isEmpty);
             }
+        });
+    }
 
-            @Override
-            public void leaseRemoved(final CloudnamePath path) {
-                final InstanceCoordinate instanceCoordinate = new InstanceCoordinate(path);
-                listener.onServiceRemoved(instanceCoordinate);
+    /**
+     * Drop a permanent service watch from the bookkeeping if its registration fails.
+     */
+    private void forgetOnFailure(final PermanentServiceWatch watch) {
+        watch.getRegistered().whenComplete((result, throwable) -> {
+            if (throwable == null) {
+                return;
+            }
+            synchronized (syncObject) {
+                permanentWatches.values().removeIf((existing) -> existing == watch);
             }
+        });
+    }
 
-            @Override
-            public void dataChanged(final CloudnamePath path, final String data) {
-                final InstanceCoordinate instanceCoordinate = new InstanceCoordinate(path);
-                final ServiceData serviceData = ServiceData.fromJsonString(data);
-                listener.onServiceDataChanged(instanceCoordinate, serviceData);
+    /**
+     * Remove a watch from the backend. Watches are removed when their registration completes so
+     * a watch being registered isn't left behind. Watches that failed to register are ignored.
+     */
+    private void removeWatch(
+            final LeaseListener watch, final CompletableFuture<Void> registered) {
+        registered.whenComplete((result, throwable) -> {
+            if (throwable == null) {
+                backend.removeLeaseListener(watch);
             }
-        };
+        });
+    }
+
+    /**
+     * Remove a service listener from all the coordinates it monitors. Unknown listeners are
+     * ignored.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeServiceListener(final ServiceListener listener) {
+        final List<ServiceWatch> watches;
+        final List<ServiceWatch> unused = new ArrayList<>();
         synchronized (syncObject) {
-            temporaryListeners.add(leaseListener);
+            watches = serviceListeners.remove(listener);
+            if (watches == null) {
+                return;
+            }
+            for (final ServiceWatch watch : watches) {
+                if (watch.addUsers(-1) == 0) {
+                    serviceWatches.remove(watch.getCoordinate(), watch);
+                    unused.add(watch);
+                }
+            }
         }
-        backend.addLeaseCollectionListener(coordinate.toCloudnamePath(), leaseListener);
+        watches.forEach((watch) -> watch.removeListener(listener));
+        unused.forEach((watch) -> removeWatch(watch, watch.getRegistered()));
     }
 
     /**
@@ -156,13 +366,34 @@ public class CloudnameService implements AutoCloseable {
     }
 
     /**
-     * Update permanent service coordinate. Note that this is a non-atomic operation with multiple
-     * trips to the backend system. The update is done in two operations; one delete and one
-     * create. If the delete operation fail and the create operation succeeds it might end up
-     * removing the permanent service coordinate. Clients will not be notified of the removal.
+     * Non-blocking version of {@link #createPermanentService(ServiceCoordinate, Endpoint)}.
+     *
+     * @return a future completing with true if service is created
+     */
+    public CompletableFuture<Boolean> createPermanentServiceAsync(
+            final ServiceCoordinate coordinate, final Endpoint endpoint) {
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Service coordinate can't be null");
+        }
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Endpoint can't be null");
+        }
+        return backend.createLeaseAsync(
+                LeaseType.PERMANENT, coordinate.toCloudnamePath(), endpoint.toJsonString())
+                .thenApply((leaseHandle) -> leaseHandle != null);
+    }
+
+    /**
+     * Update permanent service coordinate. The endpoint name can't be changed. The update is an
+     * optimistic compare-and-set: the current endpoint is read along with its version and the
+     * new endpoint is only written if the version is unchanged. The first read is served from
+     * the local copy when the service is observed so an update is normally a single round trip.
+     * If someone else changed the service in the meantime the update is retried with a fresh
+     * read. Backends without versioned leases fall back to a plain read and write.
      *
      * @param coordinate The service's coordinate
      * @param endpoint The service's endpoint
+     * @return true if the service is updated
      */
     public boolean updatePermanentService(
             final ServiceCoordinate coordinate, final Endpoint endpoint) {
@@ -172,34 +403,134 @@ public class CloudnameService implements AutoCloseable {
         if (endpoint == null) {
             throw new IllegalArgumentException("Endpoint can't be null");
         }
-
-        if (permanentUpdatesInProgress.contains(coordinate)) {
-            LOG.log(Level.WARNING, "Attempt to update a permanent service which is already"
-                    + " updating. (coordinate: " + coordinate + ", endpoint: " + endpoint);
+        final CloudnamePath path = coordinate.toCloudnamePath();
+        try {
+            ReadConsistency consistency = ReadConsistency.CACHED;
+            for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+                final VersionedData current = backend.readVersionedLeaseData(path, consistency);
+                if (current == null || !isSameEndpointName(current.getData(), endpoint)) {
+                    return false;
+                }
+                if (backend.writeLeaseData(
+                        path, endpoint.toJsonString(), current.getVersion())) {
+                    return true;
+                }
+                // The service has changed since it was read or the local copy was out of date
+                consistency = ReadConsistency.LINEARIZABLE;
+            }
+            LOG.log(Level.WARNING, "Giving up updating permanent service " + coordinate
+                    + " after " + MAX_UPDATE_ATTEMPTS + " conflicting updates");
+            return false;
+        } catch (final UnsupportedOperationException ex) {
+            return updateUnversioned(path, endpoint);
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Got exception updating permanent lease. The system might be in"
+                    + " an indeterminate state", ex);
             return false;
         }
-        // Check if the endpoint name still matches.
-        final String data = backend.readLeaseData(coordinate.toCloudnamePath());
-        if (data == null) {
+    }
+
+    /**
+     * Update a permanent service on a backend without versioned leases.
+     */
+    private boolean updateUnversioned(final CloudnamePath path, final Endpoint endpoint) {
+        try {
+            final String data = backend.readLeaseData(path, ReadConsistency.CACHED);
+            if (data == null || !isSameEndpointName(data, endpoint)) {
+                return false;
+            }
+            return backend.writeLeaseData(path, endpoint.toJsonString());
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Got exception updating permanent lease. The system might be in"
+                    + " an indeterminate state", ex);
             return false;
         }
+    }
+
+    /**
+     * Check that the stored endpoint has the same name as the new endpoint.
+     */
+    private static boolean isSameEndpointName(final String data, final Endpoint endpoint) {
         final Endpoint oldEndpoint = Endpoint.fromJson(data);
         if (!oldEndpoint.getName().equals(endpoint.getName())) {
             LOG.log(Level.INFO, "Rejecting attempt to update permanent service with a new endpoint"
                     + " that has a different name. Old name: " + oldEndpoint + " new: " + endpoint);
             return false;
         }
-        permanentUpdatesInProgress.add(coordinate);
-        try {
-            return backend.writeLeaseData(
-                    coordinate.toCloudnamePath(), endpoint.toJsonString());
-        } catch (final RuntimeException ex) {
-            LOG.log(Level.WARNING, "Got exception updating permanent lease. The system might be in"
-                    + " an indeterminate state", ex);
-            return false;
-        } finally {
-            permanentUpdatesInProgress.remove(coordinate);
+        return true;
+    }
+
+    /**
+     * Non-blocking version of {@link #updatePermanentService(ServiceCoordinate, Endpoint)}.
+     *
+     * @return a future completing with true if the service is updated
+     */
+    public CompletableFuture<Boolean> updatePermanentServiceAsync(
+            final ServiceCoordinate coordinate, final Endpoint endpoint) {
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Coordinate can't be null");
+        }
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Endpoint can't be null");
         }
+        final CloudnamePath path = coordinate.toCloudnamePath();
+        return compareAndSetEndpoint(path, endpoint, ReadConsistency.CACHED, MAX_UPDATE_ATTEMPTS)
+                .handle((updated, throwable) -> {
+                    if (throwable == null) {
+                        return CompletableFuture.completedFuture(updated);
+                    }
+                    final Throwable cause = (throwable instanceof CompletionException
+                            && throwable.getCause() != null) ? throwable.getCause() : throwable;
+                    if (cause instanceof UnsupportedOperationException) {
+                        return updateUnversionedAsync(path, endpoint);
+                    }
+                    LOG.log(Level.WARNING, "Got exception updating permanent lease. The system"
+                            + " might be in an indeterminate state", throwable);
+                    return CompletableFuture.completedFuture(false);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Read the endpoint and write the new one if the version is unchanged. Conflicting writes
+     * are retried with a linearizable read until the attempts are used up.
+     */
+    private CompletableFuture<Boolean> compareAndSetEndpoint(
+            final CloudnamePath path, final Endpoint endpoint,
+            final ReadConsistency consistency, final int attemptsLeft) {
+        return backend.readVersionedLeaseDataAsync(path, consistency).thenCompose((current) -> {
+            if (current == null || !isSameEndpointName(current.getData(), endpoint)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return backend.writeLeaseDataAsync(
+                    path, endpoint.toJsonString(), current.getVersion())
+                    .thenCompose((written) -> {
+                        if (written || attemptsLeft <= 1) {
+                            return CompletableFuture.completedFuture(written);
+                        }
+                        return compareAndSetEndpoint(
+                                path, endpoint, ReadConsistency.LINEARIZABLE, attemptsLeft - 1);
+                    });
+        });
+    }
+
+    /**
+     * Non-blocking version of {@link #updateUnversioned(CloudnamePath, Endpoint)}.
+     */
+    private CompletableFuture<Boolean> updateUnversionedAsync(
+            final CloudnamePath path, final Endpoint endpoint) {
+        return backend.readLeaseDataAsync(path, ReadConsistency.CACHED)
+                .thenCompose((data) -> {
+                    if (data == null || !isSameEndpointName(data, endpoint)) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    return backend.writeLeaseDataAsync(path, endpoint.toJsonString());
+                })
+                .exceptionally((throwable) -> {
+                    LOG.log(Level.WARNING, "Got exception updating permanent lease. The system"
+                            + " might be in an indeterminate state", throwable);
+                    return false;
+                });
     }
 
     /**
@@ -212,9 +543,23 @@ public class CloudnameService implements AutoCloseable {
         return backend.removeLease(coordinate.toCloudnamePath());
     }
 
+    /**
+     * Non-blocking version of {@link #removePermanentService(ServiceCoordinate)}.
+     *
+     * @return a future completing with true if the service is removed
+     */
+    public CompletableFuture<Boolean> removePermanentServiceAsync(
+            final ServiceCoordinate coordinate) {
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Coordinate can not be null");
+        }
+        return backend.removeLeaseAsync(coordinate.toCloudnamePath());
+    }
+
     /**
      * Listen for changes in permanent services. The changes are usually of the earth-shattering
      * variety so as a client you'd be interested in knowing about these as soon as possible.
+     * Listeners added for a service that is already watched get the current endpoint.
      */
     public void addPermanentServiceListener(
             final ServiceCoordinate coordinate, final PermanentServiceListener listener) {
@@ -224,26 +569,55 @@ public class CloudnameService implements AutoCloseable {
         if (listener == null) {
             throw new IllegalArgumentException("Listener can not be null");
         }
-        final LeaseListener leaseListener = new LeaseListener() {
-            @Override
-            public void leaseCreated(final CloudnamePath path, final String data) {
-                listener.onServiceCreated(Endpoint.fromJson(data));
+        final PermanentServiceWatch watch = acquirePermanentWatch(coordinate, listener);
+        if (watch.claimRegistration()) {
+            forgetOnFailure(watch);
+            try {
+                backend.addLeaseListener(coordinate.toCloudnamePath(), watch);
+                watch.getRegistered().complete(null);
+            } catch (final RuntimeException ex) {
+                watch.getRegistered().completeExceptionally(ex);
+                throw ex;
             }
+        }
+    }
 
-            @Override
-            public void leaseRemoved(final CloudnamePath path) {
-                listener.onServiceRemoved();
-            }
+    /**
+     * Non-blocking version of
+     * {@link #addPermanentServiceListener(ServiceCoordinate, PermanentServiceListener)}.
+     *
+     * @return a future completing when the listener is registered
+     */
+    public CompletableFuture<Void> addPermanentServiceListenerAsync(
+            final ServiceCoordinate coordinate, final PermanentServiceListener listener) {
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Coordinate can not be null");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener can not be null");
+        }
+        final PermanentServiceWatch watch = acquirePermanentWatch(coordinate, listener);
+        if (watch.claimRegistration()) {
+            forgetOnFailure(watch);
+            completeRegistration(watch.getRegistered(),
+                    backend.addLeaseListenerAsync(coordinate.toCloudnamePath(), watch));
+        }
+        return watch.getRegistered().thenApply(Function.identity());
+    }
 
-            @Override
-            public void dataChanged(final CloudnamePath path, final String data) {
-                listener.onServiceChanged(Endpoint.fromJson(data));
-            }
-        };
+    /**
+     * Get the watch for a permanent service, creating it if there is none or the registration
+     * of the existing one failed, and add the listener to it.
+     */
+    private PermanentServiceWatch acquirePermanentWatch(
+            final ServiceCoordinate coordinate, final PermanentServiceListener listener) {
+        final PermanentServiceWatch watch;
         synchronized (syncObject) {
-            permanentListeners.add(leaseListener);
+            watch = permanentWatches.compute(coordinate, (key, existing) ->
+                    isUsable(existing) ? existing : new PermanentServiceWatch(key));
         }
-        backend.addLeaseListener(coordinate.toCloudnamePath(), leaseListener);
+        watch.addListener(listener);
+        return watch;
     }
 
     @Override
@@ -252,12 +626,15 @@ public class CloudnameService implements AutoCloseable {
             for (final ServiceHandle handle : handles) {
                 handle.close();
             }
-            for (final LeaseListener listener : temporaryListeners) {
-                backend.removeLeaseListener(listener);
+            for (final ServiceWatch watch : serviceWatches.values()) {
+                removeWatch(watch, watch.getRegistered());
             }
-            for (final LeaseListener listener : permanentListeners) {
-                backend.removeLeaseListener(listener);
+            serviceWatches.clear();
+            serviceListeners.clear();
+            for (final PermanentServiceWatch watch : permanentWatches.values()) {
+                removeWatch(watch, watch.getRegistered());
             }
+            permanentWatches.clear();
         }
     }
 }
@@ -0,0 +1,160 @@
+package org.cloudname.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An endpoint selector sending requests with the same key to the same instance, ie consistent
+ * hashing with bounded loads. Each instance is placed on a hash ring at a number of points in
+ * proportion to its weight and a key goes to the instance owning the first point at or after the
+ * key's hash. When an instance is added or removed only the keys next to its points move.
+ *
+ * <p>No instance gets more than the load factor times its fair share of the requests in flight.
+ * Keys that would go to an instance at its limit continue along the ring to the next instance
+ * below its limit so a hot key doesn't overload a single instance. The endpoints must be
+ * released when the requests complete. Requests without a key start at a random point.
+ *
+ * <p>The ring positions only depend on the instance coordinates so all clients agree on where a
+ * key goes.
+ */
+public class ConsistentHashSelector extends EndpointSelector {
+    /**
+     * The default load factor.
+     */
+    public static final double DEFAULT_LOAD_FACTOR = 1.25;
+
+    /**
+     * The number of points on the ring for each unit of weight.
+     */
+    private static final int POINTS_PER_WEIGHT = 40;
+
+    /**
+     * The points on the ring in ascending order and the instance owning each point.
+     */
+    private static class Ring {
+        private final long[] points;
+        private final Instance[] owners;
+        private final int totalWeight;
+
+        Ring(final long[] points, final Instance[] owners, final int totalWeight) {
+            this.points = points;
+            this.owners = owners;
+            this.totalWeight = totalWeight;
+        }
+    }
+
+    private final double loadFactor;
+    private volatile Ring ring = new Ring(new long[0], new Instance[0], 0);
+
+    /**
+     * Create a selector with the default load factor.
+     *
+     * @param endpointName the name of the endpoint to pick from each instance
+     * @throws IllegalArgumentException if the name is null or empty
+     */
+    public ConsistentHashSelector(final String endpointName) {
+        this(endpointName, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * Create a selector.
+     *
+     * @param endpointName the name of the endpoint to pick from each instance
+     * @param loadFactor the max load of an instance relative to its fair share
+     * @throws IllegalArgumentException if the name is null or empty or the load factor is less
+     *     than 1
+     */
+    public ConsistentHashSelector(final String endpointName, final double loadFactor) {
+        super(endpointName);
+        if (loadFactor < 1.0) {
+            throw new IllegalArgumentException("Load factor can not be less than 1");
+        }
+        this.loadFactor = loadFactor;
+    }
+
+    /**
+     * Murmur3's 64-bit finalizer. Spreads the bits of the key and point hashes over the ring.
+     */
+    private static long mix(final long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    protected Instance choose(final String key) {
+        final Ring current = ring;
+        final int length = current.points.length;
+        if (length == 0) {
+            return null;
+        }
+        final long hash
+                = key == null ? ThreadLocalRandom.current().nextLong() : mix(key.hashCode());
+        int start = Arrays.binarySearch(current.points, hash);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        if (start == length) {
+            start = 0;
+        }
+
+        final double fairShare = loadFactor * (getTotalInFlight() + 1) / current.totalWeight;
+        for (int i = 0; i < length; i++) {
+            final Instance owner = current.owners[(start + i) % length];
+            if (owner.getInFlight() + 1 <= Math.ceil(fairShare * owner.getWeight())) {
+                return owner;
+            }
+        }
+        // Only happens if the counts change while walking the ring
+        return current.owners[start];
+    }
+
+    @Override
+    protected void instanceAdded(final Instance instance) {
+        final int count = POINTS_PER_WEIGHT * instance.getWeight();
+        final long base = (long) instance.getCoordinate().toCanonicalString().hashCode() << 32;
+        final long[] added = new long[count];
+        for (int i = 0; i < count; i++) {
+            added[i] = mix(base | i);
+        }
+        Arrays.sort(added);
+
+        // Merge the new points into the ring; the other instances keep their points
+        final Ring current = ring;
+        final int length = current.points.length;
+        final long[] points = new long[length + count];
+        final Instance[] owners = new Instance[length + count];
+        int existing = 0;
+        int next = 0;
+        for (int i = 0; i < points.length; i++) {
+            if (next == count || (existing < length && current.points[existing] <= added[next])) {
+                points[i] = current.points[existing];
+                owners[i] = current.owners[existing++];
+            } else {
+                points[i] = added[next++];
+                owners[i] = instance;
+            }
+        }
+        ring = new Ring(points, owners, current.totalWeight + instance.getWeight());
+    }
+
+    @Override
+    protected void instanceRemoved(final Instance instance) {
+        final Ring current = ring;
+        final int length = current.points.length - POINTS_PER_WEIGHT * instance.getWeight();
+        final long[] points = new long[length];
+        final Instance[] owners = new Instance[length];
+        int index = 0;
+        for (int i = 0; i < current.points.length; i++) {
+            if (current.owners[i] != instance) {
+                points[index] = current.points[i];
+                owners[index++] = current.owners[i];
+            }
+        }
+        ring = new Ring(points, owners, current.totalWeight - instance.getWeight());
+    }
+}
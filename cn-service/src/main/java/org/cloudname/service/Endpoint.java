@@ -64,11 +64,17 @@ public class Endpoint {
      * JSON representation of endpoint.
      */
     /* package-private */ String toJsonString() {
+        return toJson().toString();
+    }
+
+    /**
+     * JSON object for the endpoint.
+     */
+    /* package-private */ JSONObject toJson() {
         return new JSONObject()
                 .put("name", name)
                 .put("host", host)
-                .put("port", port)
-                .toString();
+                .put("port", port);
     }
 
     /**
@@ -77,7 +83,15 @@ public class Endpoint {
      * @throws org.json.JSONException if the string is malformed.
      */
     /* package-private */ static Endpoint fromJson(final String jsonString) {
-        final JSONObject json = new JSONObject(jsonString);
+        return fromJson(new JSONObject(jsonString));
+    }
+
+    /**
+     * Create new Endpoint instance from a JSON object.
+     *
+     * @throws org.json.JSONException if the object is malformed.
+     */
+    /* package-private */ static Endpoint fromJson(final JSONObject json) {
         return new Endpoint(
                 json.getString("name"),
                 json.getString("host"),
@@ -101,7 +115,8 @@ public class Endpoint {
 
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        // Computed rather than hashing toString() so lookups don't allocate
+        return 31 * (31 * name.hashCode() + host.hashCode()) + port;
     }
 
     @Override
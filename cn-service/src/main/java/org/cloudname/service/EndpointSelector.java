@@ -0,0 +1,260 @@
+package org.cloudname.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-side load balancing over the instances of a service. The selector is a service listener
+ * that keeps a table of the instances exposing an endpoint with a given name and picks one of
+ * them for every request. Add it as a listener for the service coordinate:
+ *
+ * <pre>
+ * EndpointSelector selector = new RoundRobinSelector("http");
+ * cloudnameService.addServiceListener(coordinate, selector);
+ * Endpoint endpoint = selector.select();
+ * try {
+ *     ...
+ * } finally {
+ *     selector.release(endpoint);
+ * }
+ * </pre>
+ *
+ * <p>The table is updated one instance at a time as instances are created, changed and removed
+ * and it is replaced rather than modified so selecting never waits for updates and doesn't
+ * allocate. Every selected endpoint counts as a request in flight until it is released; the
+ * strategies balancing on load depend on the endpoints being released.
+ *
+ * <p>Instances with weight 0 (see {@link ServiceData#getWeight()}) are left out of the table.
+ * Subclasses implement {@link #choose(String)} and maintain tables of their own in
+ * {@link #instanceAdded(Instance)} and {@link #instanceRemoved(Instance)}. The hooks are invoked
+ * while holding a lock so they are never invoked concurrently.
+ */
+public abstract class EndpointSelector implements ServiceListener {
+    private static final Instance[] NO_INSTANCES = new Instance[0];
+
+    /**
+     * An instance the selector can pick.
+     */
+    protected static final class Instance {
+        private final InstanceCoordinate coordinate;
+        private final Endpoint endpoint;
+        private final int weight;
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+
+        private Instance(
+                final InstanceCoordinate coordinate, final Endpoint endpoint, final int weight) {
+            this.coordinate = coordinate;
+            this.endpoint = endpoint;
+            this.weight = weight;
+        }
+
+        /**
+         * The instance's coordinate.
+         */
+        public InstanceCoordinate getCoordinate() {
+            return coordinate;
+        }
+
+        /**
+         * The instance's endpoint.
+         */
+        public Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * The instance's weight, always at least 1.
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * The number of requests in flight to the instance.
+         */
+        public int getInFlight() {
+            return inFlight.get();
+        }
+    }
+
+    private final String endpointName;
+    private final Object syncObject = new Object();
+    private final Map<InstanceCoordinate, Instance> instancesByCoordinate = new HashMap<>();
+    private final Map<Endpoint, Instance> instancesByEndpoint = new ConcurrentHashMap<>();
+    private final AtomicInteger totalInFlight = new AtomicInteger(0);
+    private volatile Instance[] instances = NO_INSTANCES;
+
+    /**
+     * Create a selector.
+     *
+     * @param endpointName the name of the endpoint to pick from each instance
+     * @throws IllegalArgumentException if the name is null or empty
+     */
+    protected EndpointSelector(final String endpointName) {
+        if (endpointName == null || endpointName.isEmpty()) {
+            throw new IllegalArgumentException("Endpoint name can not be null or empty");
+        }
+        this.endpointName = endpointName;
+    }
+
+    /**
+     * Pick an endpoint.
+     *
+     * @return the endpoint or null if there are no instances
+     */
+    public Endpoint select() {
+        return select(null);
+    }
+
+    /**
+     * Pick an endpoint for a key. Selectors that aren't sticky ignore the key.
+     *
+     * @return the endpoint or null if there are no instances
+     */
+    public Endpoint select(final String key) {
+        final Instance instance = choose(key);
+        if (instance == null) {
+            return null;
+        }
+        instance.inFlight.incrementAndGet();
+        totalInFlight.incrementAndGet();
+        return instance.endpoint;
+    }
+
+    /**
+     * Release an endpoint when the request is completed. Endpoints of instances that have been
+     * removed are ignored.
+     */
+    public void release(final Endpoint endpoint) {
+        if (endpoint == null) {
+            return;
+        }
+        final Instance instance = instancesByEndpoint.get(endpoint);
+        if (instance != null && decrement(instance.inFlight)) {
+            decrement(totalInFlight);
+        }
+    }
+
+    private static boolean decrement(final AtomicInteger counter) {
+        int current = counter.get();
+        while (current > 0) {
+            if (counter.compareAndSet(current, current - 1)) {
+                return true;
+            }
+            current = counter.get();
+        }
+        return false;
+    }
+
+    /**
+     * The number of instances the selector picks from.
+     */
+    public int size() {
+        return instances.length;
+    }
+
+    /**
+     * The name of the endpoint picked from each instance.
+     */
+    public String getEndpointName() {
+        return endpointName;
+    }
+
+    /**
+     * The instances the selector picks from. The array is shared and must not be modified.
+     */
+    protected Instance[] getInstances() {
+        return instances;
+    }
+
+    /**
+     * The number of requests in flight to all instances.
+     */
+    protected int getTotalInFlight() {
+        return totalInFlight.get();
+    }
+
+    /**
+     * Choose an instance. This is invoked for every request and shouldn't allocate.
+     *
+     * @param key the key for the request, might be null
+     * @return the instance or null if there are no instances
+     */
+    protected abstract Instance choose(String key);
+
+    /**
+     * An instance is added to the table. The default implementation does nothing.
+     */
+    protected void instanceAdded(final Instance instance) {
+    }
+
+    /**
+     * An instance is removed from the table. The default implementation does nothing.
+     */
+    protected void instanceRemoved(final Instance instance) {
+    }
+
+    private void update(final InstanceCoordinate coordinate, final ServiceData serviceData) {
+        final Endpoint endpoint
+                = serviceData == null ? null : serviceData.getEndpoint(endpointName);
+        final int weight = serviceData == null ? 0 : serviceData.getWeight();
+        synchronized (syncObject) {
+            final Instance existing = instancesByCoordinate.get(coordinate);
+            if (existing != null
+                    && existing.endpoint.equals(endpoint) && existing.weight == weight) {
+                return;
+            }
+            if (existing != null) {
+                remove(existing);
+            }
+            if (endpoint != null && weight > 0) {
+                add(new Instance(coordinate, endpoint, weight));
+            }
+        }
+    }
+
+    private void add(final Instance instance) {
+        final Instance[] current = instances;
+        final Instance[] updated = new Instance[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = instance;
+        instancesByCoordinate.put(instance.coordinate, instance);
+        instancesByEndpoint.put(instance.endpoint, instance);
+        instances = updated;
+        instanceAdded(instance);
+    }
+
+    private void remove(final Instance instance) {
+        final Instance[] current = instances;
+        final Instance[] updated = new Instance[current.length - 1];
+        int index = 0;
+        for (final Instance other : current) {
+            if (other != instance) {
+                updated[index++] = other;
+            }
+        }
+        instancesByCoordinate.remove(instance.coordinate);
+        instancesByEndpoint.remove(instance.endpoint, instance);
+        instances = updated;
+        totalInFlight.addAndGet(-instance.inFlight.get());
+        instanceRemoved(instance);
+    }
+
+    @Override
+    public void onServiceCreated(
+            final InstanceCoordinate coordinate, final ServiceData serviceData) {
+        update(coordinate, serviceData);
+    }
+
+    @Override
+    public void onServiceDataChanged(final InstanceCoordinate coordinate, final ServiceData data) {
+        update(coordinate, data);
+    }
+
+    @Override
+    public void onServiceRemoved(final InstanceCoordinate coordinate) {
+        update(coordinate, null);
+    }
+}
@@ -0,0 +1,215 @@
+package org.cloudname.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A service listener damping instances that flap. When an instance loses its connection to the
+ * backend for a short while the backend removes its registration and the instance registers
+ * again when it reconnects. Every listener sees the instance disappear and come back, usually
+ * with a new instance coordinate, and might tear down and rebuild connections to it.
+ *
+ * <p>This listener holds removals for the damping window before passing them on. If the same
+ * instance, or a new instance with the same endpoints, is created within the window the removal
+ * is dropped. The wrapped listener sees a data change if the same instance came back with other
+ * endpoints and nothing at all if the endpoints are unchanged. A new instance replacing a removed
+ * one keeps the removed instance's coordinate for the wrapped listener; changes and removal of
+ * the new instance are reported on the old coordinate.
+ *
+ * <p>The wrapped listener is invoked while holding a lock so it is never invoked concurrently.
+ */
+public class FlapDampingListener implements ServiceListener {
+    private static final Logger LOG = Logger.getLogger(FlapDampingListener.class.getName());
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(0);
+    private static final ScheduledExecutorService SHARED_SCHEDULER
+            = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                final Thread thread = new Thread(
+                        runnable, "cn-flap-damping-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * A removal waiting for the damping window to expire.
+     */
+    private static class HeldRemoval {
+        private final ServiceData data;
+        private ScheduledFuture<?> expiry;
+
+        HeldRemoval(final ServiceData data) {
+            this.data = data;
+        }
+    }
+
+    private final ServiceListener listener;
+    private final long dampingWindowMs;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object syncObject = new Object();
+    // The last known data for the instances the wrapped listener knows about
+    private final Map<InstanceCoordinate, ServiceData> instances = new HashMap<>();
+    // Removals held back, keyed on the coordinate the wrapped listener knows
+    private final Map<InstanceCoordinate, HeldRemoval> heldRemovals = new HashMap<>();
+    // New instances replacing removed instances, mapped to the removed instance's coordinate
+    private final Map<InstanceCoordinate, InstanceCoordinate> aliases = new HashMap<>();
+    private int dampedRemovals = 0;
+
+    /**
+     * Create a damping listener. The damping windows are timed by a thread shared by all
+     * listeners created this way.
+     *
+     * @param listener the listener to pass the events on to
+     * @param dampingWindowMs how long removals are held in milliseconds
+     * @throws IllegalArgumentException if the listener is null or the window is less than 1
+     */
+    public FlapDampingListener(final ServiceListener listener, final long dampingWindowMs) {
+        this(listener, dampingWindowMs, SHARED_SCHEDULER);
+    }
+
+    /**
+     * Create a damping listener.
+     *
+     * @param listener the listener to pass the events on to
+     * @param dampingWindowMs how long removals are held in milliseconds
+     * @param scheduler scheduler timing the damping windows
+     * @throws IllegalArgumentException if the listener or scheduler is null or the window is
+     *     less than 1
+     */
+    public FlapDampingListener(
+            final ServiceListener listener,
+            final long dampingWindowMs,
+            final ScheduledExecutorService scheduler) {
+        if (listener == null || scheduler == null) {
+            throw new IllegalArgumentException("Listener and scheduler can not be null");
+        }
+        if (dampingWindowMs < 1) {
+            throw new IllegalArgumentException("Damping window must be at least 1 ms");
+        }
+        this.listener = listener;
+        this.dampingWindowMs = dampingWindowMs;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * The coordinate the wrapped listener knows an instance by.
+     */
+    private InstanceCoordinate visibleCoordinate(final InstanceCoordinate coordinate) {
+        final InstanceCoordinate alias = aliases.get(coordinate);
+        return (alias == null ? coordinate : alias);
+    }
+
+    /**
+     * Find a held removal for an instance with the same endpoints.
+     */
+    private InstanceCoordinate findEquivalentRemoval(final ServiceData data) {
+        for (final Map.Entry<InstanceCoordinate, HeldRemoval> entry : heldRemovals.entrySet()) {
+            if (data.hasSameEndpoints(entry.getValue().data)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private void cancelRemoval(final InstanceCoordinate coordinate) {
+        final HeldRemoval removal = heldRemovals.remove(coordinate);
+        if (removal.expiry != null) {
+            removal.expiry.cancel(false);
+        }
+        dampedRemovals++;
+    }
+
+    @Override
+    public void onServiceSnapshot(final Map<InstanceCoordinate, ServiceData> services) {
+        synchronized (syncObject) {
+            instances.putAll(services);
+            listener.onServiceSnapshot(services);
+        }
+    }
+
+    @Override
+    public void onServiceCreated(final InstanceCoordinate coordinate, final ServiceData data) {
+        synchronized (syncObject) {
+            final InstanceCoordinate visible = visibleCoordinate(coordinate);
+            if (heldRemovals.containsKey(visible)) {
+                final ServiceData oldData = heldRemovals.get(visible).data;
+                cancelRemoval(visible);
+                instances.put(visible, data);
+                if (!data.hasSameEndpoints(oldData)) {
+                    listener.onServiceDataChanged(visible, data);
+                }
+                return;
+            }
+            final InstanceCoordinate replaced = findEquivalentRemoval(data);
+            if (replaced != null) {
+                cancelRemoval(replaced);
+                aliases.values().removeIf(replaced::equals);
+                aliases.put(coordinate, replaced);
+                instances.put(replaced, data);
+                return;
+            }
+            instances.put(coordinate, data);
+            listener.onServiceCreated(coordinate, data);
+        }
+    }
+
+    @Override
+    public void onServiceDataChanged(final InstanceCoordinate coordinate, final ServiceData data) {
+        synchronized (syncObject) {
+            final InstanceCoordinate visible = visibleCoordinate(coordinate);
+            instances.put(visible, data);
+            listener.onServiceDataChanged(visible, data);
+        }
+    }
+
+    @Override
+    public void onServiceRemoved(final InstanceCoordinate coordinate) {
+        synchronized (syncObject) {
+            final InstanceCoordinate visible = visibleCoordinate(coordinate);
+            if (heldRemovals.containsKey(visible)) {
+                return;
+            }
+            final HeldRemoval removal = new HeldRemoval(instances.get(visible));
+            heldRemovals.put(visible, removal);
+            try {
+                removal.expiry = scheduler.schedule(() -> expire(visible, removal),
+                        dampingWindowMs, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException ex) {
+                LOG.log(Level.WARNING, "Could not hold removal of " + visible, ex);
+                expire(visible, removal);
+            }
+        }
+    }
+
+    /**
+     * The damping window for a removal has expired; pass it on.
+     */
+    private void expire(final InstanceCoordinate coordinate, final HeldRemoval removal) {
+        synchronized (syncObject) {
+            if (heldRemovals.get(coordinate) != removal) {
+                return;
+            }
+            heldRemovals.remove(coordinate);
+            instances.remove(coordinate);
+            aliases.values().removeIf(coordinate::equals);
+            listener.onServiceRemoved(coordinate);
+        }
+    }
+
+    /**
+     * The number of removals dropped because the instance came back within the damping window.
+     */
+    public int getDampedRemovals() {
+        synchronized (syncObject) {
+            return dampedRemovals;
+        }
+    }
+}
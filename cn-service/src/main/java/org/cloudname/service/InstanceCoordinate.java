@@ -138,6 +138,35 @@ public class InstanceCoordinate {
         return new InstanceCoordinate(new CloudnamePath(path));
     }
 
+    @Override
+    public boolean equals(final Object otherInstance) {
+        if (this == otherInstance) {
+            return true;
+        }
+        if (otherInstance == null || getClass() != otherInstance.getClass()) {
+            return false;
+        }
+
+        final InstanceCoordinate other = (InstanceCoordinate) otherInstance;
+
+        if (!this.region.equals(other.region)
+                || !this.tag.equals(other.tag)
+                || !this.service.equals(other.service)
+                || !this.instance.equals(other.instance)) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = region.hashCode();
+        result = 31 * result + tag.hashCode();
+        result = 31 * result + service.hashCode();
+        result = 31 * result + instance.hashCode();
+        return result;
+    }
+
     @Override
     public String toString() {
         return "[ Coordinate " + toCanonicalString() + "]";
@@ -0,0 +1,42 @@
+package org.cloudname.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An endpoint selector using the power of two choices: two instances are picked at random and
+ * the one with the fewest requests in flight relative to its weight wins. This avoids the herd
+ * behaviour of always picking the least loaded instance while still steering requests away from
+ * slow instances. The endpoints must be released when the requests complete.
+ */
+public class LeastLoadedSelector extends EndpointSelector {
+    /**
+     * Create a selector.
+     *
+     * @param endpointName the name of the endpoint to pick from each instance
+     * @throws IllegalArgumentException if the name is null or empty
+     */
+    public LeastLoadedSelector(final String endpointName) {
+        super(endpointName);
+    }
+
+    @Override
+    protected Instance choose(final String key) {
+        final Instance[] instances = getInstances();
+        if (instances.length < 2) {
+            return instances.length == 0 ? null : instances[0];
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(instances.length);
+        int second = random.nextInt(instances.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        final Instance a = instances[first];
+        final Instance b = instances[second];
+        // Compare in flight / weight without dividing
+        if ((long) a.getInFlight() * b.getWeight() <= (long) b.getInFlight() * a.getWeight()) {
+            return a;
+        }
+        return b;
+    }
+}
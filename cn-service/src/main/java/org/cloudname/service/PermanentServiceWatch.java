@@ -0,0 +1,108 @@
+package org.cloudname.service;
+
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseListener;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The single backend listener for a permanent service. The endpoint is decoded once for every
+ * event and handed to all of the permanent service listeners. Listeners added after the service
+ * is seen get the current endpoint right away.
+ */
+final class PermanentServiceWatch implements LeaseListener {
+    private static final Logger LOG = Logger.getLogger(PermanentServiceWatch.class.getName());
+
+    private final ServiceCoordinate coordinate;
+    private final List<PermanentServiceListener> listeners = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<Void> registered = new CompletableFuture<>();
+    private final AtomicBoolean registering = new AtomicBoolean(false);
+    private final Object syncObject = new Object();
+    private Endpoint endpoint = null;
+
+    PermanentServiceWatch(final ServiceCoordinate coordinate) {
+        this.coordinate = coordinate;
+    }
+
+    /**
+     * Claim the registration of the watch on the backend.
+     *
+     * @return true for the first caller only
+     */
+    boolean claimRegistration() {
+        return registering.compareAndSet(false, true);
+    }
+
+    /**
+     * A future completing when the watch is registered on the backend. The caller that claimed
+     * the registration completes it.
+     */
+    CompletableFuture<Void> getRegistered() {
+        return registered;
+    }
+
+    /**
+     * Add a listener. The listener is told about the service if it exists.
+     */
+    void addListener(final PermanentServiceListener listener) {
+        synchronized (syncObject) {
+            if (endpoint != null) {
+                final Endpoint current = endpoint;
+                deliver(listener, (target) -> target.onServiceCreated(current));
+            }
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Invoke a callback on a listener. Exceptions are logged so that one misbehaving listener
+     * doesn't stop the others from getting the event.
+     */
+    private void deliver(final PermanentServiceListener listener,
+                         final Consumer<PermanentServiceListener> callback) {
+        try {
+            callback.accept(listener);
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Permanent service listener for " + coordinate
+                    + " threw exception", ex);
+        }
+    }
+
+    private void deliverToAll(final Consumer<PermanentServiceListener> callback) {
+        for (final PermanentServiceListener listener : listeners) {
+            deliver(listener, callback);
+        }
+    }
+
+    @Override
+    public void leaseCreated(final CloudnamePath path, final String data) {
+        final Endpoint created = Endpoint.fromJson(data);
+        synchronized (syncObject) {
+            endpoint = created;
+            deliverToAll((listener) -> listener.onServiceCreated(created));
+        }
+    }
+
+    @Override
+    public void leaseRemoved(final CloudnamePath path) {
+        synchronized (syncObject) {
+            endpoint = null;
+            deliverToAll(PermanentServiceListener::onServiceRemoved);
+        }
+    }
+
+    @Override
+    public void dataChanged(final CloudnamePath path, final String data) {
+        final Endpoint changed = Endpoint.fromJson(data);
+        synchronized (syncObject) {
+            endpoint = changed;
+            deliverToAll((listener) -> listener.onServiceChanged(changed));
+        }
+    }
+}
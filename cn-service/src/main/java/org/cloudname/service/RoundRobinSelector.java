@@ -0,0 +1,29 @@
+package org.cloudname.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An endpoint selector picking the instances in turn. Weights and load are ignored.
+ */
+public class RoundRobinSelector extends EndpointSelector {
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     * Create a selector.
+     *
+     * @param endpointName the name of the endpoint to pick from each instance
+     * @throws IllegalArgumentException if the name is null or empty
+     */
+    public RoundRobinSelector(final String endpointName) {
+        super(endpointName);
+    }
+
+    @Override
+    protected Instance choose(final String key) {
+        final Instance[] instances = getInstances();
+        if (instances.length == 0) {
+            return null;
+        }
+        return instances[Math.floorMod(next.getAndIncrement(), instances.length)];
+    }
+}
@@ -4,25 +4,116 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Service data stored for each service. This data only contains endpoints at the moment. Endpoint
- * names must be unique.
+ * Service data stored for each service. The data contains the endpoints and the instance's
+ * weight. Endpoint names must be unique. The weight is the instance's share of the requests
+ * relative to the other instances, see {@link EndpointSelector}.
+ *
+ * <p>Instances are immutable; use a {@link Builder} to make new or modified service data. The
+ * encoded form written to the backend is computed once and reused for every write.
  *
  * @author stalehd@gmail.com
  */
-public class ServiceData {
-    private final Object syncObject = new Object();
-    private final Map<String, Endpoint> endpoints = new HashMap<>();
+public final class ServiceData {
+    /**
+     * The weight of instances that don't set one.
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /**
+     * The max weight.
+     */
+    public static final int MAX_WEIGHT = 100;
+
+    /**
+     * Builder for service data.
+     */
+    public static class Builder {
+        private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+        private int weight = DEFAULT_WEIGHT;
+
+        public Builder() {
+
+        }
+
+        /**
+         * Initialise builder with the endpoints and weight of existing service data.
+         */
+        public Builder fromServiceData(final ServiceData serviceData) {
+            endpoints.clear();
+            endpoints.putAll(serviceData.endpoints);
+            weight = serviceData.weight;
+            return this;
+        }
+
+        /**
+         * Add an endpoint.
+         *
+         * @throws IllegalArgumentException if the endpoint is null or there's already an endpoint
+         *     with the same name
+         */
+        public Builder addEndpoint(final Endpoint endpoint) {
+            if (endpoint == null) {
+                throw new IllegalArgumentException("Endpoint can not be null");
+            }
+            if (endpoints.containsKey(endpoint.getName())) {
+                throw new IllegalArgumentException(
+                        "There's already an endpoint named " + endpoint.getName());
+            }
+            endpoints.put(endpoint.getName(), endpoint);
+            return this;
+        }
+
+        /**
+         * Remove the endpoint with the same name as the given endpoint. Endpoints that don't
+         * exist are ignored.
+         *
+         * @throws IllegalArgumentException if the endpoint is null
+         */
+        public Builder removeEndpoint(final Endpoint endpoint) {
+            if (endpoint == null) {
+                throw new IllegalArgumentException("Endpoint can't be null");
+            }
+            endpoints.remove(endpoint.getName());
+            return this;
+        }
+
+        /**
+         * Set the instance's weight.
+         *
+         * @throws IllegalArgumentException if the weight is negative or above {@link #MAX_WEIGHT}
+         */
+        public Builder setWeight(final int weight) {
+            this.weight = checkWeight(weight);
+            return this;
+        }
+
+        /**
+         * Construct a ServiceData instance.
+         */
+        public ServiceData build() {
+            return new ServiceData(new LinkedHashMap<>(endpoints), weight);
+        }
+    }
+
+    private final Map<String, Endpoint> endpoints;
+    private final List<Endpoint> endpointList;
+    private final int weight;
+
+    // The encoded forms are computed on first use. Racing threads compute identical values.
+    private volatile byte[] jsonEncoding;
+    private volatile byte[] binaryEncoding;
 
     /**
      * Create empty service data object with no endpoints.
      */
     public ServiceData() {
-
+        this(new LinkedHashMap<>(), DEFAULT_WEIGHT);
     }
 
     /**
@@ -32,11 +123,34 @@ public class ServiceData {
      * @param endpointList List of endpoints to add
      */
     /* package-private */ ServiceData(final List<Endpoint> endpointList) {
-        synchronized (syncObject) {
-            for (final Endpoint endpoint : endpointList) {
-                endpoints.put(endpoint.getName(), endpoint);
-            }
+        this(toMap(endpointList), DEFAULT_WEIGHT);
+    }
+
+    private ServiceData(final Map<String, Endpoint> endpoints, final int weight) {
+        this.endpoints = endpoints;
+        this.endpointList = Collections.unmodifiableList(new ArrayList<>(endpoints.values()));
+        this.weight = weight;
+    }
+
+    private static Map<String, Endpoint> toMap(final List<Endpoint> endpointList) {
+        final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+        for (final Endpoint endpoint : endpointList) {
+            endpoints.put(endpoint.getName(), endpoint);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Check that a weight is in range.
+     *
+     * @return the weight
+     * @throws IllegalArgumentException if the weight is out of range
+     */
+    /* package-private */ static int checkWeight(final int weight) {
+        if (weight < 0 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("Weight must be between 0 and " + MAX_WEIGHT);
         }
+        return weight;
     }
 
     /**
@@ -45,52 +159,50 @@ public class ServiceData {
      * @return The matching endpoint if found. Null if the endpoint doesn't exist
      */
     public Endpoint getEndpoint(final String name) {
-        synchronized (syncObject) {
-            for (final String epName : endpoints.keySet()) {
-                if (epName.equals(name)) {
-                    return endpoints.get(name);
-                }
-            }
-        }
-        return null;
+        return endpoints.get(name);
     }
 
     /**
-     * Add endpoint.
-     *
-     * @return true if endpoint can be added. False if the endpoint already exists.
-     * @throws IllegalArgumentException if endpoint is invalid
+     * The endpoints. The list can't be modified.
      */
-    public boolean addEndpoint(final Endpoint endpoint) {
-        if (endpoint == null) {
-            throw new IllegalArgumentException("Endpoint can not be null");
-        }
-        synchronized (syncObject) {
-            if (endpoints.containsKey(endpoint.getName())) {
-                return false;
-            }
-            endpoints.put(endpoint.getName(), endpoint);
-        }
-        return true;
+    public List<Endpoint> getEndpoints() {
+        return endpointList;
     }
 
     /**
-     * Remove endpoint.
+     * The instance's weight. Instances with weight 0 are registered but get no requests from
+     * the endpoint selectors.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Check if another instance has the same set of endpoints.
      *
-     * @return True if the endpoint has been removed, false if the endpoint can't be removed. Nulls
-     * @throws IllegalArgumentException if endpoint is invalid
+     * @return true if both instances have the same endpoints, false otherwise
      */
-    public boolean removeEndpoint(final Endpoint endpoint) {
-        if (endpoint == null) {
-            throw new IllegalArgumentException("Endpoint can't be null");
+    /* package-private */ boolean hasSameEndpoints(final ServiceData other) {
+        if (other == null) {
+            return false;
         }
-        synchronized (syncObject) {
-            if (!endpoints.containsKey(endpoint.getName())) {
-                return false;
+        return endpoints.equals(other.endpoints);
+    }
+
+    /**
+     * The encoded data in a format. The array is shared and must not be modified.
+     */
+    /* package-private */ byte[] getEncoded(final ServiceDataFormat format) {
+        if (format == ServiceDataFormat.JSON) {
+            if (jsonEncoding == null) {
+                jsonEncoding = ServiceDataCodec.encode(this, format);
             }
-            endpoints.remove(endpoint.getName());
+            return jsonEncoding;
+        }
+        if (binaryEncoding == null) {
+            binaryEncoding = ServiceDataCodec.encode(this, format);
         }
-        return true;
+        return binaryEncoding;
     }
 
     /**
@@ -99,14 +211,18 @@ public class ServiceData {
     /* package-private */ String toJsonString() {
         final JSONArray epList = new JSONArray();
         int index = 0;
-        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
-            epList.put(index++, new JSONObject(entry.getValue().toJsonString()));
+        for (final Endpoint endpoint : endpointList) {
+            epList.put(index++, endpoint.toJson());
         }
-        return new JSONObject().put("endpoints", epList).toString();
+        return new JSONObject()
+                .put("endpoints", epList)
+                .put("weight", weight)
+                .toString();
     }
 
     /**
-     * Serialize instance from JSON string.
+     * Serialize instance from JSON string. Data written before instances had weights get the
+     * default weight.
      *
      * @throws IllegalArgumentException if parameter is invalid
      */
@@ -120,8 +236,9 @@ public class ServiceData {
         final JSONObject json = new JSONObject(jsonString);
         final JSONArray epList = json.getJSONArray("endpoints");
         for (int i = 0; i < epList.length(); i++) {
-            endpoints.add(Endpoint.fromJson(epList.getJSONObject(i).toString()));
+            endpoints.add(Endpoint.fromJson(epList.getJSONObject(i)));
         }
-        return new ServiceData(endpoints);
+        return new ServiceData(
+                toMap(endpoints), checkWeight(json.optInt("weight", DEFAULT_WEIGHT)));
     }
 }
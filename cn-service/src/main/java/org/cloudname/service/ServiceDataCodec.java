@@ -0,0 +1,98 @@
+package org.cloudname.service;
+
+import org.cloudname.core.LeaseData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes service data in the lease data formats. The binary format starts with a version byte
+ * that can't be the first byte of JSON text (JSON starts with a brace or whitespace) so the
+ * format is detected when decoding and leases written as JSON, f.e. by older clients, are still
+ * read.
+ *
+ * <p>Version 1 of the binary format is
+ * <pre>
+ * byte    version (1)
+ * byte    weight
+ * short   number of endpoints
+ * for each endpoint:
+ *   UTF   name
+ *   UTF   host
+ *   int   port
+ * </pre>
+ * where UTF is the encoding used by {@link DataOutputStream#writeUTF(String)}. Service data
+ * with more endpoints than the count can hold is written as JSON.
+ */
+final class ServiceDataCodec {
+    private static final byte BINARY_V1 = 1;
+    // Anything below tab can't start JSON text
+    private static final byte MAX_BINARY_VERSION = '\t' - 1;
+    private static final int MAX_BINARY_ENDPOINTS = 0xFFFF;
+
+    private ServiceDataCodec() {
+    }
+
+    /**
+     * Encode service data. Data with too many endpoints for the binary format is encoded as
+     * JSON regardless of the format.
+     */
+    static byte[] encode(final ServiceData serviceData, final ServiceDataFormat format) {
+        final List<Endpoint> endpoints = serviceData.getEndpoints();
+        if (format == ServiceDataFormat.JSON || endpoints.size() > MAX_BINARY_ENDPOINTS) {
+            return LeaseData.encode(serviceData.toJsonString());
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + endpoints.size() * 32);
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(BINARY_V1);
+            out.writeByte(serviceData.getWeight());
+            out.writeShort(endpoints.size());
+            for (final Endpoint endpoint : endpoints) {
+                out.writeUTF(endpoint.getName());
+                out.writeUTF(endpoint.getHost());
+                out.writeInt(endpoint.getPort());
+            }
+        } catch (final IOException ex) {
+            // Can't happen when writing to a byte array
+            throw new IllegalStateException("Could not encode service data", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode service data in either format.
+     *
+     * @throws IllegalArgumentException if the data is null, empty or malformed
+     * @throws org.json.JSONException if JSON data is malformed
+     */
+    static ServiceData decode(final byte[] data) {
+        if (data == null || data.length == 0) {
+            throw new IllegalArgumentException("Data can not be null or empty");
+        }
+        if (data[0] > MAX_BINARY_VERSION || data[0] < 0) {
+            return ServiceData.fromJsonString(LeaseData.decode(data));
+        }
+        if (data[0] != BINARY_V1) {
+            throw new IllegalArgumentException("Unknown service data format " + data[0]);
+        }
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(data, 1, data.length - 1);
+        try (final DataInputStream in = new DataInputStream(bytes)) {
+            final int weight = in.readUnsignedByte();
+            final int count = in.readUnsignedShort();
+            final List<Endpoint> endpoints = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                endpoints.add(new Endpoint(in.readUTF(), in.readUTF(), in.readInt()));
+            }
+            final ServiceData.Builder builder = new ServiceData.Builder().setWeight(weight);
+            endpoints.forEach(builder::addEndpoint);
+            return builder.build();
+        } catch (final IOException ex) {
+            throw new IllegalArgumentException("Malformed service data", ex);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.cloudname.service;
+
+/**
+ * The encoding of the service data stored on the instances' leases. Clients read both formats
+ * regardless of the format they write.
+ */
+public enum ServiceDataFormat {
+    /**
+     * JSON. This can be read by all clients, also clients older than the binary format.
+     */
+    JSON,
+
+    /**
+     * A compact binary encoding. This is smaller and a lot cheaper to encode and decode than
+     * JSON but can only be read by clients that know the format.
+     */
+    BINARY
+}
@@ -0,0 +1,145 @@
+package org.cloudname.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A directory of service instances. The directory watches a set of services and keeps an
+ * immutable {@link ServiceSnapshot} of the instances and their endpoints for each of them.
+ * The snapshot is replaced, not modified, when a service changes so lookups only read a volatile
+ * reference and never wait for the listener updating the directory. Clients looking up
+ * endpoints for every request should use this rather than building maps of their own from
+ * service listeners.
+ */
+public class ServiceDirectory implements AutoCloseable {
+    private final CloudnameService cloudnameService;
+    private final Map<ServiceCoordinate, WatchedService> services = new ConcurrentHashMap<>();
+    private final Object syncObject = new Object();
+
+    /**
+     * A watched service. The listener replaces the snapshot; the callbacks for a service are
+     * never invoked concurrently but the lock keeps the updates safe regardless.
+     */
+    private static class WatchedService implements ServiceListener {
+        private volatile ServiceSnapshot snapshot;
+
+        WatchedService(final ServiceCoordinate coordinate) {
+            this.snapshot = ServiceSnapshot.empty(coordinate);
+        }
+
+        @Override
+        public synchronized void onServiceSnapshot(
+                final Map<InstanceCoordinate, ServiceData> instances) {
+            snapshot = snapshot.withInstances(instances);
+        }
+
+        @Override
+        public synchronized void onServiceCreated(
+                final InstanceCoordinate coordinate, final ServiceData serviceData) {
+            snapshot = snapshot.withInstance(coordinate, serviceData);
+        }
+
+        @Override
+        public synchronized void onServiceDataChanged(
+                final InstanceCoordinate coordinate, final ServiceData data) {
+            snapshot = snapshot.withInstance(coordinate, data);
+        }
+
+        @Override
+        public synchronized void onServiceRemoved(final InstanceCoordinate coordinate) {
+            snapshot = snapshot.withoutInstance(coordinate);
+        }
+    }
+
+    /**
+     * Create a directory.
+     *
+     * @param cloudnameService the service discovery used to watch the services
+     * @throws IllegalArgumentException if the service discovery is null
+     */
+    public ServiceDirectory(final CloudnameService cloudnameService) {
+        if (cloudnameService == null) {
+            throw new IllegalArgumentException("Cloudname service can not be null");
+        }
+        this.cloudnameService = cloudnameService;
+    }
+
+    /**
+     * Start watching a service. Watching a service that is already watched does nothing.
+     *
+     * @return the current snapshot of the service
+     * @throws IllegalArgumentException if the coordinate is null
+     */
+    public ServiceSnapshot watch(final ServiceCoordinate coordinate) {
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Coordinate can not be null");
+        }
+        final WatchedService watched;
+        synchronized (syncObject) {
+            final WatchedService existing = services.get(coordinate);
+            if (existing != null) {
+                return existing.snapshot;
+            }
+            watched = new WatchedService(coordinate);
+            services.put(coordinate, watched);
+            cloudnameService.addServiceListener(coordinate, watched);
+        }
+        return watched.snapshot;
+    }
+
+    /**
+     * Stop watching a service. The snapshot of the service is dropped.
+     */
+    public void unwatch(final ServiceCoordinate coordinate) {
+        if (coordinate == null) {
+            return;
+        }
+        synchronized (syncObject) {
+            final WatchedService watched = services.remove(coordinate);
+            if (watched != null) {
+                cloudnameService.removeServiceListener(watched);
+            }
+        }
+    }
+
+    /**
+     * Get the current snapshot of a service. This never blocks.
+     *
+     * @return the snapshot or null if the service isn't watched
+     */
+    public ServiceSnapshot getSnapshot(final ServiceCoordinate coordinate) {
+        if (coordinate == null) {
+            return null;
+        }
+        final WatchedService watched = services.get(coordinate);
+        return watched == null ? null : watched.snapshot;
+    }
+
+    /**
+     * Get the endpoints with a name for all instances of a service. This never blocks.
+     *
+     * @return the endpoints, empty if the service isn't watched or no instance has the endpoint
+     */
+    public List<Endpoint> getEndpoints(final ServiceCoordinate coordinate, final String name) {
+        final ServiceSnapshot snapshot = getSnapshot(coordinate);
+        if (snapshot == null) {
+            return Collections.emptyList();
+        }
+        return snapshot.getEndpoints(name);
+    }
+
+    /**
+     * Stop watching all services.
+     */
+    @Override
+    public void close() {
+        synchronized (syncObject) {
+            for (final ServiceCoordinate coordinate : new ArrayList<>(services.keySet())) {
+                unwatch(coordinate);
+            }
+        }
+    }
+}
@@ -2,25 +2,104 @@ package org.cloudname.service;
 
 import org.cloudname.core.LeaseHandle;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A handle to a service registration. The handle is used to modify the registered endpoints. The
- * state is kept in the ServiceData instance held by the handle. Note that endpoints in the
- * ServiceData instance isn't registered automatically when the handle is created.
+ * handle keeps the service data last written; every change writes a new ServiceData instance.
+ * Use a {@link Transaction} to make several changes with a single write. Note that the service
+ * data isn't written when the handle is created.
  *
  * @author stalehd@gmail.com
  */
 public class ServiceHandle implements AutoCloseable {
     private static final Logger LOG = Logger.getLogger(ServiceHandle.class.getName());
+
+    /**
+     * A set of changes to the service data written to the backend in one go. Changes are
+     * recorded and applied to the handle's current data when the transaction is committed:
+     * <pre>
+     * handle.beginTransaction()
+     *     .addEndpoint(httpEndpoint)
+     *     .addEndpoint(adminEndpoint)
+     *     .setWeight(2)
+     *     .commit();
+     * </pre>
+     */
+    public class Transaction {
+        private final List<Consumer<ServiceData.Builder>> changes = new ArrayList<>();
+
+        private Transaction() {
+        }
+
+        /**
+         * Add an endpoint.
+         *
+         * @throws IllegalArgumentException if the endpoint is null
+         */
+        public Transaction addEndpoint(final Endpoint endpoint) {
+            if (endpoint == null) {
+                throw new IllegalArgumentException("Endpoint can not be null");
+            }
+            changes.add((builder) -> builder.addEndpoint(endpoint));
+            return this;
+        }
+
+        /**
+         * Remove the endpoint with the same name as the given endpoint.
+         *
+         * @throws IllegalArgumentException if the endpoint is null
+         */
+        public Transaction removeEndpoint(final Endpoint endpoint) {
+            if (endpoint == null) {
+                throw new IllegalArgumentException("Endpoint can't be null");
+            }
+            changes.add((builder) -> builder.removeEndpoint(endpoint));
+            return this;
+        }
+
+        /**
+         * Set the instance's weight.
+         *
+         * @throws IllegalArgumentException if the weight is out of range
+         */
+        public Transaction setWeight(final int weight) {
+            ServiceData.checkWeight(weight);
+            changes.add((builder) -> builder.setWeight(weight));
+            return this;
+        }
+
+        /**
+         * Apply the changes and write the service data to the backend with a single write. The
+         * handle's data is unchanged if the write fails.
+         *
+         * @return true if successful
+         * @throws IllegalArgumentException if an endpoint is added with the same name as an
+         *     existing endpoint. Nothing is written.
+         */
+        public boolean commit() {
+            synchronized (syncObject) {
+                final ServiceData.Builder builder
+                        = new ServiceData.Builder().fromServiceData(serviceData);
+                changes.forEach((change) -> change.accept(builder));
+                return writeServiceData(builder.build());
+            }
+        }
+    }
+
     private final LeaseHandle leaseHandle;
     private final InstanceCoordinate instanceCoordinate;
-    private final ServiceData serviceData;
+    private final ServiceDataFormat format;
+    private final Object syncObject = new Object();
+    private ServiceData serviceData;
 
     /**
      * Construct ServiceHandle from @link{InstanceCoordinate}, @link{ServiceData} and
-     * @link{LeaseHandle} instances.
+     * @link{LeaseHandle} instances. The data is written as JSON.
      *
      * @throws IllegalArgumentException if parameters are invalid
      */
@@ -28,6 +107,19 @@ public class ServiceHandle implements AutoCloseable {
             final InstanceCoordinate instanceCoordinate,
             final ServiceData serviceData,
             final LeaseHandle leaseHandle) {
+        this(instanceCoordinate, serviceData, leaseHandle, ServiceDataFormat.JSON);
+    }
+
+    /**
+     * Construct ServiceHandle writing the data in the given format.
+     *
+     * @throws IllegalArgumentException if parameters are invalid
+     */
+    public ServiceHandle(
+            final InstanceCoordinate instanceCoordinate,
+            final ServiceData serviceData,
+            final LeaseHandle leaseHandle,
+            final ServiceDataFormat format) {
         if (instanceCoordinate == null) {
             throw new IllegalArgumentException("Instance coordinate cannot be null");
         }
@@ -37,33 +129,87 @@ public class ServiceHandle implements AutoCloseable {
         if (leaseHandle == null) {
             throw new IllegalArgumentException("Lease handle cannot be null");
         }
+        if (format == null) {
+            throw new IllegalArgumentException("Format cannot be null");
+        }
         this.leaseHandle = leaseHandle;
+        this.format = format;
         this.instanceCoordinate = instanceCoordinate;
         this.serviceData = serviceData;
     }
 
+    /**
+     * Start a transaction changing several endpoints with a single write to the backend.
+     */
+    public Transaction beginTransaction() {
+        return new Transaction();
+    }
+
     /**
      * Register endpoint. Will update the backend's registration.
      *
-     * @return true if successful
+     * @return true if successful, false if the write fails or there's already an endpoint with
+     *     the same name
+     * @throws IllegalArgumentException if the endpoint is null
      */
     public boolean registerEndpoint(final Endpoint endpoint) {
-        if (!serviceData.addEndpoint(endpoint)) {
-            return false;
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Endpoint can not be null");
+        }
+        synchronized (syncObject) {
+            if (serviceData.getEndpoint(endpoint.getName()) != null) {
+                return false;
+            }
+            return beginTransaction().addEndpoint(endpoint).commit();
         }
-        return this.leaseHandle.writeData(serviceData.toJsonString());
     }
 
     /**
      * Remove endpoint from service registration.
      *
-     * @return true if successful
+     * @return true if successful, false if the write fails or there's no endpoint with the name
+     * @throws IllegalArgumentException if the endpoint is null
      */
     public boolean removeEndpoint(final Endpoint endpoint) {
-        if (!serviceData.removeEndpoint(endpoint)) {
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Endpoint can't be null");
+        }
+        synchronized (syncObject) {
+            if (serviceData.getEndpoint(endpoint.getName()) == null) {
+                return false;
+            }
+            return beginTransaction().removeEndpoint(endpoint).commit();
+        }
+    }
+
+    /**
+     * Change the instance's weight. Set the weight to 0 to drain the instance before it stops.
+     *
+     * @return true if successful
+     * @throws IllegalArgumentException if the weight is out of range
+     */
+    public boolean setWeight(final int weight) {
+        return beginTransaction().setWeight(weight).commit();
+    }
+
+    /**
+     * The service data last written to the backend.
+     */
+    public ServiceData getServiceData() {
+        synchronized (syncObject) {
+            return serviceData;
+        }
+    }
+
+    /**
+     * Write service data and keep it if the write succeeds. Callers hold the sync object.
+     */
+    private boolean writeServiceData(final ServiceData updated) {
+        if (!leaseHandle.writeBinaryData(updated.getEncoded(format))) {
             return false;
         }
-        return this.leaseHandle.writeData(serviceData.toJsonString());
+        serviceData = updated;
+        return true;
     }
 
     @Override
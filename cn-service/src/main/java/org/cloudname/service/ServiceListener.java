@@ -1,5 +1,7 @@
 package org.cloudname.service;
 
+import java.util.Map;
+
 /**
  * Listener interface for services.
  *
@@ -7,8 +9,21 @@ package org.cloudname.service;
  */
 public interface ServiceListener {
     /**
-     * Service is created. Note that this method is called once for every service that already
-     * exists when the listener is attached.
+     * The services that exist when the listener is attached. This is called once, before any
+     * of the other methods. The default implementation calls
+     * {@link #onServiceCreated(InstanceCoordinate, ServiceData)} for every service; listeners
+     * building a view of the services can override this to build it in one go.
+     *
+     * @param services The existing instances and their data. Might be empty.
+     */
+    default void onServiceSnapshot(final Map<InstanceCoordinate, ServiceData> services) {
+        services.forEach(this::onServiceCreated);
+    }
+
+    /**
+     * Service is created. Note that unless {@link #onServiceSnapshot(Map)} is overridden this
+     * method is called once for every service that already exists when the listener is
+     * attached.
      *
      * @param coordinate Coordinate of instance
      * @param serviceData The instance's data, ie its endpoints
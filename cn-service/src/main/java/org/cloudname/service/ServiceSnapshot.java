@@ -0,0 +1,157 @@
+package org.cloudname.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable view of the instances of a service at one point in time, kept by
+ * {@link ServiceDirectory}. The endpoints are indexed on their name so lookups don't have to
+ * visit every instance. Every change to the service gives a new snapshot with a higher version;
+ * callers can compare versions to see if anything has changed since they last looked.
+ */
+public final class ServiceSnapshot {
+    private final ServiceCoordinate coordinate;
+    private final long version;
+    private final Map<InstanceCoordinate, Map<String, Endpoint>> instances;
+    private final Map<String, List<Endpoint>> endpointsByName;
+
+    private ServiceSnapshot(
+            final ServiceCoordinate coordinate,
+            final long version,
+            final Map<InstanceCoordinate, Map<String, Endpoint>> instances) {
+        this.coordinate = coordinate;
+        this.version = version;
+        this.instances = Collections.unmodifiableMap(instances);
+
+        final Map<String, List<Endpoint>> byName = new HashMap<>();
+        for (final Map<String, Endpoint> endpoints : instances.values()) {
+            for (final Endpoint endpoint : endpoints.values()) {
+                byName.computeIfAbsent(endpoint.getName(), (name) -> new ArrayList<>())
+                        .add(endpoint);
+            }
+        }
+        byName.replaceAll((name, endpoints) -> Collections.unmodifiableList(endpoints));
+        this.endpointsByName = byName;
+    }
+
+    /**
+     * An empty snapshot with version 0.
+     */
+    /* package-private */ static ServiceSnapshot empty(final ServiceCoordinate coordinate) {
+        return new ServiceSnapshot(coordinate, 0L, new LinkedHashMap<>());
+    }
+
+    private static Map<String, Endpoint> indexEndpoints(final ServiceData data) {
+        final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+        for (final Endpoint endpoint : data.getEndpoints()) {
+            endpoints.put(endpoint.getName(), endpoint);
+        }
+        return Collections.unmodifiableMap(endpoints);
+    }
+
+    /**
+     * A copy of this snapshot with the instances added or replaced.
+     */
+    /* package-private */ ServiceSnapshot withInstances(
+            final Map<InstanceCoordinate, ServiceData> services) {
+        final Map<InstanceCoordinate, Map<String, Endpoint>> copy = new LinkedHashMap<>(instances);
+        services.forEach((instance, data) -> copy.put(instance, indexEndpoints(data)));
+        return new ServiceSnapshot(coordinate, version + 1, copy);
+    }
+
+    /**
+     * A copy of this snapshot with the instance added or replaced.
+     */
+    /* package-private */ ServiceSnapshot withInstance(
+            final InstanceCoordinate instance, final ServiceData data) {
+        return withInstances(Collections.singletonMap(instance, data));
+    }
+
+    /**
+     * A copy of this snapshot without the instance. The snapshot itself is returned if it
+     * doesn't have the instance.
+     */
+    /* package-private */ ServiceSnapshot withoutInstance(final InstanceCoordinate instance) {
+        if (!instances.containsKey(instance)) {
+            return this;
+        }
+        final Map<InstanceCoordinate, Map<String, Endpoint>> copy = new LinkedHashMap<>(instances);
+        copy.remove(instance);
+        return new ServiceSnapshot(coordinate, version + 1, copy);
+    }
+
+    /**
+     * The service the snapshot is for.
+     */
+    public ServiceCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+    /**
+     * The version of the snapshot. The version increases every time the service changes.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * The instances of the service.
+     */
+    public Set<InstanceCoordinate> getInstances() {
+        return instances.keySet();
+    }
+
+    /**
+     * The number of instances.
+     */
+    public int size() {
+        return instances.size();
+    }
+
+    /**
+     * Check if the service has no instances.
+     */
+    public boolean isEmpty() {
+        return instances.isEmpty();
+    }
+
+    /**
+     * Get an endpoint of a single instance.
+     *
+     * @return the endpoint or null if the instance or endpoint doesn't exist
+     */
+    public Endpoint getEndpoint(final InstanceCoordinate instance, final String name) {
+        final Map<String, Endpoint> endpoints = instances.get(instance);
+        return endpoints == null ? null : endpoints.get(name);
+    }
+
+    /**
+     * Get the endpoints of an instance.
+     *
+     * @return the endpoints keyed on their name, empty if the instance doesn't exist
+     */
+    public Map<String, Endpoint> getEndpoints(final InstanceCoordinate instance) {
+        final Map<String, Endpoint> endpoints = instances.get(instance);
+        return endpoints == null ? Collections.emptyMap() : endpoints;
+    }
+
+    /**
+     * Get the endpoints with a name for all instances.
+     *
+     * @return the endpoints, empty if no instance has an endpoint with the name
+     */
+    public List<Endpoint> getEndpoints(final String name) {
+        final List<Endpoint> endpoints = endpointsByName.get(name);
+        return endpoints == null ? Collections.emptyList() : endpoints;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceSnapshot{version=" + version + ", instances=" + instances.keySet() + "}";
+    }
+}
@@ -0,0 +1,177 @@
+package org.cloudname.service;
+
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.LeaseListener;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The single backend listener for a service coordinate. The lease data is decoded once for every
+ * event and the service data is handed to all of the service listeners. The watch keeps the
+ * current instances so listeners added after the first snapshot get a snapshot of their own
+ * right away instead of a new watch on the backend.
+ *
+ * <p>Events and replays are delivered while holding the watch's lock so a new listener gets
+ * every event after its snapshot exactly once.
+ */
+final class ServiceWatch implements LeaseListener {
+    private static final Logger LOG = Logger.getLogger(ServiceWatch.class.getName());
+
+    private final ServiceCoordinate coordinate;
+    private final List<ServiceListener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<InstanceCoordinate, ServiceData> instances = new LinkedHashMap<>();
+    private final CompletableFuture<Void> registered = new CompletableFuture<>();
+    private final AtomicBoolean registering = new AtomicBoolean(false);
+    private final Object syncObject = new Object();
+    private boolean snapshotReceived = false;
+
+    // The number of registrations using the watch. Guarded by the CloudnameService lock.
+    private int users = 0;
+
+    ServiceWatch(final ServiceCoordinate coordinate) {
+        this.coordinate = coordinate;
+    }
+
+    /**
+     * The coordinate the watch is for.
+     */
+    ServiceCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+    /**
+     * Claim the registration of the watch on the backend.
+     *
+     * @return true for the first caller only
+     */
+    boolean claimRegistration() {
+        return registering.compareAndSet(false, true);
+    }
+
+    /**
+     * A future completing when the watch is registered on the backend. The caller that claimed
+     * the registration completes it.
+     */
+    CompletableFuture<Void> getRegistered() {
+        return registered;
+    }
+
+    /**
+     * Change the number of registrations using the watch.
+     *
+     * @return the new number of registrations
+     */
+    int addUsers(final int delta) {
+        users += delta;
+        return users;
+    }
+
+    /**
+     * Add a listener. The listener gets a snapshot of the current instances if the backend has
+     * delivered its snapshot, otherwise it gets the backend's snapshot when it arrives.
+     */
+    void addListener(final ServiceListener listener) {
+        synchronized (syncObject) {
+            if (snapshotReceived) {
+                deliver(listener, (target) ->
+                        target.onServiceSnapshot(Collections.unmodifiableMap(
+                                new LinkedHashMap<>(instances))));
+            }
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a listener.
+     */
+    void removeListener(final ServiceListener listener) {
+        synchronized (syncObject) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Invoke a callback on a listener. Exceptions are logged so that one misbehaving listener
+     * doesn't stop the others from getting the event.
+     */
+    private void deliver(
+            final ServiceListener listener, final Consumer<ServiceListener> callback) {
+        try {
+            callback.accept(listener);
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Service listener for " + coordinate
+                    + " threw exception", ex);
+        }
+    }
+
+    private void deliverToAll(final Consumer<ServiceListener> callback) {
+        for (final ServiceListener listener : listeners) {
+            deliver(listener, callback);
+        }
+    }
+
+    @Override
+    public void leaseSnapshot(final Map<CloudnamePath, byte[]> leases) {
+        final Map<InstanceCoordinate, ServiceData> services = new LinkedHashMap<>();
+        leases.forEach((path, data) -> services.put(new InstanceCoordinate(path),
+                ServiceDataCodec.decode(data)));
+        final Map<InstanceCoordinate, ServiceData> snapshot
+                = Collections.unmodifiableMap(services);
+        synchronized (syncObject) {
+            snapshotReceived = true;
+            instances.putAll(services);
+            deliverToAll((listener) -> listener.onServiceSnapshot(snapshot));
+        }
+    }
+
+    @Override
+    public void leaseCreated(final CloudnamePath path, final String data) {
+        binaryLeaseCreated(path, LeaseData.encode(data));
+    }
+
+    @Override
+    public void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+        final InstanceCoordinate instanceCoordinate = new InstanceCoordinate(path);
+        final ServiceData serviceData = ServiceDataCodec.decode(data);
+        synchronized (syncObject) {
+            instances.put(instanceCoordinate, serviceData);
+            deliverToAll((listener) ->
+                    listener.onServiceCreated(instanceCoordinate, serviceData));
+        }
+    }
+
+    @Override
+    public void leaseRemoved(final CloudnamePath path) {
+        final InstanceCoordinate instanceCoordinate = new InstanceCoordinate(path);
+        synchronized (syncObject) {
+            instances.remove(instanceCoordinate);
+            deliverToAll((listener) -> listener.onServiceRemoved(instanceCoordinate));
+        }
+    }
+
+    @Override
+    public void dataChanged(final CloudnamePath path, final String data) {
+        binaryDataChanged(path, LeaseData.encode(data));
+    }
+
+    @Override
+    public void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+        final InstanceCoordinate instanceCoordinate = new InstanceCoordinate(path);
+        final ServiceData serviceData = ServiceDataCodec.decode(data);
+        synchronized (syncObject) {
+            instances.put(instanceCoordinate, serviceData);
+            deliverToAll((listener) ->
+                    listener.onServiceDataChanged(instanceCoordinate, serviceData));
+        }
+    }
+}
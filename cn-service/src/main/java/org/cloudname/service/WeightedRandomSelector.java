@@ -0,0 +1,72 @@
+package org.cloudname.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An endpoint selector picking instances at random in proportion to their weight. An instance
+ * with weight 2 gets twice as many requests as an instance with weight 1.
+ */
+public class WeightedRandomSelector extends EndpointSelector {
+    /**
+     * The instances and the running sum of their weights.
+     */
+    private static class Table {
+        private final Instance[] instances;
+        private final int[] cumulativeWeights;
+
+        Table(final Instance[] instances, final int[] cumulativeWeights) {
+            this.instances = instances;
+            this.cumulativeWeights = cumulativeWeights;
+        }
+    }
+
+    private volatile Table table = new Table(new Instance[0], new int[0]);
+
+    /**
+     * Create a selector.
+     *
+     * @param endpointName the name of the endpoint to pick from each instance
+     * @throws IllegalArgumentException if the name is null or empty
+     */
+    public WeightedRandomSelector(final String endpointName) {
+        super(endpointName);
+    }
+
+    @Override
+    protected Instance choose(final String key) {
+        final Table current = table;
+        final int length = current.instances.length;
+        if (length == 0) {
+            return null;
+        }
+        final int target = ThreadLocalRandom.current().nextInt(
+                current.cumulativeWeights[length - 1]);
+        // The first instance where the running sum is above the target
+        final int index = Arrays.binarySearch(current.cumulativeWeights, target);
+        return current.instances[index >= 0 ? index + 1 : -index - 1];
+    }
+
+    @Override
+    protected void instanceAdded(final Instance instance) {
+        final Table current = table;
+        final int length = current.instances.length;
+        final Instance[] instances = Arrays.copyOf(current.instances, length + 1);
+        final int[] weights = Arrays.copyOf(current.cumulativeWeights, length + 1);
+        instances[length] = instance;
+        weights[length] = (length == 0 ? 0 : weights[length - 1]) + instance.getWeight();
+        table = new Table(instances, weights);
+    }
+
+    @Override
+    protected void instanceRemoved(final Instance instance) {
+        final Instance[] instances = getInstances();
+        final int[] weights = new int[instances.length];
+        int sum = 0;
+        for (int i = 0; i < instances.length; i++) {
+            sum += instances[i].getWeight();
+            weights[i] = sum;
+        }
+        table = new Table(instances, weights);
+    }
+}
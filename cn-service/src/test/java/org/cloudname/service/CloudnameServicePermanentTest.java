@@ -3,6 +3,9 @@ package org.cloudname.service;
 import org.cloudname.backends.memory.MemoryBackend;
 import org.cloudname.core.BackendManager;
 import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.DelegatingBackend;
+import org.cloudname.core.LeaseListener;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -92,6 +95,46 @@ public class CloudnameServicePermanentTest {
                 ServiceCoordinate.parse(SERVICE_COORDINATE), DEFAULT_ENDPOINT), is(true));
     }
 
+    /**
+     * Listeners on the same permanent service share a single watch on the backend and listeners
+     * added later are told about the service right away.
+     */
+    @Test
+    public void testListenersShareBackendWatch() throws InterruptedException {
+        final AtomicInteger watches = new AtomicInteger(0);
+        final CloudnameBackend countingBackend = new DelegatingBackend(memoryBackend) {
+            @Override
+            public void addLeaseListener(
+                    final CloudnamePath pathToObserve, final LeaseListener listener) {
+                watches.incrementAndGet();
+                super.addLeaseListener(pathToObserve, listener);
+            }
+        };
+        try (final CloudnameService cloudnameService = new CloudnameService(countingBackend)) {
+            final int numListeners = 3;
+            final CountDownLatch createLatch = new CountDownLatch(numListeners);
+            for (int i = 0; i < numListeners; i++) {
+                cloudnameService.addPermanentServiceListener(serviceCoordinate,
+                        new PermanentServiceListener() {
+                            @Override
+                            public void onServiceCreated(final Endpoint endpoint) {
+                                createLatch.countDown();
+                            }
+
+                            @Override
+                            public void onServiceChanged(final Endpoint endpoint) {
+                            }
+
+                            @Override
+                            public void onServiceRemoved() {
+                            }
+                        });
+            }
+            assertTrue(createLatch.await(1, TimeUnit.SECONDS));
+            assertThat(watches.get(), is(1));
+        }
+    }
+
     @Test
     public void testDuplicateRegistration() {
         try (final CloudnameService cloudnameService = new CloudnameService(memoryBackend)) {
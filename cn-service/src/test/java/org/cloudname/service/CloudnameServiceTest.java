@@ -3,22 +3,30 @@ package org.cloudname.service;
 import org.cloudname.backends.memory.MemoryBackend;
 import org.cloudname.core.BackendManager;
 import org.cloudname.core.CloudnameBackend;
+import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.DelegatingBackend;
+import org.cloudname.core.LeaseListener;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertThat;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
 
 /**
  * Test service registration with memory-based backend.
@@ -290,6 +298,365 @@ public class CloudnameServiceTest {
         terminateSemaphore.release();
     }
 
+    /**
+     * Register services and subscribe to them without blocking.
+     */
+    @Test
+    public void asyncRegistrationAndSubscription() throws Exception {
+        final ServiceCoordinate asyncCoordinate = ServiceCoordinate.parse("async.test.local");
+        final int numServices = 10;
+        try (final CloudnameService cloudnameService = new CloudnameService(memoryBackend)) {
+            final CountDownLatch createLatch = new CountDownLatch(numServices);
+            final CompletableFuture<Void> subscription = cloudnameService.addServiceListenerAsync(
+                    asyncCoordinate, new ServiceListener() {
+                        @Override
+                        public void onServiceCreated(
+                                final InstanceCoordinate coordinate, final ServiceData data) {
+                            createLatch.countDown();
+                        }
+
+                        @Override
+                        public void onServiceDataChanged(
+                                final InstanceCoordinate coordinate, final ServiceData data) {
+                        }
+
+                        @Override
+                        public void onServiceRemoved(final InstanceCoordinate coordinate) {
+                        }
+                    });
+            subscription.get(MAX_WAIT_S, TimeUnit.SECONDS);
+
+            final List<CompletableFuture<ServiceHandle>> registrations = new ArrayList<>();
+            for (int i = 0; i < numServices; i++) {
+                registrations.add(cloudnameService.registerServiceAsync(asyncCoordinate,
+                        new ServiceData(Arrays.asList(
+                                new Endpoint("http", "127.0.0.1", getRandomPort())))));
+            }
+            for (final CompletableFuture<ServiceHandle> registration : registrations) {
+                final ServiceHandle handle = registration.get(MAX_WAIT_S, TimeUnit.SECONDS);
+                assertThat(handle, is(notNullValue()));
+                assertThat(handle.getCoordinate().getService(), is("async"));
+            }
+            assertTrue(createLatch.await(MAX_WAIT_S, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Existing services are delivered to new listeners in a single snapshot.
+     */
+    @Test
+    public void serviceSnapshot() throws Exception {
+        final ServiceCoordinate snapshotCoordinate = ServiceCoordinate.parse("snapshot.test.local");
+        final int numServices = 5;
+        try (final CloudnameService cloudnameService = new CloudnameService(memoryBackend)) {
+            final Map<InstanceCoordinate, ServiceData> registered = new HashMap<>();
+            for (int i = 0; i < numServices; i++) {
+                final ServiceData serviceData = new ServiceData(Arrays.asList(
+                        new Endpoint("http", "127.0.0.1", getRandomPort())));
+                final ServiceHandle handle
+                        = cloudnameService.registerService(snapshotCoordinate, serviceData);
+                assertThat(handle, is(notNullValue()));
+                registered.put(handle.getCoordinate(), serviceData);
+            }
+
+            final List<Map<InstanceCoordinate, ServiceData>> snapshots = new ArrayList<>();
+            final CountDownLatch createLatch = new CountDownLatch(1);
+            cloudnameService.addServiceListener(snapshotCoordinate, new ServiceListener() {
+                @Override
+                public void onServiceSnapshot(final Map<InstanceCoordinate, ServiceData> services) {
+                    snapshots.add(services);
+                }
+
+                @Override
+                public void onServiceCreated(
+                        final InstanceCoordinate coordinate, final ServiceData data) {
+                    createLatch.countDown();
+                }
+
+                @Override
+                public void onServiceDataChanged(
+                        final InstanceCoordinate coordinate, final ServiceData data) {
+                }
+
+                @Override
+                public void onServiceRemoved(final InstanceCoordinate coordinate) {
+                }
+            });
+
+            assertThat(snapshots.size(), is(1));
+            assertThat(snapshots.get(0).keySet(), is(registered.keySet()));
+            for (final InstanceCoordinate instance : registered.keySet()) {
+                assertThat(snapshots.get(0).get(instance).getEndpoint("http"),
+                        is(registered.get(instance).getEndpoint("http")));
+            }
+            assertThat(createLatch.getCount(), is(1L));
+
+            registerService(cloudnameService, "snapshot.test.local");
+            assertTrue(createLatch.await(MAX_WAIT_S, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Removed listeners aren't notified of new services.
+     */
+    @Test
+    public void removeServiceListener() throws Exception {
+        final ServiceCoordinate removeCoordinate = ServiceCoordinate.parse("remove.test.local");
+        try (final CloudnameService cloudnameService = new CloudnameService(memoryBackend)) {
+            final CountDownLatch createLatch = new CountDownLatch(1);
+            final ServiceListener listener = new ServiceListener() {
+                @Override
+                public void onServiceCreated(
+                        final InstanceCoordinate coordinate, final ServiceData data) {
+                    createLatch.countDown();
+                }
+
+                @Override
+                public void onServiceDataChanged(
+                        final InstanceCoordinate coordinate, final ServiceData data) {
+                }
+
+                @Override
+                public void onServiceRemoved(final InstanceCoordinate coordinate) {
+                }
+            };
+            cloudnameService.addServiceListener(removeCoordinate, listener);
+            cloudnameService.removeServiceListener(listener);
+
+            registerService(cloudnameService, "remove.test.local");
+            assertThat(createLatch.await(100, TimeUnit.MILLISECONDS), is(false));
+        }
+    }
+
+    /**
+     * Services written in the binary format are read by clients writing JSON and vice versa.
+     */
+    @Test
+    public void mixedDataFormats() throws Exception {
+        final ServiceCoordinate mixedCoordinate = ServiceCoordinate.parse("mixed.test.local");
+        try (final CloudnameService jsonService = new CloudnameService(memoryBackend);
+             final CloudnameService binaryService
+                     = new CloudnameService(memoryBackend, ServiceDataFormat.BINARY)) {
+            final Map<InstanceCoordinate, ServiceData> seen = new HashMap<>();
+            final CountDownLatch changeLatch = new CountDownLatch(1);
+            jsonService.addServiceListener(mixedCoordinate, new ServiceListener() {
+                @Override
+                public void onServiceCreated(
+                        final InstanceCoordinate coordinate, final ServiceData data) {
+                    synchronized (seen) {
+                        seen.put(coordinate, data);
+                    }
+                }
+
+                @Override
+                public void onServiceDataChanged(
+                        final InstanceCoordinate coordinate, final ServiceData data) {
+                    synchronized (seen) {
+                        seen.put(coordinate, data);
+                    }
+                    changeLatch.countDown();
+                }
+
+                @Override
+                public void onServiceRemoved(final InstanceCoordinate coordinate) {
+                }
+            });
+
+            final Endpoint endpoint = new Endpoint("http", "127.0.0.1", getRandomPort());
+            final ServiceHandle handle = binaryService.registerService(
+                    mixedCoordinate, new ServiceData(Arrays.asList(endpoint)));
+            assertTrue(handle.setWeight(7));
+            assertTrue(changeLatch.await(MAX_WAIT_S, TimeUnit.SECONDS));
+            synchronized (seen) {
+                assertThat(seen.get(handle.getCoordinate()).getEndpoint("http"), is(endpoint));
+                assertThat(seen.get(handle.getCoordinate()).getWeight(), is(7));
+            }
+
+            final List<Map<InstanceCoordinate, ServiceData>> snapshots = new ArrayList<>();
+            binaryService.addServiceListener(mixedCoordinate, new ServiceListener() {
+                @Override
+                public void onServiceSnapshot(final Map<InstanceCoordinate, ServiceData> services) {
+                    snapshots.add(services);
+                }
+
+                @Override
+                public void onServiceCreated(
+                        final InstanceCoordinate coordinate, final ServiceData data) {
+                }
+
+                @Override
+                public void onServiceDataChanged(
+                        final InstanceCoordinate coordinate, final ServiceData data) {
+                }
+
+                @Override
+                public void onServiceRemoved(final InstanceCoordinate coordinate) {
+                }
+            });
+            final ServiceHandle jsonHandle = jsonService.registerService(
+                    mixedCoordinate, new ServiceData(Arrays.asList(endpoint)));
+            assertThat(snapshots.size(), is(1));
+            assertThat(snapshots.get(0).get(handle.getCoordinate()).getWeight(), is(7));
+            jsonHandle.close();
+        }
+    }
+
+    /**
+     * Listener counting the instances it is told about.
+     */
+    private static class CountingListener implements ServiceListener {
+        private final AtomicInteger snapshots = new AtomicInteger(0);
+        private final AtomicInteger snapshotSize = new AtomicInteger(-1);
+        private final CountDownLatch createLatch = new CountDownLatch(1);
+        private final CountDownLatch removeLatch = new CountDownLatch(1);
+
+        @Override
+        public void onServiceSnapshot(final Map<InstanceCoordinate, ServiceData> services) {
+            snapshots.incrementAndGet();
+            snapshotSize.set(services.size());
+        }
+
+        @Override
+        public void onServiceCreated(final InstanceCoordinate coordinate, final ServiceData data) {
+            createLatch.countDown();
+        }
+
+        @Override
+        public void onServiceDataChanged(
+                final InstanceCoordinate coordinate, final ServiceData data) {
+        }
+
+        @Override
+        public void onServiceRemoved(final InstanceCoordinate coordinate) {
+            removeLatch.countDown();
+        }
+    }
+
+    /**
+     * Watches that the backend failed to register aren't removed from the backend later.
+     */
+    @Test
+    public void failedRegistrationsAreForgotten() throws Exception {
+        final AtomicInteger removedWatches = new AtomicInteger(0);
+        final CloudnameBackend failingBackend = new DelegatingBackend(memoryBackend) {
+            @Override
+            public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+                    final CloudnamePath pathToWatch, final LeaseListener listener) {
+                final CompletableFuture<Void> future = new CompletableFuture<>();
+                future.completeExceptionally(new IllegalStateException("Registration failed"));
+                return future;
+            }
+
+            @Override
+            public CompletableFuture<Void> addLeaseListenerAsync(
+                    final CloudnamePath pathToWatch, final LeaseListener listener) {
+                return addLeaseCollectionListenerAsync(pathToWatch, listener);
+            }
+
+            @Override
+            public void removeLeaseListener(final LeaseListener listener) {
+                removedWatches.incrementAndGet();
+                super.removeLeaseListener(listener);
+            }
+        };
+
+        final CloudnameService cloudnameService = new CloudnameService(failingBackend);
+        assertTrue(cloudnameService.addServiceListenerAsync(coordinate, new CountingListener())
+                .isCompletedExceptionally());
+        assertTrue(cloudnameService.addPermanentServiceListenerAsync(
+                coordinate, new PermanentServiceListener() {
+                    @Override
+                    public void onServiceCreated(final Endpoint endpoint) {
+                    }
+
+                    @Override
+                    public void onServiceChanged(final Endpoint endpoint) {
+                    }
+
+                    @Override
+                    public void onServiceRemoved() {
+                    }
+                }).isCompletedExceptionally());
+        cloudnameService.close();
+        assertThat(removedWatches.get(), is(0));
+    }
+
+    /**
+     * Listeners on the same coordinate share a single watch on the backend. Listeners added
+     * later get the current instances in a snapshot and the watch is removed with the last
+     * listener.
+     */
+    @Test
+    public void listenersShareBackendWatch() throws Exception {
+        final ServiceCoordinate sharedCoordinate = ServiceCoordinate.parse("shared.test.local");
+        final AtomicInteger watches = new AtomicInteger(0);
+        final AtomicInteger removedWatches = new AtomicInteger(0);
+        final CloudnameBackend countingBackend = new DelegatingBackend(memoryBackend) {
+            @Override
+            public void addLeaseCollectionListener(
+                    final CloudnamePath pathToWatch, final LeaseListener listener) {
+                watches.incrementAndGet();
+                super.addLeaseCollectionListener(pathToWatch, listener);
+            }
+
+            @Override
+            public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+                    final CloudnamePath pathToWatch, final LeaseListener listener) {
+                watches.incrementAndGet();
+                return super.addLeaseCollectionListenerAsync(pathToWatch, listener);
+            }
+
+            @Override
+            public void removeLeaseListener(final LeaseListener listener) {
+                removedWatches.incrementAndGet();
+                super.removeLeaseListener(listener);
+            }
+        };
+
+        try (final CloudnameService cloudnameService = new CloudnameService(countingBackend)) {
+            final ServiceHandle existing = registerService(cloudnameService, "shared.test.local");
+
+            final List<CountingListener> listeners = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final CountingListener listener = new CountingListener();
+                listeners.add(listener);
+                if (i % 2 == 0) {
+                    cloudnameService.addServiceListener(sharedCoordinate, listener);
+                } else {
+                    cloudnameService.addServiceListenerAsync(sharedCoordinate, listener)
+                            .get(MAX_WAIT_S, TimeUnit.SECONDS);
+                }
+            }
+            assertThat(watches.get(), is(1));
+            for (final CountingListener listener : listeners) {
+                assertThat(listener.snapshots.get(), is(1));
+                assertThat(listener.snapshotSize.get(), is(1));
+            }
+
+            registerService(cloudnameService, "shared.test.local");
+            for (final CountingListener listener : listeners) {
+                assertTrue(listener.createLatch.await(MAX_WAIT_S, TimeUnit.SECONDS));
+            }
+
+            for (int i = 1; i < listeners.size(); i++) {
+                cloudnameService.removeServiceListener(listeners.get(i));
+            }
+            assertThat(removedWatches.get(), is(0));
+            existing.close();
+            assertTrue(listeners.get(0).removeLatch.await(MAX_WAIT_S, TimeUnit.SECONDS));
+            for (int i = 1; i < listeners.size(); i++) {
+                assertThat(listeners.get(i).removeLatch.getCount(), is(1L));
+            }
+
+            cloudnameService.removeServiceListener(listeners.get(0));
+            assertThat(removedWatches.get(), is(1));
+
+            // A new listener gets a new watch
+            cloudnameService.addServiceListener(sharedCoordinate, new CountingListener());
+            assertThat(watches.get(), is(2));
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void coordinateCanNotBeNullWhenAddingListener() {
         new CloudnameService(memoryBackend).addServiceListener(null, null);
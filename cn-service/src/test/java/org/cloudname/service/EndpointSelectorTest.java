@@ -0,0 +1,195 @@
+package org.cloudname.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the endpoint selectors. The selectors are fed events directly.
+ */
+public class EndpointSelectorTest {
+    private final InstanceCoordinate instanceA = InstanceCoordinate.parse("a.service.tag.region");
+    private final InstanceCoordinate instanceB = InstanceCoordinate.parse("b.service.tag.region");
+    private final InstanceCoordinate instanceC = InstanceCoordinate.parse("c.service.tag.region");
+    private final Endpoint httpA = new Endpoint("http", "127.0.0.1", 80);
+    private final Endpoint httpB = new Endpoint("http", "127.0.0.2", 80);
+    private final Endpoint httpC = new Endpoint("http", "127.0.0.3", 80);
+
+    private ServiceData data(final int weight, final Endpoint... endpoints) {
+        final ServiceData.Builder builder = new ServiceData.Builder().setWeight(weight);
+        Arrays.asList(endpoints).forEach(builder::addEndpoint);
+        return builder.build();
+    }
+
+    private Map<Endpoint, Integer> countSelections(
+            final EndpointSelector selector, final int count) {
+        final Map<Endpoint, Integer> counts = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final Endpoint endpoint = selector.select();
+            counts.merge(endpoint, 1, Integer::sum);
+            selector.release(endpoint);
+        }
+        return counts;
+    }
+
+    @Test
+    public void emptySelectorsSelectNothing() {
+        assertThat(new RoundRobinSelector("http").select(), is(nullValue()));
+        assertThat(new WeightedRandomSelector("http").select(), is(nullValue()));
+        assertThat(new LeastLoadedSelector("http").select(), is(nullValue()));
+        assertThat(new ConsistentHashSelector("http").select("key"), is(nullValue()));
+    }
+
+    @Test
+    public void tableFollowsInstances() {
+        final EndpointSelector selector = new RoundRobinSelector("http");
+        selector.onServiceCreated(instanceA, data(1, httpA));
+        selector.onServiceCreated(instanceB, data(1, httpB));
+        // Instances without the endpoint and instances with weight 0 are left out
+        selector.onServiceCreated(instanceC, data(1, new Endpoint("admin", "127.0.0.3", 81)));
+        assertThat(selector.size(), is(2));
+
+        selector.onServiceDataChanged(instanceB, data(0, httpB));
+        assertThat(selector.size(), is(1));
+        assertThat(selector.select(), is(httpA));
+
+        selector.onServiceDataChanged(instanceC, data(1, httpC));
+        selector.onServiceRemoved(instanceA);
+        assertThat(selector.size(), is(1));
+        assertThat(selector.select(), is(httpC));
+    }
+
+    @Test
+    public void roundRobin() {
+        final EndpointSelector selector = new RoundRobinSelector("http");
+        selector.onServiceCreated(instanceA, data(1, httpA));
+        selector.onServiceCreated(instanceB, data(5, httpB));
+        selector.onServiceCreated(instanceC, data(1, httpC));
+
+        final Map<Endpoint, Integer> counts = countSelections(selector, 300);
+        assertThat(counts.get(httpA), is(100));
+        assertThat(counts.get(httpB), is(100));
+        assertThat(counts.get(httpC), is(100));
+    }
+
+    @Test
+    public void weightedRandom() {
+        final EndpointSelector selector = new WeightedRandomSelector("http");
+        selector.onServiceCreated(instanceA, data(1, httpA));
+        selector.onServiceCreated(instanceB, data(3, httpB));
+        selector.onServiceCreated(instanceC, data(1, httpC));
+        selector.onServiceRemoved(instanceC);
+
+        final Map<Endpoint, Integer> counts = countSelections(selector, 10000);
+        assertThat(counts.containsKey(httpC), is(false));
+        // Expecting 2500 and 7500
+        assertTrue(counts.get(httpA) > 2000 && counts.get(httpA) < 3000);
+        assertTrue(counts.get(httpB) > 7000 && counts.get(httpB) < 8000);
+    }
+
+    @Test
+    public void leastLoadedAvoidsBusyInstances() {
+        final EndpointSelector selector = new LeastLoadedSelector("http");
+        selector.onServiceCreated(instanceA, data(1, httpA));
+        selector.onServiceCreated(instanceB, data(1, httpB));
+
+        // Requests that are never released keep the instances equally loaded
+        final Map<Endpoint, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            counts.merge(selector.select(), 1, Integer::sum);
+        }
+        assertThat(counts.get(httpA), is(50));
+        assertThat(counts.get(httpB), is(50));
+
+        for (int i = 0; i < 10; i++) {
+            selector.release(httpB);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertThat(selector.select(), is(httpB));
+        }
+    }
+
+    @Test
+    public void consistentHashIsSticky() {
+        final EndpointSelector selector = new ConsistentHashSelector("http");
+        selector.onServiceCreated(instanceA, data(1, httpA));
+        selector.onServiceCreated(instanceB, data(1, httpB));
+
+        final Map<String, Endpoint> assignments = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            final String key = "key" + i;
+            final Endpoint endpoint = selector.select(key);
+            selector.release(endpoint);
+            assertThat(selector.select(key), is(endpoint));
+            selector.release(endpoint);
+            assignments.put(key, endpoint);
+        }
+        assertThat(new HashSet<>(assignments.values()).size(), is(2));
+
+        // Adding an instance only moves keys to the new instance
+        selector.onServiceCreated(instanceC, data(1, httpC));
+        for (final Map.Entry<String, Endpoint> entry : assignments.entrySet()) {
+            final Endpoint endpoint = selector.select(entry.getKey());
+            selector.release(endpoint);
+            if (!endpoint.equals(httpC)) {
+                assertThat(endpoint, is(entry.getValue()));
+            }
+        }
+
+        // Other selectors agree on where the keys go
+        final EndpointSelector other = new ConsistentHashSelector("http");
+        other.onServiceCreated(instanceC, data(1, httpC));
+        other.onServiceCreated(instanceB, data(1, httpB));
+        other.onServiceCreated(instanceA, data(1, httpA));
+        for (final String key : assignments.keySet()) {
+            final Endpoint endpoint = selector.select(key);
+            selector.release(endpoint);
+            assertThat(other.select(key), is(endpoint));
+            other.release(endpoint);
+        }
+    }
+
+    @Test
+    public void consistentHashBoundsLoad() {
+        final EndpointSelector selector = new ConsistentHashSelector("http", 1.0);
+        selector.onServiceCreated(instanceA, data(1, httpA));
+        selector.onServiceCreated(instanceB, data(1, httpB));
+        selector.onServiceCreated(instanceC, data(1, httpC));
+
+        // A hot key is spread over the instances when requests pile up
+        final Map<Endpoint, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30; i++) {
+            counts.merge(selector.select("hot"), 1, Integer::sum);
+        }
+        assertThat(counts.get(httpA), is(10));
+        assertThat(counts.get(httpB), is(10));
+        assertThat(counts.get(httpC), is(10));
+
+        // The key goes back to its instance when the load drops
+        final Endpoint first = selector.select("hot");
+        for (final Endpoint endpoint : Arrays.asList(httpA, httpB, httpC)) {
+            for (int i = 0; i < 11; i++) {
+                selector.release(endpoint);
+            }
+        }
+        assertThat(selector.select("hot"), is(first));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void endpointNameCanNotBeNull() {
+        new RoundRobinSelector(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void loadFactorMustBeAtLeastOne() {
+        new ConsistentHashSelector("http", 0.5);
+    }
+}
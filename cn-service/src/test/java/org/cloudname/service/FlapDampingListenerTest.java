@@ -0,0 +1,127 @@
+package org.cloudname.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the flap damping listener. The window is long enough to never expire in the tests that
+ * check damping.
+ */
+public class FlapDampingListenerTest {
+    private static final long LONG_WINDOW_MS = 60000L;
+
+    private final InstanceCoordinate instanceA = InstanceCoordinate.parse("a.service.tag.region");
+    private final InstanceCoordinate instanceB = InstanceCoordinate.parse("b.service.tag.region");
+    private final ServiceData httpData = new ServiceData(
+            Arrays.asList(new Endpoint("http", "127.0.0.1", 80)));
+    private final ServiceData otherHttpData = new ServiceData(
+            Arrays.asList(new Endpoint("http", "127.0.0.1", 8080)));
+
+    /**
+     * Listener recording the events as strings.
+     */
+    private static class RecordingListener implements ServiceListener {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch removeLatch = new CountDownLatch(1);
+
+        @Override
+        public void onServiceCreated(final InstanceCoordinate coordinate, final ServiceData data) {
+            events.add("created " + coordinate.getInstance());
+        }
+
+        @Override
+        public void onServiceDataChanged(
+                final InstanceCoordinate coordinate, final ServiceData data) {
+            events.add("changed " + coordinate.getInstance() + " "
+                    + data.getEndpoint("http").getPort());
+        }
+
+        @Override
+        public void onServiceRemoved(final InstanceCoordinate coordinate) {
+            events.add("removed " + coordinate.getInstance());
+            removeLatch.countDown();
+        }
+    }
+
+    private final RecordingListener recorder = new RecordingListener();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullListener() {
+        new FlapDampingListener(null, LONG_WINDOW_MS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyWindow() {
+        new FlapDampingListener(recorder, 0);
+    }
+
+    @Test
+    public void sameInstanceWithSameEndpointsIsDamped() {
+        final FlapDampingListener listener = new FlapDampingListener(recorder, LONG_WINDOW_MS);
+        listener.onServiceCreated(instanceA, httpData);
+        listener.onServiceRemoved(instanceA);
+        listener.onServiceCreated(instanceA, httpData);
+        assertThat(recorder.events, is(Arrays.asList("created a")));
+        assertThat(listener.getDampedRemovals(), is(1));
+    }
+
+    @Test
+    public void sameInstanceWithOtherEndpointsIsDataChange() {
+        final FlapDampingListener listener = new FlapDampingListener(recorder, LONG_WINDOW_MS);
+        listener.onServiceCreated(instanceA, httpData);
+        listener.onServiceRemoved(instanceA);
+        listener.onServiceCreated(instanceA, otherHttpData);
+        assertThat(recorder.events, is(Arrays.asList("created a", "changed a 8080")));
+    }
+
+    @Test
+    public void newInstanceWithSameEndpointsReplacesRemovedInstance() {
+        final FlapDampingListener listener = new FlapDampingListener(recorder, LONG_WINDOW_MS);
+        listener.onServiceCreated(instanceA, httpData);
+        listener.onServiceRemoved(instanceA);
+        listener.onServiceCreated(instanceB, httpData);
+        assertThat(recorder.events, is(Arrays.asList("created a")));
+
+        // Events for the new instance are reported on the old coordinate
+        listener.onServiceDataChanged(instanceB, otherHttpData);
+        assertThat(recorder.events, is(Arrays.asList("created a", "changed a 8080")));
+        listener.onServiceRemoved(instanceB);
+        listener.onServiceCreated(instanceB, otherHttpData);
+        assertThat(recorder.events.size(), is(2));
+        assertThat(listener.getDampedRemovals(), is(2));
+    }
+
+    @Test
+    public void newInstanceWithOtherEndpointsIsCreated() {
+        final FlapDampingListener listener = new FlapDampingListener(recorder, LONG_WINDOW_MS);
+        listener.onServiceCreated(instanceA, httpData);
+        listener.onServiceRemoved(instanceA);
+        listener.onServiceCreated(instanceB, otherHttpData);
+        assertThat(recorder.events, is(Arrays.asList("created a", "created b")));
+        assertThat(listener.getDampedRemovals(), is(0));
+    }
+
+    @Test
+    public void removalIsDeliveredAfterWindow() throws Exception {
+        final FlapDampingListener listener = new FlapDampingListener(recorder, 50);
+        listener.onServiceCreated(instanceA, httpData);
+        listener.onServiceRemoved(instanceA);
+        assertThat(recorder.events, is(Arrays.asList("created a")));
+
+        assertTrue(recorder.removeLatch.await(1, TimeUnit.SECONDS));
+        assertThat(recorder.events, is(Arrays.asList("created a", "removed a")));
+
+        listener.onServiceCreated(instanceB, httpData);
+        assertThat(recorder.events, is(Arrays.asList("created a", "removed a", "created b")));
+    }
+}
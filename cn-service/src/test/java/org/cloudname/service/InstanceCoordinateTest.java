@@ -67,6 +67,20 @@ public class InstanceCoordinateTest {
         assertThat(a.toCanonicalString(), is(b.toCanonicalString()));
     }
 
+    @Test
+    public void equalsAndHashCode() {
+        final InstanceCoordinate a = InstanceCoordinate.parse("instance.service.tag.region");
+        final InstanceCoordinate b = new InstanceCoordinate(new CloudnamePath(
+                new String[] {"region", "tag", "service", "instance"}));
+        final InstanceCoordinate c = InstanceCoordinate.parse("other.service.tag.region");
+
+        assertThat(a, is(equalTo(b)));
+        assertThat(a.hashCode(), is(b.hashCode()));
+        assertThat(a, is(not(equalTo(c))));
+        assertThat(a.equals(null), is(false));
+        assertThat(a.equals(a.toCanonicalString()), is(false));
+    }
+
     @Test
     public void invalidStringConversion() {
         assertThat(InstanceCoordinate.parse("foo:bar.baz"), is(nullValue()));
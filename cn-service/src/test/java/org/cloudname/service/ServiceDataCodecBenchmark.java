@@ -0,0 +1,53 @@
+package org.cloudname.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A micro benchmark comparing the service data formats for an instance with lots of endpoints.
+ * This isn't run as part of the tests; run it with
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.cloudname.service.ServiceDataCodecBenchmark \
+ *     -Dexec.classpathScope=test
+ * </pre>
+ */
+public final class ServiceDataCodecBenchmark {
+    private static final int NUM_ENDPOINTS = 20;
+    private static final int NUM_ITERATIONS = 20000;
+
+    private ServiceDataCodecBenchmark() {
+    }
+
+    public static void main(final String[] args) {
+        final List<Endpoint> endpoints = new ArrayList<>();
+        for (int i = 0; i < NUM_ENDPOINTS; i++) {
+            endpoints.add(new Endpoint("endpoint-" + i, "10.0.0." + i, 8000 + i));
+        }
+        final ServiceData data = new ServiceData(endpoints);
+
+        for (final ServiceDataFormat format : ServiceDataFormat.values()) {
+            // Warm up before timing
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                ServiceDataCodec.decode(ServiceDataCodec.encode(data, format));
+            }
+
+            long start = System.nanoTime();
+            byte[] encoded = null;
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                encoded = ServiceDataCodec.encode(data, format);
+            }
+            final long encodeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < NUM_ITERATIONS; i++) {
+                ServiceDataCodec.decode(encoded);
+            }
+            final long decodeNanos = System.nanoTime() - start;
+
+            System.out.println(format + ": " + encoded.length + " bytes, encode "
+                    + encodeNanos / NUM_ITERATIONS + " ns, decode "
+                    + decodeNanos / NUM_ITERATIONS + " ns (" + NUM_ITERATIONS + " iterations)");
+        }
+    }
+}
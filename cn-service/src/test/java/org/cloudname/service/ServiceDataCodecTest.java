@@ -0,0 +1,93 @@
+package org.cloudname.service;
+
+import org.cloudname.core.LeaseData;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the encoding of service data.
+ */
+public class ServiceDataCodecTest {
+    private final Endpoint endpointA = new Endpoint("foo", "bar", 80);
+    private final Endpoint endpointB = new Endpoint("baz", "bär", 65535);
+
+    private void assertSameData(final ServiceData decoded, final ServiceData original) {
+        assertTrue(decoded.hasSameEndpoints(original));
+        assertThat(decoded.getWeight(), is(original.getWeight()));
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        final ServiceData data = new ServiceData.Builder()
+                .addEndpoint(endpointA)
+                .addEndpoint(endpointB)
+                .setWeight(ServiceData.MAX_WEIGHT)
+                .build();
+        final byte[] encoded = ServiceDataCodec.encode(data, ServiceDataFormat.BINARY);
+        assertSameData(ServiceDataCodec.decode(encoded), data);
+        assertTrue(encoded.length
+                < ServiceDataCodec.encode(data, ServiceDataFormat.JSON).length);
+
+        final ServiceData empty = new ServiceData();
+        assertSameData(ServiceDataCodec.decode(
+                ServiceDataCodec.encode(empty, ServiceDataFormat.BINARY)), empty);
+    }
+
+    @Test
+    public void jsonIsDecoded() {
+        final ServiceData data = new ServiceData.Builder()
+                .addEndpoint(endpointA)
+                .addEndpoint(endpointB)
+                .setWeight(3)
+                .build();
+        assertSameData(ServiceDataCodec.decode(
+                ServiceDataCodec.encode(data, ServiceDataFormat.JSON)), data);
+
+        // As written by clients without weights and with leading whitespace
+        final ServiceData legacy = ServiceDataCodec.decode(LeaseData.encode(
+                " {\"endpoints\":[{\"name\":\"foo\",\"host\":\"bar\",\"port\":80}]}"));
+        assertThat(legacy.getEndpoint("foo"), is(endpointA));
+        assertThat(legacy.getWeight(), is(ServiceData.DEFAULT_WEIGHT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersion() {
+        ServiceDataCodec.decode(new byte[] {2, 1, 0, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedData() {
+        final byte[] encoded = ServiceDataCodec.encode(
+                new ServiceData(Arrays.asList(endpointA)), ServiceDataFormat.BINARY);
+        ServiceDataCodec.decode(Arrays.copyOf(encoded, encoded.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyData() {
+        ServiceDataCodec.decode(new byte[0]);
+    }
+
+    /**
+     * The binary format can't count more than 65535 endpoints so larger service data is written
+     * as JSON.
+     */
+    @Test
+    public void tooManyEndpointsForBinary() {
+        final ServiceData.Builder builder = new ServiceData.Builder();
+        final int numEndpoints = 0x10000;
+        for (int i = 0; i < numEndpoints; i++) {
+            builder.addEndpoint(new Endpoint("endpoint-" + i, "host", 80));
+        }
+        final ServiceData data = builder.build();
+        final byte[] encoded = ServiceDataCodec.encode(data, ServiceDataFormat.BINARY);
+        assertThat(encoded[0], is((byte) '{'));
+        final ServiceData decoded = ServiceDataCodec.decode(encoded);
+        assertThat(decoded.getEndpoints().size(), is(numEndpoints));
+        assertSameData(decoded, data);
+    }
+}
@@ -2,12 +2,12 @@ package org.cloudname.service;
 
 import org.junit.Test;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public class ServiceDataTest {
@@ -24,40 +24,39 @@ public class ServiceDataTest {
 
     @Test
     public void testAddRemoveEndpoint() {
-        final ServiceData data = new ServiceData(new ArrayList<Endpoint>());
-        assertThat(data.getEndpoint("a"), is(nullValue()));
-        assertThat(data.getEndpoint("b"), is(nullValue()));
+        final ServiceData empty = new ServiceData.Builder().build();
+        assertThat(empty.getEndpoint("a"), is(nullValue()));
+        assertThat(empty.getEndpoints().isEmpty(), is(true));
 
         final Endpoint ep1 = new Endpoint("a", "localhost", 80);
-        final Endpoint ep1a = new Endpoint("a", "localhost", 80);
-        // Endpoint can only be added once
-        assertThat(data.addEndpoint(ep1), is(true));
-        assertThat(data.addEndpoint(ep1), is(false));
-        // Endpoints must be unique
-        assertThat(data.addEndpoint(ep1a), is(false));
-
-        // Another endpoint can be added
         final Endpoint ep2 = new Endpoint("b", "localhost", 80);
-        final Endpoint ep2a = new Endpoint("b", "localhost", 80);
-        assertThat(data.addEndpoint(ep2), is(true));
-        // But the same rules applies
-        assertThat(data.addEndpoint(ep2), is(false));
-        assertThat(data.addEndpoint(ep2a), is(false));
-
-        // Data now contains both endpoints
+        final ServiceData data = new ServiceData.Builder()
+                .addEndpoint(ep1)
+                .addEndpoint(ep2)
+                .build();
         assertThat(data.getEndpoint("a"), is(equalTo(ep1)));
         assertThat(data.getEndpoint("b"), is(equalTo(ep2)));
+        assertThat(data.getEndpoints(), is(Arrays.asList(ep1, ep2)));
+
+        // Endpoints are removed by name; the original data is unchanged
+        final ServiceData removed = new ServiceData.Builder()
+                .fromServiceData(data)
+                .removeEndpoint(new Endpoint("a", "otherhost", 81))
+                .removeEndpoint(new Endpoint("c", "localhost", 80))
+                .build();
+        assertThat(removed.getEndpoint("a"), is(nullValue()));
+        assertThat(removed.getEndpoint("b"), is(equalTo(ep2)));
+        assertThat(data.getEndpoint("a"), is(equalTo(ep1)));
 
-        assertThat(data.removeEndpoint(ep1), is(true));
-        assertThat(data.removeEndpoint(ep1a), is(false));
-
-        // ...ditto for next endpoint
-        assertThat(data.removeEndpoint(ep2), is(true));
-        assertThat(data.removeEndpoint(ep2), is(false));
+        // The endpoints with identical names can be added again
+        final Endpoint ep1a = new Endpoint("a", "localhost", 80);
+        assertThat(new ServiceData.Builder().fromServiceData(removed).addEndpoint(ep1a).build()
+                .getEndpoint("a"), is(equalTo(ep1a)));
+    }
 
-        // The endpoints with identical names can be added
-        assertThat(data.addEndpoint(ep1a), is(true));
-        assertThat(data.addEndpoint(ep2a), is(true));
+    @Test(expected = UnsupportedOperationException.class)
+    public void endpointListCanNotBeModified() {
+        new ServiceData().getEndpoints().add(new Endpoint("a", "localhost", 80));
     }
 
     @Test
@@ -76,17 +75,35 @@ public class ServiceDataTest {
     }
 
     @Test
+    public void weightIsSerialized() {
+        final ServiceData.Builder builder
+                = new ServiceData.Builder().addEndpoint(new Endpoint("foo", "bar", 80));
+        assertThat(builder.build().getWeight(), is(ServiceData.DEFAULT_WEIGHT));
+        final ServiceData data = builder.setWeight(5).build();
+        assertThat(ServiceData.fromJsonString(data.toJsonString()).getWeight(), is(5));
+
+        // Data without a weight gets the default weight
+        final ServiceData unweighted = ServiceData.fromJsonString(
+                "{ \"endpoints\": [ { \"name\": \"foo\", \"host\": \"bar\", \"port\": 80 } ] }");
+        assertThat(unweighted.getWeight(), is(ServiceData.DEFAULT_WEIGHT));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void weightCanNotBeNegative() {
+        new ServiceData.Builder().setWeight(-1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void weightCanNotBeAboveMax() {
+        new ServiceData.Builder().setWeight(ServiceData.MAX_WEIGHT + 1);
+    }
+
+    @Test (expected = IllegalArgumentException.class)
     public void uniqueNamesAreRequired() {
         final Endpoint endpointA = new Endpoint("foo", "bar", 80);
         final Endpoint endpointB = new Endpoint("foo", "baz", 82);
-        final Endpoint endpointC = new Endpoint("foo", "localhost", 80);
-        final Endpoint endpointD = new Endpoint("foobar", "localhost", 80);
 
-        final ServiceData serviceData = new ServiceData(new ArrayList<Endpoint>());
-        assertThat(serviceData.addEndpoint(endpointA), is(true));
-        assertThat(serviceData.addEndpoint(endpointB), is(false));
-        assertThat(serviceData.addEndpoint(endpointC), is(false));
-        assertThat(serviceData.addEndpoint(endpointD), is(true));
+        new ServiceData.Builder().addEndpoint(endpointA).addEndpoint(endpointB);
     }
 
     @Test (expected = IllegalArgumentException.class)
@@ -112,13 +129,32 @@ public class ServiceDataTest {
 
     @Test (expected = IllegalArgumentException.class)
     public void addNullEndpoint() {
-        final ServiceData data = new ServiceData();
-        data.addEndpoint(null);
+        new ServiceData.Builder().addEndpoint(null);
     }
 
     @Test (expected = IllegalArgumentException.class)
     public void removeNullEndpoint() {
-        final ServiceData data = new ServiceData();
-        data.removeEndpoint(null);
+        new ServiceData.Builder().removeEndpoint(null);
+    }
+
+    @Test
+    public void encodingIsComputedOnce() {
+        final ServiceData data = new ServiceData(Arrays.asList(new Endpoint("a", "localhost", 80)));
+        for (final ServiceDataFormat format : ServiceDataFormat.values()) {
+            assertThat(data.getEncoded(format), is(sameInstance(data.getEncoded(format))));
+        }
+    }
+
+    @Test
+    public void sameEndpoints() {
+        final Endpoint ep1 = new Endpoint("a", "localhost", 80);
+        final Endpoint ep2 = new Endpoint("b", "localhost", 81);
+        final ServiceData data = new ServiceData(Arrays.asList(ep1, ep2));
+
+        assertThat(data.hasSameEndpoints(new ServiceData(Arrays.asList(ep2, ep1))), is(true));
+        assertThat(data.hasSameEndpoints(new ServiceData(Arrays.asList(ep1))), is(false));
+        assertThat(data.hasSameEndpoints(new ServiceData(Arrays.asList(
+                ep1, new Endpoint("b", "localhost", 82)))), is(false));
+        assertThat(data.hasSameEndpoints(null), is(false));
     }
 }
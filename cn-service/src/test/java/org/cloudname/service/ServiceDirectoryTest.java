@@ -0,0 +1,93 @@
+package org.cloudname.service;
+
+import org.cloudname.core.BackendManager;
+import org.cloudname.core.CloudnameBackend;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the service directory with the memory backend.
+ */
+public class ServiceDirectoryTest {
+    private static final CloudnameBackend memoryBackend = BackendManager.getBackend("memory://");
+    private static final int MAX_WAIT_MS = 1000;
+
+    private void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (!condition.getAsBoolean()
+                && System.currentTimeMillis() - start < MAX_WAIT_MS) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void snapshotFollowsService() throws Exception {
+        final ServiceCoordinate coordinate = ServiceCoordinate.parse("directory.test.local");
+        try (final CloudnameService cloudnameService = new CloudnameService(memoryBackend);
+             final ServiceDirectory directory = new ServiceDirectory(cloudnameService)) {
+            final ServiceHandle existing = cloudnameService.registerService(coordinate,
+                    new ServiceData(Arrays.asList(new Endpoint("http", "127.0.0.1", 80))));
+
+            final ServiceSnapshot initial = directory.watch(coordinate);
+            assertThat(initial.size(), is(1));
+            assertThat(initial.getEndpoint(existing.getCoordinate(), "http").getPort(), is(80));
+
+            final ServiceHandle added = cloudnameService.registerService(coordinate,
+                    new ServiceData(Arrays.asList(new Endpoint("http", "127.0.0.2", 81))));
+            waitFor(() -> directory.getEndpoints(coordinate, "http").size() == 2);
+            assertTrue(directory.getSnapshot(coordinate).getVersion() > initial.getVersion());
+
+            existing.close();
+            waitFor(() -> directory.getSnapshot(coordinate).size() == 1);
+            assertThat(directory.getEndpoints(coordinate, "http").get(0).getPort(), is(81));
+
+            // The snapshot given out first is unchanged
+            assertThat(initial.size(), is(1));
+            added.close();
+        }
+    }
+
+    @Test
+    public void watchIsIdempotent() throws Exception {
+        final ServiceCoordinate coordinate = ServiceCoordinate.parse("idempotent.test.local");
+        try (final CloudnameService cloudnameService = new CloudnameService(memoryBackend);
+             final ServiceDirectory directory = new ServiceDirectory(cloudnameService)) {
+            final ServiceSnapshot first = directory.watch(coordinate);
+            assertThat(directory.watch(coordinate), is(first));
+        }
+    }
+
+    @Test
+    public void unwatchedServicesHaveNoSnapshot() throws Exception {
+        final ServiceCoordinate coordinate = ServiceCoordinate.parse("unwatched.test.local");
+        try (final CloudnameService cloudnameService = new CloudnameService(memoryBackend);
+             final ServiceDirectory directory = new ServiceDirectory(cloudnameService)) {
+            assertThat(directory.getSnapshot(coordinate), is(nullValue()));
+            assertTrue(directory.getEndpoints(coordinate, "http").isEmpty());
+
+            directory.watch(coordinate);
+            assertThat(directory.getSnapshot(coordinate), is(notNullValue()));
+            directory.unwatch(coordinate);
+            assertThat(directory.getSnapshot(coordinate), is(nullValue()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void serviceCanNotBeNull() {
+        new ServiceDirectory(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void coordinateCanNotBeNull() {
+        new ServiceDirectory(new CloudnameService(memoryBackend)).watch(null);
+    }
+}
@@ -7,8 +7,10 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 public class ServiceHandleTest {
@@ -84,6 +86,86 @@ public class ServiceHandleTest {
         serviceHandle.close();
     }
 
+    /**
+     * Changes in a transaction are written with a single write.
+     */
+    @Test
+    public void transaction() {
+        final InstanceCoordinate instanceCoordinate
+                = InstanceCoordinate.parse("instance.service.tag.region");
+        final Endpoint ep1 = new Endpoint("foo", "bar", 80);
+        final Endpoint ep2 = new Endpoint("bar", "baz", 81);
+        final Endpoint ep3 = new Endpoint("baz", "baz", 82);
+        final List<ServiceData> writes = new ArrayList<>();
+        final LeaseHandle handle = new LeaseHandle() {
+            @Override
+            public boolean writeData(final String data) {
+                writes.add(ServiceData.fromJsonString(data));
+                return true;
+            }
+
+            @Override
+            public CloudnamePath getLeasePath() {
+                return instanceCoordinate.toCloudnamePath();
+            }
+
+            @Override
+            public void close() throws IOException {
+                // nothing
+            }
+        };
+
+        final ServiceHandle serviceHandle = new ServiceHandle(
+                instanceCoordinate, new ServiceData(Arrays.asList(ep1)), handle);
+        final ServiceHandle.Transaction transaction = serviceHandle.beginTransaction()
+                .addEndpoint(ep2)
+                .addEndpoint(ep3)
+                .removeEndpoint(ep1)
+                .setWeight(3);
+        // Nothing is written until the transaction is committed
+        assertThat(writes.isEmpty(), is(true));
+        assertThat(transaction.commit(), is(true));
+
+        assertThat(writes.size(), is(1));
+        assertThat(writes.get(0).hasSameEndpoints(new ServiceData(Arrays.asList(ep2, ep3))),
+                is(true));
+        assertThat(writes.get(0).getWeight(), is(3));
+        assertThat(serviceHandle.getServiceData().getEndpoint("foo"), is(nullValue()));
+        assertThat(serviceHandle.getServiceData().getWeight(), is(3));
+    }
+
+    /**
+     * The handle keeps its data if the write fails.
+     */
+    @Test
+    public void failedTransaction() {
+        final InstanceCoordinate instanceCoordinate
+                = InstanceCoordinate.parse("instance.service.tag.region");
+        final Endpoint ep1 = new Endpoint("foo", "bar", 80);
+        final ServiceData serviceData = new ServiceData(Arrays.asList(ep1));
+        final LeaseHandle handle = new LeaseHandle() {
+            @Override
+            public boolean writeData(final String data) {
+                return false;
+            }
+
+            @Override
+            public CloudnamePath getLeasePath() {
+                return instanceCoordinate.toCloudnamePath();
+            }
+
+            @Override
+            public void close() throws IOException {
+                // nothing
+            }
+        };
+
+        final ServiceHandle serviceHandle
+                = new ServiceHandle(instanceCoordinate, serviceData, handle);
+        assertThat(serviceHandle.beginTransaction().removeEndpoint(ep1).commit(), is(false));
+        assertThat(serviceHandle.getServiceData(), is(serviceData));
+    }
+
     @Test (expected = IllegalArgumentException.class)
     public void testWithNullParameters1() {
         new ServiceHandle(null, null, null);
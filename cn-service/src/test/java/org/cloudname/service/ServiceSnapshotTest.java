@@ -0,0 +1,84 @@
+package org.cloudname.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the immutable service snapshots.
+ */
+public class ServiceSnapshotTest {
+    private final ServiceCoordinate coordinate = ServiceCoordinate.parse("service.tag.region");
+    private final InstanceCoordinate instanceA = InstanceCoordinate.parse("a.service.tag.region");
+    private final InstanceCoordinate instanceB = InstanceCoordinate.parse("b.service.tag.region");
+    private final Endpoint httpA = new Endpoint("http", "127.0.0.1", 80);
+    private final Endpoint httpB = new Endpoint("http", "127.0.0.2", 80);
+    private final Endpoint adminA = new Endpoint("admin", "127.0.0.1", 81);
+
+    @Test
+    public void emptySnapshot() {
+        final ServiceSnapshot snapshot = ServiceSnapshot.empty(coordinate);
+        assertThat(snapshot.getCoordinate(), is(coordinate));
+        assertThat(snapshot.getVersion(), is(0L));
+        assertTrue(snapshot.isEmpty());
+        assertTrue(snapshot.getEndpoints("http").isEmpty());
+        assertTrue(snapshot.getEndpoints(instanceA).isEmpty());
+        assertThat(snapshot.getEndpoint(instanceA, "http"), is(nullValue()));
+    }
+
+    @Test
+    public void changesGiveNewVersions() {
+        final ServiceSnapshot empty = ServiceSnapshot.empty(coordinate);
+        final Map<InstanceCoordinate, ServiceData> instances = new HashMap<>();
+        instances.put(instanceA, new ServiceData(Arrays.asList(httpA, adminA)));
+        instances.put(instanceB, new ServiceData(Arrays.asList(httpB)));
+
+        final ServiceSnapshot first = empty.withInstances(instances);
+        assertThat(first.getVersion(), is(1L));
+        assertThat(first.size(), is(2));
+        assertThat(first.getEndpoints("http").size(), is(2));
+        assertTrue(first.getEndpoints("http").contains(httpA));
+        assertTrue(first.getEndpoints("http").contains(httpB));
+        assertThat(first.getEndpoints("admin"), is(Arrays.asList(adminA)));
+        assertThat(first.getEndpoint(instanceA, "admin"), is(adminA));
+        assertThat(first.getEndpoints(instanceB).size(), is(1));
+
+        final ServiceSnapshot second = first.withoutInstance(instanceA);
+        assertThat(second.getVersion(), is(2L));
+        assertThat(second.getEndpoints("http"), is(Arrays.asList(httpB)));
+        assertTrue(second.getEndpoints("admin").isEmpty());
+
+        // The older snapshots are unchanged
+        assertThat(empty.size(), is(0));
+        assertThat(first.size(), is(2));
+        assertThat(first.getEndpoints("http").size(), is(2));
+
+        final ServiceSnapshot third = second.withInstance(
+                instanceB, new ServiceData(Arrays.asList(adminA)));
+        assertThat(third.getVersion(), is(3L));
+        assertTrue(third.getEndpoints("http").isEmpty());
+        assertThat(third.getEndpoint(instanceB, "admin"), is(adminA));
+    }
+
+    @Test
+    public void removingUnknownInstanceKeepsSnapshot() {
+        final ServiceSnapshot snapshot = ServiceSnapshot.empty(coordinate)
+                .withInstance(instanceA, new ServiceData(Arrays.asList(httpA)));
+        assertThat(snapshot.withoutInstance(instanceB), is(sameInstance(snapshot)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void endpointListsCanNotBeModified() {
+        ServiceSnapshot.empty(coordinate)
+                .withInstance(instanceA, new ServiceData(Arrays.asList(httpA)))
+                .getEndpoints("http").add(httpB);
+    }
+}
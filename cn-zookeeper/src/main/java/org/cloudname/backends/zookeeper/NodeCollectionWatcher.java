@@ -1,18 +1,21 @@
 package org.cloudname.backends.zookeeper;
 
-import com.google.common.base.Charsets;
-
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
+import org.cloudname.core.LeaseData;
+import org.cloudname.core.VersionedData;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +28,17 @@ import java.util.logging.Logger;
  * watches it mens we've missed an event and the appropriate event is generated to the
  * listener.
  *
+ * <p>The ZooKeeper client sets the watches again when it reconnects within the same session and
+ * the server fires the ones for nodes that changed while the client was disconnected. The
+ * watcher only has to read the child list again if the watched node's pzxid has changed
+ * since the last time it was listed, and only new children are read. An outage doesn't
+ * trigger a read of every watched node. The checks after a reconnect are run by a
+ * {@link ResyncScheduler} so the watchers in the process don't all read at the same time.
+ *
+ * <p>The nodes found by the first successful listing are delivered to the listener as a single
+ * snapshot. The lock is held while the initial nodes are read so none of the other events can
+ * overtake the snapshot.
+ *
  * <p>Note that this class only watches for changes one level down. Changes in children aren't
  * monitored. The path must exist beforehand.
  *
@@ -33,26 +47,69 @@ import java.util.logging.Logger;
 public class NodeCollectionWatcher {
     private static final Logger LOG = Logger.getLogger(NodeCollectionWatcher.class.getName());
 
+    // Read permits for reads that aren't rate limited
+    private static final IntConsumer UNLIMITED_READS = (count) -> { };
+
     private final Map<String, Long> childMzxid = new HashMap<>();
+    // Data and data version for the child nodes. Written while holding the sync object but read
+    // without locking.
+    private final Map<String, CachedNode> childData = new ConcurrentHashMap<>();
+    // The pzxid of the watched node the last time the children were listed, -1 if unknown.
+    // Guarded by the sync object.
+    private long childListZxid = -1L;
+    // Known children whose data watch might not be set since the read failed. Guarded by the
+    // sync object.
+    private final Set<String> unwatchedChildren = new HashSet<>();
+    // Collects the initial nodes while they are read; null otherwise. Guarded by the sync object.
+    private Map<String, byte[]> snapshot = null;
+    // Set when the snapshot has been delivered. Guarded by the sync object.
+    private boolean snapshotDelivered = false;
     private final Object syncObject = new Object();
 
     private final ZooKeeper zk;
     private final String pathToWatch;
     private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
     private final NodeWatcherListener listener;
+    private final ResyncScheduler resyncScheduler;
+
+    /**
+     * The data and data version of a child node.
+     */
+    private static class CachedNode {
+        private final byte[] data;
+        private final int version;
 
+        CachedNode(final byte[] data, final int version) {
+            this.data = data;
+            this.version = version;
+        }
+    }
 
     /**
      * Create and start the collection watcher. The supplied @link{ZooKeeper} instance is used to
      * read nodes from the path <pre>pathToWatch</pre>. Changes are communicated with the
-     * supplied @link{NodeWatcherListener}.
+     * supplied @link{NodeWatcherListener}. Checks after reconnects are scheduled by the default
+     * {@link ResyncScheduler}.
      */
     public NodeCollectionWatcher(
             final ZooKeeper zk, final String pathToWatch, final NodeWatcherListener listener) {
+        this(zk, pathToWatch, listener, ResyncScheduler.getDefault());
+    }
+
+    /**
+     * Create and start the collection watcher with a scheduler of its own for the checks after
+     * reconnects.
+     */
+    public NodeCollectionWatcher(
+            final ZooKeeper zk,
+            final String pathToWatch,
+            final NodeWatcherListener listener,
+            final ResyncScheduler resyncScheduler) {
         this.pathToWatch = pathToWatch;
         this.zk = zk;
         this.listener = listener;
-        readChildNodes();
+        this.resyncScheduler = resyncScheduler;
+        readChildNodes(UNLIMITED_READS);
     }
 
     /**
@@ -62,6 +119,64 @@ public class NodeCollectionWatcher {
         shuttingDown.set(true);
     }
 
+    /**
+     * The path the watcher monitors.
+     */
+    public String getPath() {
+        return pathToWatch;
+    }
+
+    /**
+     * Check if the watcher is running. The cached data is only maintained while it is.
+     */
+    public boolean isWatching() {
+        return !shuttingDown.get();
+    }
+
+    /**
+     * Get the last seen data for a child node. The data is updated before the listener is
+     * notified of the change.
+     *
+     * @param nodePath full path to the child node
+     * @return the data or null if the node isn't among the watched nodes
+     */
+    public String getCachedData(final String nodePath) {
+        return LeaseData.decode(getCachedBinaryData(nodePath));
+    }
+
+    /**
+     * Get the last seen data for a child node as bytes.
+     *
+     * @param nodePath full path to the child node
+     * @return the data or null if the node isn't among the watched nodes
+     */
+    public byte[] getCachedBinaryData(final String nodePath) {
+        final CachedNode cachedNode = childData.get(nodePath);
+        return cachedNode == null ? null : cachedNode.data;
+    }
+
+    /**
+     * Get the last seen data for a child node along with the node's data version.
+     *
+     * @param nodePath full path to the child node
+     * @return the data and version or null if the node isn't among the watched nodes
+     */
+    public VersionedData getCachedVersionedData(final String nodePath) {
+        final CachedNode cachedNode = childData.get(nodePath);
+        if (cachedNode == null) {
+            return null;
+        }
+        return new VersionedData(LeaseData.decode(cachedNode.data), cachedNode.version);
+    }
+
+    /**
+     * The number of child nodes the watcher knows about. Like the data the count is updated
+     * before the listener is notified of the change.
+     */
+    public int getCachedNodeCount() {
+        return childData.size();
+    }
+
     /**
      * Watcher for node collections. Set by getChildren().
      */
@@ -69,7 +184,7 @@ public class NodeCollectionWatcher {
         switch (watchedEvent.getType()) {
             case NodeChildrenChanged:
                 // Child values have changed, read children, generate events
-                readChildNodes();
+                readChildNodes(UNLIMITED_READS);
                 break;
             case None:
                 // Some zookeeper event. Watches might not apply anymore. Reapply.
@@ -77,14 +192,14 @@ public class NodeCollectionWatcher {
                     case ConnectedReadOnly:
                         LOG.severe("Connected to readonly cluster");
                         // Connected to a cluster without quorum. Nodes might not be
-                        // correct but re-read the nodes.
-                        readChildNodes();
+                        // correct but check for changes.
+                        scheduleResync();
                         break;
                     case SyncConnected:
                         LOG.info("Connected to cluster");
-                        // (re-)Connected to the cluster. Nodes must be re-read. Discard
-                        // those that aren't found, keep unchanged ones.
-                        readChildNodes();
+                        // (re-)Connected to the cluster. The watches are set again by the
+                        // client so only changes to the child list have to be checked.
+                        scheduleResync();
                         break;
                     case Disconnected:
                         // Disconnected from the cluster. The nodes might not be
@@ -93,6 +208,9 @@ public class NodeCollectionWatcher {
                         break;
                     case Expired:
                         // Session has expired. Nodes are no longer available
+                        synchronized (syncObject) {
+                            childListZxid = -1L;
+                        }
                         removeAllChildNodes();
                         break;
                     default:
@@ -138,33 +256,124 @@ public class NodeCollectionWatcher {
     }
 
     /**
-     * Read nodes from ZooKeeper, generating events as necessary. If a node is missing from the
-     * result it will generate a remove notification, ditto with new nodes and changes in nodes.
+     * Let the scheduler run the check after a reconnect.
+     */
+    private void scheduleResync() {
+        resyncScheduler.schedule(this);
+    }
+
+    /**
+     * Check for changes after a reconnect. The child list is only read if the watched node's
+     * pzxid has changed or some of the children must be read again. Invoked by the resync
+     * scheduler.
+     *
+     * @param readPermits invoked with the number of reads before reading from ZooKeeper
      */
-    private void readChildNodes() {
+    void resync(final IntConsumer readPermits) {
+        if (shuttingDown.get()) {
+            return;
+        }
         try {
-            final List<String> childNodes = zk.getChildren(pathToWatch, nodeCollectionWatcher);
+            readPermits.accept(1);
+            final Stat stat = zk.exists(pathToWatch, false);
+            synchronized (syncObject) {
+                if (stat != null && stat.getPzxid() == childListZxid
+                        && unwatchedChildren.isEmpty()) {
+                    LOG.fine("Children of " + pathToWatch + " are unchanged after reconnect");
+                    return;
+                }
+            }
+            readChildNodes(readPermits);
+        } catch (final KeeperException.ConnectionLossException e) {
+            // We've been disconnected. Let the watcher deal with it
+            LOG.info("Lost connection to ZooKeeper while checking child nodes.");
+        } catch (final KeeperException | InterruptedException e) {
+            LOG.log(Level.WARNING, "Got exception checking child nodes", e);
+        }
+    }
+
+    /**
+     * Read nodes from ZooKeeper, generating events as necessary. The first time the nodes are
+     * read they are delivered as a snapshot.
+     */
+    private void readChildNodes(final IntConsumer readPermits) {
+        synchronized (syncObject) {
+            if (!snapshotDelivered) {
+                readSnapshot(readPermits);
+                return;
+            }
+        }
+        listChildNodes(readPermits);
+    }
+
+    /**
+     * Read the initial nodes and deliver them as a snapshot. Must be called while holding the
+     * sync object. If the children can't be listed the snapshot is delivered by the next read.
+     */
+    private void readSnapshot(final IntConsumer readPermits) {
+        snapshot = new LinkedHashMap<>();
+        final Map<String, byte[]> nodes = snapshot;
+        final boolean listed;
+        try {
+            listed = listChildNodes(readPermits);
+        } finally {
+            snapshot = null;
+        }
+        if (listed && !shuttingDown.get()) {
+            snapshotDelivered = true;
+            generateSnapshotEvent(nodes);
+        }
+    }
+
+    /**
+     * List the child nodes. If a node is missing from the result it will generate a remove
+     * notification, ditto with new nodes. Known nodes are only read if their data watch might be
+     * missing; data changes are reported by the data watches.
+     *
+     * @param readPermits invoked with the number of reads before reading from ZooKeeper
+     * @return true if the children were listed
+     */
+    private boolean listChildNodes(final IntConsumer readPermits) {
+        try {
+            readPermits.accept(1);
+            final Stat stat = new Stat();
+            final List<String> childNodes
+                    = zk.getChildren(pathToWatch, nodeCollectionWatcher, stat);
             final Set<String> childrenToDelete = new HashSet<>();
+            final Set<String> childrenToRead = new HashSet<>();
             synchronized (syncObject) {
+                childListZxid = stat.getPzxid();
                 childrenToDelete.addAll(childMzxid.keySet());
+                childrenToRead.addAll(unwatchedChildren);
             }
             for (final String nodeName : childNodes) {
-                processNode(pathToWatch + "/" + nodeName);
-                childrenToDelete.remove(pathToWatch + "/" + nodeName);
+                final String nodePath = pathToWatch + "/" + nodeName;
+                if (!childrenToDelete.remove(nodePath) || childrenToRead.contains(nodePath)) {
+                    readPermits.accept(1);
+                    processNode(nodePath);
+                }
             }
             for (final String nodePath : childrenToDelete) {
                 removeChildNode(nodePath);
             }
+            return true;
         } catch (final KeeperException.ConnectionLossException e) {
-            // We've been disconnected. Let the watcher deal with it
+            // We've been disconnected. Let the watcher deal with it. The child watch might not
+            // be set so the children must be listed again.
+            synchronized (syncObject) {
+                childListZxid = -1L;
+            }
             if (!shuttingDown.get()) {
                 LOG.info("Lost connection to ZooKeeper while reading child nodes.");
             }
+            return false;
         } catch (final KeeperException.NoNodeException e) {
             // Node has been removed. Ignore the error?
             removeChildNode(e.getPath());
+            return true;
         } catch (final KeeperException | InterruptedException e) {
             LOG.log(Level.WARNING, "Got exception reading child nodes", e);
+            return false;
         }
     }
 
@@ -177,11 +386,12 @@ public class NodeCollectionWatcher {
         }
         try {
             final Stat stat = new Stat();
-            final byte[] nodeData = zk.getData(nodePath, changeWatcher, stat);
-            final String data = new String(nodeData, Charsets.UTF_8);
+            final byte[] data = zk.getData(nodePath, changeWatcher, stat);
             synchronized (syncObject) {
+                unwatchedChildren.remove(nodePath);
                 if (!childMzxid.containsKey(nodePath)) {
                     childMzxid.put(nodePath, stat.getMzxid());
+                    childData.put(nodePath, new CachedNode(data, stat.getVersion()));
                     generateCreateEvent(nodePath, data);
                     return;
                 }
@@ -189,11 +399,20 @@ public class NodeCollectionWatcher {
                 if (zxid != stat.getMzxid()) {
                     // the data have changed. Generate event
                     childMzxid.put(nodePath, stat.getMzxid());
+                    childData.put(nodePath, new CachedNode(data, stat.getVersion()));
                     generateDataChangeEvent(nodePath, data);
                 }
             }
         } catch (final KeeperException.ConnectionLossException e) {
-            // We've been disconnected. Let the watcher deal with it
+            // We've been disconnected. The data watch isn't set so read the node again when
+            // the connection is back. New nodes are found by listing the children again.
+            synchronized (syncObject) {
+                if (childMzxid.containsKey(nodePath)) {
+                    unwatchedChildren.add(nodePath);
+                } else {
+                    childListZxid = -1L;
+                }
+            }
             if (!shuttingDown.get()) {
                 LOG.info("Lost connection to ZooKeeper while reading child nodes.");
             }
@@ -212,19 +431,37 @@ public class NodeCollectionWatcher {
      */
     private void removeChildNode(final String nodePath) {
         synchronized (syncObject) {
+            unwatchedChildren.remove(nodePath);
             if (childMzxid.containsKey(nodePath)) {
                 childMzxid.remove(nodePath);
+                childData.remove(nodePath);
                 generateRemoveEvent(nodePath);
             }
         }
     }
 
     /**
-     * Invoke nodeCreated on listener.
+     * Invoke nodeSnapshot on listener.
      */
-    private void generateCreateEvent(final String nodePath, final String data) {
+    private void generateSnapshotEvent(final Map<String, byte[]> nodes) {
         try {
-            listener.nodeCreated(nodePath, data);
+            listener.binaryNodeSnapshot(nodes);
+        } catch (final Exception exception) {
+            LOG.log(Level.WARNING, "Got exception calling listener.nodeSnapshot", exception);
+        }
+    }
+
+    /**
+     * Invoke nodeCreated on listener. Nodes found while the snapshot is read are added to the
+     * snapshot.
+     */
+    private void generateCreateEvent(final String nodePath, final byte[] data) {
+        if (snapshot != null) {
+            snapshot.put(nodePath, data);
+            return;
+        }
+        try {
+            listener.binaryNodeCreated(nodePath, data);
         } catch (final Exception exception) {
             LOG.log(Level.WARNING, "Got exception calling listener.nodeCreated", exception);
         }
@@ -233,9 +470,13 @@ public class NodeCollectionWatcher {
     /**
      * Invoke dataChanged on listener.
      */
-    private void generateDataChangeEvent(final String nodePath, final String data) {
+    private void generateDataChangeEvent(final String nodePath, final byte[] data) {
+        if (snapshot != null && snapshot.containsKey(nodePath)) {
+            snapshot.put(nodePath, data);
+            return;
+        }
         try {
-            listener.dataChanged(nodePath, data);
+            listener.binaryDataChanged(nodePath, data);
         } catch (final Exception exception) {
             LOG.log(Level.WARNING, "Got exception calling listener.dataChanged", exception);
         }
@@ -245,6 +486,10 @@ public class NodeCollectionWatcher {
      * Invoke nodeRemoved on listener.
      */
     private void generateRemoveEvent(final String nodePath) {
+        if (snapshot != null && snapshot.containsKey(nodePath)) {
+            snapshot.remove(nodePath);
+            return;
+        }
         try {
             listener.nodeRemoved(nodePath);
         } catch (final Exception exception) {
@@ -1,7 +1,12 @@
 package org.cloudname.backends.zookeeper;
 
+import org.cloudname.core.LeaseData;
+
+import java.util.Map;
+
 /**
- * Listener interface for node change events
+ * Listener interface for node change events. The watcher invokes the binary callbacks; by
+ * default they decode the data as UTF-8 and invoke the string callbacks.
  *
  * @author stalehd@gmail.com
  */
@@ -15,6 +20,27 @@ public interface NodeWatcherListener {
      */
     void nodeCreated(final String zkPath, final String data);
 
+    /**
+     * A node is created. The default implementation invokes {@link #nodeCreated(String, String)}.
+     *
+     * @param zkPath path to node
+     * @param data   data of node
+     */
+    default void binaryNodeCreated(final String zkPath, final byte[] data) {
+        nodeCreated(zkPath, LeaseData.decode(data));
+    }
+
+    /**
+     * The nodes that exist when the watcher starts. This is invoked once, when the child nodes
+     * have been listed, and before any other event. The default implementation invokes
+     * {@link #binaryNodeCreated(String, byte[])} for each node.
+     *
+     * @param nodes path and data of the existing nodes
+     */
+    default void binaryNodeSnapshot(final Map<String, byte[]> nodes) {
+        nodes.forEach(this::binaryNodeCreated);
+    }
+
     /**
      * Data on a node is changed. Note that you might not get data change notifications
      * for nodes that are created and updated within a short time span, only a create
@@ -27,6 +53,17 @@ public interface NodeWatcherListener {
      */
     void dataChanged(final String zkPath, final String data);
 
+    /**
+     * Data on a node is changed. The default implementation invokes
+     * {@link #dataChanged(String, String)}.
+     *
+     * @param zkPath path of node
+     * @param data   data of node
+     */
+    default void binaryDataChanged(final String zkPath, final byte[] data) {
+        dataChanged(zkPath, LeaseData.decode(data));
+    }
+
     /**
      * Node is removed.
      *
@@ -0,0 +1,183 @@
+package org.cloudname.backends.zookeeper;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the checks the node collection watchers do after the ZooKeeper client reconnects.
+ * Every watcher in the process gets the reconnect event at the same time and every client in
+ * the fleet reconnects at roughly the same time after f.e. a leader election in the ensemble.
+ * If all of them read their nodes right away the ensemble gets a burst of reads just as it
+ * comes back.
+ *
+ * <p>The scheduler starts each check after a random delay (the jitter) and runs the checks one
+ * at a time with a budget for the number of reads per second shared by all of them. Watchers
+ * that are shut down while they wait, ie the listener is removed, are dropped without reading
+ * anything so the budget is spent on watchers with listeners.
+ */
+public class ResyncScheduler {
+    private static final Logger LOG = Logger.getLogger(ResyncScheduler.class.getName());
+
+    /**
+     * The default max number of reads per second.
+     */
+    public static final int DEFAULT_READS_PER_SECOND = 500;
+
+    /**
+     * The default max delay before a check starts in milliseconds.
+     */
+    public static final int DEFAULT_MAX_JITTER_MS = 2000;
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(0);
+    private static final ResyncScheduler DEFAULT_SCHEDULER
+            = new ResyncScheduler(DEFAULT_READS_PER_SECOND, DEFAULT_MAX_JITTER_MS);
+
+    private final ScheduledExecutorService executor;
+    private final int readsPerSecond;
+    private final int maxJitterMs;
+    private final long maxBurst;
+    private final Set<NodeCollectionWatcher> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicLong completedResyncs = new AtomicLong(0L);
+    private final AtomicLong skippedResyncs = new AtomicLong(0L);
+    private final AtomicLong reads = new AtomicLong(0L);
+    private final AtomicLong throttledNanos = new AtomicLong(0L);
+
+    // The read budget. Only used by the executor thread.
+    private double availableReads;
+    private long lastRefill;
+
+    /**
+     * Create a scheduler.
+     *
+     * @param readsPerSecond max number of reads per second for all checks
+     * @param maxJitterMs max delay before a check starts in milliseconds. 0 starts the checks
+     *     right away.
+     * @throws IllegalArgumentException if the reads per second is less than 1 or the jitter is
+     *     negative
+     */
+    public ResyncScheduler(final int readsPerSecond, final int maxJitterMs) {
+        if (readsPerSecond < 1) {
+            throw new IllegalArgumentException("Reads per second must be at least 1");
+        }
+        if (maxJitterMs < 0) {
+            throw new IllegalArgumentException("Jitter can not be negative");
+        }
+        this.readsPerSecond = readsPerSecond;
+        this.maxJitterMs = maxJitterMs;
+        // Allow bursts of 100 ms worth of reads
+        this.maxBurst = Math.max(1, readsPerSecond / 10);
+        this.availableReads = maxBurst;
+        this.lastRefill = System.nanoTime();
+        this.executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            final Thread thread = new Thread(
+                    runnable, "cn-zk-resync-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The scheduler shared by all watchers in the process unless they're given one of their own.
+     */
+    public static ResyncScheduler getDefault() {
+        return DEFAULT_SCHEDULER;
+    }
+
+    /**
+     * Schedule a check for a watcher. A watcher is only scheduled once until its check runs.
+     */
+    void schedule(final NodeCollectionWatcher watcher) {
+        if (!pending.add(watcher)) {
+            return;
+        }
+        final long delay = (maxJitterMs == 0
+                ? 0L : ThreadLocalRandom.current().nextLong(maxJitterMs + 1L));
+        try {
+            executor.schedule(() -> resync(watcher), delay, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException ex) {
+            LOG.log(Level.WARNING, "Could not schedule check of " + watcher.getPath(), ex);
+            pending.remove(watcher);
+        }
+    }
+
+    private void resync(final NodeCollectionWatcher watcher) {
+        pending.remove(watcher);
+        if (!watcher.isWatching()) {
+            skippedResyncs.incrementAndGet();
+            return;
+        }
+        try {
+            watcher.resync(this::acquireReads);
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Got exception checking " + watcher.getPath(), ex);
+        }
+        completedResyncs.incrementAndGet();
+    }
+
+    /**
+     * Wait until the budget allows the reads. Reads beyond the budget are paid back by waiting
+     * so a single large read doesn't block forever.
+     */
+    private void acquireReads(final int count) {
+        reads.addAndGet(count);
+        final long now = System.nanoTime();
+        availableReads = Math.min(maxBurst,
+                availableReads + (now - lastRefill) * readsPerSecond / 1e9);
+        lastRefill = now;
+        availableReads -= count;
+        if (availableReads >= 0) {
+            return;
+        }
+        final long waitNanos = (long) (-availableReads * 1e9 / readsPerSecond);
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        throttledNanos.addAndGet(waitNanos);
+    }
+
+    /**
+     * The number of watchers waiting for their check.
+     */
+    public int getPendingResyncs() {
+        return pending.size();
+    }
+
+    /**
+     * The number of checks completed.
+     */
+    public long getCompletedResyncs() {
+        return completedResyncs.get();
+    }
+
+    /**
+     * The number of checks dropped because the watcher was shut down while it waited.
+     */
+    public long getSkippedResyncs() {
+        return skippedResyncs.get();
+    }
+
+    /**
+     * The number of reads done by the checks.
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * The total time the checks have waited for the read budget in milliseconds.
+     */
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+}
@@ -1,30 +1,52 @@
 package org.cloudname.backends.zookeeper;
 
-import com.google.common.base.Charsets;
-
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.Stat;
 import org.cloudname.core.CloudnameBackend;
 import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseCountListener;
+import org.cloudname.core.LeaseCountTracker;
+import org.cloudname.core.LeaseData;
 import org.cloudname.core.LeaseHandle;
 import org.cloudname.core.LeaseListener;
 import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A ZooKeeper backend for Cloudname. Leases are represented as nodes; client leases are ephemeral
- * nodes inside container nodes and permanent leases are container nodes.
+ * nodes inside container nodes and permanent leases are container nodes. The lease data is
+ * stored as the node data so the binary operations are the native ones.
  *
  * @author stalehd@gmail.com
  */
@@ -32,12 +54,33 @@ public class ZooKeeperBackend implements CloudnameBackend {
     private static final Logger LOG = Logger.getLogger(ZooKeeperBackend.class.getName());
     private static final String ZK_ROOT = "/cn/";
     private static final int CONNECTION_TIMEOUT_SECONDS = 30;
+    private static final int MAX_OPS_PER_MULTI = 128;
+    private static final int REGISTRATION_THREADS = 4;
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger(0);
 
     private final CuratorFramework curator;
     private final Map<LeaseListener, NodeCollectionWatcher> collectionListeners = new HashMap<>();
     private final Map<LeaseListener, NodeCollectionWatcher> leaseListeners = new HashMap<>();
     private final Object syncObject = new Object();
 
+    // Watchers keyed on the path they monitor. Used to serve cached reads. Modified while
+    // holding the sync object.
+    private final Map<String, List<NodeCollectionWatcher>> watchedPaths
+            = new ConcurrentHashMap<>();
+
+    // Count listeners are backed by collection listeners and their watchers
+    private final LeaseCountTracker countTracker = new LeaseCountTracker(this);
+
+    // The watchers read the nodes they watch with blocking calls when they're created so the
+    // non-blocking listener registrations run here instead of on the common pool.
+    private final ExecutorService registrationExecutor = Executors.newFixedThreadPool(
+            REGISTRATION_THREADS, (runnable) -> {
+                final Thread thread = new Thread(
+                        runnable, "cn-zk-registration-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
     /**
      * @param connectionString ZooKeeper connection string
      * @throws IllegalStateException if the cluster isn't available.
@@ -57,42 +100,232 @@ public class ZooKeeperBackend implements CloudnameBackend {
 
     @Override
     public boolean writeLeaseData(final CloudnamePath path, final String data) {
+        return writeBinaryLeaseData(path, LeaseData.encode(data));
+    }
+
+    /**
+     * Write lease data if the node's data version is unchanged. The version is the version in
+     * the node's {@link Stat}; ZooKeeper checks it as part of the write.
+     */
+    @Override
+    public boolean writeLeaseData(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        if (path == null || data == null || !isNodeVersion(expectedVersion)) {
+            return false;
+        }
+        try {
+            curator.setData()
+                    .withVersion((int) expectedVersion)
+                    .forPath(ZK_ROOT + path.join('/'), LeaseData.encode(data));
+            return true;
+        } catch (final KeeperException.BadVersionException | KeeperException.NoNodeException ex) {
+            return false;
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception writing lease data to " + path
+                    + " with data " + data, ex);
+            return false;
+        }
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> writeLeaseData(final Map<CloudnamePath, String> leaseData) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (leaseData == null) {
+            return ret;
+        }
+        final Map<CloudnamePath, Op> operations = new LinkedHashMap<>();
+        leaseData.forEach((path, data) -> {
+            ret.put(path, false);
+            if (path != null && data != null) {
+                operations.put(path,
+                        Op.setData(ZK_ROOT + path.join('/'), LeaseData.encode(data), -1));
+            }
+        });
+        ret.putAll(multi(operations));
+        return ret;
+    }
+
+    @Override
+    public boolean writeBinaryLeaseData(final CloudnamePath path, final byte[] data) {
+        if (data == null) {
+            return false;
+        }
         final String zkPath = ZK_ROOT + path.join('/');
         try {
             final Stat nodeStat = curator.checkExists().forPath(zkPath);
             if (nodeStat == null) {
                 LOG.log(Level.WARNING, "Could not write client lease data for " + path
-                        + " with data since the path does not exist. Data = " + data);
+                        + " since the path does not exist.");
             }
-            curator.setData().forPath(zkPath, data.getBytes(Charsets.UTF_8));
+            curator.setData().forPath(zkPath, data);
             return true;
         } catch (final Exception ex) {
-            LOG.log(Level.WARNING, "Got exception writing lease data to " + path
-                    + " with data " + data);
+            LOG.log(Level.WARNING, "Got exception writing lease data to " + path);
             return false;
         }
     }
 
     @Override
     public String readLeaseData(final CloudnamePath path) {
+        return LeaseData.decode(readBinaryLeaseData(path));
+    }
+
+    @Override
+    public String readLeaseData(final CloudnamePath path, final ReadConsistency consistency) {
+        return LeaseData.decode(readBinaryLeaseData(path, consistency));
+    }
+
+    @Override
+    public byte[] readBinaryLeaseData(final CloudnamePath path) {
+        if (path == null) {
+            return null;
+        }
+        final String zkPath = ZK_ROOT + path.join('/');
+        try {
+            curator.sync().forPath(zkPath);
+            return curator.getData().forPath(zkPath);
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception reading client lease data at " + path, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Read lease data. Cached reads of leases observed by a listener are served from the
+     * watcher's copy of the data without talking to ZooKeeper.
+     */
+    @Override
+    public byte[] readBinaryLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path != null && consistency == ReadConsistency.CACHED) {
+            final NodeCollectionWatcher watcher = findWatcher(path);
+            if (watcher != null) {
+                return watcher.getCachedBinaryData(ZK_ROOT + path.join('/'));
+            }
+        }
+        return readBinaryLeaseData(path);
+    }
+
+    /**
+     * Read lease data and the node's data version. Cached reads of leases observed by a listener
+     * are served from the watcher's copy without talking to ZooKeeper.
+     */
+    @Override
+    public VersionedData readVersionedLeaseData(
+            final CloudnamePath path, final ReadConsistency consistency) {
         if (path == null) {
             return null;
         }
         final String zkPath = ZK_ROOT + path.join('/');
+        if (consistency == ReadConsistency.CACHED) {
+            final NodeCollectionWatcher watcher = findWatcher(path);
+            if (watcher != null) {
+                return watcher.getCachedVersionedData(zkPath);
+            }
+        }
         try {
             curator.sync().forPath(zkPath);
-            final byte[] bytes = curator.getData().forPath(zkPath);
-            return new String(bytes, Charsets.UTF_8);
+            final Stat stat = new Stat();
+            final byte[] bytes = curator.getData().storingStatIn(stat).forPath(zkPath);
+            return new VersionedData(LeaseData.decode(bytes), stat.getVersion());
+        } catch (final KeeperException.NoNodeException ex) {
+            return null;
         } catch (final Exception ex) {
             LOG.log(Level.WARNING, "Got exception reading client lease data at " + path, ex);
         }
         return null;
     }
 
+    /**
+     * Node data versions are ints. Other versions can't match any node.
+     */
+    private static boolean isNodeVersion(final long version) {
+        return version >= 0 && version <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Find a running watcher monitoring a lease.
+     *
+     * @return the watcher or null if the lease isn't observed
+     */
+    private NodeCollectionWatcher findWatcher(final CloudnamePath path) {
+        final List<NodeCollectionWatcher> watchers
+                = watchedPaths.get(ZK_ROOT + path.getParent().join('/'));
+        if (watchers == null) {
+            return null;
+        }
+        for (final NodeCollectionWatcher watcher : watchers) {
+            if (watcher.isWatching()) {
+                return watcher;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count the leases below a path. The leases are the child nodes of the path's node, just like
+     * the leases a collection listener sees. The count is served from a running watcher on the
+     * node if there is one and read from the node's stat otherwise; the child nodes aren't read
+     * in either case.
+     */
+    @Override
+    public int countLeases(final CloudnamePath prefix) {
+        if (prefix == null) {
+            return 0;
+        }
+        final String zkPath = ZK_ROOT + prefix.join('/');
+        final List<NodeCollectionWatcher> watchers = watchedPaths.get(zkPath);
+        if (watchers != null) {
+            for (final NodeCollectionWatcher watcher : watchers) {
+                if (watcher.isWatching()) {
+                    return watcher.getCachedNodeCount();
+                }
+            }
+        }
+        try {
+            final Stat stat = curator.checkExists().forPath(zkPath);
+            return stat == null ? 0 : stat.getNumChildren();
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception counting leases below " + prefix, ex);
+        }
+        return 0;
+    }
+
+    /**
+     * Listen to the number of leases below a path. The counts are maintained by a collection
+     * listener on the path.
+     */
+    @Override
+    public void addLeaseCountListener(
+            final CloudnamePath prefix, final LeaseCountListener listener) {
+        countTracker.addListener(prefix, listener);
+    }
+
+    @Override
+    public void removeLeaseCountListener(final LeaseCountListener listener) {
+        countTracker.removeListener(listener);
+    }
+
+    /**
+     * Make the watcher available for cached reads. Must be called while holding the sync object.
+     */
+    private void addWatchedPath(final NodeCollectionWatcher watcher) {
+        watchedPaths.computeIfAbsent(watcher.getPath(), (key) -> new CopyOnWriteArrayList<>())
+                .add(watcher);
+    }
+
+    /**
+     * Remove the watcher from the cached reads. Must be called while holding the sync object.
+     */
+    private void removeWatchedPath(final NodeCollectionWatcher watcher) {
+        watchedPaths.computeIfPresent(watcher.getPath(), (key, watchers) -> {
+            watchers.remove(watcher);
+            return watchers.isEmpty() ? null : watchers;
+        });
+    }
+
     private CloudnamePath toCloudnamePath(final String zkPath) {
-        final String clientPath = zkPath.substring(ZK_ROOT.length());
-        final String[] elements = clientPath.split("/");
-        return new CloudnamePath(elements);
+        return CloudnamePath.parse(zkPath, ZK_ROOT.length(), '/');
     }
 
     @Override
@@ -108,26 +341,11 @@ public class ZooKeeperBackend implements CloudnameBackend {
             final NodeCollectionWatcher watcher = new NodeCollectionWatcher(
                     curator.getZookeeperClient().getZooKeeper(),
                     zkPath,
-                    new NodeWatcherListener() {
-
-                        @Override
-                        public void nodeCreated(final String path, final String data) {
-                            listener.leaseCreated(toCloudnamePath(path), data);
-                        }
-
-                        @Override
-                        public void dataChanged(final String path, final String data) {
-                            listener.dataChanged(toCloudnamePath(path), data);
-                        }
-
-                        @Override
-                        public void nodeRemoved(final String path) {
-                            listener.leaseRemoved(toCloudnamePath(path));
-                        }
-                    });
+                    new LeaseEventForwarder(listener, null));
 
             synchronized (syncObject) {
                 collectionListeners.put(listener, watcher);
+                addWatchedPath(watcher);
             }
         } catch (final Exception exception) {
             LOG.log(Level.WARNING, "Got exception when creating node watcher", exception);
@@ -143,38 +361,97 @@ public class ZooKeeperBackend implements CloudnameBackend {
             final NodeCollectionWatcher watcher = new NodeCollectionWatcher(
                     curator.getZookeeperClient().getZooKeeper(),
                     parentPath,
-                    new NodeWatcherListener() {
-
-                        @Override
-                        public void nodeCreated(final String path, final String data) {
-                            if (path.equals(fullPath)) {
-                                listener.leaseCreated(toCloudnamePath(path), data);
-                            }
-                        }
-
-                        @Override
-                        public void dataChanged(final String path, final String data) {
-                            if (path.equals(fullPath)) {
-                                listener.dataChanged(toCloudnamePath(path), data);
-                            }
-                        }
-
-                        @Override
-                        public void nodeRemoved(final String path) {
-                            if (path.equals(fullPath)) {
-                                listener.leaseRemoved(toCloudnamePath(path));
-                            }
-                        }
-                    });
+                    new LeaseEventForwarder(listener, fullPath));
 
             synchronized (syncObject) {
                 leaseListeners.put(listener, watcher);
+                addWatchedPath(watcher);
             }
         } catch (final Exception exception) {
             LOG.log(Level.WARNING, "Got exception when creating node watcher", exception);
         }
     }
 
+    @Override
+    public CompletableFuture<Void> addLeaseCollectionListenerAsync(
+            final CloudnamePath pathToObserve, final LeaseListener listener) {
+        return CompletableFuture.runAsync(
+                () -> addLeaseCollectionListener(pathToObserve, listener), registrationExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Void> addLeaseListenerAsync(
+            final CloudnamePath leaseToObserve, final LeaseListener listener) {
+        return CompletableFuture.runAsync(
+                () -> addLeaseListener(leaseToObserve, listener), registrationExecutor);
+    }
+
+    /**
+     * Forwards the node events from a watcher to a lease listener. The node data is passed on
+     * as is.
+     */
+    private class LeaseEventForwarder implements NodeWatcherListener {
+        private final LeaseListener listener;
+        private final String nodePath;
+
+        /**
+         * Create a forwarder.
+         *
+         * @param listener the lease listener
+         * @param nodePath the only node to forward events for or null to forward all events
+         */
+        LeaseEventForwarder(final LeaseListener listener, final String nodePath) {
+            this.listener = listener;
+            this.nodePath = nodePath;
+        }
+
+        private boolean isObserved(final String path) {
+            return nodePath == null || nodePath.equals(path);
+        }
+
+        @Override
+        public void binaryNodeSnapshot(final Map<String, byte[]> nodes) {
+            final Map<CloudnamePath, byte[]> leases = new LinkedHashMap<>();
+            nodes.forEach((path, data) -> {
+                if (isObserved(path)) {
+                    leases.put(toCloudnamePath(path), data);
+                }
+            });
+            listener.leaseSnapshot(leases);
+        }
+
+        @Override
+        public void nodeCreated(final String path, final String data) {
+            binaryNodeCreated(path, LeaseData.encode(data));
+        }
+
+        @Override
+        public void binaryNodeCreated(final String path, final byte[] data) {
+            if (isObserved(path)) {
+                listener.binaryLeaseCreated(toCloudnamePath(path), data);
+            }
+        }
+
+        @Override
+        public void dataChanged(final String path, final String data) {
+            binaryDataChanged(path, LeaseData.encode(data));
+        }
+
+        @Override
+        public void binaryDataChanged(final String path, final byte[] data) {
+            if (isObserved(path)) {
+                listener.binaryDataChanged(toCloudnamePath(path), data);
+            }
+        }
+
+        @Override
+        public void nodeRemoved(final String path) {
+            if (isObserved(path)) {
+                listener.leaseRemoved(toCloudnamePath(path));
+            }
+        }
+    }
+
     @Override
     public void removeLeaseListener(final LeaseListener listener) {
         synchronized (syncObject) {
@@ -182,11 +459,13 @@ public class ZooKeeperBackend implements CloudnameBackend {
             if (collectionWatcher != null) {
                 collectionListeners.remove(listener);
                 collectionWatcher.shutdown();
+                removeWatchedPath(collectionWatcher);
             }
             final NodeCollectionWatcher leaseWatcher = leaseListeners.get(listener);
             if (leaseWatcher != null) {
                 leaseListeners.remove(listener);
                 leaseWatcher.shutdown();
+                removeWatchedPath(leaseWatcher);
             }
         }
     }
@@ -194,6 +473,12 @@ public class ZooKeeperBackend implements CloudnameBackend {
     @Override
     public LeaseHandle createLease(
             final LeaseType type, final CloudnamePath path, final String data) {
+        return createBinaryLease(type, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public LeaseHandle createBinaryLease(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
         if (type == null || path == null || data == null) {
             return null;
         }
@@ -209,54 +494,21 @@ public class ZooKeeperBackend implements CloudnameBackend {
                 final String returnedPath = curator.create()
                         .creatingParentContainersIfNeeded()
                         .withMode(mode)
-                        .forPath(zkPath, data.getBytes(Charsets.UTF_8));
+                        .forPath(zkPath, data);
 
                 if (returnedPath == null) {
                     LOG.warning("Could not create node for path " + path
                             + " - Curator returned null on create()");
                     return null;
                 }
-                return new LeaseHandle() {
-                    private AtomicBoolean closed = new AtomicBoolean(false);
-
-                    @Override
-                    public boolean writeData(final String data) {
-                        if (closed.get()) {
-                            LOG.info("Attempt to write data to closed leased handle " + data);
-                            return false;
-                        }
-                        return writeLeaseData(path, data);
-                    }
-
-                    @Override
-                    public CloudnamePath getLeasePath() {
-                        if (closed.get()) {
-                            return null;
-                        }
-                        return path;
-                    }
-
-                    @Override
-                    public void close() throws IOException {
-                        if (type == LeaseType.PERMANENT || closed.get()) {
-                            return;
-                        }
-                        try {
-                            curator.delete().forPath(zkPath);
-                            closed.set(true);
-                        } catch (final Exception ex) {
-                            throw new IOException(ex);
-                        }
-                    }
-                };
+                return newLeaseHandle(type, path, zkPath);
             }
 
-            LOG.log(Level.INFO, "Attempt to create node at " + path
-                    + " with data " + data + " but it already exists");
+            LOG.log(Level.INFO, "Attempt to create node at " + path + " but it already exists");
 
         } catch (final Exception ex) {
             LOG.log(Level.WARNING, "Got exception creating parent container for lease"
-                    + " for lease " + path + " with data " + data, ex);
+                    + " for lease " + path, ex);
         }
         return null;
     }
@@ -279,13 +531,411 @@ public class ZooKeeperBackend implements CloudnameBackend {
         }
     }
 
+    /**
+     * Create the lease handle returned to clients.
+     */
+    private LeaseHandle newLeaseHandle(
+            final LeaseType type, final CloudnamePath path, final String zkPath) {
+        return new LeaseHandle() {
+            private AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public boolean writeData(final String data) {
+                if (closed.get()) {
+                    LOG.info("Attempt to write data to closed leased handle " + data);
+                    return false;
+                }
+                return writeLeaseData(path, data);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> writeDataAsync(final String data) {
+                if (closed.get()) {
+                    LOG.info("Attempt to write data to closed leased handle " + data);
+                    return CompletableFuture.completedFuture(false);
+                }
+                return writeLeaseDataAsync(path, data);
+            }
+
+            @Override
+            public boolean writeBinaryData(final byte[] data) {
+                if (closed.get()) {
+                    LOG.info("Attempt to write data to closed leased handle " + path);
+                    return false;
+                }
+                return writeBinaryLeaseData(path, data);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> writeBinaryDataAsync(final byte[] data) {
+                if (closed.get()) {
+                    LOG.info("Attempt to write data to closed leased handle " + path);
+                    return CompletableFuture.completedFuture(false);
+                }
+                return writeBinaryLeaseDataAsync(path, data);
+            }
+
+            @Override
+            public CloudnamePath getLeasePath() {
+                if (closed.get()) {
+                    return null;
+                }
+                return path;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (type == LeaseType.PERMANENT || closed.get()) {
+                    return;
+                }
+                try {
+                    curator.delete().forPath(zkPath);
+                    closed.set(true);
+                } catch (final Exception ex) {
+                    throw new IOException(ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * Run a set of operations through ZooKeeper's multi() call. A multi() call is atomic; if one
+     * operation fails all of them are rolled back. The operations that failed by themselves are
+     * marked as failed and the rest are retried until the remaining operations succeed. Large
+     * batches are split into several calls.
+     *
+     * @return a map with the same keys as the operations map; true if the operation succeeded
+     */
+    private Map<CloudnamePath, Boolean> multi(final Map<CloudnamePath, Op> operations) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        final List<CloudnamePath> paths = new ArrayList<>();
+        for (final CloudnamePath path : operations.keySet()) {
+            ret.put(path, false);
+            paths.add(path);
+        }
+        for (int i = 0; i < paths.size(); i += MAX_OPS_PER_MULTI) {
+            List<CloudnamePath> pending
+                    = paths.subList(i, Math.min(paths.size(), i + MAX_OPS_PER_MULTI));
+            while (!pending.isEmpty()) {
+                final List<Op> ops = new ArrayList<>(pending.size());
+                pending.forEach((path) -> ops.add(operations.get(path)));
+                try {
+                    curator.getZookeeperClient().getZooKeeper().multi(ops);
+                    pending.forEach((path) -> ret.put(path, true));
+                    break;
+                } catch (final KeeperException ex) {
+                    final List<OpResult> results = ex.getResults();
+                    if (results == null || results.size() != pending.size()) {
+                        LOG.log(Level.WARNING, "Got exception running batch operation", ex);
+                        break;
+                    }
+                    final List<CloudnamePath> retry = new ArrayList<>();
+                    for (int j = 0; j < results.size(); j++) {
+                        if (isRolledBack(results.get(j))) {
+                            retry.add(pending.get(j));
+                        }
+                    }
+                    if (retry.size() == pending.size()) {
+                        LOG.log(Level.WARNING, "Batch operation failed without cause", ex);
+                        break;
+                    }
+                    pending = retry;
+                } catch (final Exception ex) {
+                    LOG.log(Level.WARNING, "Got exception running batch operation", ex);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Check if the result is from an operation that was rolled back because another operation
+     * in the same multi() call failed.
+     */
+    private static boolean isRolledBack(final OpResult result) {
+        if (!(result instanceof OpResult.ErrorResult)) {
+            return false;
+        }
+        final int error = ((OpResult.ErrorResult) result).getErr();
+        return error == KeeperException.Code.OK.intValue()
+                || error == KeeperException.Code.RUNTIMEINCONSISTENCY.intValue();
+    }
+
+    @Override
+    public Map<CloudnamePath, LeaseHandle> createLeases(
+            final LeaseType type, final Map<CloudnamePath, String> leases) {
+        final Map<CloudnamePath, LeaseHandle> ret = new LinkedHashMap<>();
+        if (type == null || leases == null) {
+            return ret;
+        }
+        final CreateMode mode = (type == LeaseType.PERMANENT
+                ? CreateMode.PERSISTENT : CreateMode.EPHEMERAL);
+        final Map<CloudnamePath, Op> operations = new LinkedHashMap<>();
+        final Set<String> parents = new HashSet<>();
+        leases.forEach((path, data) -> {
+            ret.put(path, null);
+            if (path != null && data != null) {
+                final CloudnamePath parent = path.getParent();
+                parents.add(parent.length() == 0
+                        ? ZK_ROOT.substring(0, ZK_ROOT.length() - 1)
+                        : ZK_ROOT + parent.join('/'));
+                operations.put(path, Op.create(ZK_ROOT + path.join('/'),
+                        LeaseData.encode(data), ZooDefs.Ids.OPEN_ACL_UNSAFE, mode));
+            }
+        });
+        try {
+            for (final String parent : parents) {
+                curator.createContainers(parent);
+            }
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception creating parent containers for leases", ex);
+            return ret;
+        }
+        multi(operations).forEach((path, created) -> {
+            if (created) {
+                ret.put(path, newLeaseHandle(type, path, ZK_ROOT + path.join('/')));
+            }
+        });
+        return ret;
+    }
+
+    @Override
+    public Map<CloudnamePath, Boolean> removeLeases(final Collection<CloudnamePath> paths) {
+        final Map<CloudnamePath, Boolean> ret = new LinkedHashMap<>();
+        if (paths == null) {
+            return ret;
+        }
+        final Map<CloudnamePath, Op> operations = new LinkedHashMap<>();
+        for (final CloudnamePath path : paths) {
+            ret.put(path, false);
+            if (path != null) {
+                operations.put(path, Op.delete(ZK_ROOT + path.join('/'), -1));
+            }
+        }
+        ret.putAll(multi(operations));
+        return ret;
+    }
+
+    /**
+     * Check if a background operation succeeded.
+     */
+    private static boolean isOk(final CuratorEvent event) {
+        return event.getResultCode() == KeeperException.Code.OK.intValue();
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final String data) {
+        return createBinaryLeaseAsync(type, path, LeaseData.encode(data));
+    }
+
+    @Override
+    public CompletableFuture<LeaseHandle> createBinaryLeaseAsync(
+            final LeaseType type, final CloudnamePath path, final byte[] data) {
+        final CompletableFuture<LeaseHandle> future = new CompletableFuture<>();
+        if (type == null || path == null || data == null) {
+            future.complete(null);
+            return future;
+        }
+        final String zkPath = ZK_ROOT + path.join('/');
+        final CreateMode mode = (type == LeaseType.PERMANENT
+                ? CreateMode.PERSISTENT : CreateMode.EPHEMERAL);
+        try {
+            // The create fails if the node exists so there's no need to check up front
+            curator.create()
+                    .creatingParentContainersIfNeeded()
+                    .withMode(mode)
+                    .inBackground((client, event) -> {
+                        if (isOk(event)) {
+                            future.complete(newLeaseHandle(type, path, zkPath));
+                            return;
+                        }
+                        LOG.log(Level.INFO, "Could not create node at " + path + ", got result "
+                                + KeeperException.Code.get(event.getResultCode()));
+                        future.complete(null);
+                    })
+                    .forPath(zkPath, data);
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception creating lease " + path, ex);
+            future.complete(null);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLeaseAsync(final CloudnamePath path) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (path == null) {
+            future.complete(false);
+            return future;
+        }
+        try {
+            curator.delete()
+                    .inBackground((client, event) -> future.complete(isOk(event)))
+                    .forPath(ZK_ROOT + path.join('/'));
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got error removing node for lease " + path, ex);
+            future.complete(false);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data) {
+        return writeBinaryLeaseDataAsync(path, LeaseData.encode(data));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeLeaseDataAsync(
+            final CloudnamePath path, final String data, final long expectedVersion) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (path == null || data == null || !isNodeVersion(expectedVersion)) {
+            future.complete(false);
+            return future;
+        }
+        try {
+            curator.setData()
+                    .withVersion((int) expectedVersion)
+                    .inBackground((client, event) -> future.complete(isOk(event)))
+                    .forPath(ZK_ROOT + path.join('/'), LeaseData.encode(data));
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception writing lease data to " + path
+                    + " with data " + data, ex);
+            future.complete(false);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> writeBinaryLeaseDataAsync(
+            final CloudnamePath path, final byte[] data) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (path == null || data == null) {
+            future.complete(false);
+            return future;
+        }
+        try {
+            curator.setData()
+                    .inBackground((client, event) -> future.complete(isOk(event)))
+                    .forPath(ZK_ROOT + path.join('/'), data);
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception writing lease data to " + path, ex);
+            future.complete(false);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(final CloudnamePath path) {
+        return readBinaryLeaseDataAsync(path).thenApply(LeaseData::decode);
+    }
+
+    @Override
+    public CompletableFuture<String> readLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        return readBinaryLeaseDataAsync(path, consistency).thenApply(LeaseData::decode);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(final CloudnamePath path) {
+        if (path == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return syncAndReadAsync(path, ZK_ROOT + path.join('/'),
+                (event) -> isOk(event) ? event.getData() : null);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBinaryLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path != null && consistency == ReadConsistency.CACHED) {
+            final NodeCollectionWatcher watcher = findWatcher(path);
+            if (watcher != null) {
+                return CompletableFuture.completedFuture(
+                        watcher.getCachedBinaryData(ZK_ROOT + path.join('/')));
+            }
+        }
+        return readBinaryLeaseDataAsync(path);
+    }
+
+    @Override
+    public CompletableFuture<VersionedData> readVersionedLeaseDataAsync(
+            final CloudnamePath path, final ReadConsistency consistency) {
+        if (path == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final String zkPath = ZK_ROOT + path.join('/');
+        if (consistency == ReadConsistency.CACHED) {
+            final NodeCollectionWatcher watcher = findWatcher(path);
+            if (watcher != null) {
+                return CompletableFuture.completedFuture(watcher.getCachedVersionedData(zkPath));
+            }
+        }
+        return syncAndReadAsync(path, zkPath, (event) -> isOk(event)
+                ? new VersionedData(LeaseData.decode(event.getData()),
+                        event.getStat().getVersion())
+                : null);
+    }
+
+    /**
+     * Sync a node and read its data in the background. Sync first (like the blocking reads) to
+     * get the latest value. The read is issued from the sync callback so every failure after
+     * that point must complete the future there; the future completes with null if the read
+     * fails.
+     *
+     * @param path the lease path, used for logging
+     * @param zkPath the node to read
+     * @param result converts the result of the read
+     */
+    private <T> CompletableFuture<T> syncAndReadAsync(
+            final CloudnamePath path, final String zkPath,
+            final Function<CuratorEvent, T> result) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            curator.sync()
+                    .inBackground((syncClient, syncEvent) -> {
+                        try {
+                            curator.getData()
+                                    .inBackground((client, event) ->
+                                            completeRead(path, future, result, event))
+                                    .forPath(zkPath);
+                        } catch (final Exception ex) {
+                            LOG.log(Level.WARNING,
+                                    "Got exception reading client lease data at " + path, ex);
+                            future.complete(null);
+                        }
+                    })
+                    .forPath(zkPath);
+        } catch (final Exception ex) {
+            LOG.log(Level.WARNING, "Got exception reading client lease data at " + path, ex);
+            future.complete(null);
+        }
+        return future;
+    }
+
+    private static <T> void completeRead(
+            final CloudnamePath path, final CompletableFuture<T> future,
+            final Function<CuratorEvent, T> result, final CuratorEvent event) {
+        try {
+            future.complete(result.apply(event));
+        } catch (final RuntimeException ex) {
+            LOG.log(Level.WARNING, "Got exception reading client lease data at " + path, ex);
+            future.complete(null);
+        }
+    }
+
     @Override
     public void close() {
+        countTracker.removeAll();
         synchronized (syncObject) {
             collectionListeners.values().forEach(NodeCollectionWatcher::shutdown);
             collectionListeners.clear();
             leaseListeners.values().forEach(NodeCollectionWatcher::shutdown);
             leaseListeners.clear();
+            watchedPaths.clear();
         }
+        registrationExecutor.shutdown();
     }
 }
@@ -0,0 +1,146 @@
+package org.cloudname.backends.zookeeper;
+
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryUntilElapsed;
+import org.apache.curator.test.TestingCluster;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the scheduling and rate limiting of the checks after reconnects. The checks are
+ * scheduled directly rather than by disconnecting the client.
+ */
+public class ResyncSchedulerTest {
+    private static final int MAX_WAIT_MS = 5000;
+
+    private static TestingCluster zkServer;
+    private static CuratorFramework curator;
+    private static ZooKeeper zooKeeper;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        zkServer = new TestingCluster(1);
+        zkServer.start();
+        final RetryPolicy retryPolicy = new RetryUntilElapsed(60000, 100);
+        curator = CuratorFrameworkFactory.newClient(zkServer.getConnectString(), retryPolicy);
+        curator.start();
+        curator.blockUntilConnected(10, TimeUnit.SECONDS);
+        zooKeeper = curator.getZookeeperClient().getZooKeeper();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        zkServer.close();
+    }
+
+    private final NodeWatcherListener emptyListener = new NodeWatcherListener() {
+        @Override
+        public void nodeCreated(final String zkPath, final String data) {
+        }
+
+        @Override
+        public void dataChanged(final String zkPath, final String data) {
+        }
+
+        @Override
+        public void nodeRemoved(final String zkPath) {
+        }
+    };
+
+    private void waitForChecks(final ResyncScheduler scheduler, final long count)
+            throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (scheduler.getCompletedResyncs() + scheduler.getSkippedResyncs() < count
+                && System.currentTimeMillis() - start < MAX_WAIT_MS) {
+            Thread.sleep(5);
+        }
+        assertThat(scheduler.getCompletedResyncs() + scheduler.getSkippedResyncs(), is(count));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidReadBudget() {
+        new ResyncScheduler(0, 0);
+    }
+
+    @Test
+    public void checksAreScheduledOnce() throws Exception {
+        final String path = "/resync/once";
+        curator.create().creatingParentsIfNeeded().forPath(path);
+        // The jitter keeps the first check pending while the watcher is scheduled again
+        final ResyncScheduler scheduler = new ResyncScheduler(1000, 60000);
+        final NodeCollectionWatcher watcher
+                = new NodeCollectionWatcher(zooKeeper, path, emptyListener, scheduler);
+
+        scheduler.schedule(watcher);
+        scheduler.schedule(watcher);
+        assertThat(scheduler.getPendingResyncs(), is(1));
+        watcher.shutdown();
+    }
+
+    @Test
+    public void unchangedCollectionIsOnlyListed() throws Exception {
+        final String path = "/resync/unchanged";
+        curator.create().creatingParentsIfNeeded().forPath(path);
+        final ResyncScheduler scheduler = new ResyncScheduler(1000, 0);
+        final NodeCollectionWatcher watcher
+                = new NodeCollectionWatcher(zooKeeper, path, emptyListener, scheduler);
+
+        scheduler.schedule(watcher);
+        waitForChecks(scheduler, 1);
+        assertThat(scheduler.getCompletedResyncs(), is(1L));
+        assertThat(scheduler.getReads(), is(1L));
+        assertThat(scheduler.getPendingResyncs(), is(0));
+        watcher.shutdown();
+    }
+
+    @Test
+    public void stoppedWatchersAreSkipped() throws Exception {
+        final String path = "/resync/stopped";
+        curator.create().creatingParentsIfNeeded().forPath(path);
+        final ResyncScheduler scheduler = new ResyncScheduler(1000, 100);
+        final NodeCollectionWatcher watcher
+                = new NodeCollectionWatcher(zooKeeper, path, emptyListener, scheduler);
+
+        scheduler.schedule(watcher);
+        watcher.shutdown();
+        waitForChecks(scheduler, 1);
+        assertThat(scheduler.getSkippedResyncs(), is(1L));
+        assertThat(scheduler.getReads(), is(0L));
+    }
+
+    @Test
+    public void readsAreRateLimited() throws Exception {
+        final String path = "/resync/limited";
+        curator.create().creatingParentsIfNeeded().forPath(path);
+        final int numWatchers = 5;
+        final ResyncScheduler scheduler = new ResyncScheduler(10, 0);
+        final List<NodeCollectionWatcher> watchers = new ArrayList<>();
+        for (int i = 0; i < numWatchers; i++) {
+            watchers.add(new NodeCollectionWatcher(zooKeeper, path, emptyListener, scheduler));
+        }
+
+        final long start = System.currentTimeMillis();
+        watchers.forEach(scheduler::schedule);
+        waitForChecks(scheduler, numWatchers);
+        final long elapsed = System.currentTimeMillis() - start;
+
+        // One read per check at 10 reads per second and a burst of a single read
+        assertTrue("Expected checks to be spread out but took " + elapsed + " ms",
+                elapsed >= 300);
+        assertTrue(scheduler.getThrottledMillis() >= 300);
+        assertThat(scheduler.getReads(), is((long) numWatchers));
+        watchers.forEach(NodeCollectionWatcher::shutdown);
+    }
+}
@@ -11,14 +11,21 @@ import static org.junit.Assert.fail;
 
 import org.cloudname.core.CloudnameBackend;
 import org.cloudname.core.CloudnamePath;
+import org.cloudname.core.LeaseCountListener;
 import org.cloudname.core.LeaseHandle;
 import org.cloudname.core.LeaseListener;
 import org.cloudname.core.LeaseType;
+import org.cloudname.core.ReadConsistency;
+import org.cloudname.core.VersionedData;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
@@ -26,6 +33,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Core backend tests. This ensures the backend implementation works as expected on the most
@@ -223,6 +231,432 @@ public abstract class CoreBackendTest {
         }
     }
 
+    /**
+     * Batch operations return one result per lease; a failure for one lease doesn't affect the
+     * others.
+     */
+    @Test
+    public void batchOperations() throws Exception {
+        final CloudnamePath root = new CloudnamePath(new String[]{"batch", "leases"});
+        final CloudnamePath first = new CloudnamePath(root, "first");
+        final CloudnamePath second = new CloudnamePath(root, "second");
+        final CloudnamePath existing = new CloudnamePath(root, "existing");
+        final CloudnamePath missing = new CloudnamePath(root, "missing");
+
+        try (final CloudnameBackend backend = getBackend()) {
+            backend.removeLeases(Arrays.asList(first, second, existing, missing));
+            assertThat(backend.createLease(LeaseType.PERMANENT, existing, "existing"),
+                    is(notNullValue()));
+
+            final Map<CloudnamePath, String> leases = new LinkedHashMap<>();
+            leases.put(first, "first");
+            leases.put(existing, "duplicate");
+            leases.put(second, "second");
+            final Map<CloudnamePath, LeaseHandle> handles
+                    = backend.createLeases(LeaseType.PERMANENT, leases);
+            assertThat("Expect one result per lease", handles.size(), is(3));
+            assertThat(handles.get(first), is(notNullValue()));
+            assertThat(handles.get(second), is(notNullValue()));
+            assertThat("Existing lease isn't created", handles.get(existing), is(nullValue()));
+            assertThat(backend.readLeaseData(first), is("first"));
+            assertThat(backend.readLeaseData(second), is("second"));
+            assertThat(backend.readLeaseData(existing), is("existing"));
+
+            final Map<CloudnamePath, String> updates = new LinkedHashMap<>();
+            updates.put(first, "first update");
+            updates.put(missing, "missing update");
+            updates.put(second, "second update");
+            final Map<CloudnamePath, Boolean> written = backend.writeLeaseData(updates);
+            assertThat(written.get(first), is(true));
+            assertThat(written.get(second), is(true));
+            assertThat("Missing leases can't be written", written.get(missing), is(false));
+            assertThat(backend.readLeaseData(first), is("first update"));
+            assertThat(backend.readLeaseData(second), is("second update"));
+
+            final Map<CloudnamePath, Boolean> removed
+                    = backend.removeLeases(Arrays.asList(first, missing, second, existing));
+            assertThat(removed.size(), is(4));
+            assertThat(removed.get(first), is(true));
+            assertThat(removed.get(second), is(true));
+            assertThat(removed.get(existing), is(true));
+            assertThat("Missing leases can't be removed", removed.get(missing), is(false));
+            assertThat(backend.readLeaseData(first), is(nullValue()));
+
+            assertThat(backend.createLeases(null, leases).isEmpty(), is(true));
+            assertThat(backend.removeLeases(null).isEmpty(), is(true));
+        }
+    }
+
+    /**
+     * The non-blocking operations complete with the same values as the blocking operations.
+     */
+    @Test
+    public void asyncOperations() throws Exception {
+        final CloudnamePath leasePath = new CloudnamePath(new String[]{"async", "lease"});
+        final int timeoutMs = 1000 + getBackendPropagationTime();
+        try (final CloudnameBackend backend = getBackend()) {
+            backend.removeLease(leasePath);
+
+            final LeaseHandle handle = backend.createLeaseAsync(
+                    LeaseType.PERMANENT, leasePath, "first").get(timeoutMs, TimeUnit.MILLISECONDS);
+            assertThat("Expect to be able to create lease", handle, is(notNullValue()));
+            assertThat("Expect lease to be created only once",
+                    backend.createLeaseAsync(LeaseType.PERMANENT, leasePath, "first")
+                            .get(timeoutMs, TimeUnit.MILLISECONDS), is(nullValue()));
+            assertThat(backend.readLeaseDataAsync(leasePath)
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is("first"));
+
+            assertThat(backend.writeLeaseDataAsync(leasePath, "second")
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(true));
+            assertThat(backend.readLeaseData(leasePath), is("second"));
+            assertThat(handle.writeDataAsync("third")
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(true));
+            assertThat(backend.readLeaseData(leasePath), is("third"));
+
+            assertThat(backend.removeLeaseAsync(leasePath)
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(true));
+            assertThat(backend.removeLeaseAsync(leasePath)
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(false));
+            assertThat(backend.readLeaseDataAsync(leasePath)
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(nullValue()));
+            assertThat(backend.writeLeaseDataAsync(leasePath, "fourth")
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(false));
+        }
+    }
+
+    /**
+     * Conditional writes only succeed if the lease hasn't been written since it was read.
+     */
+    @Test
+    public void versionedWrites() throws Exception {
+        final CloudnamePath leasePath = new CloudnamePath(new String[]{"versioned", "lease"});
+        final int timeoutMs = 1000 + getBackendPropagationTime();
+        try (final CloudnameBackend backend = getBackend()) {
+            backend.removeLease(leasePath);
+            assertThat(backend.readVersionedLeaseData(leasePath, ReadConsistency.LINEARIZABLE),
+                    is(nullValue()));
+            assertThat("Missing leases can't be written",
+                    backend.writeLeaseData(leasePath, "missing", 0L), is(false));
+
+            assertThat(backend.createLease(LeaseType.PERMANENT, leasePath, "first"),
+                    is(notNullValue()));
+            final VersionedData first
+                    = backend.readVersionedLeaseData(leasePath, ReadConsistency.LINEARIZABLE);
+            assertThat(first.getData(), is("first"));
+
+            assertThat("Expect write with current version to succeed",
+                    backend.writeLeaseData(leasePath, "second", first.getVersion()), is(true));
+            final VersionedData second
+                    = backend.readVersionedLeaseData(leasePath, ReadConsistency.LINEARIZABLE);
+            assertThat(second.getData(), is("second"));
+            assertThat("Expect version to change when data is written",
+                    second.getVersion() == first.getVersion(), is(false));
+            assertThat("Expect write with old version to fail",
+                    backend.writeLeaseData(leasePath, "stale", first.getVersion()), is(false));
+            assertThat(backend.readLeaseData(leasePath), is("second"));
+
+            assertThat(backend.writeLeaseDataAsync(leasePath, "third", second.getVersion())
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(true));
+            assertThat(backend.writeLeaseDataAsync(leasePath, "stale", second.getVersion())
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(false));
+            final VersionedData third = backend
+                    .readVersionedLeaseDataAsync(leasePath, ReadConsistency.LINEARIZABLE)
+                    .get(timeoutMs, TimeUnit.MILLISECONDS);
+            assertThat(third.getData(), is("third"));
+
+            assertThat(backend.removeLease(leasePath), is(true));
+            assertThat("Removed leases can't be written",
+                    backend.writeLeaseData(leasePath, "removed", third.getVersion()), is(false));
+        }
+    }
+
+    /**
+     * Cached reads return the same data as regular reads once the listeners have seen the
+     * changes. Leases that aren't observed are read from the backend.
+     */
+    @Test
+    public void cachedReads() throws Exception {
+        final CloudnamePath rootPath = new CloudnamePath(new String[]{"cached", "reads"});
+        final CloudnamePath leasePath = new CloudnamePath(rootPath, "lease");
+        final CloudnamePath otherPath = new CloudnamePath(new String[]{"cached", "other"});
+        final int timeoutMs = 1000 + getBackendPropagationTime();
+        try (final CloudnameBackend backend = getBackend()) {
+            backend.removeLease(leasePath);
+            backend.removeLease(otherPath);
+
+            assertThat(backend.createLease(LeaseType.PERMANENT, otherPath, "other"),
+                    is(notNullValue()));
+            assertThat("Unobserved leases are read from the backend",
+                    backend.readLeaseData(otherPath, ReadConsistency.CACHED), is("other"));
+            assertThat(backend.readLeaseDataAsync(otherPath, ReadConsistency.CACHED)
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is("other"));
+
+            final CountDownLatch createLatch = new CountDownLatch(1);
+            final CountDownLatch dataLatch = new CountDownLatch(1);
+            final CountDownLatch removeLatch = new CountDownLatch(1);
+            final LeaseListener listener = new LeaseListener() {
+                @Override
+                public void leaseCreated(final CloudnamePath path, final String data) {
+                    createLatch.countDown();
+                }
+
+                @Override
+                public void leaseRemoved(final CloudnamePath path) {
+                    removeLatch.countDown();
+                }
+
+                @Override
+                public void dataChanged(final CloudnamePath path, final String data) {
+                    dataLatch.countDown();
+                }
+            };
+            backend.addLeaseCollectionListener(rootPath, listener);
+
+            assertThat(backend.createLease(LeaseType.PERMANENT, leasePath, "first"),
+                    is(notNullValue()));
+            assertTrue(createLatch.await(timeoutMs, TimeUnit.MILLISECONDS));
+            assertThat(backend.readLeaseData(leasePath, ReadConsistency.CACHED), is("first"));
+            assertThat(backend.readLeaseData(leasePath, ReadConsistency.LINEARIZABLE),
+                    is("first"));
+
+            assertThat(backend.writeLeaseData(leasePath, "second"), is(true));
+            assertTrue(dataLatch.await(timeoutMs, TimeUnit.MILLISECONDS));
+            assertThat(backend.readLeaseData(leasePath, ReadConsistency.CACHED), is("second"));
+            assertThat(backend.readLeaseDataAsync(leasePath, ReadConsistency.CACHED)
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is("second"));
+
+            assertThat(backend.removeLease(leasePath), is(true));
+            assertTrue(removeLatch.await(timeoutMs, TimeUnit.MILLISECONDS));
+            assertThat(backend.readLeaseData(leasePath, ReadConsistency.CACHED),
+                    is(nullValue()));
+
+            backend.removeLeaseListener(listener);
+            assertThat(backend.removeLease(otherPath), is(true));
+        }
+    }
+
+    /**
+     * Binary lease data is stored as is, including bytes that aren't valid UTF-8, and the string
+     * operations see the UTF-8 encoding of the same data.
+     */
+    @Test
+    public void binaryLeaseData() throws Exception {
+        final CloudnamePath rootPath = new CloudnamePath(new String[]{"binary", "data"});
+        final CloudnamePath leasePath = new CloudnamePath(rootPath, "lease");
+        final byte[] first = new byte[] {0, (byte) 0xff, (byte) 0xfe, 42};
+        final byte[] second = new byte[] {(byte) 0xc3, 0, (byte) 0x80};
+        final int timeoutMs = 1000 + getBackendPropagationTime();
+        try (final CloudnameBackend backend = getBackend()) {
+            backend.removeLease(leasePath);
+
+            final AtomicReference<byte[]> createdData = new AtomicReference<>();
+            final AtomicReference<byte[]> changedData = new AtomicReference<>();
+            final CountDownLatch createLatch = new CountDownLatch(1);
+            final CountDownLatch dataLatch = new CountDownLatch(1);
+            final LeaseListener listener = new LeaseListener() {
+                @Override
+                public void leaseCreated(final CloudnamePath path, final String data) {
+                    fail("Expected binary callback");
+                }
+
+                @Override
+                public void binaryLeaseCreated(final CloudnamePath path, final byte[] data) {
+                    createdData.set(data);
+                    createLatch.countDown();
+                }
+
+                @Override
+                public void leaseRemoved(final CloudnamePath path) {
+                }
+
+                @Override
+                public void dataChanged(final CloudnamePath path, final String data) {
+                    fail("Expected binary callback");
+                }
+
+                @Override
+                public void binaryDataChanged(final CloudnamePath path, final byte[] data) {
+                    changedData.set(data);
+                    dataLatch.countDown();
+                }
+            };
+            backend.addLeaseCollectionListener(rootPath, listener);
+
+            assertThat(backend.createBinaryLease(LeaseType.PERMANENT, leasePath, null),
+                    is(nullValue()));
+            final LeaseHandle handle
+                    = backend.createBinaryLease(LeaseType.PERMANENT, leasePath, first);
+            assertThat(handle, is(notNullValue()));
+            assertTrue(createLatch.await(timeoutMs, TimeUnit.MILLISECONDS));
+            assertThat(createdData.get(), is(first));
+            assertThat(backend.readBinaryLeaseData(leasePath), is(first));
+            assertThat(backend.readBinaryLeaseData(leasePath, ReadConsistency.CACHED),
+                    is(first));
+
+            assertThat(backend.writeBinaryLeaseData(leasePath, second), is(true));
+            assertTrue(dataLatch.await(timeoutMs, TimeUnit.MILLISECONDS));
+            assertThat(changedData.get(), is(second));
+            assertThat(backend.readBinaryLeaseDataAsync(leasePath)
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(second));
+
+            assertThat(handle.writeBinaryData(first), is(true));
+            assertThat(backend.readBinaryLeaseData(leasePath, ReadConsistency.LINEARIZABLE),
+                    is(first));
+
+            backend.removeLeaseListener(listener);
+            assertThat(backend.writeLeaseData(leasePath, "blåbær"), is(true));
+            assertThat(backend.readBinaryLeaseData(leasePath),
+                    is("blåbær".getBytes(StandardCharsets.UTF_8)));
+            assertThat(backend.writeBinaryLeaseDataAsync(
+                    leasePath, "rødgrød".getBytes(StandardCharsets.UTF_8))
+                    .get(timeoutMs, TimeUnit.MILLISECONDS), is(true));
+            assertThat(backend.readLeaseData(leasePath), is("rødgrød"));
+
+            assertThat(backend.removeLease(leasePath), is(true));
+            assertThat(backend.readBinaryLeaseData(leasePath), is(nullValue()));
+        }
+    }
+
+    /**
+     * Existing leases are delivered as a snapshot to new listeners, followed by the changes.
+     */
+    @Test
+    public void leaseSnapshot() throws Exception {
+        final CloudnamePath rootPath = new CloudnamePath(new String[]{"snapshot", "leases"});
+        final int numLeases = 5;
+        final int timeoutMs = 1000 + getBackendPropagationTime();
+        try (final CloudnameBackend backend = getBackend()) {
+            final Map<CloudnamePath, String> existing = new LinkedHashMap<>();
+            final List<LeaseHandle> handles = new ArrayList<>();
+            for (int i = 0; i < numLeases; i++) {
+                final LeaseHandle handle = backend.createLease(
+                        LeaseType.TEMPORARY, appendUniqueName(rootPath), "lease " + i);
+                assertThat(handle, is(notNullValue()));
+                handles.add(handle);
+                existing.put(handle.getLeasePath(), "lease " + i);
+            }
+            Thread.sleep(getBackendPropagationTime());
+
+            // Composite backends might deliver one snapshot per part so collect the union
+            final Map<CloudnamePath, String> snapshot = new LinkedHashMap<>();
+            final AtomicInteger eventsBeforeSnapshot = new AtomicInteger(0);
+            final CountDownLatch snapshotLatch = new CountDownLatch(1);
+            final CountDownLatch createLatch = new CountDownLatch(1);
+            final LeaseListener listener = new LeaseListener() {
+                @Override
+                public void leaseSnapshot(final Map<CloudnamePath, byte[]> leases) {
+                    synchronized (snapshot) {
+                        leases.forEach((path, data) ->
+                                snapshot.put(path, new String(data, StandardCharsets.UTF_8)));
+                    }
+                    snapshotLatch.countDown();
+                }
+
+                @Override
+                public void leaseCreated(final CloudnamePath path, final String data) {
+                    if (snapshotLatch.getCount() > 0) {
+                        eventsBeforeSnapshot.incrementAndGet();
+                    }
+                    if (existing.containsKey(path)) {
+                        fail("Existing lease " + path + " delivered as a new lease");
+                    }
+                    createLatch.countDown();
+                }
+
+                @Override
+                public void leaseRemoved(final CloudnamePath path) {
+                }
+
+                @Override
+                public void dataChanged(final CloudnamePath path, final String data) {
+                }
+            };
+            backend.addLeaseCollectionListener(rootPath, listener);
+            assertTrue(snapshotLatch.await(timeoutMs, TimeUnit.MILLISECONDS));
+            Thread.sleep(getBackendPropagationTime());
+            synchronized (snapshot) {
+                assertThat(snapshot, is(existing));
+            }
+
+            final LeaseHandle newHandle = backend.createLease(
+                    LeaseType.TEMPORARY, appendUniqueName(rootPath), "new lease");
+            assertThat(newHandle, is(notNullValue()));
+            assertTrue(createLatch.await(timeoutMs, TimeUnit.MILLISECONDS));
+            assertThat(eventsBeforeSnapshot.get(), is(0));
+
+            backend.removeLeaseListener(listener);
+            newHandle.close();
+            for (final LeaseHandle handle : handles) {
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * Wait for a count listener to report a count.
+     */
+    private void waitForCount(final AtomicInteger lastCount, final int expected,
+            final int timeoutMs) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (lastCount.get() != expected && System.currentTimeMillis() - start < timeoutMs) {
+            Thread.sleep(5);
+        }
+        assertThat(lastCount.get(), is(expected));
+    }
+
+    /**
+     * Lease counts follow the leases below a path and count listeners are told when the count
+     * changes but not when data changes.
+     */
+    @Test
+    public void leaseCounts() throws Exception {
+        final CloudnamePath rootPath
+                = appendUniqueName(new CloudnamePath(new String[]{"count", "leases"}));
+        final int numLeases = 3;
+        final int timeoutMs = 1000 + getBackendPropagationTime();
+        try (final CloudnameBackend backend = getBackend()) {
+            assertThat(backend.countLeases(rootPath), is(0));
+
+            final AtomicInteger lastCount = new AtomicInteger(-1);
+            final AtomicInteger notifications = new AtomicInteger(0);
+            final AtomicReference<CloudnamePath> lastPrefix = new AtomicReference<>();
+            final LeaseCountListener listener = (prefix, count) -> {
+                lastPrefix.set(prefix);
+                lastCount.set(count);
+                notifications.incrementAndGet();
+            };
+            backend.addLeaseCountListener(rootPath, listener);
+            waitForCount(lastCount, 0, timeoutMs);
+            assertThat(lastPrefix.get(), is(rootPath));
+
+            final List<LeaseHandle> handles = new ArrayList<>();
+            for (int i = 0; i < numLeases; i++) {
+                final LeaseHandle handle = backend.createLease(
+                        LeaseType.TEMPORARY, appendUniqueName(rootPath), "lease " + i);
+                assertThat(handle, is(notNullValue()));
+                handles.add(handle);
+            }
+            waitForCount(lastCount, numLeases, timeoutMs);
+            assertThat(backend.countLeases(rootPath), is(numLeases));
+
+            final int notificationsBeforeWrite = notifications.get();
+            assertThat(handles.get(0).writeData("changed"), is(true));
+            Thread.sleep(getBackendPropagationTime());
+            assertThat("Data changes don't change the count",
+                    notifications.get(), is(notificationsBeforeWrite));
+
+            handles.get(0).close();
+            waitForCount(lastCount, numLeases - 1, timeoutMs);
+            assertThat(backend.countLeases(rootPath), is(numLeases - 1));
+
+            backend.removeLeaseCountListener(listener);
+            handles.get(1).close();
+            Thread.sleep(getBackendPropagationTime());
+            assertThat("Removed listeners aren't notified", lastCount.get(), is(numLeases - 1));
+            handles.get(2).close();
+        }
+    }
+
     /**
      * Ensure clients are notified of changes.
      */